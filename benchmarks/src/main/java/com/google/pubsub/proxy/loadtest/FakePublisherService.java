@@ -0,0 +1,78 @@
+/* Copyright 2019 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+package com.google.pubsub.proxy.loadtest;
+
+import com.google.pubsub.v1.PublishRequest;
+import com.google.pubsub.v1.PublishResponse;
+import com.google.pubsub.v1.PublisherGrpc;
+import io.grpc.stub.StreamObserver;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Stand-in for the Cloud Pub/Sub Publisher service that acknowledges every message, optionally
+ * after a fixed delay simulating the broker round trip.
+ */
+public class FakePublisherService extends PublisherGrpc.PublisherImplBase {
+
+  private final AtomicLong nextId = new AtomicLong();
+  private final long ackDelayMillis;
+  private final ScheduledExecutorService scheduler;
+
+  public FakePublisherService(long ackDelayMillis) {
+    this.ackDelayMillis = ackDelayMillis;
+    this.scheduler =
+        ackDelayMillis > 0
+            ? Executors.newSingleThreadScheduledExecutor(
+                runnable -> {
+                  Thread thread = new Thread(runnable, "fake-pubsub-acks");
+                  thread.setDaemon(true);
+                  return thread;
+                })
+            : null;
+  }
+
+  @Override
+  public void publish(PublishRequest request, StreamObserver<PublishResponse> observer) {
+    PublishResponse.Builder response = PublishResponse.newBuilder();
+    for (int i = 0; i < request.getMessagesCount(); i++) {
+      response.addMessageIds(Long.toString(nextId.incrementAndGet()));
+    }
+    if (null == scheduler) {
+      acknowledge(response.build(), observer);
+    } else {
+      scheduler.schedule(
+          () -> acknowledge(response.build(), observer), ackDelayMillis, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  /** Returns the number of messages acknowledged so far */
+  public long getMessageCount() {
+    return nextId.get();
+  }
+
+  public void shutdown() {
+    if (null != scheduler) {
+      scheduler.shutdownNow();
+    }
+  }
+
+  private static void acknowledge(PublishResponse response, StreamObserver<PublishResponse> o) {
+    o.onNext(response);
+    o.onCompleted();
+  }
+}
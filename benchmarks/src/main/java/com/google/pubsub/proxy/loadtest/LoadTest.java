@@ -0,0 +1,272 @@
+/* Copyright 2019 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+package com.google.pubsub.proxy.loadtest;
+
+import com.google.api.gax.core.NoCredentialsProvider;
+import com.google.api.gax.grpc.GrpcTransportChannel;
+import com.google.api.gax.rpc.AlreadyExistsException;
+import com.google.api.gax.rpc.FixedTransportChannelProvider;
+import com.google.cloud.pubsub.v1.TopicAdminClient;
+import com.google.cloud.pubsub.v1.TopicAdminSettings;
+import com.google.pubsub.proxy.config.ProxyConfig;
+import com.google.pubsub.proxy.server.WebServer;
+import com.google.pubsub.v1.ProjectTopicName;
+import io.grpc.ManagedChannel;
+import io.grpc.ManagedChannelBuilder;
+import io.grpc.Server;
+import io.grpc.ServerBuilder;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import javax.ws.rs.core.MediaType;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+import org.eclipse.jetty.client.HttpClient;
+import org.eclipse.jetty.client.util.BytesContentProvider;
+import org.eclipse.jetty.server.ServerConnector;
+
+/**
+ * Open-loop load test of the proxy running on Jetty with real publishers.
+ *
+ * <p>Publishers target the Pub/Sub emulator when PUBSUB_EMULATOR_HOST is set, or an in-process
+ * gRPC fake otherwise. Requests are sent at a fixed rate whatever the response times, and
+ * latencies are measured from the time each request was due, so that a stalled proxy shows up
+ * in the percentiles instead of slowing the load down.
+ *
+ * <p>Settings are passed as key=value arguments, see {@link #DEFAULTS}.
+ */
+public class LoadTest {
+
+  static final Map<String, String> DEFAULTS = new HashMap<>();
+
+  static {
+    DEFAULTS.put("rate", "1000"); // requests per second
+    DEFAULTS.put("duration", "60"); // seconds measured
+    DEFAULTS.put("warmup", "10"); // seconds of load before measuring
+    DEFAULTS.put("batchSize", "10"); // messages per request
+    DEFAULTS.put("payloadSize", "1000"); // bytes of data per message
+    DEFAULTS.put("topic", "load-test");
+    DEFAULTS.put("connections", "64"); // HTTP connections to the proxy
+    DEFAULTS.put("ackDelayMillis", "0"); // acknowledgement delay of the fake
+    DEFAULTS.put("target", ""); // URL of an already running proxy, to only generate load
+  }
+
+  private final Map<String, String> settings;
+  private final Recorder latencies = new Recorder(3);
+  private final LongAdder succeeded = new LongAdder();
+  private final LongAdder failed = new LongAdder();
+  private final AtomicLong inFlight = new AtomicLong();
+  private volatile long lastCompletion;
+
+  LoadTest(Map<String, String> settings) {
+    this.settings = settings;
+  }
+
+  public static void main(String[] args) throws Exception {
+    Map<String, String> settings = new HashMap<>(DEFAULTS);
+    for (String arg : args) {
+      String[] setting = arg.split("=", 2);
+      if (2 != setting.length || !DEFAULTS.containsKey(setting[0])) {
+        System.err.println("Unknown setting " + arg + ", expected key=value with keys");
+        System.err.println(DEFAULTS);
+        System.exit(1);
+      }
+      settings.put(setting[0], setting[1]);
+    }
+    // Exit explicitly, publishers and gRPC leave non-daemon threads behind
+    int status = 0;
+    try {
+      new LoadTest(settings).run();
+    } catch (Throwable t) {
+      t.printStackTrace();
+      status = 1;
+    }
+    System.exit(status);
+  }
+
+  private long getLong(String key) {
+    return Long.parseLong(settings.get(key));
+  }
+
+  void run() throws Exception {
+    String target = settings.get("target");
+    if (!target.isEmpty()) {
+      drive(target);
+      return;
+    }
+
+    String emulatorHost = System.getenv("PUBSUB_EMULATOR_HOST");
+    FakePublisherService fake = null;
+    Server fakeServer = null;
+    if (null == emulatorHost) {
+      fake = new FakePublisherService(getLong("ackDelayMillis"));
+      fakeServer = ServerBuilder.forPort(0).addService(fake).build().start();
+      emulatorHost = "localhost:" + fakeServer.getPort();
+    }
+    String projectId =
+        Optional.ofNullable(System.getenv("PUBSUB_PROJECT_ID")).orElse("load-test");
+    if (null == fake) {
+      createTopic(emulatorHost, ProjectTopicName.of(projectId, settings.get("topic")));
+    }
+
+    // Environment settings still apply, the file and the fake endpoint are the fallbacks
+    Properties properties = new Properties();
+    String path = System.getenv("PROXY_CONFIG");
+    if (null != path) {
+      try (InputStream in = new FileInputStream(path)) {
+        properties.load(in);
+      }
+    }
+    properties.setProperty("pubsub.emulatorHost", emulatorHost);
+    properties.setProperty("pubsub.projectId", projectId);
+
+    org.eclipse.jetty.server.Server proxy =
+        WebServer.start(new ProxyConfig(properties, System.getenv()), 0);
+    try {
+      int port = ((ServerConnector) proxy.getConnectors()[0]).getLocalPort();
+      drive("http://localhost:" + port + "/publish");
+    } finally {
+      proxy.stop();
+      if (null != fake) {
+        System.out.printf("Messages acknowledged by the fake: %d%n", fake.getMessageCount());
+        fake.shutdown();
+        fakeServer.shutdownNow();
+      }
+    }
+  }
+
+  /** Creates the topic on the emulator, which starts without any */
+  private static void createTopic(String emulatorHost, ProjectTopicName topic) throws Exception {
+    ManagedChannel channel = ManagedChannelBuilder.forTarget(emulatorHost).usePlaintext().build();
+    TopicAdminSettings adminSettings =
+        TopicAdminSettings.newBuilder()
+            .setTransportChannelProvider(
+                FixedTransportChannelProvider.create(GrpcTransportChannel.create(channel)))
+            .setCredentialsProvider(NoCredentialsProvider.create())
+            .build();
+    try (TopicAdminClient admin = TopicAdminClient.create(adminSettings)) {
+      admin.createTopic(topic);
+    } catch (AlreadyExistsException e) {
+      // Left over from a previous run
+    } finally {
+      channel.shutdown();
+    }
+  }
+
+  /** Sends requests at the configured rate, then reports what was achieved */
+  private void drive(String url) throws Exception {
+    long rate = getLong("rate");
+    int batchSize = (int) getLong("batchSize");
+    byte[] body = body(settings.get("topic"), batchSize, (int) getLong("payloadSize"));
+
+    HttpClient client = new HttpClient();
+    client.setMaxConnectionsPerDestination((int) getLong("connections"));
+    // Queue up to 10s of requests when connections are all busy, later ones fail
+    client.setMaxRequestsQueuedPerDestination((int) Math.min(rate * 10, 1 << 20));
+    client.start();
+
+    System.out.printf(
+        "Sending %d requests/s of %d messages to %s for %ds after %ds of warmup%n",
+        rate, batchSize, url, getLong("duration"), getLong("warmup"));
+    long interval = TimeUnit.SECONDS.toNanos(1) / rate;
+    long start = System.nanoTime();
+    long measureStart = start + TimeUnit.SECONDS.toNanos(getLong("warmup"));
+    long end = measureStart + TimeUnit.SECONDS.toNanos(getLong("duration"));
+    for (long i = 0; ; i++) {
+      long due = start + i * interval;
+      if (due >= end) {
+        break;
+      }
+      for (long wait = due - System.nanoTime(); wait > 0; wait = due - System.nanoTime()) {
+        LockSupport.parkNanos(wait);
+      }
+      send(client, url, body, due, due >= measureStart);
+    }
+
+    // Let the last requests complete before reporting
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+    while (inFlight.get() > 0 && System.nanoTime() < deadline) {
+      Thread.sleep(10);
+    }
+    client.stop();
+    report(measureStart, batchSize);
+  }
+
+  private void send(HttpClient client, String url, byte[] body, long due, boolean measured) {
+    inFlight.incrementAndGet();
+    client
+        .POST(url)
+        .content(new BytesContentProvider(MediaType.APPLICATION_JSON, body))
+        .send(
+            result -> {
+              long now = System.nanoTime();
+              if (!measured) {
+                // Warming up
+              } else if (!result.isFailed() && 200 == result.getResponse().getStatus()) {
+                latencies.recordValue(now - due);
+                succeeded.increment();
+              } else {
+                failed.increment();
+              }
+              lastCompletion = now;
+              inFlight.decrementAndGet();
+            });
+  }
+
+  private void report(long measureStart, int batchSize) {
+    Histogram histogram = latencies.getIntervalHistogram();
+    double seconds = (lastCompletion - measureStart) / 1e9;
+    long requests = succeeded.sum();
+    System.out.printf(
+        Locale.ROOT,
+        "Requests: %d succeeded, %d failed, %d unfinished%n"
+            + "Achieved: %.0f requests/s, %.0f msgs/s%n"
+            + "Latency ms: p50 %.2f, p99 %.2f, p999 %.2f, max %.2f%n",
+        requests,
+        failed.sum(),
+        inFlight.get(),
+        requests / seconds,
+        requests * batchSize / seconds,
+        histogram.getValueAtPercentile(50) / 1e6,
+        histogram.getValueAtPercentile(99) / 1e6,
+        histogram.getValueAtPercentile(99.9) / 1e6,
+        histogram.getMaxValue() / 1e6);
+  }
+
+  /** Returns the JSON body of every request, messages only differ by their index attribute */
+  private static byte[] body(String topic, int batchSize, int payloadSize) {
+    StringBuilder data = new StringBuilder(payloadSize);
+    for (int i = 0; i < payloadSize; i++) {
+      data.append((char) ('a' + i % 26));
+    }
+    StringBuilder json = new StringBuilder();
+    json.append("{\"topic\": \"").append(topic).append("\", \"messages\": [");
+    for (int i = 0; i < batchSize; i++) {
+      json.append(i > 0 ? ", " : "").append("{\"data\": \"").append(data);
+      json.append("\", \"attributes\": {\"index\": \"").append(i).append("\"}}");
+    }
+    json.append("]}");
+    return json.toString().getBytes(StandardCharsets.UTF_8);
+  }
+}
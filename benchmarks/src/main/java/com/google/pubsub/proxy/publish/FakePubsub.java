@@ -0,0 +1,72 @@
+/* Copyright 2019 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+package com.google.pubsub.proxy.publish;
+
+import com.google.api.gax.core.NoCredentialsProvider;
+import com.google.api.gax.grpc.GrpcTransportChannel;
+import com.google.api.gax.rpc.FixedTransportChannelProvider;
+import com.google.cloud.pubsub.v1.Publisher;
+import com.google.pubsub.proxy.config.ProxyConfig;
+import com.google.pubsub.proxy.loadtest.FakePublisherService;
+import com.google.pubsub.v1.ProjectTopicName;
+import io.grpc.ManagedChannel;
+import io.grpc.Server;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import java.io.IOException;
+import java.util.Properties;
+
+/**
+ * In-process stand-in for the Cloud Pub/Sub Publisher service that acknowledges every message,
+ * so that benchmarks exercise real publishers, batching included, without a network. Batching is
+ * configured as in the proxy, through the environment.
+ */
+final class FakePubsub implements PublisherCache.PublisherFactory, AutoCloseable {
+
+  static final String PROJECT = "benchmark-project";
+
+  private final FakePublisherService service = new FakePublisherService(0);
+  private final TopicPublisherFactory settings =
+      new TopicPublisherFactory(PROJECT, new ProxyConfig(new Properties(), System.getenv()));
+  private final Server server;
+  private final ManagedChannel channel;
+
+  FakePubsub() throws IOException {
+    String name = InProcessServerBuilder.generateName();
+    server =
+        InProcessServerBuilder.forName(name)
+            .directExecutor()
+            .addService(service)
+            .build()
+            .start();
+    channel = InProcessChannelBuilder.forName(name).directExecutor().build();
+  }
+
+  @Override
+  public Publisher create(String topic) throws IOException {
+    return Publisher.newBuilder(ProjectTopicName.of(PROJECT, topic))
+        .setBatchingSettings(settings.batchingSettings(topic))
+        .setChannelProvider(
+            FixedTransportChannelProvider.create(GrpcTransportChannel.create(channel)))
+        .setCredentialsProvider(NoCredentialsProvider.create())
+        .build();
+  }
+
+  @Override
+  public void close() {
+    channel.shutdownNow();
+    server.shutdownNow();
+  }
+}
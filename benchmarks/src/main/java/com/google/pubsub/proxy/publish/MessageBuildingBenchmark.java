@@ -0,0 +1,80 @@
+/* Copyright 2019 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+package com.google.pubsub.proxy.publish;
+
+import com.google.pubsub.proxy.entities.Message;
+import com.google.pubsub.v1.PubsubMessage;
+import java.text.ParseException;
+import java.util.Base64;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Building a PubsubMessage from a POJO message, including Timestamps.parse of the publish time
+ * and the attributes cast.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MessageBuildingBenchmark {
+
+  @Param({"100", "10000"})
+  public int payloadSize;
+
+  @Param({"0", "10"})
+  public int attributeCount;
+
+  private Message utf8Message;
+  private Message base64Message;
+  private Message dataOnlyMessage;
+
+  @Setup
+  public void setUp() {
+    utf8Message = Payloads.message(payloadSize, attributeCount);
+    base64Message = Payloads.message(payloadSize, attributeCount);
+    base64Message.setData(
+        Base64.getEncoder().encodeToString(Payloads.data(payloadSize).getBytes()));
+    dataOnlyMessage = new Message();
+    dataOnlyMessage.setData(Payloads.data(payloadSize));
+  }
+
+  @Benchmark
+  public PubsubMessage utf8Data() throws ParseException {
+    return PublishMessage.toPubsubMessage(utf8Message, false);
+  }
+
+  @Benchmark
+  public PubsubMessage base64Data() throws ParseException {
+    return PublishMessage.toPubsubMessage(base64Message, true);
+  }
+
+  @Benchmark
+  public PubsubMessage dataOnly() throws ParseException {
+    return PublishMessage.toPubsubMessage(dataOnlyMessage, false);
+  }
+}
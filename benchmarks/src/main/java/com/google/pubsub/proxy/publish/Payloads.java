@@ -0,0 +1,87 @@
+/* Copyright 2019 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+package com.google.pubsub.proxy.publish;
+
+import com.google.pubsub.proxy.entities.Message;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/** Generates publish requests of a given shape for the benchmarks */
+final class Payloads {
+
+  static final String TOPIC = "benchmark-topic";
+  static final String PUBLISH_TIME = "2019-06-01T12:00:00.123Z";
+
+  private Payloads() {}
+
+  static String data(int size) {
+    StringBuilder data = new StringBuilder(size);
+    for (int i = 0; i < size; i++) {
+      data.append((char) ('a' + i % 26));
+    }
+    return data.toString();
+  }
+
+  static Map<String, String> attributes(int count) {
+    Map<String, String> attributes = new HashMap<>();
+    for (int i = 0; i < count; i++) {
+      attributes.put("key" + i, "value" + i);
+    }
+    return attributes;
+  }
+
+  static Message message(int payloadSize, int attributeCount) {
+    Message message = new Message();
+    message.setData(data(payloadSize));
+    message.setPublishTime(PUBLISH_TIME);
+    message.setAttributes(attributes(attributeCount));
+    return message;
+  }
+
+  static List<Message> messages(int batchSize, int payloadSize, int attributeCount) {
+    List<Message> messages = new ArrayList<>(batchSize);
+    Message message = message(payloadSize, attributeCount);
+    for (int i = 0; i < batchSize; i++) {
+      messages.add(message);
+    }
+    return messages;
+  }
+
+  /** Returns the JSON body of a publish request */
+  static byte[] json(int batchSize, int payloadSize, int attributeCount) {
+    String data = data(payloadSize);
+    StringBuilder json = new StringBuilder(batchSize * (payloadSize + 64) + 64);
+    json.append("{\"topic\": \"").append(TOPIC).append("\", \"messages\": [");
+    for (int i = 0; i < batchSize; i++) {
+      if (i > 0) {
+        json.append(", ");
+      }
+      json.append("{\"data\": \"").append(data).append("\", \"publishTime\": \"");
+      json.append(PUBLISH_TIME).append("\", \"attributes\": {");
+      for (int a = 0; a < attributeCount; a++) {
+        if (a > 0) {
+          json.append(", ");
+        }
+        json.append("\"key").append(a).append("\": \"value").append(a).append('"');
+      }
+      json.append("}}");
+    }
+    json.append("]}");
+    return json.toString().getBytes(StandardCharsets.UTF_8);
+  }
+}
@@ -0,0 +1,186 @@
+/* Copyright 2019 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+package com.google.pubsub.proxy.publish;
+
+import com.google.pubsub.proxy.entities.Request;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.TimeoutHandler;
+import javax.ws.rs.core.MediaType;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * End-to-end doPost through real publishers, batching included, against an in-process Pub/Sub
+ * service that acknowledges every message.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PublishEndToEndBenchmark {
+
+  @Param({"1", "100", "1000"})
+  public int batchSize;
+
+  @Param({"1000"})
+  public int payloadSize;
+
+  @Param({"false", "true"})
+  public boolean waitForAck;
+
+  private FakePubsub pubsub;
+  private PublishMessage publishMessage;
+  private PublisherCache publishers;
+  private MessageDispatcher dispatcher;
+  private Request request;
+  private byte[] body;
+
+  @Setup
+  public void setUp() throws IOException {
+    pubsub = new FakePubsub();
+    publishers = new PublisherCache(pubsub, 10, 10, TimeUnit.MINUTES);
+    dispatcher = new MessageDispatcher(publishers, null);
+    publishMessage = new PublishMessage(dispatcher);
+    publishMessage.setWaitForAck(waitForAck);
+
+    request = new Request();
+    request.setTopic(Payloads.TOPIC);
+    request.setMessages(Payloads.messages(batchSize, payloadSize, 4));
+    body = Payloads.json(batchSize, payloadSize, 4);
+  }
+
+  @TearDown
+  public void tearDown() throws InterruptedException {
+    dispatcher.shutdown();
+    pubsub.close();
+  }
+
+  @Benchmark
+  public Object pojoRequest() throws Exception {
+    DiscardingAsyncResponse response = new DiscardingAsyncResponse();
+    publishMessage.doPost(request, response);
+    return response.entity;
+  }
+
+  @Benchmark
+  public Object streamedRequest() throws Exception {
+    Request streamed =
+        new StreamingRequestReader()
+            .readFrom(
+                Request.class,
+                Request.class,
+                null,
+                MediaType.APPLICATION_JSON_TYPE,
+                null,
+                new ByteArrayInputStream(body));
+    DiscardingAsyncResponse response = new DiscardingAsyncResponse();
+    publishMessage.doPost(streamed, response);
+    return response.entity;
+  }
+
+  /** Keeps the resumed response so that it can be returned to JMH */
+  private static class DiscardingAsyncResponse implements AsyncResponse {
+    private Object entity;
+
+    @Override
+    public boolean resume(Object response) {
+      entity = response;
+      return true;
+    }
+
+    @Override
+    public boolean resume(Throwable response) {
+      entity = response;
+      return true;
+    }
+
+    @Override
+    public boolean cancel() {
+      return false;
+    }
+
+    @Override
+    public boolean cancel(int retryAfter) {
+      return false;
+    }
+
+    @Override
+    public boolean cancel(Date retryAfter) {
+      return false;
+    }
+
+    @Override
+    public boolean isSuspended() {
+      return null == entity;
+    }
+
+    @Override
+    public boolean isCancelled() {
+      return false;
+    }
+
+    @Override
+    public boolean isDone() {
+      return null != entity;
+    }
+
+    @Override
+    public boolean setTimeout(long time, TimeUnit unit) {
+      return true;
+    }
+
+    @Override
+    public void setTimeoutHandler(TimeoutHandler handler) {}
+
+    @Override
+    public Collection<Class<?>> register(Class<?> callback) {
+      return Collections.emptyList();
+    }
+
+    @Override
+    public Map<Class<?>, Collection<Class<?>>> register(Class<?> callback, Class<?>... callbacks) {
+      return Collections.emptyMap();
+    }
+
+    @Override
+    public Collection<Class<?>> register(Object callback) {
+      return Collections.emptyList();
+    }
+
+    @Override
+    public Map<Class<?>, Collection<Class<?>>> register(Object callback, Object... callbacks) {
+      return Collections.emptyMap();
+    }
+  }
+}
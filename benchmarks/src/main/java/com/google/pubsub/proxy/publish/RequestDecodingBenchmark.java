@@ -0,0 +1,97 @@
+/* Copyright 2019 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+package com.google.pubsub.proxy.publish;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.pubsub.proxy.entities.Message;
+import com.google.pubsub.proxy.entities.Request;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.text.ParseException;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+import javax.ws.rs.core.MediaType;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Decoding of publish request bodies: Jackson binding to the Request POJO, with and without the
+ * conversion to PubsubMessages, against the streaming reader.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RequestDecodingBenchmark {
+
+  @Param({"1", "100", "10000"})
+  public int batchSize;
+
+  @Param({"100", "10000"})
+  public int payloadSize;
+
+  @Param({"4"})
+  public int attributeCount;
+
+  private final ObjectMapper mapper = new ObjectMapper();
+  private final StreamingRequestReader reader = new StreamingRequestReader();
+  private byte[] body;
+
+  @Setup
+  public void setUp() {
+    body = Payloads.json(batchSize, payloadSize, attributeCount);
+  }
+
+  @Benchmark
+  public Request jacksonBinding() throws IOException {
+    return mapper.readValue(body, Request.class);
+  }
+
+  @Benchmark
+  public void jacksonBindingToPubsubMessages(Blackhole blackhole)
+      throws IOException, ParseException {
+    Request request = mapper.readValue(body, Request.class);
+    for (Message message : request.getMessages()) {
+      blackhole.consume(PublishMessage.toPubsubMessage(message, false));
+    }
+  }
+
+  @Benchmark
+  public void streamingReader(Blackhole blackhole) throws IOException {
+    Request request =
+        reader.readFrom(
+            Request.class,
+            Request.class,
+            null,
+            MediaType.APPLICATION_JSON_TYPE,
+            null,
+            new ByteArrayInputStream(body));
+    for (Iterator<?> messages = request.getMessageStream(); messages.hasNext(); ) {
+      blackhole.consume(messages.next());
+    }
+  }
+}
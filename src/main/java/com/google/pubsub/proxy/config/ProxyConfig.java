@@ -0,0 +1,156 @@
+/* Copyright 2019 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+package com.google.pubsub.proxy.config;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * Proxy settings read from an optional properties file, named by the "PROXY_CONFIG" environment
+ * variable, with environment variables as global fallbacks.
+ *
+ * <p>Settings can be scoped to a topic or a topic prefix, the most specific scope wins:
+ *
+ * <pre>
+ * batching.delayThresholdMillis=10                        # every topic
+ * prefix.telemetry-.batching.delayThresholdMillis=100     # topics starting with "telemetry-"
+ * topic.orders.batching.delayThresholdMillis=1            # the "orders" topic
+ * </pre>
+ *
+ * Global settings can also be set through the environment, named after the key in upper snake
+ * case (batching.delayThresholdMillis becomes BATCHING_DELAY_THRESHOLD_MILLIS). The environment
+ * takes precedence over global settings of the file.
+ */
+public class ProxyConfig {
+
+  private static final String TOPIC_SCOPE = "topic.";
+  private static final String PREFIX_SCOPE = "prefix.";
+
+  private final Properties properties;
+  private final Map<String, String> env;
+
+  public ProxyConfig(Properties properties, Map<String, String> env) {
+    this.properties = properties;
+    this.env = env;
+  }
+
+  /** Loads the file named by "PROXY_CONFIG", if any, and the process environment */
+  public static ProxyConfig fromEnvironment() throws IOException {
+    Properties properties = new Properties();
+    String path = System.getenv("PROXY_CONFIG");
+    if (null != path) {
+      try (InputStream in = Files.newInputStream(Paths.get(path))) {
+        properties.load(in);
+      }
+    }
+    return new ProxyConfig(properties, System.getenv());
+  }
+
+  /** Returns a global setting, or null if it is not set */
+  public String get(String key) {
+    String value = env.get(envName(key));
+    return null != value ? value : properties.getProperty(key);
+  }
+
+  /** Returns a setting for a topic, falling back to the longest matching prefix then globals */
+  public String get(String topic, String key) {
+    String value = properties.getProperty(TOPIC_SCOPE + topic + "." + key);
+    if (null != value) {
+      return value;
+    }
+
+    String suffix = "." + key;
+    String bestPrefix = null;
+    for (String name : properties.stringPropertyNames()) {
+      if (name.startsWith(PREFIX_SCOPE) && name.endsWith(suffix)) {
+        String prefix = name.substring(PREFIX_SCOPE.length(), name.length() - suffix.length());
+        boolean longer = null == bestPrefix || prefix.length() > bestPrefix.length();
+        if (topic.startsWith(prefix) && longer) {
+          bestPrefix = prefix;
+          value = properties.getProperty(name);
+        }
+      }
+    }
+    return null != value ? value : get(key);
+  }
+
+  /** Returns every value of a setting, global or scoped to any topic or prefix */
+  public List<String> getAll(String key) {
+    List<String> values = new ArrayList<>();
+    String envValue = env.get(envName(key));
+    if (null != envValue) {
+      values.add(envValue);
+    }
+    String suffix = "." + key;
+    for (String name : properties.stringPropertyNames()) {
+      boolean scoped = name.startsWith(TOPIC_SCOPE) || name.startsWith(PREFIX_SCOPE);
+      if (name.equals(key) || scoped && name.endsWith(suffix)) {
+        values.add(properties.getProperty(name));
+      }
+    }
+    return values;
+  }
+
+  public long getLong(String topic, String key, long defaultValue) {
+    String value = get(topic, key);
+    return null != value ? Long.parseLong(value.trim()) : defaultValue;
+  }
+
+  public long getLong(String key, long defaultValue) {
+    String value = get(key);
+    return null != value ? Long.parseLong(value.trim()) : defaultValue;
+  }
+
+  public int getInt(String key, int defaultValue) {
+    String value = get(key);
+    return null != value ? Integer.parseInt(value.trim()) : defaultValue;
+  }
+
+  public double getDouble(String key, double defaultValue) {
+    String value = get(key);
+    return null != value ? Double.parseDouble(value.trim()) : defaultValue;
+  }
+
+  public boolean getBoolean(String topic, String key, boolean defaultValue) {
+    String value = get(topic, key);
+    return null != value ? Boolean.parseBoolean(value.trim()) : defaultValue;
+  }
+
+  public boolean getBoolean(String key, boolean defaultValue) {
+    String value = get(key);
+    return null != value ? Boolean.parseBoolean(value.trim()) : defaultValue;
+  }
+
+  /** Maps a dotted camel case key to its environment variable name */
+  static String envName(String key) {
+    StringBuilder name = new StringBuilder(key.length() + 8);
+    for (char c : key.toCharArray()) {
+      if (c == '.') {
+        name.append('_');
+      } else if (Character.isUpperCase(c)) {
+        name.append('_').append(c);
+      } else {
+        name.append(Character.toUpperCase(c));
+      }
+    }
+    return name.toString();
+  }
+}
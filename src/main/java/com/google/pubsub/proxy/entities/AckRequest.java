@@ -0,0 +1,41 @@
+/* Copyright 2019 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+
+package com.google.pubsub.proxy.entities;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import java.util.List;
+
+/**
+ * Represents a request to acknowledge pulled messages.
+ *
+ * Example user request json:
+ * { "ackIds": [ "...", "..." ] }
+ */
+public class AckRequest {
+
+  @JsonProperty("ackIds")
+  private List<String> ackIds;
+
+  @JsonProperty("ackIds")
+  public List<String> getAckIds() {
+    return ackIds;
+  }
+
+  @JsonProperty("ackIds")
+  public void setAckIds(List<String> ackIds) {
+    this.ackIds = ackIds;
+  }
+}
@@ -14,13 +14,18 @@
 
 package com.google.pubsub.proxy.entities;
 
+import com.fasterxml.jackson.annotation.JsonInclude;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import com.fasterxml.jackson.annotation.JsonPropertyOrder;
 
-/** Represents a message to be published to a Cloud Pub/Sub topic */
-@JsonPropertyOrder({"attributes", "data", "messageId", "publishTime"})
+/** Represents a message to be published to a Cloud Pub/Sub topic, or pulled from a subscription */
+@JsonInclude(JsonInclude.Include.NON_NULL)
+@JsonPropertyOrder({"topic", "attributes", "data", "messageId", "publishTime", "orderingKey"})
 public class Message {
 
+  @JsonProperty("topic")
+  private String topic;
+
   @JsonProperty("attributes")
   private Object attributes;
 
@@ -33,6 +38,20 @@ public class Message {
   @JsonProperty("publishTime")
   private String publishTime;
 
+  @JsonProperty("orderingKey")
+  private String orderingKey;
+
+  /** Topic of the message, when it differs from the topic of the request */
+  @JsonProperty("topic")
+  public String getTopic() {
+    return topic;
+  }
+
+  @JsonProperty("topic")
+  public void setTopic(String topic) {
+    this.topic = topic;
+  }
+
   @JsonProperty("attributes")
   public Object getAttributes() {
     return attributes;
@@ -72,4 +91,14 @@ public class Message {
   public void setPublishTime(String publishTime) {
     this.publishTime = publishTime;
   }
+
+  @JsonProperty("orderingKey")
+  public String getOrderingKey() {
+    return orderingKey;
+  }
+
+  @JsonProperty("orderingKey")
+  public void setOrderingKey(String orderingKey) {
+    this.orderingKey = orderingKey;
+  }
 }
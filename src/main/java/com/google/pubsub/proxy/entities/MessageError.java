@@ -0,0 +1,56 @@
+/* Copyright 2019 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+package com.google.pubsub.proxy.entities;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.annotation.JsonPropertyOrder;
+
+/** Describes why a single message of a publish request was not published */
+@JsonPropertyOrder({"index", "error"})
+public class MessageError {
+
+  @JsonProperty("index")
+  private int index;
+
+  @JsonProperty("error")
+  private String error;
+
+  public MessageError() {}
+
+  public MessageError(int index, String error) {
+    this.index = index;
+    this.error = error;
+  }
+
+  @JsonProperty("index")
+  public int getIndex() {
+    return index;
+  }
+
+  @JsonProperty("index")
+  public void setIndex(int index) {
+    this.index = index;
+  }
+
+  @JsonProperty("error")
+  public String getError() {
+    return error;
+  }
+
+  @JsonProperty("error")
+  public void setError(String error) {
+    this.error = error;
+  }
+}
@@ -0,0 +1,75 @@
+/* Copyright 2019 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+package com.google.pubsub.proxy.entities;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.annotation.JsonPropertyOrder;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Represents the outcome of a publish request once Cloud Pub/Sub has acknowledged it.
+ *
+ * Example response json:
+ * { "messageIds": [ "4711", null ],
+ *   "errors": [ { "index": 1, "error": "DEADLINE_EXCEEDED" } ] }
+ *
+ * <p>Requests publishing to several topics also get the result of each topic, with the ids of
+ * its messages in request order and the errors indexed within the request.
+ */
+@JsonInclude(JsonInclude.Include.NON_EMPTY)
+@JsonPropertyOrder({"messageIds", "errors", "topics"})
+public class PublishResult {
+
+  @JsonProperty("messageIds")
+  private List<String> messageIds;
+
+  @JsonProperty("errors")
+  private List<MessageError> errors;
+
+  @JsonProperty("topics")
+  private Map<String, PublishResult> topics;
+
+  @JsonProperty("messageIds")
+  public List<String> getMessageIds() {
+    return messageIds;
+  }
+
+  @JsonProperty("messageIds")
+  public void setMessageIds(List<String> messageIds) {
+    this.messageIds = messageIds;
+  }
+
+  @JsonProperty("errors")
+  public List<MessageError> getErrors() {
+    return errors;
+  }
+
+  @JsonProperty("errors")
+  public void setErrors(List<MessageError> errors) {
+    this.errors = errors;
+  }
+
+  @JsonProperty("topics")
+  public Map<String, PublishResult> getTopics() {
+    return topics;
+  }
+
+  @JsonProperty("topics")
+  public void setTopics(Map<String, PublishResult> topics) {
+    this.topics = topics;
+  }
+}
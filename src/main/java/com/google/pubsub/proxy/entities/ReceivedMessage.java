@@ -0,0 +1,57 @@
+/* Copyright 2019 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+
+package com.google.pubsub.proxy.entities;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.annotation.JsonPropertyOrder;
+
+/** Represents a message pulled from a Cloud Pub/Sub subscription, with the id to ack it by */
+@JsonPropertyOrder({"ackId", "message"})
+public class ReceivedMessage {
+
+  @JsonProperty("ackId")
+  private String ackId;
+
+  @JsonProperty("message")
+  private Message message;
+
+  public ReceivedMessage() {}
+
+  public ReceivedMessage(String ackId, Message message) {
+    this.ackId = ackId;
+    this.message = message;
+  }
+
+  @JsonProperty("ackId")
+  public String getAckId() {
+    return ackId;
+  }
+
+  @JsonProperty("ackId")
+  public void setAckId(String ackId) {
+    this.ackId = ackId;
+  }
+
+  @JsonProperty("message")
+  public Message getMessage() {
+    return message;
+  }
+
+  @JsonProperty("message")
+  public void setMessage(Message message) {
+    this.message = message;
+  }
+}
@@ -14,9 +14,11 @@
 
 package com.google.pubsub.proxy.entities;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonProperty;
-import java.util.ArrayList;
+import com.google.pubsub.v1.PubsubMessage;
 import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
 
 /**
@@ -28,6 +30,8 @@ import java.util.List;
  *   "data": "sample data",
  *   "messageId": "123",
  * "publishTime": "...timestamp..." } ] }
+ *
+ * Messages may also name their own "topic", overriding the topic of the request.
  */
 public class Request {
 
@@ -37,6 +41,9 @@ public class Request {
   @JsonProperty("messages")
   private List<Message> messages;
 
+  @JsonIgnore
+  private Iterator<PubsubMessage> messageStream;
+
   @JsonProperty("topic")
   public String getTopic() {
     return topic;
@@ -54,6 +61,17 @@ public class Request {
 
   @JsonProperty("messages")
   public void setMessages(List<Message> messages) {
-    this.messages = Collections.unmodifiableList(new ArrayList<>(messages));
+    this.messages = Collections.unmodifiableList(messages);
+  }
+
+  /** Messages already converted by a streaming reader, consumed once while publishing */
+  @JsonIgnore
+  public Iterator<PubsubMessage> getMessageStream() {
+    return messageStream;
+  }
+
+  @JsonIgnore
+  public void setMessageStream(Iterator<PubsubMessage> messageStream) {
+    this.messageStream = messageStream;
   }
 }
@@ -0,0 +1,80 @@
+/* Copyright 2019 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+
+package com.google.pubsub.proxy.logging;
+
+import com.google.cloud.MonitoredResource;
+import com.google.cloud.logging.LogEntry;
+import com.google.cloud.logging.Logging;
+import com.google.cloud.logging.LoggingOptions;
+import com.google.cloud.logging.Payload.JsonPayload;
+import com.google.cloud.logging.Severity;
+import com.google.pubsub.proxy.config.ProxyConfig;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/** Writes each batch of entries to Cloud Logging in a single write request */
+class CloudLoggingSink implements LogSink {
+
+  static final String LOG_NAME = "logging.logName";
+
+  private static final MonitoredResource GLOBAL = MonitoredResource.newBuilder("global").build();
+
+  private final Logging logging;
+  private final String logName;
+
+  CloudLoggingSink(ProxyConfig config) {
+    this(
+        LoggingOptions.getDefaultInstance().getService(),
+        null != config.get(LOG_NAME) ? config.get(LOG_NAME).trim() : "pubsub-proxy");
+  }
+
+  CloudLoggingSink(Logging logging, String logName) {
+    this.logging = logging;
+    this.logName = logName;
+  }
+
+  @Override
+  public void write(List<PublishLogEntry> entries) {
+    List<LogEntry> logEntries = new ArrayList<>(entries.size());
+    for (PublishLogEntry entry : entries) {
+      Map<String, Object> payload = new HashMap<>();
+      payload.put("topic", entry.getTopic());
+      if (null != entry.getMessageId()) {
+        payload.put("messageId", entry.getMessageId());
+      }
+      payload.put("latencyMs", entry.getLatencyNanos() / 1e6);
+      payload.put("status", entry.getStatus());
+      if (null != entry.getError()) {
+        payload.put("error", entry.getError());
+      }
+      logEntries.add(
+          LogEntry.newBuilder(JsonPayload.of(payload))
+              .setLogName(logName)
+              .setResource(GLOBAL)
+              .setTimestamp(entry.getTimeMillis())
+              .setSeverity(entry.isFailure() ? Severity.ERROR : Severity.INFO)
+              .build());
+    }
+    logging.write(logEntries);
+  }
+
+  @Override
+  public void close() throws Exception {
+    logging.close();
+  }
+}
@@ -0,0 +1,32 @@
+/* Copyright 2019 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+
+package com.google.pubsub.proxy.logging;
+
+import java.util.List;
+
+/**
+ * Destination of batches of publish log entries, written from the background thread of the
+ * {@link PublishLog}, one batch at a time. Sinks named by "logging.sink" are created with a public
+ * constructor taking the proxy settings.
+ */
+public interface LogSink {
+
+  /** Writes a batch of entries, the batch is only valid during the call */
+  void write(List<PublishLogEntry> entries) throws Exception;
+
+  /** Flushes and releases the sink when the proxy stops */
+  default void close() throws Exception {}
+}
@@ -0,0 +1,259 @@
+/* Copyright 2019 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+
+package com.google.pubsub.proxy.logging;
+
+import com.google.pubsub.proxy.config.ProxyConfig;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Structured log of published messages, written in batches by a background thread so that the
+ * publish callbacks, which may run on gRPC threads, only copy a few fields into a bounded ring.
+ * When the ring is full, entries are dropped and counted rather than blocking the callback.
+ *
+ * <p>The ring is a lock-free bounded queue of preallocated slots, each with a sequence number:
+ * producers claim a slot with a compare-and-set of the tail, fill it and publish it by advancing
+ * its sequence, and the single flusher thread reads published slots in order and frees them by
+ * advancing their sequence by a lap. The flusher wakes up every "logging.flushIntervalMillis",
+ * without producers ever signalling it, and writes up to "logging.batchSize" entries at a time.
+ *
+ * <p>Entries go to the sink named by "logging.sink": "stdout" (default) for JSON lines, "cloud"
+ * for Cloud Logging, "jul" to log failures with java.util.logging on the callback thread instead,
+ * or the class name of a {@link LogSink}. Only failures are logged, unless "logging.successes" is
+ * set.
+ */
+public class PublishLog {
+
+  private static final Logger LOGGER = Logger.getLogger(PublishLog.class.getName());
+
+  public static final String SINK = "logging.sink";
+  public static final String SUCCESSES = "logging.successes";
+  public static final String BUFFER_SIZE = "logging.bufferSize";
+  public static final String BATCH_SIZE = "logging.batchSize";
+  public static final String FLUSH_INTERVAL_MILLIS = "logging.flushIntervalMillis";
+
+  /** Fields of an entry, reused by every lap of the ring */
+  private static final class Slot {
+    private long timeMillis;
+    private String topic;
+    private String messageId;
+    private long latencyNanos;
+    private String status;
+    private String error;
+  }
+
+  private final LogSink sink;
+  private final boolean logSuccesses;
+  private final int batchSize;
+  private final long flushIntervalNanos;
+  private final Slot[] slots;
+  // Position of the slot's next write, or of its next read plus one once it is written
+  private final AtomicLongArray sequences;
+  private final int mask;
+  private final AtomicLong tail = new AtomicLong();
+  // Only read and written by the flusher
+  private long head;
+  private final LongAdder written = new LongAdder();
+  private final LongAdder dropped = new LongAdder();
+  private volatile boolean running = true;
+  private Thread flusher;
+
+  PublishLog(
+      LogSink sink, boolean logSuccesses, int bufferSize, int batchSize, long flushIntervalNanos) {
+    this.sink = sink;
+    this.logSuccesses = logSuccesses;
+    this.batchSize = batchSize;
+    this.flushIntervalNanos = flushIntervalNanos;
+    int capacity = Integer.highestOneBit(Math.max(2, bufferSize - 1)) << 1;
+    this.slots = new Slot[capacity];
+    this.sequences = new AtomicLongArray(capacity);
+    for (int i = 0; i < capacity; i++) {
+      slots[i] = new Slot();
+      sequences.set(i, i);
+    }
+    this.mask = capacity - 1;
+  }
+
+  /** Creates the log of published messages, or returns null if "logging.sink" is "jul" */
+  public static PublishLog create(ProxyConfig config) {
+    String name = config.get(SINK);
+    String sinkName = null != name ? name.trim() : "stdout";
+    if ("jul".equals(sinkName)) {
+      return null;
+    }
+    PublishLog log =
+        new PublishLog(
+            createSink(sinkName, config),
+            config.getBoolean(SUCCESSES, false),
+            config.getInt(BUFFER_SIZE, 8192),
+            config.getInt(BATCH_SIZE, 500),
+            TimeUnit.MILLISECONDS.toNanos(config.getLong(FLUSH_INTERVAL_MILLIS, 200L)));
+    log.start();
+    return log;
+  }
+
+  private static LogSink createSink(String name, ProxyConfig config) {
+    switch (name) {
+      case "stdout":
+        return new StdoutJsonSink();
+      case "cloud":
+        return new CloudLoggingSink(config);
+      default:
+        try {
+          return Class.forName(name)
+              .asSubclass(LogSink.class)
+              .getConstructor(ProxyConfig.class)
+              .newInstance(config);
+        } catch (ReflectiveOperationException e) {
+          throw new IllegalArgumentException("Unable to create the log sink " + name, e);
+        }
+    }
+  }
+
+  void start() {
+    flusher = new Thread(this::run, "publish-log-flusher");
+    flusher.setDaemon(true);
+    flusher.start();
+  }
+
+  /** Logs a message acknowledged by Cloud Pub/Sub, if successes are logged */
+  public void logSuccess(String topic, String messageId, long latencyNanos) {
+    if (logSuccesses) {
+      offer(topic, messageId, latencyNanos, PublishLogEntry.OK, null);
+    }
+  }
+
+  /** Logs a message that failed to publish */
+  public void logFailure(String topic, long latencyNanos, String status, String error) {
+    offer(topic, null, latencyNanos, status, error);
+  }
+
+  /** Adds an entry to the ring, returning false if it is full and the entry was dropped */
+  boolean offer(String topic, String messageId, long latencyNanos, String status, String error) {
+    long position = tail.get();
+    while (true) {
+      int index = (int) position & mask;
+      long available = sequences.get(index) - position;
+      if (0 == available) {
+        if (tail.compareAndSet(position, position + 1)) {
+          break;
+        }
+        position = tail.get();
+      } else if (available < 0) {
+        // The slot of this position was not read yet, a lap ago
+        dropped.increment();
+        return false;
+      } else {
+        position = tail.get();
+      }
+    }
+    Slot slot = slots[(int) position & mask];
+    slot.timeMillis = System.currentTimeMillis();
+    slot.topic = topic;
+    slot.messageId = messageId;
+    slot.latencyNanos = latencyNanos;
+    slot.status = status;
+    slot.error = error;
+    sequences.lazySet((int) position & mask, position + 1);
+    return true;
+  }
+
+  /** Moves up to a number of written entries from the ring to a batch, in order */
+  int drain(List<PublishLogEntry> batch, int max) {
+    int count = 0;
+    while (count < max) {
+      int index = (int) head & mask;
+      if (sequences.get(index) != head + 1) {
+        break;
+      }
+      Slot slot = slots[index];
+      batch.add(
+          new PublishLogEntry(
+              slot.timeMillis,
+              slot.topic,
+              slot.messageId,
+              slot.latencyNanos,
+              slot.status,
+              slot.error));
+      slot.topic = null;
+      slot.messageId = null;
+      slot.error = null;
+      sequences.lazySet(index, head + slots.length);
+      head++;
+      count++;
+    }
+    return count;
+  }
+
+  private void run() {
+    List<PublishLogEntry> batch = new ArrayList<>(batchSize);
+    while (true) {
+      boolean stopping = !running;
+      batch.clear();
+      drain(batch, batchSize);
+      if (!batch.isEmpty()) {
+        write(batch);
+      }
+      if (batch.size() < batchSize) {
+        if (stopping) {
+          return;
+        }
+        LockSupport.parkNanos(this, flushIntervalNanos);
+      }
+    }
+  }
+
+  private void write(List<PublishLogEntry> batch) {
+    try {
+      sink.write(batch);
+      written.add(batch.size());
+    } catch (Exception e) {
+      dropped.add(batch.size());
+      LOGGER.warning("Failed to write " + batch.size() + " log entries: " + e.getMessage());
+    }
+  }
+
+  /** Returns the number of entries written to the sink */
+  public long getWrittenCount() {
+    return written.sum();
+  }
+
+  /** Returns the number of entries dropped, as the ring was full or the sink failed */
+  public long getDroppedCount() {
+    return dropped.sum();
+  }
+
+  /** Writes the remaining entries and closes the sink, called when the server stops */
+  public void shutdown() throws InterruptedException {
+    running = false;
+    if (null != flusher) {
+      LockSupport.unpark(flusher);
+      flusher.join(TimeUnit.SECONDS.toMillis(10));
+    }
+    try {
+      sink.close();
+    } catch (Exception e) {
+      LOGGER.log(Level.WARNING, "Failed to close the log sink", e);
+    }
+  }
+}
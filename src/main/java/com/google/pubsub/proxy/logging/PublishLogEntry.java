@@ -0,0 +1,76 @@
+/* Copyright 2019 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+
+package com.google.pubsub.proxy.logging;
+
+/** Structured log entry of a published message, or of a message that failed to publish */
+public final class PublishLogEntry {
+
+  public static final String OK = "OK";
+
+  private final long timeMillis;
+  private final String topic;
+  private final String messageId;
+  private final long latencyNanos;
+  private final String status;
+  private final String error;
+
+  PublishLogEntry(
+      long timeMillis,
+      String topic,
+      String messageId,
+      long latencyNanos,
+      String status,
+      String error) {
+    this.timeMillis = timeMillis;
+    this.topic = topic;
+    this.messageId = messageId;
+    this.latencyNanos = latencyNanos;
+    this.status = status;
+    this.error = error;
+  }
+
+  public long getTimeMillis() {
+    return timeMillis;
+  }
+
+  public String getTopic() {
+    return topic;
+  }
+
+  /** Returns the id assigned by Cloud Pub/Sub, null if the message was not published */
+  public String getMessageId() {
+    return messageId;
+  }
+
+  /** Returns the time from publishing the message until it was acknowledged or failed */
+  public long getLatencyNanos() {
+    return latencyNanos;
+  }
+
+  /** Returns "OK", or the gRPC status or exception of the failure */
+  public String getStatus() {
+    return status;
+  }
+
+  /** Returns the error message of a failed publish, or null */
+  public String getError() {
+    return error;
+  }
+
+  public boolean isFailure() {
+    return !OK.equals(status);
+  }
+}
@@ -0,0 +1,78 @@
+/* Copyright 2019 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+
+package com.google.pubsub.proxy.logging;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import java.io.BufferedOutputStream;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.time.Instant;
+import java.util.List;
+
+/**
+ * Writes entries to stdout as JSON lines, with the "severity" and "message" fields that the
+ * logging agents of GKE and Cloud Run turn into structured Cloud Logging entries.
+ */
+class StdoutJsonSink implements LogSink {
+
+  private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+  private final OutputStream out;
+
+  StdoutJsonSink() {
+    // Not System.out, which synchronizes and flushes each line
+    this(new FileOutputStream(FileDescriptor.out));
+  }
+
+  StdoutJsonSink(OutputStream out) {
+    this.out = new BufferedOutputStream(out, 64 * 1024);
+  }
+
+  @Override
+  public void write(List<PublishLogEntry> entries) throws IOException {
+    JsonGenerator generator = JSON_FACTORY.createGenerator(out, JsonEncoding.UTF8);
+    generator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+    for (PublishLogEntry entry : entries) {
+      generator.writeStartObject();
+      generator.writeStringField("time", Instant.ofEpochMilli(entry.getTimeMillis()).toString());
+      generator.writeStringField("severity", entry.isFailure() ? "ERROR" : "INFO");
+      generator.writeStringField(
+          "message",
+          entry.isFailure()
+              ? "Failed to publish message: " + entry.getError()
+              : "Successfully published: " + entry.getMessageId());
+      generator.writeStringField("topic", entry.getTopic());
+      if (null != entry.getMessageId()) {
+        generator.writeStringField("messageId", entry.getMessageId());
+      }
+      generator.writeNumberField("latencyMs", entry.getLatencyNanos() / 1e6);
+      generator.writeStringField("status", entry.getStatus());
+      generator.writeEndObject();
+      generator.writeRaw('\n');
+    }
+    generator.close();
+    out.flush();
+  }
+
+  @Override
+  public void close() throws IOException {
+    out.flush();
+  }
+}
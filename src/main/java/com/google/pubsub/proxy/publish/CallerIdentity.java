@@ -0,0 +1,91 @@
+/* Copyright 2019 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+package com.google.pubsub.proxy.publish;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Identifies callers from the "X-Endpoint-API-UserInfo" header forwarded by ESP once it has
+ * authenticated them, a base64 encoded JSON object of the token claims. Callers without the
+ * header, or with one that cannot be read, share the anonymous identity.
+ */
+final class CallerIdentity {
+
+  static final String USER_INFO_HEADER = "X-Endpoint-API-UserInfo";
+  static final String ANONYMOUS = "anonymous";
+
+  private static final JsonFactory JSON_FACTORY = new JsonFactory();
+  // Claims naming the caller, by preference
+  private static final List<String> CLAIMS = Arrays.asList("id", "sub", "email");
+  private static final int MAX_CACHED = 10000;
+
+  // Decoded headers, as a caller sends the same header with every request until its token expires
+  private static final ConcurrentHashMap<String, String> CACHE = new ConcurrentHashMap<>();
+
+  private CallerIdentity() {}
+
+  /** Returns the caller id of a user info header, its "id", "sub" or "email" claim */
+  static String of(String userInfo) {
+    if (null == userInfo || userInfo.isEmpty()) {
+      return ANONYMOUS;
+    }
+    String caller = CACHE.get(userInfo);
+    if (null != caller) {
+      return caller;
+    }
+    caller = decode(userInfo);
+    if (CACHE.size() >= MAX_CACHED) {
+      CACHE.clear();
+    }
+    CACHE.put(userInfo, caller);
+    return caller;
+  }
+
+  private static String decode(String userInfo) {
+    // ESP pads standard base64, ESPv2 uses unpadded base64url
+    String[] claims = new String[CLAIMS.size()];
+    try (JsonParser parser =
+        JSON_FACTORY.createParser(
+            Base64.getUrlDecoder().decode(userInfo.replace('+', '-').replace('/', '_')))) {
+      if (parser.nextToken() != JsonToken.START_OBJECT) {
+        return ANONYMOUS;
+      }
+      while (parser.nextToken() == JsonToken.FIELD_NAME) {
+        int claim = CLAIMS.indexOf(parser.getCurrentName());
+        if (parser.nextToken() == JsonToken.VALUE_STRING && claim >= 0) {
+          claims[claim] = parser.getText();
+        } else {
+          parser.skipChildren();
+        }
+      }
+    } catch (IllegalArgumentException | IOException e) {
+      // Not a user info header, counted as anonymous
+      return ANONYMOUS;
+    }
+    for (String claim : claims) {
+      if (null != claim && !claim.isEmpty()) {
+        return claim;
+      }
+    }
+    return ANONYMOUS;
+  }
+}
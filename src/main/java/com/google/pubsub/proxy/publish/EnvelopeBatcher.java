@@ -0,0 +1,305 @@
+/* Copyright 2019 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+package com.google.pubsub.proxy.publish;
+
+import com.google.api.core.ApiFuture;
+import com.google.api.core.ApiFutureCallback;
+import com.google.api.core.ApiFutures;
+import com.google.api.core.SettableApiFuture;
+import com.google.cloud.pubsub.v1.Publisher;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.UnsafeByteOperations;
+import com.google.pubsub.proxy.config.ProxyConfig;
+import com.google.pubsub.v1.PubsubMessage;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Predicate;
+
+/**
+ * Packs the small messages of topics configured for it into envelope messages, to cut the per
+ * message overhead and cost of Cloud Pub/Sub for high rate telemetry. An envelope is one Pub/Sub
+ * message whose data is the encoding of
+ *
+ * <pre>
+ *   message Envelope {
+ *     repeated google.pubsub.v1.PubsubMessage messages = 1;
+ *   }
+ * </pre>
+ *
+ * <p>and which carries the attribute "envelope.attribute" set to "v1" for consumers to tell it
+ * from plain messages. The envelope of a topic is published once it holds "envelope.maxMessages"
+ * or "envelope.maxBytes", or "envelope.maxDelayMillis" after its first message. Each message gets
+ * the logical id "{envelope message id}:{index within the envelope}". Messages larger than an
+ * envelope are published on their own.
+ */
+class EnvelopeBatcher {
+
+  static final String ENABLED = "envelope.enabled";
+  static final String MAX_MESSAGES = "envelope.maxMessages";
+  static final String MAX_BYTES = "envelope.maxBytes";
+  static final String MAX_DELAY_MILLIS = "envelope.maxDelayMillis";
+  static final String ATTRIBUTE = "envelope.attribute";
+
+  static final String VERSION = "v1";
+  private static final String DEFAULT_ATTRIBUTE = "envelope";
+  static final int MESSAGES_FIELD = 1;
+
+  /** Publishes envelopes, through the dispatcher's limits, compression and spilling */
+  interface Sender {
+    ApiFuture<String> publish(String topic, Publisher publisher, PubsubMessage envelope);
+  }
+
+  /** Messages of an envelope taken from a topic's batch, with the futures of their ids */
+  private static final class Pending {
+    private final Publisher publisher;
+    private final List<PubsubMessage> messages;
+    private final List<SettableApiFuture<String>> futures;
+    private final int bytes;
+
+    private Pending(
+        Publisher publisher,
+        List<PubsubMessage> messages,
+        List<SettableApiFuture<String>> futures,
+        int bytes) {
+      this.publisher = publisher;
+      this.messages = messages;
+      this.futures = futures;
+      this.bytes = bytes;
+    }
+  }
+
+  /** Settings and open envelope of a topic */
+  private final class TopicBatch {
+    private final String topic;
+    private final boolean enabled;
+    private final int maxMessages;
+    private final int maxBytes;
+    private final long maxDelayMillis;
+    private Publisher publisher;
+    private List<PubsubMessage> messages = new ArrayList<>();
+    private List<SettableApiFuture<String>> futures = new ArrayList<>();
+    private int bytes;
+    // Counts the envelopes taken, so that the timer of a taken envelope does nothing
+    private long generation;
+
+    private TopicBatch(String topic) {
+      this.topic = topic;
+      this.enabled = config.getBoolean(topic, ENABLED, false);
+      this.maxMessages = (int) config.getLong(topic, MAX_MESSAGES, 1000L);
+      this.maxBytes = (int) config.getLong(topic, MAX_BYTES, 1000L * 1000L);
+      this.maxDelayMillis = config.getLong(topic, MAX_DELAY_MILLIS, 50L);
+    }
+
+    private ApiFuture<String> add(Publisher publisher, PubsubMessage message, int size) {
+      SettableApiFuture<String> future = SettableApiFuture.create();
+      Pending previous = null;
+      Pending full = null;
+      synchronized (this) {
+        if (!messages.isEmpty() && bytes + size > maxBytes) {
+          previous = take();
+        }
+        if (messages.isEmpty()) {
+          long taken = generation;
+          getTimer().schedule(() -> flush(taken), maxDelayMillis, TimeUnit.MILLISECONDS);
+        }
+        this.publisher = publisher;
+        messages.add(message);
+        futures.add(future);
+        bytes += size;
+        if (messages.size() >= maxMessages || bytes >= maxBytes) {
+          full = take();
+        }
+      }
+      send(topic, previous);
+      send(topic, full);
+      return future;
+    }
+
+    /** Publishes the open envelope, unless it was already taken since it was opened */
+    private void flush(long opened) {
+      Pending pending;
+      synchronized (this) {
+        if (opened != generation || messages.isEmpty()) {
+          return;
+        }
+        pending = take();
+      }
+      send(topic, pending);
+    }
+
+    private void flush() {
+      Pending pending;
+      synchronized (this) {
+        if (messages.isEmpty()) {
+          return;
+        }
+        pending = take();
+      }
+      send(topic, pending);
+    }
+
+    private synchronized boolean isEmpty() {
+      return messages.isEmpty();
+    }
+
+    private Pending take() {
+      Pending pending = new Pending(publisher, messages, futures, bytes);
+      messages = new ArrayList<>();
+      futures = new ArrayList<>();
+      bytes = 0;
+      generation++;
+      return pending;
+    }
+  }
+
+  private final ProxyConfig config;
+  private final Sender sender;
+  private final String attribute;
+  private final ConcurrentHashMap<String, TopicBatch> topics = new ConcurrentHashMap<>();
+  private final LongAdder envelopes = new LongAdder();
+  private final LongAdder packed = new LongAdder();
+  // Only started once a topic uses envelopes
+  private volatile ScheduledExecutorService timer;
+
+  EnvelopeBatcher(ProxyConfig config, Sender sender) {
+    this.config = config;
+    this.sender = sender;
+    this.attribute = Optional.ofNullable(config.get(ATTRIBUTE)).orElse(DEFAULT_ATTRIBUTE);
+  }
+
+  private ScheduledExecutorService getTimer() {
+    ScheduledExecutorService current = timer;
+    if (null != current) {
+      return current;
+    }
+    synchronized (this) {
+      if (null == timer) {
+        timer =
+            Executors.newSingleThreadScheduledExecutor(
+                runnable -> {
+                  Thread thread = new Thread(runnable, "envelope-flusher");
+                  thread.setDaemon(true);
+                  return thread;
+                });
+      }
+      return timer;
+    }
+  }
+
+  /** Returns whether messages of a topic are packed into envelopes */
+  boolean isEnabled(String topic) {
+    return topics.computeIfAbsent(topic, TopicBatch::new).enabled;
+  }
+
+  /**
+   * Adds a message to the open envelope of a topic, or publishes it on its own if it doesn't fit
+   * in one
+   *
+   * @return the future of the logical id of the message
+   */
+  ApiFuture<String> add(String topic, Publisher publisher, PubsubMessage message) {
+    TopicBatch batch = topics.computeIfAbsent(topic, TopicBatch::new);
+    int size = CodedOutputStream.computeMessageSize(MESSAGES_FIELD, message);
+    if (size > batch.maxBytes) {
+      return sender.publish(topic, publisher, message);
+    }
+    return batch.add(publisher, message, size);
+  }
+
+  /** Publishes the envelope of a batch, and resolves the ids of its messages once it is acked */
+  private void send(String topic, Pending pending) {
+    if (null == pending) {
+      return;
+    }
+    envelopes.increment();
+    packed.add(pending.messages.size());
+    ApiFuture<String> future;
+    try {
+      future = sender.publish(topic, pending.publisher, pack(pending, attribute));
+    } catch (RuntimeException e) {
+      future = ApiFutures.immediateFailedFuture(e);
+    }
+    ApiFutures.addCallback(
+        future,
+        new ApiFutureCallback<String>() {
+          public void onFailure(Throwable throwable) {
+            for (SettableApiFuture<String> messageFuture : pending.futures) {
+              messageFuture.setException(throwable);
+            }
+          }
+
+          public void onSuccess(String msgId) {
+            boolean spilled = MessageDispatcher.SPILLED.equals(msgId);
+            for (int i = 0; i < pending.futures.size(); i++) {
+              pending.futures.get(i).set(spilled ? msgId : msgId + ":" + i);
+            }
+          }
+        },
+        MoreExecutors.directExecutor());
+  }
+
+  /** Encodes the messages of an envelope, each as a length delimited field */
+  private static PubsubMessage pack(Pending pending, String attribute) {
+    byte[] data = new byte[pending.bytes];
+    CodedOutputStream out = CodedOutputStream.newInstance(data);
+    try {
+      for (PubsubMessage message : pending.messages) {
+        out.writeMessage(MESSAGES_FIELD, message);
+      }
+      out.checkNoSpaceLeft();
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    // The array is not referenced anywhere else, so it is safe to wrap without copying
+    return PubsubMessage.newBuilder()
+        .setData(UnsafeByteOperations.unsafeWrap(data))
+        .putAttributes(attribute, VERSION)
+        .build();
+  }
+
+  /** Forgets the batches of topics no longer in use without an open envelope */
+  void forgetIdle(Predicate<String> inUse) {
+    topics.entrySet().removeIf(e -> !inUse.test(e.getKey()) && e.getValue().isEmpty());
+  }
+
+  /** Publishes every open envelope, called when the server stops */
+  void flushAll() {
+    for (TopicBatch batch : topics.values()) {
+      batch.flush();
+    }
+    if (null != timer) {
+      timer.shutdownNow();
+    }
+  }
+
+  /** Returns the number of envelopes published */
+  long getEnvelopeCount() {
+    return envelopes.sum();
+  }
+
+  /** Returns the number of messages packed into envelopes */
+  long getPackedCount() {
+    return packed.sum();
+  }
+}
@@ -0,0 +1,161 @@
+/* Copyright 2019 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+package com.google.pubsub.proxy.publish;
+
+import com.google.api.core.ApiFuture;
+import com.google.api.core.ApiFutureCallback;
+import com.google.api.core.ApiFutures;
+import com.google.api.core.SettableApiFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.pubsub.proxy.config.ProxyConfig;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Remembers the publishes of client supplied idempotency keys, so that a retried message gets
+ * the message id of its first publish instead of being published again. Keys are kept for a
+ * time window and up to a number of keys, in stripes locked independently, each evicting its
+ * oldest keys first. Keys whose publish failed are forgotten, so that retries publish again.
+ */
+class IdempotencyCache {
+
+  static final String MAX_KEYS = "idempotency.maxKeys";
+  static final String TTL_SECONDS = "idempotency.ttlSeconds";
+  static final String ATTRIBUTE = "idempotency.attribute";
+
+  private static final int STRIPES = 16;
+  private static final int DEFAULT_MAX_KEYS = 100000;
+  private static final long DEFAULT_TTL_SECONDS = 600L;
+  private static final String DEFAULT_ATTRIBUTE = "idempotencyKey";
+
+  /** Future of the first publish of a key */
+  private static class Published {
+    private final ApiFuture<String> future;
+    private final long createdNanos;
+
+    private Published(ApiFuture<String> future, long createdNanos) {
+      this.future = future;
+      this.createdNanos = createdNanos;
+    }
+  }
+
+  /** Keys of one stripe, oldest first */
+  private static class Stripe extends LinkedHashMap<String, Published> {
+    private static final long serialVersionUID = 1L;
+
+    private final int maxKeys;
+
+    private Stripe(int maxKeys) {
+      this.maxKeys = maxKeys;
+    }
+
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String, Published> eldest) {
+      return size() > maxKeys;
+    }
+
+    private void expire(long now, long ttlNanos) {
+      Iterator<Published> entries = values().iterator();
+      while (entries.hasNext() && now - entries.next().createdNanos > ttlNanos) {
+        entries.remove();
+      }
+    }
+  }
+
+  private final Stripe[] stripes = new Stripe[STRIPES];
+  private final long ttlNanos;
+  private final String attribute;
+  private final LongAdder hits = new LongAdder();
+
+  IdempotencyCache(ProxyConfig config) {
+    int maxKeys = config.getInt(MAX_KEYS, DEFAULT_MAX_KEYS);
+    for (int i = 0; i < STRIPES; i++) {
+      stripes[i] = new Stripe(Math.max(1, maxKeys / STRIPES));
+    }
+    this.ttlNanos = TimeUnit.SECONDS.toNanos(config.getLong(TTL_SECONDS, DEFAULT_TTL_SECONDS));
+    this.attribute = Optional.ofNullable(config.get(ATTRIBUTE)).orElse(DEFAULT_ATTRIBUTE);
+  }
+
+  /** Returns the cache, or null if disabled by setting its maximum number of keys to 0 */
+  static IdempotencyCache create(ProxyConfig config) {
+    return config.getInt(MAX_KEYS, DEFAULT_MAX_KEYS) > 0 ? new IdempotencyCache(config) : null;
+  }
+
+  /** Name of the message attribute carrying an idempotency key */
+  String getAttribute() {
+    return attribute;
+  }
+
+  long getHitCount() {
+    return hits.sum();
+  }
+
+  /**
+   * Publishes once per key: returns the future of an earlier publish with the same key, or
+   * publishes and remembers the key
+   *
+   * @param key - idempotency key, scoped to a topic by the caller
+   * @param publish - publishes the message, only called for a new key
+   */
+  ApiFuture<String> publishOnce(String key, Supplier<ApiFuture<String>> publish) {
+    Stripe stripe = stripes[(key.hashCode() & Integer.MAX_VALUE) % STRIPES];
+    SettableApiFuture<String> first = SettableApiFuture.create();
+    Published remembered = new Published(first, System.nanoTime());
+    Published existing;
+    synchronized (stripe) {
+      stripe.expire(remembered.createdNanos, ttlNanos);
+      existing = stripe.putIfAbsent(key, remembered);
+    }
+    if (null != existing) {
+      hits.increment();
+      return existing.future;
+    }
+
+    // Published outside the stripe lock, duplicates meanwhile wait on the same future
+    ApiFuture<String> published;
+    try {
+      published = publish.get();
+    } catch (RuntimeException e) {
+      forget(stripe, key, remembered);
+      first.setException(e);
+      throw e;
+    }
+    ApiFutures.addCallback(
+        published,
+        new ApiFutureCallback<String>() {
+          public void onFailure(Throwable throwable) {
+            forget(stripe, key, remembered);
+            first.setException(throwable);
+          }
+
+          public void onSuccess(String msgId) {
+            first.set(msgId);
+          }
+        },
+        MoreExecutors.directExecutor());
+    return first;
+  }
+
+  private static void forget(Stripe stripe, String key, Published published) {
+    synchronized (stripe) {
+      stripe.remove(key, published);
+    }
+  }
+}
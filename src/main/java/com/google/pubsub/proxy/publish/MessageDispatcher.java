@@ -0,0 +1,483 @@
+/* Copyright 2019 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+package com.google.pubsub.proxy.publish;
+
+import com.google.api.core.ApiFuture;
+import com.google.api.core.ApiFutureCallback;
+import com.google.api.core.ApiFutures;
+import com.google.api.core.SettableApiFuture;
+import com.google.api.gax.rpc.ApiException;
+import com.google.cloud.ServiceOptions;
+import com.google.cloud.pubsub.v1.Publisher;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.pubsub.proxy.config.ProxyConfig;
+import com.google.pubsub.proxy.logging.PublishLog;
+import com.google.pubsub.proxy.schema.TopicSchemas;
+import com.google.pubsub.v1.PubsubMessage;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Metrics;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Collections;
+import java.util.Optional;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Hands messages to the cached Cloud Pub/Sub publishers. Shared by every ingest surface of the
+ * proxy, so that they all use the same publishers, channels and executors.
+ */
+public class MessageDispatcher {
+
+  private static final Logger LOGGER = Logger.getLogger(MessageDispatcher.class.getName());
+
+  // Bounds of the publisher cache, set with PUBLISHER_CACHE_MAX_SIZE and
+  // PUBLISHER_CACHE_IDLE_TIMEOUT_SECONDS like any other setting
+  static final String CACHE_MAX_SIZE = "publisherCache.maxSize";
+  static final String CACHE_IDLE_TIMEOUT_SECONDS = "publisherCache.idleTimeoutSeconds";
+  // Former name of the idle timeout, read as PUBLISHER_IDLE_TIMEOUT_SECONDS
+  private static final String LEGACY_IDLE_TIMEOUT_SECONDS = "publisherIdleTimeoutSeconds";
+
+  // Project of the topics, defaults to the project of the environment
+  static final String PROJECT_ID = "pubsub.projectId";
+
+  // Id of a message that failed and was spilled, so that its caller doesn't publish it again
+  static final String SPILLED = "spilled";
+
+  private final String projectId;
+  private final TopicPublisherFactory publisherFactory;
+  private final PublisherCache publishers;
+  private final PublishMetrics metrics;
+  private final OutstandingLimiter limiter;
+  private final IdempotencyCache idempotency;
+  private final OrderingKeySequencer ordering;
+  private final PayloadCompressor compressor;
+  private final QuotaLimiter quotas;
+  private final MessageRouter router;
+  private final TopicSchemas schemas;
+  private final EnvelopeBatcher envelopes;
+  // Structured log of publish results, null to log failures with java.util.logging
+  private final PublishLog log;
+  private final Executor callbackExecutor;
+  private final SpillLog spill;
+  // Writes failed messages to the spill log, off the executor of publish callbacks
+  private final Executor spillExecutor;
+  private final SpillReplayer replayer;
+  private final ScheduledExecutorService replayExecutor;
+
+  public MessageDispatcher(ProxyConfig config, MeterRegistry registry) {
+    this.projectId =
+        Optional.ofNullable(config.get(PROJECT_ID)).orElseGet(ServiceOptions::getDefaultProjectId);
+    this.publisherFactory = new TopicPublisherFactory(projectId, config);
+    this.publishers =
+        new PublisherCache(
+            publisherFactory,
+            config.getInt(CACHE_MAX_SIZE, 1000),
+            config.getLong(
+                CACHE_IDLE_TIMEOUT_SECONDS, config.getLong(LEGACY_IDLE_TIMEOUT_SECONDS, 600L)),
+            TimeUnit.SECONDS);
+    this.metrics = new PublishMetrics(registry);
+    this.limiter = new OutstandingLimiter(config);
+    this.ordering = new OrderingKeySequencer(config);
+    this.idempotency = IdempotencyCache.create(config);
+    this.compressor = new PayloadCompressor(config);
+    this.quotas = new QuotaLimiter(config);
+    this.router = MessageRouter.create(config);
+    this.schemas = new TopicSchemas(config);
+    this.envelopes = new EnvelopeBatcher(config, (t, p, envelope) -> publish(t, p, envelope, true));
+    this.log = PublishLog.create(config);
+    // Publish callbacks run on virtual threads if they are enabled
+    this.callbackExecutor =
+        VirtualThreads.isEnabled(config)
+            ? Optional.<Executor>ofNullable(VirtualThreads.newExecutor("publish-callback"))
+                .orElse(MoreExecutors.directExecutor())
+            : MoreExecutors.directExecutor();
+    metrics.bindPublisherCache(publishers);
+    metrics.bindLimiter(limiter);
+    metrics.bindOrdering(ordering);
+    metrics.bindCompressor(compressor);
+    metrics.bindQuotas(quotas);
+    metrics.bindSchemas(schemas);
+    metrics.bindEnvelopes(envelopes);
+    if (null != log) {
+      metrics.bindLog(log);
+    }
+    if (null != idempotency) {
+      metrics.bindIdempotencyCache(idempotency);
+    }
+    if (null != router) {
+      metrics.bindRouter(router);
+    }
+    publishers.setSweepListener(this::forgetIdleTopics);
+
+    // Failed and over-limit messages are spilled to disk and replayed, if a directory is set
+    try {
+      this.spill = SpillLog.open(config);
+    } catch (IOException e) {
+      throw new UncheckedIOException("Unable to open the spill directory", e);
+    }
+    if (null == spill) {
+      this.spillExecutor = null;
+      this.replayer = null;
+      this.replayExecutor = null;
+      return;
+    }
+    this.spillExecutor =
+        Executors.newSingleThreadExecutor(
+            runnable -> {
+              Thread thread = new Thread(runnable, "spill-writer");
+              thread.setDaemon(true);
+              return thread;
+            });
+    this.replayer = new SpillReplayer(spill, this);
+    this.replayExecutor =
+        Executors.newSingleThreadScheduledExecutor(
+            runnable -> {
+              Thread thread = new Thread(runnable, "spill-replayer");
+              thread.setDaemon(true);
+              return thread;
+            });
+    long interval = config.getLong(SpillReplayer.REPLAY_INTERVAL_MILLIS, 1000L);
+    replayExecutor.scheduleWithFixedDelay(replayer, interval, interval, TimeUnit.MILLISECONDS);
+    metrics.bindSpill(spill, replayer);
+  }
+
+  MessageDispatcher(PublisherCache publishers, String projectId) {
+    this(publishers, projectId, new ProxyConfig(new Properties(), Collections.emptyMap()));
+  }
+
+  MessageDispatcher(PublisherCache publishers, String projectId, ProxyConfig config) {
+    this.projectId = projectId;
+    this.publisherFactory = null;
+    this.publishers = publishers;
+    this.metrics = new PublishMetrics(Metrics.globalRegistry);
+    this.limiter = new OutstandingLimiter(config);
+    this.ordering = new OrderingKeySequencer(config);
+    this.idempotency = IdempotencyCache.create(config);
+    this.compressor = new PayloadCompressor(config);
+    this.quotas = new QuotaLimiter(config);
+    this.router = MessageRouter.create(config);
+    this.schemas = new TopicSchemas(config);
+    this.envelopes = new EnvelopeBatcher(config, (t, p, envelope) -> publish(t, p, envelope, true));
+    this.log = null;
+    this.callbackExecutor = MoreExecutors.directExecutor();
+    publishers.setSweepListener(this::forgetIdleTopics);
+    try {
+      this.spill = SpillLog.open(config);
+    } catch (IOException e) {
+      throw new UncheckedIOException("Unable to open the spill directory", e);
+    }
+    // Tests replay spilled messages themselves
+    this.spillExecutor = MoreExecutors.directExecutor();
+    this.replayer = null;
+    this.replayExecutor = null;
+  }
+
+  String getProjectId() {
+    return projectId;
+  }
+
+  PublisherCache getPublishers() {
+    return publishers;
+  }
+
+  /** Returns the cached PubSub publisher, creating one if it doesn't exist */
+  Publisher getPublisher(String topic) throws IOException {
+    return publishers.get(topic);
+  }
+
+  SpillLog getSpill() {
+    return spill;
+  }
+
+  OutstandingLimiter getLimiter() {
+    return limiter;
+  }
+
+  QuotaLimiter getQuotas() {
+    return quotas;
+  }
+
+  /** Returns the router of messages by their attributes, or null if no rule is configured */
+  MessageRouter getRouter() {
+    return router;
+  }
+
+  /** Returns the schemas that the data of messages must conform to, by topic */
+  TopicSchemas getSchemas() {
+    return schemas;
+  }
+
+  /** Returns the executor of publish callbacks, shared by every topic and ingest surface */
+  Executor getCallbackExecutor() {
+    return callbackExecutor;
+  }
+
+  /**
+   * Returns whether a request may publish to a topic, given the messages and bytes still
+   * outstanding. Rejected requests are counted.
+   */
+  boolean admit(String topic) throws InterruptedException {
+    if (limiter.admit(topic)) {
+      return true;
+    }
+    metrics.forTopic(topic).recordRejected();
+    return false;
+  }
+
+  /**
+   * Forgets the state kept per topic for topics without a cached publisher, once nothing of
+   * theirs is outstanding, so that it stays bounded by the publisher cache
+   */
+  void forgetIdleTopics() {
+    Set<String> cached = publishers.getTopics();
+    metrics.forgetIdle(cached::contains);
+    limiter.forgetIdle(cached::contains);
+    compressor.forgetIdle(cached::contains);
+    envelopes.forgetIdle(cached::contains);
+    schemas.forgetIdle(cached::contains);
+    quotas.forgetIdle(cached::contains);
+  }
+
+  /** Counts a publish request received for a topic */
+  void recordRequest(String topic) {
+    metrics.forTopic(topic).recordRequest();
+  }
+
+  /** Returns whether messages can be spilled to disk instead of being rejected */
+  boolean canSpill() {
+    return null != spill && !spill.isFull();
+  }
+
+  /** Spills a message of a request over the limits, to be published later */
+  void spill(String topic, PubsubMessage message) throws IOException {
+    spill.append(topic, message);
+  }
+
+  /**
+   * Spills a message that failed to publish, unless spilling is disabled or the failure is not
+   * retryable. Messages are dropped once the spill log is full.
+   *
+   * @return whether the message was spilled, to be published later
+   */
+  boolean spill(String topic, PubsubMessage message, Throwable cause) {
+    if (null == spill || !isRetryable(cause)) {
+      return false;
+    }
+    if (spill.isFull()) {
+      spill.recordDropped();
+      LOGGER.severe("Spill log full, dropping message for topic " + topic);
+      return false;
+    }
+    try {
+      spill.append(topic, message);
+      return true;
+    } catch (IOException e) {
+      spill.recordDropped();
+      LOGGER.severe("Failed to spill message for topic " + topic + ": " + e.getMessage());
+      return false;
+    }
+  }
+
+  /** Returns whether a failed publish may succeed later, such as after an outage */
+  static boolean isRetryable(Throwable throwable) {
+    return !(throwable instanceof ApiException) || ((ApiException) throwable).isRetryable();
+  }
+
+  /** Publishes a message downstream, recording its size, ack latency and outcome */
+  ApiFuture<String> publish(String topic, Publisher publisher, PubsubMessage message) {
+    return publishOnce(topic, publisher, message, null);
+  }
+
+  /**
+   * Publishes a message once per idempotency key, returning the future of the first publish for
+   * repeated keys. Messages with an ordering key are published after the previous messages of
+   * their key.
+   *
+   * @param key - idempotency key given with the request, or null to use the message attribute
+   */
+  ApiFuture<String> publishOnce(
+      String topic, Publisher publisher, PubsubMessage message, String key) {
+    if (null == idempotency) {
+      return publishInOrder(topic, publisher, message);
+    }
+    String idempotencyKey =
+        null != key ? key : message.getAttributesOrDefault(idempotency.getAttribute(), null);
+    if (null == idempotencyKey) {
+      return publishInOrder(topic, publisher, message);
+    }
+    return idempotency.publishOnce(
+        topic + '/' + idempotencyKey, () -> publishInOrder(topic, publisher, message));
+  }
+
+  /**
+   * Publishes a message after the previous messages of its ordering key, if it has one. Ordered
+   * messages are not spilled when they fail, as replaying them would break their order, nor
+   * packed into envelopes, which could be published out of order. Other messages of topics
+   * configured for it are packed into envelopes.
+   */
+  private ApiFuture<String> publishInOrder(
+      String topic, Publisher publisher, PubsubMessage message) {
+    String orderingKey = message.getAttributesOrDefault(OrderingKeySequencer.ATTRIBUTE, "");
+    if (orderingKey.isEmpty()) {
+      return envelopes.isEnabled(topic)
+          ? envelopes.add(topic, publisher, message)
+          : publish(topic, publisher, message, true);
+    }
+    return ordering.publish(
+        topic + '/' + orderingKey, () -> publish(topic, publisher, message, false));
+  }
+
+  /**
+   * Publishes a message downstream, compressing its data if the topic is configured for it, and
+   * spilling the original message to disk if it fails and spilling is enabled. A spilled message
+   * completes with the {@link #SPILLED} id instead of its failure, so that it is either replayed
+   * or reported to the caller, never both.
+   *
+   * @param spillOnFailure - false when replaying, as the replayer spills failures itself
+   */
+  ApiFuture<String> publish(
+      String topic, Publisher publisher, PubsubMessage message, boolean spillOnFailure) {
+
+    final PublishMetrics.TopicMeters meters = metrics.forTopic(topic);
+    final long start = System.nanoTime();
+    final PubsubMessage published = compressor.compress(topic, message);
+    final int size = published.getSerializedSize();
+    meters.recordMessage(message.getData().size());
+
+    ApiFuture<String> future = send(topic, publisher, published);
+    final OutstandingLimiter.Usage usage = limiter.acquire(topic, size);
+    final SettableApiFuture<String> result =
+        spillOnFailure && null != spill ? SettableApiFuture.create() : null;
+    ApiFutures.addCallback(
+        future,
+        new ApiFutureCallback<String>() {
+          public void onFailure(Throwable throwable) {
+            limiter.release(usage, size);
+            meters.recordFailure(throwable);
+            if (null != log) {
+              log.logFailure(
+                  topic,
+                  System.nanoTime() - start,
+                  PublishMetrics.statusOf(throwable),
+                  throwable.getMessage());
+            } else {
+              LOGGER.severe("Failed to publish message: " + throwable.getMessage());
+            }
+            if (null != result) {
+              spillOrFail(topic, message, throwable, result);
+            }
+          }
+
+          public void onSuccess(String msgId) {
+            limiter.release(usage, size);
+            meters.recordAck(start);
+            if (null != log) {
+              log.logSuccess(topic, msgId, System.nanoTime() - start);
+            } else if (LOGGER.isLoggable(Level.FINE)) {
+              LOGGER.fine("Successfully published: " + msgId);
+            }
+            if (null != result) {
+              result.set(msgId);
+            }
+          }
+        },
+        callbackExecutor);
+    return null != result ? result : future;
+  }
+
+  /** Spills a failed message on the spill executor, then completes its result accordingly */
+  private void spillOrFail(
+      String topic, PubsubMessage message, Throwable cause, SettableApiFuture<String> result) {
+    try {
+      spillExecutor.execute(
+          () -> {
+            if (spill(topic, message, cause)) {
+              result.set(SPILLED);
+            } else {
+              result.setException(cause);
+            }
+          });
+    } catch (RejectedExecutionException e) {
+      // Stopping, the caller learns of the failure instead
+      result.setException(cause);
+    }
+  }
+
+  /**
+   * Hands a message to a publisher, or to the current publisher of the topic if the cache
+   * evicted and shut down this one since it was looked up. Callers hold publishers for the length
+   * of a request, and ordered or enveloped messages are only published later.
+   */
+  private ApiFuture<String> send(String topic, Publisher publisher, PubsubMessage message) {
+    try {
+      return publisher.publish(message);
+    } catch (IllegalStateException e) {
+      try {
+        Publisher current = publishers.get(topic);
+        if (current != publisher) {
+          return current.publish(message);
+        }
+      } catch (IOException | IllegalStateException retry) {
+        // Reported as the original failure
+      }
+      return ApiFutures.immediateFailedFuture(e);
+    }
+  }
+
+  /** Flushes and shuts down every cached publisher, called when the server stops */
+  public void shutdown() throws InterruptedException {
+    quotas.shutdown();
+    if (null != replayer) {
+      replayer.stop();
+      replayExecutor.shutdown();
+      replayExecutor.awaitTermination(30, TimeUnit.SECONDS);
+    }
+    envelopes.flushAll();
+    publishers.shutdown();
+    if (null != publisherFactory) {
+      publisherFactory.shutdown();
+    }
+    if (callbackExecutor instanceof ExecutorService) {
+      ((ExecutorService) callbackExecutor).shutdown();
+      ((ExecutorService) callbackExecutor).awaitTermination(30, TimeUnit.SECONDS);
+    }
+    if (spillExecutor instanceof ExecutorService) {
+      ((ExecutorService) spillExecutor).shutdown();
+      ((ExecutorService) spillExecutor).awaitTermination(30, TimeUnit.SECONDS);
+    }
+
+    // Closed last, publishers failing while they flush still spill their messages
+    if (null != spill) {
+      try {
+        spill.close();
+      } catch (IOException e) {
+        LOGGER.warning("Failed to close the spill log: " + e.getMessage());
+      }
+    }
+    // After the publishers, so that the results of their last messages are logged
+    if (null != log) {
+      log.shutdown();
+    }
+  }
+}
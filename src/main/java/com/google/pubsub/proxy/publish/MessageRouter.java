@@ -0,0 +1,246 @@
+/* Copyright 2019 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+
+package com.google.pubsub.proxy.publish;
+
+import com.google.pubsub.proxy.config.ProxyConfig;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Routes messages to topics by their attributes. Each rule is a conjunction of conditions on
+ * attributes, "key=value" for equality, "key=value*" for a prefix and "key" for existence, and
+ * sends the messages it matches to one or more topics:
+ *
+ * <pre>
+ * routing.rules=alerts,eu
+ * routing.rule.alerts.when=severity=ERROR
+ * routing.rule.alerts.topics=alerts,errors-archive
+ * routing.rule.eu.when=region=eu-*&amp;tenant
+ * routing.rule.eu.topics=eu-events
+ * </pre>
+ *
+ * <p>Rules are compiled into an index once, so that matching a message costs a few lookups per
+ * attribute whatever the number of rules. Each rule is indexed under one of its conditions, by
+ * key and value in a hash map for equality, in a trie of the prefixes of each key, or by key for
+ * existence, and only the rules found through the attributes of a message have their other
+ * conditions checked.
+ */
+class MessageRouter {
+
+  static final String RULES = "routing.rules";
+  private static final String RULE_SCOPE = "routing.rule.";
+  private static final String WHEN = ".when";
+  private static final String TOPICS = ".topics";
+
+  /** Condition on one attribute, its value is null for existence */
+  static final class Condition {
+    private final String key;
+    private final String value;
+    private final boolean prefix;
+
+    private Condition(String key, String value, boolean prefix) {
+      this.key = key;
+      this.value = value;
+      this.prefix = prefix;
+    }
+
+    /** Parses "key=value", "key=prefix*" or "key" */
+    static Condition parse(String condition) {
+      int equals = condition.indexOf('=');
+      if (equals < 0) {
+        return new Condition(condition.trim(), null, false);
+      }
+      String key = condition.substring(0, equals).trim();
+      String value = condition.substring(equals + 1).trim();
+      if (value.endsWith("*")) {
+        return new Condition(key, value.substring(0, value.length() - 1), true);
+      }
+      return new Condition(key, value, false);
+    }
+
+    boolean matches(Map<String, String> attributes) {
+      String actual = attributes.get(key);
+      if (null == actual || null == value) {
+        return null != actual;
+      }
+      return prefix ? actual.startsWith(value) : actual.equals(value);
+    }
+  }
+
+  /** Rule in declaration order, with the conditions not covered by its index entry */
+  private static final class Rule {
+    private final int order;
+    private final List<Condition> others;
+    private final List<String> topics;
+
+    private Rule(int order, List<Condition> others, List<String> topics) {
+      this.order = order;
+      this.others = others;
+      this.topics = topics;
+    }
+  }
+
+  /** Trie of the prefixes of one attribute key, each node holding the rules of its prefix */
+  private static final class PrefixNode {
+    private final Map<Character, PrefixNode> children = new HashMap<>();
+    private final List<Rule> rules = new ArrayList<>();
+  }
+
+  private final List<Rule> rules = new ArrayList<>();
+  private final Map<String, Map<String, List<Rule>>> equalsIndex = new HashMap<>();
+  private final Map<String, PrefixNode> prefixIndex = new HashMap<>();
+  private final Map<String, List<Rule>> existsIndex = new HashMap<>();
+  private final LongAdder matched = new LongAdder();
+  private final LongAdder unmatched = new LongAdder();
+
+  /** Returns the router of the configured rules, or null if none is configured */
+  static MessageRouter create(ProxyConfig config) {
+    String names = config.get(RULES);
+    if (null == names || names.trim().isEmpty()) {
+      return null;
+    }
+    MessageRouter router = new MessageRouter();
+    for (String name : names.split(",")) {
+      name = name.trim();
+      String when = config.get(RULE_SCOPE + name + WHEN);
+      String topics = config.get(RULE_SCOPE + name + TOPICS);
+      if (null == when || null == topics) {
+        throw new IllegalArgumentException("Routing rule " + name + " needs when and topics");
+      }
+      router.add(when, topics);
+    }
+    return router;
+  }
+
+  /** Compiles a rule into the index */
+  void add(String when, String topics) {
+    List<Condition> conditions = new ArrayList<>();
+    for (String condition : when.split("&")) {
+      conditions.add(Condition.parse(condition));
+    }
+    List<String> ruleTopics = new ArrayList<>();
+    for (String topic : topics.split(",")) {
+      topic = topic.trim();
+      if (!MessageValidator.isValidTopic(topic)) {
+        throw new IllegalArgumentException("Invalid topic name in routing rule: " + topic);
+      }
+      ruleTopics.add(topic);
+    }
+
+    // Equality is the most selective condition to index a rule under, existence the least
+    Condition indexed = conditions.get(0);
+    for (Condition condition : conditions) {
+      if (rank(condition) < rank(indexed)) {
+        indexed = condition;
+      }
+    }
+    List<Condition> others = new ArrayList<>(conditions);
+    others.remove(indexed);
+    Rule rule = new Rule(rules.size(), others, ruleTopics);
+    rules.add(rule);
+
+    if (null == indexed.value) {
+      existsIndex.computeIfAbsent(indexed.key, k -> new ArrayList<>()).add(rule);
+    } else if (!indexed.prefix) {
+      equalsIndex
+          .computeIfAbsent(indexed.key, k -> new HashMap<>())
+          .computeIfAbsent(indexed.value, v -> new ArrayList<>())
+          .add(rule);
+    } else {
+      PrefixNode node = prefixIndex.computeIfAbsent(indexed.key, k -> new PrefixNode());
+      for (char c : indexed.value.toCharArray()) {
+        node = node.children.computeIfAbsent(c, ch -> new PrefixNode());
+      }
+      node.rules.add(rule);
+    }
+  }
+
+  private static int rank(Condition condition) {
+    return null == condition.value ? 2 : condition.prefix ? 1 : 0;
+  }
+
+  /**
+   * Returns the topics of the rules matching the attributes of a message, in rule order and
+   * without duplicates, or an empty list if no rule matches
+   */
+  List<String> route(Map<String, String> attributes) {
+    if (attributes.isEmpty()) {
+      unmatched.increment();
+      return Collections.emptyList();
+    }
+    BitSet matches = new BitSet(rules.size());
+    for (Map.Entry<String, String> attribute : attributes.entrySet()) {
+      Map<String, List<Rule>> values = equalsIndex.get(attribute.getKey());
+      if (null != values) {
+        check(values.get(attribute.getValue()), attributes, matches);
+      }
+      PrefixNode node = prefixIndex.get(attribute.getKey());
+      String value = attribute.getValue();
+      for (int i = 0; null != node; i++) {
+        check(node.rules, attributes, matches);
+        node = i < value.length() ? node.children.get(value.charAt(i)) : null;
+      }
+      check(existsIndex.get(attribute.getKey()), attributes, matches);
+    }
+    if (matches.isEmpty()) {
+      unmatched.increment();
+      return Collections.emptyList();
+    }
+    matched.increment();
+    Set<String> topics = new LinkedHashSet<>();
+    for (int i = matches.nextSetBit(0); i >= 0; i = matches.nextSetBit(i + 1)) {
+      topics.addAll(rules.get(i).topics);
+    }
+    return new ArrayList<>(topics);
+  }
+
+  private static void check(List<Rule> candidates, Map<String, String> attributes, BitSet matches) {
+    if (null == candidates) {
+      return;
+    }
+    for (Rule rule : candidates) {
+      if (!matches.get(rule.order) && matchesAll(rule.others, attributes)) {
+        matches.set(rule.order);
+      }
+    }
+  }
+
+  private static boolean matchesAll(List<Condition> conditions, Map<String, String> attributes) {
+    for (Condition condition : conditions) {
+      if (!condition.matches(attributes)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /** Returns the number of messages routed by at least one rule */
+  long getMatchedCount() {
+    return matched.sum();
+  }
+
+  /** Returns the number of messages no rule matched, left to their own topic */
+  long getUnmatchedCount() {
+    return unmatched.sum();
+  }
+}
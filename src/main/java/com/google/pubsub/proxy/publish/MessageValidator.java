@@ -0,0 +1,160 @@
+/* Copyright 2019 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+package com.google.pubsub.proxy.publish;
+
+import com.google.common.base.Utf8;
+import com.google.pubsub.proxy.entities.MessageError;
+import com.google.pubsub.proxy.schema.TopicSchemas;
+import com.google.pubsub.v1.PubsubMessage;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Checks the messages of a request against the limits of Cloud Pub/Sub in the same pass that
+ * reads them, before any publisher is created or any message is published, so that bad input is
+ * rejected with a 400 listing the offending messages instead of failing asynchronously. The same
+ * pass adds up the messages and bytes of each topic, for its rate limits. The data of each
+ * message is also checked against the schema of its topic, if it has one.
+ */
+class MessageValidator {
+
+  static final int MAX_REQUEST_BYTES = 10 * 1000 * 1000;
+  static final int MAX_ATTRIBUTES = 100;
+  static final int MAX_ATTRIBUTE_KEY_BYTES = 256;
+  static final int MAX_ATTRIBUTE_VALUE_BYTES = 1024;
+
+  // Topic names of 3 to 255 characters, starting with a letter and not with "goog"
+  private static final Pattern TOPIC_NAME = Pattern.compile("[a-zA-Z][-a-zA-Z0-9._~%+]{2,254}");
+
+  private final TopicSchemas schemas;
+  private final List<MessageError> errors = new ArrayList<>();
+  // Topics of the request already checked, as most messages share the same few topics
+  private final Map<String, Boolean> topics = new HashMap<>();
+  // Messages and bytes of each topic of the request
+  private final Map<String, long[]> usage = new LinkedHashMap<>();
+  private long bytes;
+
+  MessageValidator() {
+    this(null);
+  }
+
+  /** @param schemas - schemas of the topics, null to only check the limits of Cloud Pub/Sub */
+  MessageValidator(TopicSchemas schemas) {
+    this.schemas = schemas;
+  }
+
+  /** Returns whether a topic name is accepted by Cloud Pub/Sub */
+  static boolean isValidTopic(String topic) {
+    return TOPIC_NAME.matcher(topic).matches() && !topic.startsWith("goog");
+  }
+
+  /** Returns why a message cannot be published, or null if it is within the limits */
+  static String validate(PubsubMessage message) {
+    if (message.getData().isEmpty() && 0 == message.getAttributesCount()) {
+      return "Message must have data or attributes";
+    }
+    if (message.getSerializedSize() > MAX_REQUEST_BYTES) {
+      return "Message is larger than " + MAX_REQUEST_BYTES + " bytes";
+    }
+    if (message.getAttributesCount() > MAX_ATTRIBUTES) {
+      return "Message has more than " + MAX_ATTRIBUTES + " attributes";
+    }
+    for (Map.Entry<String, String> attribute : message.getAttributesMap().entrySet()) {
+      if (attribute.getKey().isEmpty()
+          || !fits(attribute.getKey(), MAX_ATTRIBUTE_KEY_BYTES)) {
+        return "Attribute keys must be 1 to " + MAX_ATTRIBUTE_KEY_BYTES + " bytes long";
+      }
+      if (!fits(attribute.getValue(), MAX_ATTRIBUTE_VALUE_BYTES)) {
+        return "Value of attribute "
+            + attribute.getKey()
+            + " is longer than "
+            + MAX_ATTRIBUTE_VALUE_BYTES
+            + " bytes";
+      }
+    }
+    return null;
+  }
+
+  /** Returns whether the UTF-8 encoding of a string fits, only encoding it when it may not */
+  private static boolean fits(String value, int maxBytes) {
+    return value.length() * 3 <= maxBytes
+        || (value.length() <= maxBytes && Utf8.encodedLength(value) <= maxBytes);
+  }
+
+  /**
+   * Checks a message of the request
+   *
+   * @param index - index of the message within the request
+   * @param topic - topic the message is published to, null if neither it nor the request has one
+   */
+  void check(int index, String topic, PubsubMessage message) {
+    bytes += message.getSerializedSize();
+    if (null == topic) {
+      reject(index, "Pub/Sub topic required");
+      return;
+    }
+    if (!topics.computeIfAbsent(topic, MessageValidator::isValidTopic)) {
+      reject(index, "Invalid topic name: " + topic);
+      return;
+    }
+    String error = validate(message);
+    if (null == error && null != schemas) {
+      error = schemas.validate(topic, message.getData());
+    }
+    if (null != error) {
+      reject(index, error);
+      return;
+    }
+    long[] topicUsage = usage.computeIfAbsent(topic, t -> new long[2]);
+    topicUsage[0]++;
+    topicUsage[1] += message.getSerializedSize();
+  }
+
+  /** Checks a copy of a checked message, routed to one more topic with its own schema */
+  void checkCopy(int index, String topic, PubsubMessage message) {
+    bytes += message.getSerializedSize();
+    String error = null != schemas ? schemas.validate(topic, message.getData()) : null;
+    if (null != error) {
+      reject(index, error + " (topic " + topic + ")");
+      return;
+    }
+    long[] topicUsage = usage.computeIfAbsent(topic, t -> new long[2]);
+    topicUsage[0]++;
+    topicUsage[1] += message.getSerializedSize();
+  }
+
+  /** Records a message that cannot be published */
+  void reject(int index, String error) {
+    errors.add(new MessageError(index, error));
+  }
+
+  /** Returns whether the messages of the request add up to more than a publish request allows */
+  boolean isTooLarge() {
+    return bytes > MAX_REQUEST_BYTES;
+  }
+
+  List<MessageError> getErrors() {
+    return errors;
+  }
+
+  /** Returns the messages and bytes of each topic of the request, in this order */
+  Map<String, long[]> getUsage() {
+    return usage;
+  }
+}
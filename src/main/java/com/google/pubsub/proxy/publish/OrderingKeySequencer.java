@@ -0,0 +1,231 @@
+/* Copyright 2019 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+package com.google.pubsub.proxy.publish;
+
+import com.google.api.core.ApiFuture;
+import com.google.api.core.ApiFutureCallback;
+import com.google.api.core.ApiFutures;
+import com.google.api.core.SettableApiFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.pubsub.proxy.config.ProxyConfig;
+import com.google.pubsub.v1.PubsubMessage;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Publishes the messages of an ordering key in the order they arrive, with at most a window of
+ * them in flight, while other keys publish in parallel. When a message fails, no new message of
+ * its key is sent until the messages in flight settle, then the failed messages are resent first,
+ * in order. A message that still fails after its attempts fails together with the messages queued
+ * behind it, as publishing them would break the order, and the key is resumed so that the next
+ * messages, such as the client's retries, are published again.
+ */
+class OrderingKeySequencer {
+
+  static final String MAX_IN_FLIGHT_PER_KEY = "ordering.maxInFlightPerKey";
+  static final String MAX_ATTEMPTS = "ordering.maxAttempts";
+
+  /** Attribute carrying the ordering key of a message, namespaced to leave user attributes be */
+  static final String ATTRIBUTE = "proxy.orderingKey";
+
+  /** Returns whether a message has an ordering key */
+  static boolean isOrdered(PubsubMessage message) {
+    return !message.getAttributesOrDefault(ATTRIBUTE, "").isEmpty();
+  }
+
+  /** Message of a key, queued, in flight, or waiting to be resent */
+  private static class Pending {
+    private final Supplier<ApiFuture<String>> publish;
+    private final long sequence;
+    private final SettableApiFuture<String> result = SettableApiFuture.create();
+    private int attempts;
+
+    private Pending(Supplier<ApiFuture<String>> publish, long sequence) {
+      this.publish = publish;
+      this.sequence = sequence;
+    }
+  }
+
+  /** Messages of a key, only read and changed while holding its lock */
+  private static class Key {
+    private final ArrayDeque<Pending> queued = new ArrayDeque<>();
+    // Failed messages to resend once the messages in flight settle
+    private final List<Pending> failed = new ArrayList<>();
+    private long sequence;
+    private int inFlight;
+    // Set while a thread sends the messages of the key, so that they leave in order
+    private boolean sending;
+    // Set once the key is forgotten, publishers holding it look it up again
+    private boolean removed;
+
+    private boolean isIdle() {
+      return queued.isEmpty() && failed.isEmpty() && 0 == inFlight && !sending;
+    }
+  }
+
+  private final int maxInFlight;
+  private final int maxAttempts;
+  private final ConcurrentHashMap<String, Key> keys = new ConcurrentHashMap<>();
+  private final LongAdder resumed = new LongAdder();
+
+  OrderingKeySequencer(ProxyConfig config) {
+    this.maxInFlight = Math.max(1, config.getInt(MAX_IN_FLIGHT_PER_KEY, 10));
+    this.maxAttempts = Math.max(1, config.getInt(MAX_ATTEMPTS, 3));
+  }
+
+  /**
+   * Publishes a message right away if fewer than the window of its key are in flight, or once
+   * the messages before it leave
+   *
+   * @param key - ordering key, scoped to the topic
+   * @param publish - publishes the message, called once per attempt
+   */
+  ApiFuture<String> publish(String key, Supplier<ApiFuture<String>> publish) {
+    while (true) {
+      Key state = keys.computeIfAbsent(key, k -> new Key());
+      Pending pending;
+      synchronized (state) {
+        if (state.removed) {
+          continue;
+        }
+        pending = new Pending(publish, state.sequence++);
+        state.queued.add(pending);
+      }
+      drain(key, state);
+      return pending.result;
+    }
+  }
+
+  /** Sends the messages of a key the window allows, unless another thread is sending them */
+  private void drain(String key, Key state) {
+    while (true) {
+      List<Pending> next = new ArrayList<>();
+      synchronized (state) {
+        if (state.sending) {
+          return;
+        }
+        if (!state.failed.isEmpty() && 0 == state.inFlight) {
+          // Everything sent after the failed messages has settled, resend them first
+          state.failed.sort(Comparator.comparingLong(p -> p.sequence));
+          for (int i = state.failed.size() - 1; i >= 0; i--) {
+            state.queued.addFirst(state.failed.get(i));
+          }
+          state.failed.clear();
+        }
+        while (state.failed.isEmpty()
+            && state.inFlight < maxInFlight
+            && !state.queued.isEmpty()) {
+          next.add(state.queued.poll());
+          state.inFlight++;
+        }
+        if (next.isEmpty()) {
+          if (state.isIdle()) {
+            state.removed = true;
+            keys.remove(key, state);
+          }
+          return;
+        }
+        state.sending = true;
+      }
+      try {
+        for (Pending pending : next) {
+          send(key, state, pending);
+        }
+      } finally {
+        synchronized (state) {
+          state.sending = false;
+        }
+      }
+    }
+  }
+
+  private void send(String key, Key state, Pending pending) {
+    pending.attempts++;
+    ApiFuture<String> future;
+    try {
+      future = pending.publish.get();
+    } catch (RuntimeException e) {
+      future = ApiFutures.immediateFailedFuture(e);
+    }
+    ApiFutures.addCallback(
+        future,
+        new ApiFutureCallback<String>() {
+          public void onFailure(Throwable throwable) {
+            failed(key, state, pending, throwable);
+          }
+
+          public void onSuccess(String msgId) {
+            synchronized (state) {
+              state.inFlight--;
+            }
+            pending.result.set(msgId);
+            drain(key, state);
+          }
+        },
+        MoreExecutors.directExecutor());
+  }
+
+  /**
+   * Holds a failed message for a resend, or fails it with the messages queued behind it once it
+   * is out of attempts, and resumes publishing for the key
+   */
+  private void failed(String key, Key state, Pending pending, Throwable cause) {
+    boolean resend = pending.attempts < maxAttempts && MessageDispatcher.isRetryable(cause);
+    List<Pending> dropped = new ArrayList<>();
+    synchronized (state) {
+      state.inFlight--;
+      if (resend) {
+        state.failed.add(pending);
+      } else {
+        dropped.addAll(state.queued);
+        state.queued.clear();
+        state.failed.removeIf(
+            p -> {
+              if (p.sequence > pending.sequence) {
+                dropped.add(p);
+                return true;
+              }
+              return false;
+            });
+      }
+    }
+    if (!resend) {
+      pending.result.setException(cause);
+      for (Pending next : dropped) {
+        next.result.setException(
+            new IllegalStateException(
+                "An earlier message of ordering key " + key + " failed: " + cause.getMessage(),
+                cause));
+      }
+      resumed.increment();
+    }
+    drain(key, state);
+  }
+
+  /** Returns the number of ordering keys with messages queued or in flight */
+  int getActiveKeyCount() {
+    return keys.size();
+  }
+
+  /** Returns the number of times a key was resumed after a failure */
+  long getResumedCount() {
+    return resumed.sum();
+  }
+}
@@ -0,0 +1,203 @@
+/* Copyright 2019 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+package com.google.pubsub.proxy.publish;
+
+import com.google.pubsub.proxy.config.ProxyConfig;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+
+/**
+ * Admission control on the messages and bytes handed to publishers and not acknowledged yet, per
+ * topic and in total. Requests are admitted while usage is below the limits, and rejected
+ * otherwise, so that a slow Pub/Sub pushes back on callers instead of filling the heap. A request
+ * admitted below a limit may overshoot it by its own size.
+ */
+class OutstandingLimiter {
+
+  static final String MAX_OUTSTANDING_MESSAGES = "admission.maxOutstandingMessages";
+  static final String MAX_OUTSTANDING_BYTES = "admission.maxOutstandingBytes";
+  static final String TOPIC_MAX_OUTSTANDING_MESSAGES = "admission.topicMaxOutstandingMessages";
+  static final String TOPIC_MAX_OUTSTANDING_BYTES = "admission.topicMaxOutstandingBytes";
+  static final String WAIT_TIMEOUT_MILLIS = "admission.waitTimeoutMillis";
+  static final String REJECT_STATUS = "admission.rejectStatus";
+  static final String RETRY_AFTER_SECONDS = "admission.retryAfterSeconds";
+
+  // A quarter of the heap may be held by unacknowledged messages, unless configured otherwise
+  private static final long DEFAULT_MAX_OUTSTANDING_BYTES = Runtime.getRuntime().maxMemory() / 4;
+
+  /** Outstanding messages and bytes against their limits */
+  static class Usage {
+    private final long maxMessages;
+    private final long maxBytes;
+    private final AtomicLong messages = new AtomicLong();
+    private final AtomicLong bytes = new AtomicLong();
+
+    Usage(long maxMessages, long maxBytes) {
+      this.maxMessages = maxMessages > 0 ? maxMessages : Long.MAX_VALUE;
+      this.maxBytes = maxBytes > 0 ? maxBytes : Long.MAX_VALUE;
+    }
+
+    boolean isFull() {
+      return messages.get() >= maxMessages || bytes.get() >= maxBytes;
+    }
+
+    private boolean isIdle() {
+      return 0 == messages.get() && 0 == bytes.get();
+    }
+
+    long getMessages() {
+      return messages.get();
+    }
+
+    long getBytes() {
+      return bytes.get();
+    }
+
+    private void add(long count, long size) {
+      messages.addAndGet(count);
+      bytes.addAndGet(size);
+    }
+  }
+
+  private static final Usage EMPTY = new Usage(0, 0);
+
+  private final ProxyConfig config;
+  private final Usage total;
+  private final Map<String, Usage> topics = new ConcurrentHashMap<>();
+  private final long waitTimeoutNanos;
+  private final int rejectStatus;
+  private final long retryAfterSeconds;
+  private final Object released = new Object();
+  private final AtomicInteger waiters = new AtomicInteger();
+
+  OutstandingLimiter(ProxyConfig config) {
+    this.config = config;
+    this.total =
+        new Usage(
+            config.getLong(MAX_OUTSTANDING_MESSAGES, 0L),
+            config.getLong(MAX_OUTSTANDING_BYTES, DEFAULT_MAX_OUTSTANDING_BYTES));
+    this.waitTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(config.getLong(WAIT_TIMEOUT_MILLIS, 0L));
+    this.rejectStatus = config.getInt(REJECT_STATUS, 503);
+    this.retryAfterSeconds = config.getLong(RETRY_AFTER_SECONDS, 1L);
+  }
+
+  /** Returns a new usage of a topic, with its limits resolved once */
+  private Usage newUsage(String topic) {
+    return new Usage(
+        config.getLong(topic, TOPIC_MAX_OUTSTANDING_MESSAGES, 0L),
+        config.getLong(topic, TOPIC_MAX_OUTSTANDING_BYTES, 0L));
+  }
+
+  /** Returns the usage of a topic, or null if nothing was counted since it was forgotten */
+  Usage getUsage(String topic) {
+    return topics.get(topic);
+  }
+
+  Usage getTotal() {
+    return total;
+  }
+
+  /** HTTP status of rejected requests, 503 or 429 */
+  int getRejectStatus() {
+    return rejectStatus;
+  }
+
+  long getRetryAfterSeconds() {
+    return retryAfterSeconds;
+  }
+
+  /**
+   * Returns whether a request for the topic may publish. Requests on virtual threads wait for room
+   * up to the configured timeout; other request threads are never blocked, so their requests are
+   * rejected as soon as a limit is reached.
+   */
+  boolean admit(String topic) throws InterruptedException {
+    return awaitRoom(
+        topic, VirtualThreads.isVirtual(Thread.currentThread()) ? waitTimeoutNanos : 0);
+  }
+
+  /** Returns whether the topic is below its limits, waiting up to a timeout for room */
+  boolean awaitRoom(String topic, long timeoutNanos) throws InterruptedException {
+    // A topic without usage has nothing outstanding, so only the total can be full
+    Usage usage = topics.getOrDefault(topic, EMPTY);
+    if (!total.isFull() && !usage.isFull()) {
+      return true;
+    }
+    if (timeoutNanos <= 0) {
+      return false;
+    }
+
+    long deadline = System.nanoTime() + timeoutNanos;
+    waiters.incrementAndGet();
+    try {
+      synchronized (released) {
+        while (total.isFull() || usage.isFull()) {
+          long remaining = deadline - System.nanoTime();
+          if (remaining <= 0) {
+            return false;
+          }
+          TimeUnit.NANOSECONDS.timedWait(released, remaining);
+        }
+        return true;
+      }
+    } finally {
+      waiters.decrementAndGet();
+    }
+  }
+
+  /**
+   * Forgets the limits of topics no longer in use with nothing outstanding. The check and the
+   * removal hold the entry, as acquire does, so a message is never counted on a forgotten usage.
+   */
+  void forgetIdle(Predicate<String> inUse) {
+    for (String topic : topics.keySet()) {
+      if (!inUse.test(topic)) {
+        topics.computeIfPresent(topic, (t, usage) -> usage.isIdle() ? null : usage);
+      }
+    }
+  }
+
+  /**
+   * Counts a message handed to the publisher of a topic, returning the usage to release it from.
+   * The usage is looked up and counted atomically, so that it cannot be forgotten in between.
+   */
+  Usage acquire(String topic, long bytes) {
+    Usage acquired =
+        topics.compute(
+            topic,
+            (t, usage) -> {
+              Usage counted = null != usage ? usage : newUsage(t);
+              counted.add(1, bytes);
+              return counted;
+            });
+    total.add(1, bytes);
+    return acquired;
+  }
+
+  /** Counts a message acknowledged, or failed, waking up requests waiting for room */
+  void release(Usage usage, long bytes) {
+    usage.add(-1, -bytes);
+    total.add(-1, -bytes);
+    if (waiters.get() > 0) {
+      synchronized (released) {
+        released.notifyAll();
+      }
+    }
+  }
+}
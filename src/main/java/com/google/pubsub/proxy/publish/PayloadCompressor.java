@@ -0,0 +1,169 @@
+/* Copyright 2019 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+package com.google.pubsub.proxy.publish;
+
+import com.github.luben.zstd.Zstd;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.UnsafeByteOperations;
+import com.google.pubsub.proxy.config.ProxyConfig;
+import com.google.pubsub.v1.PubsubMessage;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Locale;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Predicate;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Compresses the data of messages published to topics configured for it, for consumers that
+ * expect compressed payloads, marking each compressed message with an attribute naming the
+ * codec. The settings of a topic are resolved once, on its first message, but every configured
+ * codec and level is checked up front so that a typo fails the startup rather than each request.
+ */
+class PayloadCompressor {
+
+  static final String CODEC = "compression.codec";
+  static final String MIN_BYTES = "compression.minBytes";
+  static final String LEVEL = "compression.level";
+  static final String ATTRIBUTE = "compression.attribute";
+
+  private static final String DEFAULT_ATTRIBUTE = "contentEncoding";
+
+  /** Supported codecs, named in settings and attributes by their lower case name */
+  enum Codec {
+    NONE,
+    GZIP,
+    ZSTD;
+
+    ByteString compress(ByteString data, int level) {
+      switch (this) {
+        case GZIP:
+          ByteString.Output out = ByteString.newOutput(Math.max(64, data.size() / 2));
+          try (GZIPOutputStream gzip = new LeveledGzipOutputStream(out, level)) {
+            data.writeTo(gzip);
+          } catch (IOException e) {
+            throw new UncheckedIOException(e);
+          }
+          return out.toByteString();
+        case ZSTD:
+          // The compressed array is not referenced anywhere else, so it is safe to wrap
+          return UnsafeByteOperations.unsafeWrap(Zstd.compress(data.toByteArray(), level));
+        default:
+          return data;
+      }
+    }
+
+    int defaultLevel() {
+      return this == ZSTD ? Zstd.defaultCompressionLevel() : Deflater.DEFAULT_COMPRESSION;
+    }
+
+    String attributeValue() {
+      return name().toLowerCase(Locale.ROOT);
+    }
+  }
+
+  private static class LeveledGzipOutputStream extends GZIPOutputStream {
+    private LeveledGzipOutputStream(ByteString.Output out, int level) throws IOException {
+      super(out, 8192);
+      def.setLevel(level);
+    }
+  }
+
+  /** Compression settings of a topic */
+  private static class TopicSettings {
+    private final Codec codec;
+    private final long minBytes;
+    private final int level;
+
+    private TopicSettings(Codec codec, long minBytes, int level) {
+      this.codec = codec;
+      this.minBytes = minBytes;
+      this.level = level;
+    }
+  }
+
+  private final ProxyConfig config;
+  private final String attribute;
+  private final ConcurrentHashMap<String, TopicSettings> topics = new ConcurrentHashMap<>();
+  private final LongAdder bytesIn = new LongAdder();
+  private final LongAdder bytesOut = new LongAdder();
+
+  PayloadCompressor(ProxyConfig config) {
+    this.config = config;
+    this.attribute = Optional.ofNullable(config.get(ATTRIBUTE)).orElse(DEFAULT_ATTRIBUTE);
+    for (String codec : config.getAll(CODEC)) {
+      codecOf(codec);
+    }
+    for (String level : config.getAll(LEVEL)) {
+      Integer.parseInt(level.trim());
+    }
+  }
+
+  private static Codec codecOf(String name) {
+    try {
+      return Codec.valueOf(name.trim().toUpperCase(Locale.ROOT));
+    } catch (IllegalArgumentException e) {
+      throw new IllegalArgumentException("Unknown " + CODEC + ": " + name, e);
+    }
+  }
+
+  private TopicSettings settings(String topic) {
+    Codec codec = codecOf(Optional.ofNullable(config.get(topic, CODEC)).orElse("none"));
+    String level = config.get(topic, LEVEL);
+    return new TopicSettings(
+        codec,
+        config.getLong(topic, MIN_BYTES, 0L),
+        null != level ? Integer.parseInt(level.trim()) : codec.defaultLevel());
+  }
+
+  /** Forgets the settings of topics no longer in use */
+  void forgetIdle(Predicate<String> inUse) {
+    topics.keySet().removeIf(inUse.negate());
+  }
+
+  /**
+   * Returns the message with its data compressed, if the topic is configured for it, the data is
+   * large enough and the message is not already marked as compressed
+   */
+  PubsubMessage compress(String topic, PubsubMessage message) {
+    TopicSettings settings = topics.computeIfAbsent(topic, this::settings);
+    if (Codec.NONE == settings.codec
+        || message.getData().size() < settings.minBytes
+        || message.containsAttributes(attribute)) {
+      return message;
+    }
+    ByteString compressed = settings.codec.compress(message.getData(), settings.level);
+    bytesIn.add(message.getData().size());
+    bytesOut.add(compressed.size());
+    return message
+        .toBuilder()
+        .setData(compressed)
+        .putAttributes(attribute, settings.codec.attributeValue())
+        .build();
+  }
+
+  /** Returns the bytes of message data compressed */
+  long getBytesIn() {
+    return bytesIn.sum();
+  }
+
+  /** Returns the bytes of compressed message data published */
+  long getBytesOut() {
+    return bytesOut.sum();
+  }
+}
@@ -0,0 +1,206 @@
+/* Copyright 2019 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+package com.google.pubsub.proxy.publish;
+
+import com.google.api.core.ApiFuture;
+import com.google.api.core.ApiFutureCallback;
+import com.google.api.core.ApiFutures;
+import com.google.api.gax.rpc.ApiException;
+import com.google.cloud.pubsub.v1.Publisher;
+import com.google.pubsub.proxy.entities.MessageError;
+import com.google.pubsub.v1.ProjectTopicName;
+import com.google.pubsub.v1.PublishRequest;
+import com.google.pubsub.v1.PublishResponse;
+import com.google.pubsub.v1.PublisherGrpc;
+import com.google.pubsub.v1.PubsubMessage;
+import io.grpc.Context;
+import io.grpc.Contexts;
+import io.grpc.Metadata;
+import io.grpc.ServerCall;
+import io.grpc.ServerCallHandler;
+import io.grpc.ServerInterceptor;
+import io.grpc.ServerInterceptors;
+import io.grpc.ServerServiceDefinition;
+import io.grpc.Status;
+import io.grpc.stub.StreamObserver;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * gRPC ingest surface implementing the Publish method of the Cloud Pub/Sub Publisher service.
+ * PublishRequest protobufs are passed straight to the cached publishers, without any JSON step,
+ * and the response carries the message ids once Cloud Pub/Sub acknowledged them.
+ *
+ * <p>The topic may be a short name or a full "projects/{project}/topics/{topic}" name within the
+ * proxy's project. Other Publisher methods are not implemented.
+ *
+ * <p>The service does not authenticate callers itself: like the REST surface, it is meant to be
+ * reached through ESP, which forwards the caller in the "x-endpoint-api-userinfo" metadata that
+ * rate limits are applied to.
+ */
+public class PublishGrpcService extends PublisherGrpc.PublisherImplBase {
+
+  private static final Metadata.Key<String> USER_INFO =
+      Metadata.Key.of(
+          CallerIdentity.USER_INFO_HEADER.toLowerCase(Locale.ROOT),
+          Metadata.ASCII_STRING_MARSHALLER);
+  // Caller of the current call, read from its metadata by the interceptor
+  private static final Context.Key<String> CALLER =
+      Context.keyWithDefault("caller", CallerIdentity.ANONYMOUS);
+
+  private final MessageDispatcher dispatcher;
+
+  public PublishGrpcService(MessageDispatcher dispatcher) {
+    this.dispatcher = dispatcher;
+  }
+
+  /** Returns the service, with the caller of each call identified from its metadata */
+  public ServerServiceDefinition withCallers() {
+    return ServerInterceptors.intercept(
+        this,
+        new ServerInterceptor() {
+          @Override
+          public <Q, R> ServerCall.Listener<Q> interceptCall(
+              ServerCall<Q, R> call, Metadata headers, ServerCallHandler<Q, R> next) {
+            Context context =
+                Context.current().withValue(CALLER, CallerIdentity.of(headers.get(USER_INFO)));
+            return Contexts.interceptCall(context, call, headers, next);
+          }
+        });
+  }
+
+  @Override
+  public void publish(PublishRequest request, StreamObserver<PublishResponse> responseObserver) {
+
+    String topic = getTopic(request.getTopic());
+    if (null == topic) {
+      responseObserver.onError(
+          Status.INVALID_ARGUMENT
+              .withDescription("Topic must belong to the proxy's project: " + request.getTopic())
+              .asException());
+      return;
+    }
+    if (topic.isEmpty() || request.getMessagesCount() == 0) {
+      responseObserver.onError(
+          Status.INVALID_ARGUMENT.withDescription("Topic and messages required").asException());
+      return;
+    }
+
+    String error = validate(topic, request);
+    if (null != error) {
+      responseObserver.onError(Status.INVALID_ARGUMENT.withDescription(error).asException());
+      return;
+    }
+
+    long bytes = 0;
+    for (PubsubMessage message : request.getMessagesList()) {
+      bytes += message.getSerializedSize();
+    }
+    QuotaLimiter quotas = dispatcher.getQuotas();
+    if (0 != quotas.tryAcquire(CALLER.get(), topic, request.getMessagesCount(), bytes)) {
+      responseObserver.onError(
+          Status.RESOURCE_EXHAUSTED
+              .withDescription("Rate limit exceeded for topic " + topic)
+              .asException());
+      return;
+    }
+
+    List<ApiFuture<String>> futures = new ArrayList<>(request.getMessagesCount());
+    try {
+      dispatcher.recordRequest(topic);
+      if (!dispatcher.admit(topic)) {
+        // Retried by Pub/Sub clients, like the 429 or 503 of the REST surface
+        Status status =
+            429 == dispatcher.getLimiter().getRejectStatus()
+                ? Status.RESOURCE_EXHAUSTED
+                : Status.UNAVAILABLE;
+        responseObserver.onError(
+            status.withDescription("Too many messages outstanding for topic " + topic)
+                .asException());
+        return;
+      }
+      Publisher publisher = dispatcher.getPublisher(topic);
+      for (PubsubMessage message : request.getMessagesList()) {
+        futures.add(dispatcher.publish(topic, publisher, message));
+      }
+    } catch (Exception e) {
+      responseObserver.onError(
+          Status.INTERNAL.withCause(e).withDescription(e.getMessage()).asException());
+      return;
+    }
+
+    ApiFutures.addCallback(
+        ApiFutures.allAsList(futures),
+        new ApiFutureCallback<List<String>>() {
+          public void onFailure(Throwable throwable) {
+            responseObserver.onError(toStatus(throwable).asException());
+          }
+
+          public void onSuccess(List<String> msgIds) {
+            responseObserver.onNext(PublishResponse.newBuilder().addAllMessageIds(msgIds).build());
+            responseObserver.onCompleted();
+          }
+        },
+        dispatcher.getCallbackExecutor());
+  }
+
+  /** Returns why a request cannot be published, listing its invalid messages, or null */
+  private String validate(String topic, PublishRequest request) {
+    if (!MessageValidator.isValidTopic(topic)) {
+      return "Invalid topic name: " + topic;
+    }
+    MessageValidator validator = new MessageValidator(dispatcher.getSchemas());
+    for (int i = 0; i < request.getMessagesCount(); i++) {
+      validator.check(i, topic, request.getMessages(i));
+    }
+    if (validator.isTooLarge()) {
+      return "Request is larger than " + MessageValidator.MAX_REQUEST_BYTES + " bytes";
+    }
+    if (validator.getErrors().isEmpty()) {
+      return null;
+    }
+    StringBuilder errors = new StringBuilder("Invalid messages:");
+    for (MessageError messageError : validator.getErrors()) {
+      errors.append(' ').append(messageError.getIndex()).append(": ");
+      errors.append(messageError.getError()).append(';');
+    }
+    return errors.toString();
+  }
+
+  /** Returns the short topic name, or null if the topic belongs to another project */
+  private String getTopic(String name) {
+    if (!ProjectTopicName.isParsableFrom(name)) {
+      return name;
+    }
+    ProjectTopicName topicName = ProjectTopicName.parse(name);
+    String projectId = dispatcher.getProjectId();
+    if (null != projectId && !projectId.equals(topicName.getProject())) {
+      return null;
+    }
+    return topicName.getTopic();
+  }
+
+  /** Maps a publish failure to the gRPC status returned to the caller */
+  private static Status toStatus(Throwable throwable) {
+    if (throwable instanceof ApiException) {
+      Object code = ((ApiException) throwable).getStatusCode().getTransportCode();
+      if (code instanceof Status.Code) {
+        return ((Status.Code) code).toStatus().withDescription(throwable.getMessage());
+      }
+    }
+    return Status.fromThrowable(throwable);
+  }
+}
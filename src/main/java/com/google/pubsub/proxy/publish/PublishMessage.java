@@ -17,26 +17,51 @@ package com.google.pubsub.proxy.publish;
 import com.google.api.core.ApiFuture;
 import com.google.api.core.ApiFutureCallback;
 import com.google.api.core.ApiFutures;
-import com.google.cloud.ServiceOptions;
+import com.google.api.gax.rpc.ApiException;
 import com.google.cloud.pubsub.v1.Publisher;
+import com.google.common.io.ByteStreams;
 import com.google.common.util.concurrent.MoreExecutors;
 import com.google.protobuf.ByteString;
 import com.google.protobuf.Timestamp;
+import com.google.protobuf.UnsafeByteOperations;
 import com.google.protobuf.util.Timestamps;
 import com.google.pubsub.proxy.entities.Message;
+import com.google.pubsub.proxy.entities.MessageError;
+import com.google.pubsub.proxy.entities.PublishResult;
 import com.google.pubsub.proxy.entities.Request;
-import com.google.pubsub.v1.ProjectTopicName;
+import com.google.pubsub.proxy.publish.StreamingRequestReader.BufferedMessages;
+import com.google.pubsub.proxy.publish.StreamingRequestReader.MessageStream;
+import com.google.pubsub.proxy.tracing.RequestTrace;
+import com.google.pubsub.proxy.tracing.RequestTrace.Stage;
 import com.google.pubsub.v1.PubsubMessage;
 import com.google.pubsub.v1.PubsubMessage.Builder;
 import java.io.IOException;
+import java.io.InputStream;
 import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Base64;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.logging.Logger;
+import java.util.Optional;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import javax.inject.Inject;
+import javax.inject.Provider;
+import javax.ws.rs.BadRequestException;
 import javax.ws.rs.Consumes;
 import javax.ws.rs.POST;
 import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.ContainerRequestContext;
+import javax.ws.rs.container.Suspended;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
 import javax.ws.rs.core.Response.Status;
@@ -45,51 +70,367 @@ import javax.ws.rs.core.Response.Status;
 @Path("/publish")
 public class PublishMessage {
 
-  private static final String projectId = ServiceOptions.getDefaultProjectId();
-  private Map<String, Publisher> publishers = new ConcurrentHashMap<>();
-  private static final Logger LOGGER = Logger.getLogger(PublishMessage.class.getName());
+  private final MessageDispatcher dispatcher;
 
-  private Map<String, Publisher> getPublishers() {
-    return publishers;
+  public PublishMessage(MessageDispatcher dispatcher) {
+    this.dispatcher = dispatcher;
   }
 
-  void setPublishers(Map<String, Publisher> publishers) {
-    this.publishers = Collections.unmodifiableMap(publishers);
+  // Read the ack mode from "WAIT_FOR_ACK" environment variable
+  // Defaults to responding as soon as the messages are handed to the publisher
+  private boolean waitForAck =
+      Boolean.parseBoolean(Optional.ofNullable(System.getenv("WAIT_FOR_ACK")).orElse("false"));
+
+  // Read the longest wait for acks from "ACK_TIMEOUT_SECONDS" environment variable, after which
+  // the response is resumed with 504. 0 waits as long as the publisher retries
+  private long ackTimeoutSeconds =
+      Long.parseLong(Optional.ofNullable(System.getenv("ACK_TIMEOUT_SECONDS")).orElse("60"));
+
+  // Read the default encoding of message data from "DATA_ENCODING" environment variable
+  // Either "utf8" (default) or "base64", overridden per request by the X-Data-Encoding header
+  private static final String DEFAULT_DATA_ENCODING =
+      Optional.ofNullable(System.getenv("DATA_ENCODING")).orElse("utf8");
+
+  public static final String DATA_ENCODING_HEADER = "X-Data-Encoding";
+  public static final String IDEMPOTENCY_KEY_HEADER = "Idempotency-Key";
+  public static final String APPLICATION_PROTOBUF = "application/x-protobuf";
+
+  @Context private HttpHeaders headers;
+  // Looked up per request, as the resource is a singleton outside of the request scope
+  @Inject private Provider<ContainerRequestContext> requestContext;
+
+  void setWaitForAck(boolean waitForAck) {
+    this.waitForAck = waitForAck;
+  }
+
+  void setAckTimeoutSeconds(long ackTimeoutSeconds) {
+    this.ackTimeoutSeconds = ackTimeoutSeconds;
   }
 
   /**
    * Entry point for POST /publish Enforces token validation
    *
-   * @param req - POJO translated user request
+   * <p>The response is resumed asynchronously so that no Jetty thread is held while Cloud
+   * Pub/Sub acknowledges the messages. When waiting for acks, the response carries the broker
+   * assigned message ids, or the per-message errors.
+   *
+   * @param req - POJO translated user request, or a stream of messages from the streaming reader
+   * @param asyncResponse - suspended response, resumed once the request is handled
    */
   @POST
   @Consumes(MediaType.APPLICATION_JSON)
-  public Response doPost(Request req) throws Exception {
+  @Produces(MediaType.APPLICATION_JSON)
+  public void doPost(Request req, @Suspended AsyncResponse asyncResponse) throws Exception {
+
+    RequestTrace trace = getTrace();
+    trace.mark(Stage.BIND);
+    Iterator<PubsubMessage> stream = req.getMessageStream();
+    if (null == req.getMessages() && null == stream) {
+      asyncResponse.resume(
+          invalidRequest(null == req.getTopic() ? "Pub/Sub topic required" : "Message required"));
+      return;
+    }
+    if (null != stream ? !stream.hasNext() : req.getMessages().isEmpty()) {
+      asyncResponse.resume(invalidRequest("Message cannot be empty"));
+      return;
+    }
+
+    String topic = req.getTopic();
+    if (null != topic && !MessageValidator.isValidTopic(topic)) {
+      asyncResponse.resume(invalidRequest("Invalid topic name: " + topic));
+      return;
+    }
+    MessageValidator validator = new MessageValidator(dispatcher.getSchemas());
+    BufferedMessages messages = readMessages(req, validator);
+    if (validator.isTooLarge()) {
+      asyncResponse.resume(tooLarge());
+      return;
+    }
+    if (!validator.getErrors().isEmpty()) {
+      asyncResponse.resume(invalidMessages(validator.getErrors()));
+      return;
+    }
+    trace.mark(Stage.READ);
+    Response limited = takeQuotas(validator.getUsage());
+    trace.mark(Stage.QUOTA);
+    if (null != limited) {
+      asyncResponse.resume(limited);
+      return;
+    }
+    // Ordered messages are neither spilled nor replayed, so their caller must learn of failures
+    boolean ordered = messages.isOrdered();
+
+    // Publishers of the topics of the request, null for topics over the limits
+    Map<String, Publisher> publishers = new HashMap<>();
+    if (null != topic) {
+      dispatcher.recordRequest(topic);
+      if (!dispatcher.admit(topic)) {
+        asyncResponse.resume(
+            dispatcher.canSpill() && !ordered ? spill(topic, messages) : overloaded(topic));
+        return;
+      }
+      publishers.put(topic, getPublisher(topic, trace));
+    }
+
+    String idempotencyKey = getIdempotencyKey();
+    List<ApiFuture<String>> futures = new ArrayList<>();
+    List<String> topics = new ArrayList<>();
+    List<Integer> indexes = new ArrayList<>();
+    boolean rejected = false;
+    while (messages.hasNext()) {
+      PubsubMessage message = messages.next();
+      String messageTopic = topicOf(messages, topic);
+      int index = messages.getIndex();
+      indexes.add(index);
+      if (!publishers.containsKey(messageTopic)) {
+        publishers.put(messageTopic, admitTopic(messageTopic, trace));
+      }
+      Publisher publisher = publishers.get(messageTopic);
+      topics.add(messageTopic);
+      if (null == publisher) {
+        rejected = true;
+        futures.add(
+            ApiFutures.immediateFailedFuture(
+                new IllegalStateException(tooManyOutstanding(messageTopic))));
+        continue;
+      }
+      futures.add(publish(messageTopic, publisher, message, messageKey(idempotencyKey, index)));
+    }
+    trace.mark(Stage.PUBLISH);
+
+    respond(futures, topics, indexes, rejected || ordered, asyncResponse, trace);
+  }
+
+  /**
+   * Entry point for POST /publish with a binary body, published as the data of a single message
+   *
+   * @param topic - Pub/Sub topic to publish to
+   * @param body - raw message data, such as a serialized protobuf or Avro record
+   * @param asyncResponse - suspended response, resumed once the request is handled
+   */
+  @POST
+  @Consumes({MediaType.APPLICATION_OCTET_STREAM, APPLICATION_PROTOBUF})
+  @Produces(MediaType.APPLICATION_JSON)
+  public void doPostRaw(
+      @QueryParam("topic") String topic,
+      InputStream body,
+      @Suspended AsyncResponse asyncResponse)
+      throws Exception {
+
+    RequestTrace trace = getTrace();
+    trace.mark(Stage.BIND);
+    if (null == topic) {
+      asyncResponse.resume(invalidRequest("Pub/Sub topic required"));
+      return;
+    }
+    if (!MessageValidator.isValidTopic(topic)) {
+      asyncResponse.resume(invalidRequest("Invalid topic name: " + topic));
+      return;
+    }
+
+    // Read in chunks that are concatenated without copying them into one array, stopping as
+    // soon as the body is known to be too large
+    ByteString data =
+        ByteString.readFrom(ByteStreams.limit(body, MessageValidator.MAX_REQUEST_BYTES + 1L));
+    if (data.size() > MessageValidator.MAX_REQUEST_BYTES) {
+      asyncResponse.resume(tooLarge());
+      return;
+    }
+    if (data.isEmpty()) {
+      asyncResponse.resume(invalidRequest("Message cannot be empty"));
+      return;
+    }
 
-    if (null == req.getTopic()) {
-      return invalidRequest("Pub/Sub topic required");
+    PubsubMessage message = PubsubMessage.newBuilder().setData(data).build();
+    String error = MessageValidator.validate(message);
+    if (null == error) {
+      error = dispatcher.getSchemas().validate(topic, data);
     }
-    if (null == req.getMessages()) {
-      return invalidRequest("Message required");
+    if (null != error) {
+      asyncResponse.resume(invalidRequest(error));
+      return;
     }
-    if (req.getMessages().isEmpty()) {
-      return invalidRequest("Message cannot be empty");
+    trace.mark(Stage.READ);
+    Response limited =
+        takeQuotas(
+            Collections.singletonMap(topic, new long[] {1L, message.getSerializedSize()}));
+    trace.mark(Stage.QUOTA);
+    if (null != limited) {
+      asyncResponse.resume(limited);
+      return;
     }
+    dispatcher.recordRequest(topic);
+    if (!dispatcher.admit(topic)) {
+      asyncResponse.resume(
+          dispatcher.canSpill()
+              ? spill(topic, Collections.singleton(message).iterator())
+              : overloaded(topic));
+      return;
+    }
+    Publisher publisher = getPublisher(topic, trace);
+    // Keyed like the first message of a JSON request, so a retry may switch between the two
+    ApiFuture<String> future =
+        publish(topic, publisher, message, messageKey(getIdempotencyKey(), 0));
+    trace.mark(Stage.PUBLISH);
+    respond(
+        Collections.singletonList(future),
+        Collections.singletonList(topic),
+        null,
+        false,
+        asyncResponse,
+        trace);
+  }
+
+  /**
+   * Resumes the response right away, or once the messages are acknowledged. Requests with
+   * messages rejected for being over the limits, or with ordered messages, always wait, so that
+   * the caller learns which messages to retry.
+   */
+  private void respond(
+      List<ApiFuture<String>> futures,
+      List<String> topics,
+      List<Integer> indexes,
+      boolean mustWait,
+      AsyncResponse asyncResponse,
+      RequestTrace trace)
+      throws InterruptedException {
+    if (!waitForAck && !mustWait) {
+      asyncResponse.resume(Response.ok().build());
+      return;
+    }
+    if (ackTimeoutSeconds > 0) {
+      asyncResponse.setTimeoutHandler(response -> response.resume(ackTimedOut()));
+      asyncResponse.setTimeout(ackTimeoutSeconds, TimeUnit.SECONDS);
+    }
+    if (VirtualThreads.isVirtual(Thread.currentThread())) {
+      // Blocking a virtual thread is cheap, and simpler than chaining callbacks
+      Response response = awaitAcks(futures, topics, indexes);
+      trace.mark(Stage.ACK);
+      asyncResponse.resume(response);
+      return;
+    }
+    resumeOnAck(futures, topics, indexes, asyncResponse, trace);
+  }
 
-    Publisher publisher = getPublisher(req.getTopic());
-    for (final Message msg : req.getMessages()) {
-      publishMessage(publisher, msg);
+  /** Waits until every publish future has completed, successfully or not */
+  private Response awaitAcks(
+      List<ApiFuture<String>> futures, List<String> topics, List<Integer> indexes)
+      throws InterruptedException {
+    List<String> msgIds = new ArrayList<>(futures.size());
+    for (ApiFuture<String> future : futures) {
+      try {
+        msgIds.add(future.get());
+      } catch (ExecutionException e) {
+        msgIds.add(null);
+      }
     }
+    return publishResult(msgIds, futures, topics, indexes);
+  }
+
+  /** Resumes the response once every publish future has completed, successfully or not */
+  private void resumeOnAck(
+      final List<ApiFuture<String>> futures,
+      final List<String> topics,
+      final List<Integer> indexes,
+      final AsyncResponse response,
+      final RequestTrace trace) {
+
+    List<ApiFuture<String>> settled = new ArrayList<>(futures.size());
+    for (ApiFuture<String> future : futures) {
+      settled.add(
+          ApiFutures.catching(
+              future, Throwable.class, throwable -> null, MoreExecutors.directExecutor()));
+    }
+
+    ApiFutures.addCallback(
+        ApiFutures.allAsList(settled),
+        new ApiFutureCallback<List<String>>() {
+          public void onFailure(Throwable throwable) {
+            response.resume(throwable);
+          }
 
-    return Response.ok().build();
+          public void onSuccess(List<String> msgIds) {
+            trace.mark(Stage.ACK);
+            response.resume(publishResult(msgIds, futures, topics, indexes));
+          }
+        },
+        dispatcher.getCallbackExecutor());
+  }
+
+  /**
+   * Builds the response for acknowledged messages, reporting failed ones by index, and the result
+   * of each topic when the request published to several
+   *
+   * @param indexes - index within the request of each published message, or null if they are
+   *     the same, as messages routed to several topics are published once per topic
+   */
+  private Response publishResult(
+      List<String> msgIds,
+      List<ApiFuture<String>> futures,
+      List<String> topics,
+      List<Integer> indexes) {
+
+    List<MessageError> errors = new ArrayList<>();
+    Map<String, PublishResult> topicResults = new LinkedHashMap<>();
+    boolean spilled = false;
+    for (int i = 0; i < msgIds.size(); i++) {
+      MessageError error = null;
+      spilled |= MessageDispatcher.SPILLED.equals(msgIds.get(i));
+      if (null == msgIds.get(i)) {
+        error = new MessageError(null != indexes ? indexes.get(i) : i, getError(futures.get(i)));
+        errors.add(error);
+      }
+      PublishResult topicResult = topicResults.computeIfAbsent(topics.get(i), t -> newResult());
+      topicResult.getMessageIds().add(msgIds.get(i));
+      if (null != error) {
+        topicResult.getErrors().add(error);
+      }
+    }
+
+    PublishResult result = new PublishResult();
+    result.setMessageIds(msgIds);
+    result.setErrors(errors);
+    if (topicResults.size() > 1) {
+      result.setTopics(topicResults);
+    }
+    // Spilled messages are only published later, like requests spilled over the limits
+    Status status =
+        !errors.isEmpty()
+            ? Status.INTERNAL_SERVER_ERROR
+            : spilled ? Status.ACCEPTED : Status.OK;
+    return Response.status(status).entity(result).type(MediaType.APPLICATION_JSON).build();
+  }
+
+  private static PublishResult newResult() {
+    PublishResult result = new PublishResult();
+    result.setMessageIds(new ArrayList<>());
+    result.setErrors(new ArrayList<>());
+    return result;
+  }
+
+  /** Returns the reason a completed publish future failed */
+  private static String getError(ApiFuture<String> future) {
+    try {
+      future.get();
+      return "Message was not published";
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof ApiException) {
+        return ((ApiException) cause).getStatusCode().getCode() + ": " + cause.getMessage();
+      }
+      return String.valueOf(cause.getMessage());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return "Interrupted while reading publish result";
+    }
   }
 
-  /** Populates PubSub publisher Publishes messages downstream */
-  private void publishMessage(Publisher publisher, Message msg) throws Exception {
+  /** Builds the PubSub message for a POJO translated message */
+  static PubsubMessage toPubsubMessage(Message msg, boolean base64) throws ParseException {
 
     Builder builder = PubsubMessage.newBuilder();
     if (null != msg.getData()) {
-      builder.setData(ByteString.copyFromUtf8(msg.getData()));
+      builder.setData(toData(msg.getData(), base64));
     }
     if (null != msg.getMessageId()) {
       builder.setMessageId(msg.getMessageId());
@@ -100,48 +441,265 @@ public class PublishMessage {
     if (null != msg.getAttributes()) {
       builder.putAllAttributes(getAllAttributes(msg.getAttributes()));
     }
+    if (null != msg.getOrderingKey() && !msg.getOrderingKey().isEmpty()) {
+      // The Pub/Sub client of the proxy predates ordering keys, the key travels as an attribute
+      builder.putAttributes(OrderingKeySequencer.ATTRIBUTE, msg.getOrderingKey());
+    }
+    return builder.build();
+  }
 
-    ApiFuture<String> future = publisher.publish(builder.build());
-    ApiFutures.addCallback(
-        future,
-        new ApiFutureCallback<String>() {
-          public void onFailure(Throwable throwable) {
-            LOGGER.severe("Failed to publish message: " + throwable.getMessage());
-          }
+  /** Publishes a message downstream, once per idempotency key */
+  private ApiFuture<String> publish(
+      String topic, Publisher publisher, PubsubMessage message, String idempotencyKey) {
+    return dispatcher.publishOnce(topic, publisher, message, idempotencyKey);
+  }
 
-          public void onSuccess(String msgId) {
-            LOGGER.info("Successfully published: " + msgId);
-          }
-        },
-        MoreExecutors.directExecutor());
+  /** Returns the idempotency key of the request, given through the Idempotency-Key header */
+  private String getIdempotencyKey() {
+    return null != headers ? headers.getHeaderString(IDEMPOTENCY_KEY_HEADER) : null;
   }
 
-  /** Creates PubSub publisher if one doesn't exist */
-  private Publisher getPublisher(String topic) throws IOException {
+  /** Returns the key of a message of a request with an idempotency key, its index within it */
+  private static String messageKey(String idempotencyKey, int index) {
+    return null != idempotencyKey ? idempotencyKey + ":" + index : null;
+  }
 
-    if (getPublishers().containsKey(topic)) {
-      return getPublishers().get(topic);
+  /** Returns the data encoding requested through the X-Data-Encoding header */
+  private String getDataEncoding() {
+    return null != headers ? headers.getHeaderString(DATA_ENCODING_HEADER) : null;
+  }
+
+  /** Returns whether message data is base64 encoded, as with the Cloud Pub/Sub REST API */
+  public static boolean isBase64(String encoding) {
+    return "base64".equalsIgnoreCase(null != encoding ? encoding : DEFAULT_DATA_ENCODING);
+  }
+
+  /** Converts message data, decoding base64 directly into the bytes wrapped by the ByteString */
+  static ByteString toData(String data, boolean base64) {
+    if (!base64) {
+      return ByteString.copyFromUtf8(data);
     }
+    try {
+      // The decoded array is not referenced anywhere else, so it is safe to wrap without copying
+      return UnsafeByteOperations.unsafeWrap(Base64.getDecoder().decode(data));
+    } catch (IllegalArgumentException e) {
+      throw new BadRequestException("Message data is not valid base64", e);
+    }
+  }
 
-    LOGGER.info("Creating new publisher for: " + topic);
-    Publisher publisher = Publisher.newBuilder(ProjectTopicName.of(projectId, topic)).build();
-    getPublishers().put(topic, publisher);
+  /** Returns the cached PubSub publisher, creating one if it doesn't exist, timing the lookup */
+  private Publisher getPublisher(String topic, RequestTrace trace) throws IOException {
+    trace.mark(Stage.PUBLISH);
+    Publisher publisher = dispatcher.getPublisher(topic);
+    trace.mark(Stage.PUBLISHER);
     return publisher;
   }
 
-  /** Handle missing parameters in incoming requests */
+  /** Returns the trace started for the request by the tracing filter, if it is timed */
+  private RequestTrace getTrace() {
+    if (null == requestContext) {
+      return RequestTrace.NONE;
+    }
+    Object trace = requestContext.get().getProperty(RequestTrace.PROPERTY);
+    return null != trace ? (RequestTrace) trace : RequestTrace.NONE;
+  }
+
+  /** Rejects a request body over the size limit with 413 */
+  private static Response tooLarge() {
+    return Response.status(Status.REQUEST_ENTITY_TOO_LARGE)
+        .entity("Request is larger than " + MessageValidator.MAX_REQUEST_BYTES + " bytes")
+        .type(MediaType.APPLICATION_JSON)
+        .build();
+  }
+
   private Response invalidRequest(String msg) {
     return Response.status(Status.BAD_REQUEST).entity(msg).type(MediaType.APPLICATION_JSON).build();
   }
 
+  /**
+   * Reads the messages of a request, streamed or POJO translated, along with the topics they
+   * name or are routed to, validating each one in the same pass. Nothing is published until the
+   * whole request is known to be valid, and reading stops once the request is too large.
+   */
+  private BufferedMessages readMessages(Request req, MessageValidator validator) {
+    Iterator<PubsubMessage> stream = req.getMessageStream();
+    int capacity = null != stream ? 16 : req.getMessages().size();
+    BufferedMessages messages = new BufferedMessages(capacity);
+    if (null != stream) {
+      for (int index = 0; !validator.isTooLarge() && stream.hasNext(); index++) {
+        PubsubMessage message = stream.next();
+        route(index, message, topicOf(stream, null), req.getTopic(), validator, messages);
+      }
+      return messages;
+    }
+
+    boolean base64 = isBase64(getDataEncoding());
+    List<Message> pojos = req.getMessages();
+    for (int index = 0; !validator.isTooLarge() && index < pojos.size(); index++) {
+      Message msg = pojos.get(index);
+      try {
+        PubsubMessage message = toPubsubMessage(msg, base64);
+        route(index, message, msg.getTopic(), req.getTopic(), validator, messages);
+      } catch (ParseException e) {
+        validator.reject(index, "Invalid publishTime: " + msg.getPublishTime());
+        messages.add(PubsubMessage.getDefaultInstance(), msg.getTopic(), index);
+      } catch (BadRequestException e) {
+        validator.reject(index, e.getMessage());
+        messages.add(PubsubMessage.getDefaultInstance(), msg.getTopic(), index);
+      }
+    }
+    return messages;
+  }
+
+  /**
+   * Adds a message of a request to the messages to publish, once per topic the routing rules
+   * send it to. Messages naming their own topic, or matching no rule, go to their own topic or
+   * the request's.
+   *
+   * @param topic - topic named by the message, or null
+   */
+  private void route(
+      int index,
+      PubsubMessage message,
+      String topic,
+      String requestTopic,
+      MessageValidator validator,
+      BufferedMessages messages) {
+    MessageRouter router = dispatcher.getRouter();
+    List<String> routed =
+        null == topic && null != router
+            ? router.route(message.getAttributesMap())
+            : Collections.emptyList();
+    if (routed.isEmpty()) {
+      validator.check(index, null != topic ? topic : requestTopic, message);
+      messages.add(message, topic, index);
+      return;
+    }
+    validator.check(index, routed.get(0), message);
+    messages.add(message, routed.get(0), index);
+    for (String routedTopic : routed.subList(1, routed.size())) {
+      validator.checkCopy(index, routedTopic, message);
+      messages.add(message, routedTopic, index);
+    }
+  }
+
+  /**
+   * Takes the rate limit tokens of the caller and topics of a request, returning null if it is
+   * within the limits, or the 429 response otherwise
+   *
+   * @param usage - messages and bytes of each topic of the request
+   */
+  private Response takeQuotas(Map<String, long[]> usage) {
+    QuotaLimiter quotas = dispatcher.getQuotas();
+    String caller = getCaller();
+    List<String> taken = new ArrayList<>(usage.size());
+    for (Map.Entry<String, long[]> topic : usage.entrySet()) {
+      long[] counts = topic.getValue();
+      long waitNanos = quotas.tryAcquire(caller, topic.getKey(), counts[0], counts[1]);
+      if (0 != waitNanos) {
+        for (String acquired : taken) {
+          quotas.release(caller, acquired, usage.get(acquired)[0], usage.get(acquired)[1]);
+        }
+        return rateLimited(topic.getKey(), waitNanos);
+      }
+      taken.add(topic.getKey());
+    }
+    return null;
+  }
+
+  /** Returns the caller identity forwarded by ESP, through the X-Endpoint-API-UserInfo header */
+  private String getCaller() {
+    return CallerIdentity.of(
+        null != headers ? headers.getHeaderString(CallerIdentity.USER_INFO_HEADER) : null);
+  }
+
+  /** Asks a caller over its rate limit to retry once it has tokens again */
+  private static Response rateLimited(String topic, long waitNanos) {
+    long retryAfterSeconds = Math.max(1L, TimeUnit.NANOSECONDS.toSeconds(waitNanos + 999999999L));
+    return Response.status(429)
+        .header(HttpHeaders.RETRY_AFTER, retryAfterSeconds)
+        .entity("Rate limit exceeded for topic " + topic)
+        .type(MediaType.APPLICATION_JSON)
+        .build();
+  }
+
+  /** Rejects a request with invalid messages, listing them by index */
+  private static Response invalidMessages(List<MessageError> errors) {
+    PublishResult result = new PublishResult();
+    result.setErrors(errors);
+    return Response.status(Status.BAD_REQUEST)
+        .entity(result)
+        .type(MediaType.APPLICATION_JSON)
+        .build();
+  }
+
+  /** Returns the topic of the message last read from a request, by default the request's */
+  private static String topicOf(Iterator<PubsubMessage> messages, String requestTopic) {
+    String topic = messages instanceof MessageStream ? ((MessageStream) messages).getTopic() : null;
+    return null != topic ? topic : requestTopic;
+  }
+
+  /**
+   * Admits a topic named by the messages of a request, returning its publisher, or null if too
+   * much is outstanding for it
+   */
+  private Publisher admitTopic(String topic, RequestTrace trace) throws Exception {
+    dispatcher.recordRequest(topic);
+    return dispatcher.admit(topic) ? getPublisher(topic, trace) : null;
+  }
+
+  /**
+   * Spills the messages of a request over the limits to disk, responding 202 as they will only
+   * be published later
+   */
+  private Response spill(String topic, Iterator<PubsubMessage> messages) throws IOException {
+    while (messages.hasNext()) {
+      PubsubMessage message = messages.next();
+      dispatcher.spill(topicOf(messages, topic), message);
+    }
+    return Response.accepted().build();
+  }
+
+  /** Asks the caller to retry later, while too much is outstanding for the topic */
+  private Response overloaded(String topic) {
+    OutstandingLimiter limiter = dispatcher.getLimiter();
+    return Response.status(limiter.getRejectStatus())
+        .header(HttpHeaders.RETRY_AFTER, limiter.getRetryAfterSeconds())
+        .entity(tooManyOutstanding(topic))
+        .type(MediaType.APPLICATION_JSON)
+        .build();
+  }
+
+  /** Tells the caller that the acks did not come in time, the messages may still be published */
+  private static Response ackTimedOut() {
+    return Response.status(Status.GATEWAY_TIMEOUT)
+        .entity("Timed out waiting for Pub/Sub to acknowledge the messages")
+        .type(MediaType.APPLICATION_JSON)
+        .build();
+  }
+
+  private static String tooManyOutstanding(String topic) {
+    return "Too many messages outstanding for topic " + topic;
+  }
+
   /** Returns timestamp from string */
-  private Timestamp getTimeStamp(String s) throws ParseException {
+  private static Timestamp getTimeStamp(String s) throws ParseException {
     return Timestamps.parse(s);
   }
 
   /** Attributes captured as generic object returned in the format understandable by PubSub */
-  @SuppressWarnings("unchecked")
   private static Map<String, String> getAllAttributes(Object attributes) {
-    return (Map<String, String>) attributes;
+    if (!(attributes instanceof Map)) {
+      throw new BadRequestException("Message attributes must be a JSON object");
+    }
+    Map<?, ?> map = (Map<?, ?>) attributes;
+    Map<String, String> strings = new HashMap<>(map.size() * 2);
+    for (Map.Entry<?, ?> attribute : map.entrySet()) {
+      if (!(attribute.getValue() instanceof String)) {
+        throw new BadRequestException("Attribute " + attribute.getKey() + " must be a string");
+      }
+      strings.put(String.valueOf(attribute.getKey()), (String) attribute.getValue());
+    }
+    return strings;
   }
 }
@@ -0,0 +1,285 @@
+/* Copyright 2019 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+package com.google.pubsub.proxy.publish;
+
+import com.google.api.gax.rpc.ApiException;
+import com.google.pubsub.proxy.logging.PublishLog;
+import com.google.pubsub.proxy.schema.TopicSchemas;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+
+/**
+ * Meters of the publish hot path. Meters are looked up once per topic and kept, so recording a
+ * message doesn't go through the registry.
+ */
+class PublishMetrics {
+
+  private static final String TOPIC = "topic";
+
+  private final MeterRegistry registry;
+  private final Map<String, TopicMeters> topics = new ConcurrentHashMap<>();
+
+  /** Meters of a single topic */
+  class TopicMeters {
+    private final String topic;
+    private final Counter requests;
+    private final Counter messages;
+    private final DistributionSummary bytes;
+    private final Timer latency;
+    private final Counter rejected;
+    private final Map<String, Counter> failures = new ConcurrentHashMap<>();
+
+    private TopicMeters(String topic) {
+      this.topic = topic;
+      this.requests =
+          Counter.builder("pubsub.proxy.requests")
+              .description("Publish requests received")
+              .tag(TOPIC, topic)
+              .register(registry);
+      this.messages =
+          Counter.builder("pubsub.proxy.messages")
+              .description("Messages handed to the publisher")
+              .tag(TOPIC, topic)
+              .register(registry);
+      this.bytes =
+          DistributionSummary.builder("pubsub.proxy.message.size")
+              .description("Size of published message data")
+              .baseUnit("bytes")
+              .tag(TOPIC, topic)
+              .publishPercentileHistogram()
+              .register(registry);
+      this.latency =
+          Timer.builder("pubsub.proxy.publish.latency")
+              .description("Time from publishing a message until it is acknowledged")
+              .tag(TOPIC, topic)
+              .publishPercentileHistogram()
+              .register(registry);
+      this.rejected =
+          Counter.builder("pubsub.proxy.admission.rejected")
+              .description("Publish requests rejected while too much was outstanding")
+              .tag(TOPIC, topic)
+              .register(registry);
+    }
+
+    void recordRequest() {
+      requests.increment();
+    }
+
+    void recordMessage(int size) {
+      messages.increment();
+      bytes.record(size);
+    }
+
+    void recordRejected() {
+      rejected.increment();
+    }
+
+    void recordAck(long startNanos) {
+      latency.record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /** Removes the meters of the topic from the registry */
+    private void remove() {
+      registry.remove(requests);
+      registry.remove(messages);
+      registry.remove(bytes);
+      registry.remove(latency);
+      registry.remove(rejected);
+      failures.values().forEach(registry::remove);
+    }
+
+    void recordFailure(Throwable throwable) {
+      String status = statusOf(throwable);
+      failures
+          .computeIfAbsent(
+              status,
+              s ->
+                  Counter.builder("pubsub.proxy.publish.failures")
+                      .description("Messages that failed to publish")
+                      .tag(TOPIC, topic)
+                      .tag("status", s)
+                      .register(registry))
+          .increment();
+    }
+  }
+
+  PublishMetrics(MeterRegistry registry) {
+    this.registry = registry;
+  }
+
+  TopicMeters forTopic(String topic) {
+    return topics.computeIfAbsent(topic, TopicMeters::new);
+  }
+
+  /**
+   * Removes the meters of topics no longer in use, so that topics seen once don't stay in the
+   * registry. They are registered again, from zero, if the topic comes back.
+   */
+  void forgetIdle(Predicate<String> inUse) {
+    Iterator<TopicMeters> meters = topics.values().iterator();
+    while (meters.hasNext()) {
+      TopicMeters topicMeters = meters.next();
+      if (!inUse.test(topicMeters.topic)) {
+        meters.remove();
+        topicMeters.remove();
+      }
+    }
+  }
+
+  /** Reports the size and hit, miss and eviction counts of the publisher cache */
+  void bindPublisherCache(PublisherCache cache) {
+    Gauge.builder("pubsub.proxy.publisher.cache.size", cache, PublisherCache::size)
+        .description("Cached publishers")
+        .register(registry);
+    FunctionCounter.builder(
+            "pubsub.proxy.publisher.cache.hits", cache, PublisherCache::getHitCount)
+        .register(registry);
+    FunctionCounter.builder(
+            "pubsub.proxy.publisher.cache.misses", cache, PublisherCache::getMissCount)
+        .register(registry);
+    FunctionCounter.builder(
+            "pubsub.proxy.publisher.cache.evictions", cache, PublisherCache::getEvictionCount)
+        .register(registry);
+  }
+
+  /** Reports the messages and bytes outstanding across all topics */
+  void bindLimiter(OutstandingLimiter limiter) {
+    OutstandingLimiter.Usage total = limiter.getTotal();
+    Gauge.builder("pubsub.proxy.outstanding.messages", total, OutstandingLimiter.Usage::getMessages)
+        .description("Messages handed to publishers and not acknowledged yet")
+        .register(registry);
+    Gauge.builder("pubsub.proxy.outstanding.bytes", total, OutstandingLimiter.Usage::getBytes)
+        .description("Bytes handed to publishers and not acknowledged yet")
+        .baseUnit("bytes")
+        .register(registry);
+  }
+
+  /** Reports the size of the spill log and the messages spilled, dropped and replayed */
+  void bindSpill(SpillLog spill, SpillReplayer replayer) {
+    Gauge.builder("pubsub.proxy.spill.size", spill, SpillLog::size)
+        .description("Bytes of spilled messages on disk")
+        .baseUnit("bytes")
+        .register(registry);
+    FunctionCounter.builder("pubsub.proxy.spill.spilled", spill, SpillLog::getSpilledCount)
+        .description("Messages written to the spill log")
+        .register(registry);
+    FunctionCounter.builder("pubsub.proxy.spill.dropped", spill, SpillLog::getDroppedCount)
+        .description("Messages lost because the spill log was full or failed")
+        .register(registry);
+    FunctionCounter.builder(
+            "pubsub.proxy.spill.replayed", replayer, SpillReplayer::getReplayedCount)
+        .description("Spilled messages published again")
+        .register(registry);
+  }
+
+  /** Reports the messages not published again, because their idempotency key was seen */
+  void bindIdempotencyCache(IdempotencyCache cache) {
+    FunctionCounter.builder(
+            "pubsub.proxy.idempotency.hits", cache, IdempotencyCache::getHitCount)
+        .description("Messages with an idempotency key seen before, not published again")
+        .register(registry);
+  }
+
+  /** Reports the ordering keys with messages in flight, and the keys resumed after a failure */
+  void bindOrdering(OrderingKeySequencer ordering) {
+    Gauge.builder("pubsub.proxy.ordering.keys", ordering, OrderingKeySequencer::getActiveKeyCount)
+        .description("Ordering keys with messages in flight")
+        .register(registry);
+    FunctionCounter.builder(
+            "pubsub.proxy.ordering.resumed", ordering, OrderingKeySequencer::getResumedCount)
+        .description("Ordering keys resumed after a message failed")
+        .register(registry);
+  }
+
+  /** Reports the message data compressed before publishing, and its compressed size */
+  void bindCompressor(PayloadCompressor compressor) {
+    FunctionCounter.builder(
+            "pubsub.proxy.compression.bytes.in", compressor, PayloadCompressor::getBytesIn)
+        .description("Bytes of message data compressed before publishing")
+        .register(registry);
+    FunctionCounter.builder(
+            "pubsub.proxy.compression.bytes.out", compressor, PayloadCompressor::getBytesOut)
+        .description("Bytes of compressed message data published")
+        .register(registry);
+  }
+
+  /** Reports the requests refused for being over a caller or topic rate limit */
+  void bindQuotas(QuotaLimiter quotas) {
+    FunctionCounter.builder("pubsub.proxy.quota.rejected", quotas, QuotaLimiter::getRejectedCount)
+        .description("Requests refused with 429 for being over a rate limit")
+        .register(registry);
+  }
+
+  /** Returns the gRPC status of a publish failure, or the exception type if it has none */
+  static String statusOf(Throwable throwable) {
+    return throwable instanceof ApiException
+        ? ((ApiException) throwable).getStatusCode().getCode().name()
+        : throwable.getClass().getSimpleName();
+  }
+
+  /** Reports the entries of the publish log written to its sink, and those dropped */
+  void bindLog(PublishLog log) {
+    FunctionCounter.builder("pubsub.proxy.log.entries", log, PublishLog::getWrittenCount)
+        .description("Publish log entries handed to the log sink")
+        .tags("outcome", "written")
+        .register(registry);
+    FunctionCounter.builder("pubsub.proxy.log.entries", log, PublishLog::getDroppedCount)
+        .description("Publish log entries handed to the log sink")
+        .tags("outcome", "dropped")
+        .register(registry);
+  }
+
+  /** Reports the envelopes published, and the messages packed into them */
+  void bindEnvelopes(EnvelopeBatcher envelopes) {
+    FunctionCounter.builder(
+            "pubsub.proxy.envelope.published", envelopes, EnvelopeBatcher::getEnvelopeCount)
+        .description("Envelope messages published, each packing several messages")
+        .register(registry);
+    FunctionCounter.builder(
+            "pubsub.proxy.envelope.messages", envelopes, EnvelopeBatcher::getPackedCount)
+        .description("Messages packed into envelopes")
+        .register(registry);
+  }
+
+  /** Reports the messages refused for not conforming to the schema of their topic */
+  void bindSchemas(TopicSchemas schemas) {
+    FunctionCounter.builder(
+            "pubsub.proxy.schema.rejected", schemas, TopicSchemas::getRejectedCount)
+        .description("Messages refused with 400 for not conforming to their topic's schema")
+        .register(registry);
+  }
+
+  /** Reports the messages routed by their attributes, and those no rule matched */
+  void bindRouter(MessageRouter router) {
+    FunctionCounter.builder("pubsub.proxy.routing.messages", router, MessageRouter::getMatchedCount)
+        .description("Messages checked against the routing rules")
+        .tags("outcome", "matched")
+        .register(registry);
+    FunctionCounter.builder(
+            "pubsub.proxy.routing.messages", router, MessageRouter::getUnmatchedCount)
+        .description("Messages checked against the routing rules")
+        .tags("outcome", "unmatched")
+        .register(registry);
+  }
+}
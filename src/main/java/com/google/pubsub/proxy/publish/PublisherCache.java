@@ -0,0 +1,239 @@
+/* Copyright 2019 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+package com.google.pubsub.proxy.publish;
+
+import com.google.cloud.pubsub.v1.Publisher;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Size-bounded cache of publishers keyed by topic. Publishers are created lazily, evicted once
+ * idle for longer than the idle timeout or when the cache overflows (least recently used first),
+ * and flushed and shut down asynchronously on eviction. Lookups take no lock, only the creations
+ * of a same topic wait for each other; evictions are left to the sweeper, which orders entries
+ * by their last access, so the cache may briefly hold more than its maximum size.
+ */
+class PublisherCache {
+
+  private static final Logger LOGGER = Logger.getLogger(PublisherCache.class.getName());
+  private static final long SHUTDOWN_TIMEOUT_SECONDS = 30;
+
+  /** Creates the publisher for a topic on a cache miss */
+  interface PublisherFactory {
+    Publisher create(String topic) throws IOException;
+  }
+
+  private static class Entry {
+    private final Publisher publisher;
+    private volatile long lastAccess = System.nanoTime();
+
+    Entry(Publisher publisher) {
+      this.publisher = publisher;
+    }
+  }
+
+  private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+  private final PublisherFactory factory;
+  private final int maxSize;
+  private final long idleTimeoutNanos;
+  private final ScheduledExecutorService sweeper;
+  private final ExecutorService shutdownExecutor;
+  // Set while a sweep for an overflowing cache is queued, so that misses queue only one
+  private final AtomicBoolean overflowSweep = new AtomicBoolean();
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+  private final LongAdder evictions = new LongAdder();
+  private volatile boolean shutdown;
+  // Runs after each sweep, so that the state kept per topic can follow the cached publishers
+  private volatile Runnable sweepListener;
+
+  PublisherCache(PublisherFactory factory, int maxSize, long idleTimeout, TimeUnit unit) {
+    this.factory = factory;
+    this.maxSize = maxSize;
+    this.idleTimeoutNanos = unit.toNanos(idleTimeout);
+    this.sweeper = Executors.newSingleThreadScheduledExecutor(daemon("publisher-cache-sweeper"));
+    this.shutdownExecutor = Executors.newCachedThreadPool(daemon("publisher-shutdown"));
+    long sweepMillis = Math.max(1000, Math.min(unit.toMillis(idleTimeout) / 2, 30000));
+    sweeper.scheduleWithFixedDelay(this::sweep, sweepMillis, sweepMillis, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Returns the publisher for a topic, creating it if it is not cached. Publishers are cheap to
+   * create, as they share their executor and channels, and only block lookups of their topic.
+   */
+  Publisher get(String topic) throws IOException {
+    Entry entry = entries.get(topic);
+    if (null != entry) {
+      hits.increment();
+      entry.lastAccess = System.nanoTime();
+      return entry.publisher;
+    }
+    if (shutdown) {
+      throw new IllegalStateException("Publisher cache is shut down");
+    }
+    try {
+      entry = entries.computeIfAbsent(topic, this::load);
+    } catch (UncheckedIOException e) {
+      throw e.getCause();
+    }
+    if (shutdown && entries.remove(topic, entry)) {
+      // Created while the cache was drained
+      shutdownAsync(topic, entry.publisher);
+      throw new IllegalStateException("Publisher cache is shut down");
+    }
+    entry.lastAccess = System.nanoTime();
+    if (entries.size() > maxSize && overflowSweep.compareAndSet(false, true)) {
+      try {
+        sweeper.execute(this::sweep);
+      } catch (RejectedExecutionException e) {
+        overflowSweep.set(false);
+      }
+    }
+    return entry.publisher;
+  }
+
+  private Entry load(String topic) {
+    misses.increment();
+    LOGGER.info("Creating new publisher for: " + topic);
+    try {
+      return new Entry(factory.create(topic));
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /**
+   * Evicts the publishers that have not been used within the idle timeout, then the least
+   * recently used ones beyond the maximum size. Runs on the sweeper, or directly in tests.
+   */
+  synchronized void sweep() {
+    overflowSweep.set(false);
+    long now = System.nanoTime();
+    for (Map.Entry<String, Entry> e : entries.entrySet()) {
+      if (now - e.getValue().lastAccess > idleTimeoutNanos) {
+        evict(e.getKey(), e.getValue(), "idle");
+      }
+    }
+    int overflow = entries.size() - maxSize;
+    if (overflow > 0) {
+      List<Map.Entry<String, Entry>> eldest = new ArrayList<>(entries.entrySet());
+      eldest.sort(Comparator.comparingLong(e -> e.getValue().lastAccess));
+      for (int i = 0; i < overflow && i < eldest.size(); i++) {
+        evict(eldest.get(i).getKey(), eldest.get(i).getValue(), "cache full");
+      }
+    }
+    Runnable listener = sweepListener;
+    if (null != listener) {
+      try {
+        listener.run();
+      } catch (RuntimeException e) {
+        // Would otherwise cancel the sweeps
+        LOGGER.log(Level.WARNING, "Sweep listener failed", e);
+      }
+    }
+  }
+
+  void setSweepListener(Runnable listener) {
+    this.sweepListener = listener;
+  }
+
+  /** Returns the topics with a cached publisher */
+  Set<String> getTopics() {
+    return new HashSet<>(entries.keySet());
+  }
+
+  private void evict(String topic, Entry entry, String reason) {
+    if (entries.remove(topic, entry)) {
+      evictions.increment();
+      LOGGER.info("Evicting publisher for: " + topic + " (" + reason + ")");
+      shutdownAsync(topic, entry.publisher);
+    }
+  }
+
+  /** Flushes outstanding messages and releases the publisher's channel and executor */
+  private Future<?> shutdownAsync(final String topic, final Publisher publisher) {
+    return shutdownExecutor.submit(
+        () -> {
+          try {
+            publisher.shutdown();
+            publisher.awaitTermination(SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+          } catch (Exception e) {
+            LOGGER.log(Level.WARNING, "Failed to shut down publisher for: " + topic, e);
+          }
+        });
+  }
+
+  /** Drains and shuts down every cached publisher, waiting for them to terminate */
+  void shutdown() throws InterruptedException {
+    sweeper.shutdownNow();
+    shutdown = true;
+    List<Future<?>> pending = new ArrayList<>();
+    for (Map.Entry<String, Entry> e : entries.entrySet()) {
+      if (entries.remove(e.getKey(), e.getValue())) {
+        pending.add(shutdownAsync(e.getKey(), e.getValue().publisher));
+      }
+    }
+    for (Future<?> future : pending) {
+      try {
+        future.get(SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+      } catch (Exception e) {
+        LOGGER.log(Level.WARNING, "Publisher did not drain in time", e);
+      }
+    }
+    shutdownExecutor.shutdown();
+  }
+
+  int size() {
+    return entries.size();
+  }
+
+  long getHitCount() {
+    return hits.sum();
+  }
+
+  long getMissCount() {
+    return misses.sum();
+  }
+
+  long getEvictionCount() {
+    return evictions.sum();
+  }
+
+  private static ThreadFactory daemon(String name) {
+    return runnable -> {
+      Thread thread = new Thread(runnable, name);
+      thread.setDaemon(true);
+      return thread;
+    };
+  }
+}
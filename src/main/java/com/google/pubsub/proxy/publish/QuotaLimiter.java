@@ -0,0 +1,307 @@
+/* Copyright 2019 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+package com.google.pubsub.proxy.publish;
+
+import com.google.pubsub.proxy.config.ProxyConfig;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+import java.util.Collections;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Predicate;
+import java.util.logging.Logger;
+
+/**
+ * Token bucket rate limits of the messages and bytes published by each caller, across topics,
+ * and to each topic, across callers. Buckets are lock-free, each a single atomic updated with
+ * compare-and-set. Callers and topics without any limit share one unlimited sentinel instead of
+ * buckets of their own, and the limits of a topic are resolved once and cached until reload.
+ *
+ * <p>Limits are read from the proxy settings, or from the properties file named by "quota.file",
+ * which is reloaded when it changes, so that limits can be tuned without a redeploy. Full buckets
+ * of idle callers and topics are dropped at the same interval.
+ */
+class QuotaLimiter {
+
+  private static final Logger LOGGER = Logger.getLogger(QuotaLimiter.class.getName());
+
+  static final String MESSAGES_PER_SECOND = "quota.messagesPerSecond";
+  static final String BYTES_PER_SECOND = "quota.bytesPerSecond";
+  static final String TOPIC_MESSAGES_PER_SECOND = "quota.topicMessagesPerSecond";
+  static final String TOPIC_BYTES_PER_SECOND = "quota.topicBytesPerSecond";
+  static final String BURST_SECONDS = "quota.burstSeconds";
+  static final String FILE = "quota.file";
+  static final String RELOAD_INTERVAL_SECONDS = "quota.reloadIntervalSeconds";
+
+  // Settings of a caller, e.g. "caller.<id>.quota.messagesPerSecond"
+  private static final String CALLER_SCOPE = "caller.";
+  private static final long NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+
+  /**
+   * Token bucket of one rate, kept as the time at which it is full again, as in the generic cell
+   * rate algorithm. Taking tokens moves that time forward, and is refused when it would go
+   * further than the burst ahead of now. A full bucket always admits one request, so that a
+   * request larger than the burst is not refused forever.
+   */
+  static final class Bucket {
+    private final long perSecond;
+    private final long burstNanos;
+    // Starts full, at a time long past that no nanoTime reading is before
+    private final AtomicLong fullAt = new AtomicLong(Long.MIN_VALUE / 2);
+
+    Bucket(long perSecond, long burstNanos) {
+      this.perSecond = perSecond;
+      this.burstNanos = burstNanos;
+    }
+
+    private long cost(long units) {
+      return units * NANOS_PER_SECOND / perSecond;
+    }
+
+    /** Takes tokens, returning 0, or the nanoseconds until they would be available */
+    long tryAcquire(long units, long now) {
+      long cost = cost(units);
+      while (true) {
+        long current = fullAt.get();
+        long next = Math.max(current, now) + cost;
+        long ahead = next - now;
+        if (ahead > Math.max(burstNanos, cost)) {
+          return ahead - burstNanos;
+        }
+        if (fullAt.compareAndSet(current, next)) {
+          return 0L;
+        }
+      }
+    }
+
+    /** Gives back tokens taken for a request refused by another bucket */
+    void release(long units) {
+      fullAt.addAndGet(-cost(units));
+    }
+
+    /** Returns whether the bucket is full, and can be dropped without losing any state */
+    boolean isFull(long now) {
+      return fullAt.get() <= now;
+    }
+  }
+
+  /** Message and byte buckets of a caller or topic, null for limits that are not set */
+  static final class Buckets {
+    private final Bucket messages;
+    private final Bucket bytes;
+
+    private Buckets(long messagesPerSecond, long bytesPerSecond, long burstNanos) {
+      this.messages = messagesPerSecond > 0 ? new Bucket(messagesPerSecond, burstNanos) : null;
+      this.bytes = bytesPerSecond > 0 ? new Bucket(bytesPerSecond, burstNanos) : null;
+    }
+
+    private long tryAcquire(long count, long size, long now) {
+      long wait = null != messages ? messages.tryAcquire(count, now) : 0L;
+      if (0 != wait || null == bytes) {
+        return wait;
+      }
+      wait = bytes.tryAcquire(size, now);
+      if (0 != wait && null != messages) {
+        messages.release(count);
+      }
+      return wait;
+    }
+
+    private void release(long count, long size) {
+      if (null != messages) {
+        messages.release(count);
+      }
+      if (null != bytes) {
+        bytes.release(size);
+      }
+    }
+
+    private boolean isFull(long now) {
+      return (null == messages || messages.isFull(now)) && (null == bytes || bytes.isFull(now));
+    }
+  }
+
+  // Buckets of callers and topics without any limit, which admit everything and hold no state
+  static final Buckets UNLIMITED = new Buckets(0L, 0L, 0L);
+
+  /** Limits of a topic, cached as resolving them scans the prefix settings */
+  private static final class TopicLimits {
+    private final long messagesPerSecond;
+    private final long bytesPerSecond;
+
+    private TopicLimits(long messagesPerSecond, long bytesPerSecond) {
+      this.messagesPerSecond = messagesPerSecond;
+      this.bytesPerSecond = bytesPerSecond;
+    }
+  }
+
+  private final Path file;
+  private volatile ProxyConfig limits;
+  private volatile FileTime loadedAt;
+  private final ConcurrentHashMap<String, Buckets> callers = new ConcurrentHashMap<>();
+  private final ConcurrentHashMap<String, Buckets> topics = new ConcurrentHashMap<>();
+  private final ConcurrentHashMap<String, TopicLimits> topicLimits = new ConcurrentHashMap<>();
+  private final LongAdder rejected = new LongAdder();
+  private final ScheduledExecutorService reloader;
+
+  QuotaLimiter(ProxyConfig config) {
+    String path = config.get(FILE);
+    this.file = null != path ? Paths.get(path) : null;
+    this.limits = config;
+    if (null != file) {
+      reload();
+    }
+    this.reloader =
+        Executors.newSingleThreadScheduledExecutor(
+            runnable -> {
+              Thread thread = new Thread(runnable, "quota-reloader");
+              thread.setDaemon(true);
+              return thread;
+            });
+    long interval = config.getLong(RELOAD_INTERVAL_SECONDS, 10L);
+    reloader.scheduleWithFixedDelay(this::refresh, interval, interval, TimeUnit.SECONDS);
+  }
+
+  /** Reloads the quota file if it changed, and drops full buckets of idle callers and topics */
+  void refresh() {
+    long now = System.nanoTime();
+    callers.values().removeIf(buckets -> buckets.isFull(now));
+    topics.values().removeIf(buckets -> buckets.isFull(now));
+    try {
+      if (null != file && !Files.getLastModifiedTime(file).equals(loadedAt)) {
+        reload();
+      }
+    } catch (IOException e) {
+      LOGGER.warning("Failed to check the quota file: " + e.getMessage());
+    }
+  }
+
+  private void reload() {
+    Properties properties = new Properties();
+    try {
+      FileTime modified = Files.getLastModifiedTime(file);
+      try (InputStream in = Files.newInputStream(file)) {
+        properties.load(in);
+      }
+      limits = new ProxyConfig(properties, Collections.emptyMap());
+      loadedAt = modified;
+      // Buckets are rebuilt with the new limits as they are used
+      topicLimits.clear();
+      callers.clear();
+      topics.clear();
+      LOGGER.info("Loaded quotas from " + file);
+    } catch (IOException e) {
+      LOGGER.warning("Failed to load quotas from " + file + ": " + e.getMessage());
+    }
+  }
+
+  private Buckets callerBuckets(String caller) {
+    ProxyConfig config = limits;
+    String scope = CALLER_SCOPE + caller + ".";
+    return buckets(
+        callerLimit(config, scope, MESSAGES_PER_SECOND),
+        callerLimit(config, scope, BYTES_PER_SECOND),
+        config);
+  }
+
+  private static long callerLimit(ProxyConfig config, String scope, String key) {
+    String value = config.get(scope + key);
+    return null != value ? Long.parseLong(value.trim()) : config.getLong(key, 0L);
+  }
+
+  private Buckets topicBuckets(String topic) {
+    ProxyConfig config = limits;
+    TopicLimits topicLimit =
+        topicLimits.computeIfAbsent(
+            topic,
+            t ->
+                new TopicLimits(
+                    config.getLong(t, TOPIC_MESSAGES_PER_SECOND, 0L),
+                    config.getLong(t, TOPIC_BYTES_PER_SECOND, 0L)));
+    return buckets(topicLimit.messagesPerSecond, topicLimit.bytesPerSecond, config);
+  }
+
+  /** Returns new buckets for the limits that are set, or the sentinel if none is */
+  private static Buckets buckets(long messagesPerSecond, long bytesPerSecond, ProxyConfig config) {
+    if (messagesPerSecond <= 0 && bytesPerSecond <= 0) {
+      return UNLIMITED;
+    }
+    long burstNanos = config.getLong(BURST_SECONDS, 1L) * NANOS_PER_SECOND;
+    return new Buckets(messagesPerSecond, bytesPerSecond, burstNanos);
+  }
+
+  /**
+   * Takes the tokens of a request of a caller to a topic
+   *
+   * @param count - messages of the request
+   * @param size - bytes of the messages
+   * @return 0 if the request is within the limits, or the nanoseconds until it would be
+   */
+  long tryAcquire(String caller, String topic, long count, long size) {
+    long now = System.nanoTime();
+    Buckets callerBuckets = callers.computeIfAbsent(caller, this::callerBuckets);
+    long wait = callerBuckets.tryAcquire(count, size, now);
+    if (0 == wait) {
+      wait = topics.computeIfAbsent(topic, this::topicBuckets).tryAcquire(count, size, now);
+      if (0 != wait) {
+        callerBuckets.release(count, size);
+      }
+    }
+    if (0 != wait) {
+      rejected.increment();
+    }
+    return wait;
+  }
+
+  /** Gives back the tokens of a request refused for another of its topics */
+  void release(String caller, String topic, long count, long size) {
+    Buckets callerBuckets = callers.get(caller);
+    if (null != callerBuckets) {
+      callerBuckets.release(count, size);
+    }
+    Buckets topicBuckets = topics.get(topic);
+    if (null != topicBuckets) {
+      topicBuckets.release(count, size);
+    }
+  }
+
+  /** Forgets the cached limits of topics that are no longer in use */
+  void forgetIdle(Predicate<String> inUse) {
+    topicLimits.keySet().removeIf(inUse.negate());
+  }
+
+  /** Returns the buckets of a caller, null until it makes a request */
+  Buckets getCallerBuckets(String caller) {
+    return callers.get(caller);
+  }
+
+  /** Returns the number of requests refused for being over a rate limit */
+  long getRejectedCount() {
+    return rejected.sum();
+  }
+
+  void shutdown() {
+    reloader.shutdownNow();
+  }
+}
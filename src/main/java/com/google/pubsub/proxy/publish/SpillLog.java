@@ -0,0 +1,273 @@
+/* Copyright 2019 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+package com.google.pubsub.proxy.publish;
+
+import com.google.pubsub.proxy.config.ProxyConfig;
+import com.google.pubsub.v1.PublishRequest;
+import com.google.pubsub.v1.PubsubMessage;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log of messages waiting to be published again, kept on local disk in segment
+ * files. Each record is a PublishRequest of one message, framed by its length and CRC32 so that a
+ * record torn by a crash ends its segment. Segments are written through a FileChannel, rolled
+ * once they reach their size, and deleted once their messages are acknowledged.
+ */
+class SpillLog implements Closeable {
+
+  private static final Logger LOGGER = Logger.getLogger(SpillLog.class.getName());
+
+  static final String DIRECTORY = "spill.directory";
+  static final String SEGMENT_BYTES = "spill.segmentBytes";
+  static final String MAX_BYTES = "spill.maxBytes";
+  static final String FSYNC = "spill.fsync";
+
+  private static final long DEFAULT_SEGMENT_BYTES = 64L << 20;
+  private static final long DEFAULT_MAX_BYTES = 1L << 30;
+  private static final String SEGMENT_PREFIX = "spill-";
+  private static final String SEGMENT_SUFFIX = ".log";
+  private static final int HEADER_BYTES = 8;
+
+  private final Path directory;
+  private final long segmentBytes;
+  private final long maxBytes;
+  private final boolean fsync;
+  private final AtomicLong size = new AtomicLong();
+  private final LongAdder spilled = new LongAdder();
+  private final LongAdder dropped = new LongAdder();
+  private long nextSequence;
+  private Path currentPath;
+  private FileChannel current;
+  private long currentSize;
+  private boolean closed;
+
+  SpillLog(Path directory, long segmentBytes, long maxBytes, boolean fsync) throws IOException {
+    this.directory = Files.createDirectories(directory);
+    this.segmentBytes = segmentBytes;
+    this.maxBytes = maxBytes;
+    this.fsync = fsync;
+
+    // Segments left by a previous run are replayed, new records go to a new segment
+    for (Path segment : segments()) {
+      size.addAndGet(Files.size(segment));
+      nextSequence = Math.max(nextSequence, sequence(segment) + 1);
+    }
+  }
+
+  /** Opens the log in the configured directory, or returns null if spilling is disabled */
+  static SpillLog open(ProxyConfig config) throws IOException {
+    String directory = config.get(DIRECTORY);
+    if (null == directory) {
+      return null;
+    }
+    SpillLog log =
+        new SpillLog(
+            Paths.get(directory),
+            config.getLong(SEGMENT_BYTES, DEFAULT_SEGMENT_BYTES),
+            config.getLong(MAX_BYTES, DEFAULT_MAX_BYTES),
+            config.getBoolean(FSYNC, false));
+    LOGGER.info("Spilling messages to " + directory + ", " + log.size() + " bytes to replay");
+    return log;
+  }
+
+  /** Returns whether the log reached its maximum size */
+  boolean isFull() {
+    return size.get() >= maxBytes;
+  }
+
+  /** Bytes on disk, including records being replayed */
+  long size() {
+    return size.get();
+  }
+
+  long getSpilledCount() {
+    return spilled.sum();
+  }
+
+  long getDroppedCount() {
+    return dropped.sum();
+  }
+
+  /** Counts a message that could not be spilled, because the log is full */
+  void recordDropped() {
+    dropped.increment();
+  }
+
+  /** Appends a message for a topic, rolling the current segment once it is full */
+  synchronized void append(String topic, PubsubMessage message) throws IOException {
+    if (closed) {
+      throw new IOException("Spill log is closed");
+    }
+    byte[] record =
+        PublishRequest.newBuilder().setTopic(topic).addMessages(message).build().toByteArray();
+    if (null == current || (currentSize > 0 && currentSize + record.length > segmentBytes)) {
+      roll();
+    }
+
+    CRC32 crc = new CRC32();
+    crc.update(record);
+    ByteBuffer buffer = ByteBuffer.allocate(HEADER_BYTES + record.length);
+    buffer.putInt(record.length).putInt((int) crc.getValue()).put(record).flip();
+    while (buffer.hasRemaining()) {
+      current.write(buffer);
+    }
+    if (fsync) {
+      current.force(false);
+    }
+    currentSize += HEADER_BYTES + record.length;
+    size.addAndGet(HEADER_BYTES + record.length);
+    spilled.increment();
+  }
+
+  /**
+   * Returns the oldest segment no longer written to, sealing the current segment if it is the
+   * only one left, or null if there is nothing to replay.
+   */
+  synchronized Path oldestSegment() throws IOException {
+    List<Path> segments = segments();
+    if (segments.isEmpty()) {
+      return null;
+    }
+    Path oldest = segments.get(0);
+    if (oldest.equals(currentPath)) {
+      if (0 == currentSize) {
+        return null;
+      }
+      seal();
+    }
+    return oldest;
+  }
+
+  /** Deletes a replayed segment */
+  synchronized void delete(Path segment) throws IOException {
+    long length = Files.size(segment);
+    Files.delete(segment);
+    size.addAndGet(-length);
+  }
+
+  /** Opens a sealed segment for reading */
+  Reader read(Path segment) throws IOException {
+    return new Reader(segment);
+  }
+
+  @Override
+  public synchronized void close() throws IOException {
+    closed = true;
+    seal();
+  }
+
+  private void roll() throws IOException {
+    seal();
+    currentPath =
+        directory.resolve(
+            String.format("%s%020d%s", SEGMENT_PREFIX, nextSequence++, SEGMENT_SUFFIX));
+    current =
+        FileChannel.open(currentPath, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+    currentSize = 0;
+  }
+
+  private void seal() throws IOException {
+    if (null != current) {
+      current.force(true);
+      current.close();
+      current = null;
+      currentPath = null;
+    }
+  }
+
+  /** Returns the segments, oldest first */
+  private List<Path> segments() throws IOException {
+    List<Path> segments = new ArrayList<>();
+    try (DirectoryStream<Path> stream =
+        Files.newDirectoryStream(directory, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+      stream.forEach(segments::add);
+    }
+    Collections.sort(segments);
+    return segments;
+  }
+
+  private static long sequence(Path segment) {
+    String name = segment.getFileName().toString();
+    return Long.parseLong(
+        name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+  }
+
+  /** Reads the records of a segment in order */
+  static class Reader implements Closeable {
+    private final Path segment;
+    private final FileChannel channel;
+    private final ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+
+    private Reader(Path segment) throws IOException {
+      this.segment = segment;
+      this.channel = FileChannel.open(segment, StandardOpenOption.READ);
+    }
+
+    /** Returns the next record, or null at the end of the segment or at a torn record */
+    PublishRequest next() throws IOException {
+      try {
+        header.clear();
+        readFully(header);
+        header.flip();
+        int length = header.getInt();
+        int checksum = header.getInt();
+        if (length < 0 || length > channel.size() - channel.position()) {
+          LOGGER.warning("Truncated record in " + segment + ", skipping the rest of it");
+          return null;
+        }
+        ByteBuffer record = ByteBuffer.allocate(length);
+        readFully(record);
+        CRC32 crc = new CRC32();
+        crc.update(record.array());
+        if ((int) crc.getValue() != checksum) {
+          LOGGER.warning("Corrupt record in " + segment + ", skipping the rest of it");
+          return null;
+        }
+        return PublishRequest.parseFrom(record.array());
+      } catch (EOFException e) {
+        return null;
+      }
+    }
+
+    private void readFully(ByteBuffer buffer) throws IOException {
+      while (buffer.hasRemaining()) {
+        if (channel.read(buffer) < 0) {
+          throw new EOFException();
+        }
+      }
+    }
+
+    @Override
+    public void close() throws IOException {
+      channel.close();
+    }
+  }
+}
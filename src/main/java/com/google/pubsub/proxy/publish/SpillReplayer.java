@@ -0,0 +1,149 @@
+/* Copyright 2019 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+package com.google.pubsub.proxy.publish;
+
+import com.google.api.core.ApiFuture;
+import com.google.pubsub.v1.PublishRequest;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+
+/**
+ * Publishes spilled messages again, oldest segment first, and deletes each segment once its
+ * messages are acknowledged. Messages failing again with a retryable error are appended back to
+ * the log, so delivery is at least once: a segment interrupted by a restart is replayed from its
+ * start. Messages failing with other errors would fail forever, and are dropped.
+ */
+class SpillReplayer implements Runnable {
+
+  private static final Logger LOGGER = Logger.getLogger(SpillReplayer.class.getName());
+
+  static final String REPLAY_INTERVAL_MILLIS = "spill.replayIntervalMillis";
+
+  // Messages published before waiting for their acks, bounding the replay on the heap
+  private static final int CHUNK_SIZE = 1000;
+  private static final long ROOM_WAIT_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+  private final SpillLog log;
+  private final MessageDispatcher dispatcher;
+  private final LongAdder replayed = new LongAdder();
+  private volatile boolean stopped;
+
+  SpillReplayer(SpillLog log, MessageDispatcher dispatcher) {
+    this.log = log;
+    this.dispatcher = dispatcher;
+  }
+
+  long getReplayedCount() {
+    return replayed.sum();
+  }
+
+  void stop() {
+    stopped = true;
+  }
+
+  @Override
+  public void run() {
+    try {
+      Path segment;
+      while (!stopped && null != (segment = log.oldestSegment())) {
+        if (!replay(segment)) {
+          return;
+        }
+        log.delete(segment);
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (Exception e) {
+      LOGGER.warning("Failed to replay spilled messages: " + e.getMessage());
+    }
+  }
+
+  /**
+   * Replays a segment, returning false if it should be kept, because its first message still
+   * fails to publish with a retryable error or the replay was stopped.
+   */
+  private boolean replay(Path segment) throws IOException, InterruptedException {
+    try (SpillLog.Reader reader = log.read(segment)) {
+      List<PublishRequest> records = new ArrayList<>(CHUNK_SIZE);
+      List<ApiFuture<String>> futures = new ArrayList<>(CHUNK_SIZE);
+      boolean probed = false;
+      for (PublishRequest record = reader.next(); null != record; record = reader.next()) {
+        String topic = record.getTopic();
+        while (!dispatcher.getLimiter().awaitRoom(topic, ROOM_WAIT_NANOS)) {
+          if (stopped) {
+            return false;
+          }
+        }
+        records.add(record);
+        futures.add(
+            dispatcher.publish(
+                topic, dispatcher.getPublisher(topic), record.getMessages(0), false));
+
+        // Probe with the first message, so that a topic still down doesn't churn the log
+        if (!probed) {
+          probed = true;
+          if (!settle(records, futures, true)) {
+            return false;
+          }
+        } else if (records.size() == CHUNK_SIZE) {
+          settle(records, futures, false);
+        }
+      }
+      settle(records, futures, false);
+      return true;
+    }
+  }
+
+  /**
+   * Waits for the acks of a chunk, appending back the messages that failed with a retryable
+   * error and dropping the others. A probe failing with a retryable error is left in its
+   * segment instead.
+   */
+  private boolean settle(
+      List<PublishRequest> records, List<ApiFuture<String>> futures, boolean probe)
+      throws IOException, InterruptedException {
+    boolean published = true;
+    for (int i = 0; i < futures.size(); i++) {
+      try {
+        futures.get(i).get();
+        replayed.increment();
+      } catch (ExecutionException e) {
+        PublishRequest record = records.get(i);
+        if (!MessageDispatcher.isRetryable(e.getCause())) {
+          log.recordDropped();
+          LOGGER.severe(
+              "Dropping spilled message for topic "
+                  + record.getTopic()
+                  + ": "
+                  + e.getCause().getMessage());
+        } else if (probe) {
+          published = false;
+          LOGGER.info("Spilled messages can't be published yet: " + e.getCause().getMessage());
+        } else {
+          dispatcher.spill(record.getTopic(), record.getMessages(0), e.getCause());
+        }
+      }
+    }
+    records.clear();
+    futures.clear();
+    return published;
+  }
+}
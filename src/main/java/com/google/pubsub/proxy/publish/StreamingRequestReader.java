@@ -0,0 +1,373 @@
+/* Copyright 2019 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+package com.google.pubsub.proxy.publish;
+
+import com.fasterxml.jackson.core.Base64Variants;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.UnsafeByteOperations;
+import com.google.protobuf.util.Timestamps;
+import com.google.pubsub.proxy.entities.Request;
+import com.google.pubsub.v1.PubsubMessage;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Type;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import javax.ws.rs.BadRequestException;
+import javax.ws.rs.Consumes;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.MultivaluedMap;
+import javax.ws.rs.core.Response.Status;
+import javax.ws.rs.ext.MessageBodyReader;
+import javax.ws.rs.ext.Provider;
+
+/**
+ * Reads publish requests with a streaming JSON parser instead of binding them to POJOs. Each
+ * element of "messages" is turned into a PubsubMessage only when the resource asks for it, so a
+ * batch is never held in memory as a JSON tree or as POJOs.
+ *
+ * <p>Messages can only be streamed once the topic is known. If "messages" comes before "topic" in
+ * the body, the messages are buffered as PubsubMessages instead. Messages may name their own
+ * "topic", overriding the topic of the request, which is then only required for the others.
+ */
+@Provider
+@Consumes(MediaType.APPLICATION_JSON)
+public class StreamingRequestReader implements MessageBodyReader<Request> {
+
+  private static final JsonFactory JSON_FACTORY = new JsonFactory();
+  // Message fields read as strings, anything else would desynchronize the parser
+  private static final Set<String> STRING_FIELDS =
+      new HashSet<>(Arrays.asList("data", "messageId", "publishTime", "topic", "orderingKey"));
+
+  /** Messages of a request, each published to the topic it names or to the request's topic */
+  interface MessageStream extends Iterator<PubsubMessage> {
+
+    /** Returns the topic named by the message last returned, or null for the request's topic */
+    String getTopic();
+  }
+
+  /** Messages held in memory along with the topics they name */
+  static class BufferedMessages implements MessageStream {
+
+    private final List<PubsubMessage> messages;
+    private final List<String> topics;
+    private final List<Integer> indexes;
+    private int index;
+
+    BufferedMessages(List<PubsubMessage> messages, List<String> topics) {
+      this.messages = messages;
+      this.topics = topics;
+      this.indexes = null;
+    }
+
+    /** Creates an empty list of messages, added along with their index within the request */
+    BufferedMessages(int capacity) {
+      this.messages = new ArrayList<>(capacity);
+      this.topics = new ArrayList<>(capacity);
+      this.indexes = new ArrayList<>(capacity);
+    }
+
+    /** Adds a message, once per topic when it is routed to several */
+    void add(PubsubMessage message, String topic, int requestIndex) {
+      messages.add(message);
+      topics.add(topic);
+      indexes.add(requestIndex);
+    }
+
+    @Override
+    public boolean hasNext() {
+      return index < messages.size();
+    }
+
+    @Override
+    public PubsubMessage next() {
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+      return messages.get(index++);
+    }
+
+    @Override
+    public String getTopic() {
+      return 0 == index ? null : topics.get(index - 1);
+    }
+
+    /** Returns whether any of the messages has an ordering key */
+    boolean isOrdered() {
+      for (PubsubMessage message : messages) {
+        if (OrderingKeySequencer.isOrdered(message)) {
+          return true;
+        }
+      }
+      return false;
+    }
+
+    /** Returns the index within the request of the message last read */
+    int getIndex() {
+      return null != indexes ? indexes.get(index - 1) : index - 1;
+    }
+  }
+
+  @Override
+  public boolean isReadable(
+      Class<?> type, Type genericType, Annotation[] annotations, MediaType mediaType) {
+    return Request.class == type;
+  }
+
+  @Override
+  public Request readFrom(
+      Class<Request> type,
+      Type genericType,
+      Annotation[] annotations,
+      MediaType mediaType,
+      MultivaluedMap<String, String> httpHeaders,
+      InputStream entityStream)
+      throws IOException {
+
+    JsonParser parser = JSON_FACTORY.createParser(entityStream);
+    if (parser.nextToken() != JsonToken.START_OBJECT) {
+      throw new BadRequestException("Request must be a JSON object");
+    }
+
+    boolean base64 =
+        PublishMessage.isBase64(
+            null != httpHeaders ? httpHeaders.getFirst(PublishMessage.DATA_ENCODING_HEADER) : null);
+
+    Request request = new Request();
+    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+      String field = parser.getCurrentName();
+      JsonToken token = parser.nextToken();
+      if ("topic".equals(field) && token == JsonToken.VALUE_STRING) {
+        request.setTopic(parser.getText());
+      } else if ("messages".equals(field) && token == JsonToken.START_ARRAY) {
+        if (null != request.getTopic()) {
+          // Remaining fields are consumed once the last message has been read
+          request.setMessageStream(new MessageIterator(parser, base64, true));
+          return request;
+        }
+        MessageIterator messages = new MessageIterator(parser, base64, false);
+        List<PubsubMessage> buffered = new ArrayList<>();
+        List<String> topics = new ArrayList<>();
+        long bytes = 0;
+        while (messages.hasNext()) {
+          PubsubMessage message = messages.next();
+          bytes += message.getSerializedSize();
+          if (bytes > MessageValidator.MAX_REQUEST_BYTES) {
+            throw new WebApplicationException(
+                "Request is larger than " + MessageValidator.MAX_REQUEST_BYTES + " bytes",
+                Status.REQUEST_ENTITY_TOO_LARGE);
+          }
+          buffered.add(message);
+          topics.add(messages.getTopic());
+        }
+        request.setMessageStream(new BufferedMessages(buffered, topics));
+      } else {
+        parser.skipChildren();
+      }
+    }
+    parser.close();
+    return request;
+  }
+
+  /** Parses the elements of the "messages" array one at a time */
+  static class MessageIterator implements MessageStream {
+
+    private final JsonParser parser;
+    private final boolean base64;
+    private final boolean closeAtEnd;
+    private final CharsetEncoder encoder =
+        StandardCharsets.UTF_8
+            .newEncoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    private PubsubMessage next;
+    private String nextTopic;
+    private String topic;
+    private boolean done;
+
+    MessageIterator(JsonParser parser, boolean base64, boolean closeAtEnd) {
+      this.parser = parser;
+      this.base64 = base64;
+      this.closeAtEnd = closeAtEnd;
+    }
+
+    @Override
+    public boolean hasNext() {
+      if (null != next) {
+        return true;
+      }
+      if (done) {
+        return false;
+      }
+      try {
+        JsonToken token = parser.nextToken();
+        if (token == JsonToken.START_OBJECT) {
+          next = parseMessage();
+          return true;
+        }
+        if (token != JsonToken.END_ARRAY) {
+          throw new BadRequestException("Messages must be JSON objects");
+        }
+        done = true;
+        if (closeAtEnd) {
+          skipRemainingFields();
+        }
+        return false;
+      } catch (IOException e) {
+        throw new BadRequestException("Malformed request: " + e.getMessage(), e);
+      }
+    }
+
+    @Override
+    public PubsubMessage next() {
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+      PubsubMessage message = next;
+      topic = nextTopic;
+      next = null;
+      return message;
+    }
+
+    @Override
+    public String getTopic() {
+      return topic;
+    }
+
+    private PubsubMessage parseMessage() throws IOException {
+      PubsubMessage.Builder builder = PubsubMessage.newBuilder();
+      nextTopic = null;
+      while (parser.nextToken() == JsonToken.FIELD_NAME) {
+        String field = parser.getCurrentName();
+        JsonToken token = parser.nextToken();
+        if (token == JsonToken.VALUE_NULL) {
+          continue;
+        }
+        if (STRING_FIELDS.contains(field) && token != JsonToken.VALUE_STRING) {
+          throw new BadRequestException("Message field " + field + " must be a string");
+        }
+        switch (field) {
+          case "data":
+            builder.setData(base64 ? readBase64() : readUtf8());
+            break;
+          case "messageId":
+            builder.setMessageId(parser.getText());
+            break;
+          case "publishTime":
+            try {
+              builder.setPublishTime(Timestamps.parse(parser.getText()));
+            } catch (ParseException e) {
+              throw new BadRequestException("Invalid publishTime: " + parser.getText(), e);
+            }
+            break;
+          case "attributes":
+            readAttributes(builder);
+            break;
+          case "topic":
+            nextTopic = parser.getText();
+            break;
+          case "orderingKey":
+            if (!parser.getText().isEmpty()) {
+              builder.putAttributes(OrderingKeySequencer.ATTRIBUTE, parser.getText());
+            }
+            break;
+          default:
+            parser.skipChildren();
+        }
+      }
+      return builder.build();
+    }
+
+    private void readAttributes(PubsubMessage.Builder builder) throws IOException {
+      if (parser.getCurrentToken() != JsonToken.START_OBJECT) {
+        throw new BadRequestException("Attributes must be a JSON object");
+      }
+      while (parser.nextToken() == JsonToken.FIELD_NAME) {
+        String key = parser.getCurrentName();
+        if (parser.nextToken() != JsonToken.VALUE_STRING) {
+          throw new BadRequestException("Attribute values must be strings: " + key);
+        }
+        builder.putAttributes(key, parser.getText());
+      }
+    }
+
+    /** Decodes the current base64 string straight from the parser's buffer */
+    private ByteString readBase64() throws IOException {
+      // The decoded array belongs to this message only, so it is safe to wrap without copying
+      byte[] bytes = parser.getBinaryValue(Base64Variants.MIME_NO_LINEFEEDS);
+      return UnsafeByteOperations.unsafeWrap(bytes);
+    }
+
+    /** Encodes the current string straight from the parser's buffer, without a String copy */
+    private ByteString readUtf8() throws IOException {
+      char[] chars = parser.getTextCharacters();
+      int offset = parser.getTextOffset();
+      int length = parser.getTextLength();
+      byte[] bytes = new byte[utf8Length(chars, offset, length)];
+      encoder.reset();
+      encoder.encode(CharBuffer.wrap(chars, offset, length), ByteBuffer.wrap(bytes), true);
+      // The array is never handed out elsewhere, so it is safe to wrap without copying
+      return UnsafeByteOperations.unsafeWrap(bytes);
+    }
+
+    private void skipRemainingFields() throws IOException {
+      while (parser.nextToken() == JsonToken.FIELD_NAME) {
+        parser.nextToken();
+        parser.skipChildren();
+      }
+      parser.close();
+    }
+  }
+
+  /** Returns the UTF-8 length of chars, counting unpaired surrogates as replaced by '?' */
+  static int utf8Length(char[] chars, int offset, int length) {
+    int bytes = 0;
+    int end = offset + length;
+    for (int i = offset; i < end; i++) {
+      char c = chars[i];
+      if (c < 0x80) {
+        bytes += 1;
+      } else if (c < 0x800) {
+        bytes += 2;
+      } else if (Character.isHighSurrogate(c)
+          && i + 1 < end
+          && Character.isLowSurrogate(chars[i + 1])) {
+        bytes += 4;
+        i++;
+      } else if (Character.isSurrogate(c)) {
+        bytes += 1;
+      } else {
+        bytes += 3;
+      }
+    }
+    return bytes;
+  }
+}
@@ -0,0 +1,165 @@
+/* Copyright 2019 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+package com.google.pubsub.proxy.publish;
+
+import com.google.api.gax.batching.BatchingSettings;
+import com.google.api.gax.batching.FlowControlSettings;
+import com.google.api.gax.batching.FlowController.LimitExceededBehavior;
+import com.google.api.gax.core.ExecutorProvider;
+import com.google.api.gax.core.FixedExecutorProvider;
+import com.google.api.gax.core.NoCredentialsProvider;
+import com.google.api.gax.grpc.GrpcTransportChannel;
+import com.google.api.gax.rpc.FixedTransportChannelProvider;
+import com.google.api.gax.rpc.TransportChannel;
+import com.google.api.gax.rpc.TransportChannelProvider;
+import com.google.cloud.pubsub.v1.Publisher;
+import com.google.cloud.pubsub.v1.TopicAdminSettings;
+import com.google.pubsub.proxy.config.ProxyConfig;
+import com.google.pubsub.v1.ProjectTopicName;
+import io.grpc.ManagedChannelBuilder;
+import java.io.IOException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.logging.Logger;
+import org.threeten.bp.Duration;
+
+/**
+ * Builds publishers with per-topic batching and flow control settings. All publishers share one
+ * executor and one gRPC channel pool, so threads and connections don't grow with the number of
+ * topics. Publishers target the Pub/Sub emulator, or any local fake, when its host is configured.
+ */
+class TopicPublisherFactory implements PublisherCache.PublisherFactory {
+
+  private static final Logger LOGGER = Logger.getLogger(TopicPublisherFactory.class.getName());
+
+  static final String ELEMENT_COUNT_THRESHOLD = "batching.elementCountThreshold";
+  static final String REQUEST_BYTE_THRESHOLD = "batching.requestByteThreshold";
+  static final String DELAY_THRESHOLD_MILLIS = "batching.delayThresholdMillis";
+  static final String MAX_OUTSTANDING_ELEMENT_COUNT = "flowControl.maxOutstandingElementCount";
+  static final String MAX_OUTSTANDING_REQUEST_BYTES = "flowControl.maxOutstandingRequestBytes";
+  static final String EXECUTOR_THREADS = "publisher.executorThreads";
+  static final String CHANNEL_POOL_SIZE = "publisher.channelPoolSize";
+  static final String EMULATOR_HOST = "pubsub.emulatorHost";
+
+  // Client library defaults, used when nothing is configured
+  private static final long DEFAULT_ELEMENT_COUNT_THRESHOLD = 100L;
+  private static final long DEFAULT_REQUEST_BYTE_THRESHOLD = 1000L;
+  private static final long DEFAULT_DELAY_THRESHOLD_MILLIS = 1L;
+
+  private final String projectId;
+  private final ProxyConfig config;
+  private ScheduledExecutorService executor;
+  private TransportChannel channel;
+
+  TopicPublisherFactory(String projectId, ProxyConfig config) {
+    this.projectId = projectId;
+    this.config = config;
+  }
+
+  @Override
+  public Publisher create(String topic) throws IOException {
+    Publisher.Builder builder =
+        Publisher.newBuilder(ProjectTopicName.of(projectId, topic))
+            .setBatchingSettings(batchingSettings(topic))
+            .setExecutorProvider(executorProvider())
+            .setChannelProvider(channelProvider());
+    if (null != config.get(EMULATOR_HOST)) {
+      builder.setCredentialsProvider(NoCredentialsProvider.create());
+    }
+    return builder.build();
+  }
+
+  /** Resolves batching and flow control settings for a topic */
+  BatchingSettings batchingSettings(String topic) {
+
+    FlowControlSettings.Builder flowControl =
+        FlowControlSettings.newBuilder().setLimitExceededBehavior(LimitExceededBehavior.Ignore);
+    String maxElements = config.get(topic, MAX_OUTSTANDING_ELEMENT_COUNT);
+    String maxBytes = config.get(topic, MAX_OUTSTANDING_REQUEST_BYTES);
+    if (null != maxElements || null != maxBytes) {
+      flowControl.setLimitExceededBehavior(LimitExceededBehavior.ThrowException);
+      flowControl.setMaxOutstandingElementCount(
+          null != maxElements ? Long.valueOf(maxElements.trim()) : null);
+      flowControl.setMaxOutstandingRequestBytes(
+          null != maxBytes ? Long.valueOf(maxBytes.trim()) : null);
+    }
+
+    return BatchingSettings.newBuilder()
+        .setElementCountThreshold(
+            config.getLong(topic, ELEMENT_COUNT_THRESHOLD, DEFAULT_ELEMENT_COUNT_THRESHOLD))
+        .setRequestByteThreshold(
+            config.getLong(topic, REQUEST_BYTE_THRESHOLD, DEFAULT_REQUEST_BYTE_THRESHOLD))
+        .setDelayThreshold(
+            Duration.ofMillis(
+                config.getLong(topic, DELAY_THRESHOLD_MILLIS, DEFAULT_DELAY_THRESHOLD_MILLIS)))
+        .setFlowControlSettings(flowControl.build())
+        .build();
+  }
+
+  /** Returns the executor shared by all publishers, created on first use */
+  private synchronized ExecutorProvider executorProvider() {
+    if (null == executor) {
+      int threads =
+          config.getInt(EXECUTOR_THREADS, Runtime.getRuntime().availableProcessors() * 5);
+      ScheduledThreadPoolExecutor pool =
+          new ScheduledThreadPoolExecutor(
+              threads,
+              runnable -> {
+                Thread thread = new Thread(runnable, "publisher-executor");
+                thread.setDaemon(true);
+                return thread;
+              });
+      pool.setRemoveOnCancelPolicy(true);
+      executor = pool;
+    }
+    return FixedExecutorProvider.create(executor);
+  }
+
+  /** Returns the gRPC channel pool shared by all publishers, created on first use */
+  private synchronized TransportChannelProvider channelProvider() throws IOException {
+    String emulatorHost = config.get(EMULATOR_HOST);
+    if (null == channel && null != emulatorHost) {
+      LOGGER.info("Publishing to the emulator at " + emulatorHost);
+      channel =
+          GrpcTransportChannel.create(
+              ManagedChannelBuilder.forTarget(emulatorHost).usePlaintext().build());
+    }
+    if (null == channel) {
+      int poolSize = config.getInt(CHANNEL_POOL_SIZE, Runtime.getRuntime().availableProcessors());
+      LOGGER.info("Creating shared publisher channel pool of size " + poolSize);
+      channel =
+          TopicAdminSettings.defaultGrpcTransportProviderBuilder()
+              .setEndpoint(TopicAdminSettings.getDefaultEndpoint())
+              .setHeaderProvider(TopicAdminSettings.defaultApiClientHeaderProviderBuilder().build())
+              .setExecutorProvider(executorProvider())
+              .setPoolSize(poolSize)
+              .build()
+              .getTransportChannel();
+    }
+    return FixedTransportChannelProvider.create(channel);
+  }
+
+  /** Releases the shared channel and executor, once every publisher is shut down */
+  synchronized void shutdown() {
+    if (null != channel) {
+      channel.shutdown();
+      channel = null;
+    }
+    if (null != executor) {
+      executor.shutdown();
+      executor = null;
+    }
+  }
+}
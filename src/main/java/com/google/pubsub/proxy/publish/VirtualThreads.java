@@ -0,0 +1,79 @@
+/* Copyright 2019 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+package com.google.pubsub.proxy.publish;
+
+import com.google.pubsub.proxy.config.ProxyConfig;
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Virtual threads of JDK 21 and later, looked up reflectively as the proxy is built for Java 8.
+ * Enabled through "server.virtualThreads", and ignored on JDKs without them.
+ */
+public final class VirtualThreads {
+
+  public static final String ENABLED = "server.virtualThreads";
+
+  // Thread.isVirtual(), null on JDKs without virtual threads
+  private static final Method IS_VIRTUAL = lookupIsVirtual();
+
+  private VirtualThreads() {}
+
+  private static Method lookupIsVirtual() {
+    try {
+      return Thread.class.getMethod("isVirtual");
+    } catch (NoSuchMethodException e) {
+      return null;
+    }
+  }
+
+  /** Returns whether virtual threads are enabled and the JDK supports them */
+  public static boolean isEnabled(ProxyConfig config) {
+    return config.getBoolean(ENABLED, false) && null != IS_VIRTUAL;
+  }
+
+  /** Returns whether a thread is a virtual thread */
+  static boolean isVirtual(Thread thread) {
+    try {
+      return null != IS_VIRTUAL && (Boolean) IS_VIRTUAL.invoke(thread);
+    } catch (ReflectiveOperationException e) {
+      return false;
+    }
+  }
+
+  /**
+   * Returns an executor starting a virtual thread per task, or null if the JDK has no virtual
+   * threads, or they are a preview feature that is not enabled
+   *
+   * @param name - prefix of the thread names, followed by a sequence number
+   */
+  public static ExecutorService newExecutor(String name) {
+    try {
+      Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+      Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+      builder =
+          builderClass.getMethod("name", String.class, long.class).invoke(builder, name + "-", 0L);
+      ThreadFactory factory = (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+      return (ExecutorService)
+          Executors.class
+              .getMethod("newThreadPerTaskExecutor", ThreadFactory.class)
+              .invoke(null, factory);
+    } catch (ReflectiveOperationException e) {
+      return null;
+    }
+  }
+}
@@ -0,0 +1,374 @@
+/* Copyright 2019 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+
+package com.google.pubsub.proxy.schema;
+
+import com.google.common.base.Utf8;
+import com.google.protobuf.ByteString;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Validates data in the Avro binary encoding, a single datum without container file framing,
+ * against an Avro schema. The schema is compiled into a tree of types that walk the encoded
+ * bytes without decoding them into objects, and the data must be consumed exactly.
+ */
+final class AvroSchema implements SchemaValidator {
+
+  /** Thrown where data does not match the schema, without a stack trace as it is expected */
+  private static final class InvalidDataException extends Exception {
+    private static final long serialVersionUID = 1L;
+
+    InvalidDataException(String message) {
+      super(message, null, false, false);
+    }
+  }
+
+  /** Compiled schema of one value, skipping over its encoding */
+  private abstract static class Type {
+    abstract void skip(ByteBuffer data) throws InvalidDataException;
+
+    /** Returns whether values are always encoded as no bytes at all */
+    boolean isEmpty() {
+      return false;
+    }
+  }
+
+  private static final class Primitive extends Type {
+    private final String name;
+
+    Primitive(String name) {
+      this.name = name;
+    }
+
+    @Override
+    void skip(ByteBuffer data) throws InvalidDataException {
+      switch (name) {
+        case "null":
+          return;
+        case "boolean":
+          int value = take(data, 1).get() & 0xff;
+          if (value > 1) {
+            throw new InvalidDataException("Invalid boolean " + value);
+          }
+          return;
+        case "int":
+          readInt(data);
+          return;
+        case "long":
+          readLong(data);
+          return;
+        case "float":
+          take(data, 4);
+          return;
+        case "double":
+          take(data, 8);
+          return;
+        case "bytes":
+          take(data, readLength(data));
+          return;
+        default:
+          ByteBuffer string = take(data, readLength(data));
+          if (!isUtf8(string)) {
+            throw new InvalidDataException("Invalid UTF-8 string");
+          }
+      }
+    }
+
+    @Override
+    boolean isEmpty() {
+      return "null".equals(name);
+    }
+  }
+
+  private static final class Record extends Type {
+    private final List<Type> fields = new ArrayList<>();
+
+    @Override
+    void skip(ByteBuffer data) throws InvalidDataException {
+      for (Type field : fields) {
+        field.skip(data);
+      }
+    }
+
+    @Override
+    boolean isEmpty() {
+      for (Type field : fields) {
+        if (!field.isEmpty()) {
+          return false;
+        }
+      }
+      return true;
+    }
+  }
+
+  private static final class EnumType extends Type {
+    private final int symbols;
+
+    EnumType(int symbols) {
+      this.symbols = symbols;
+    }
+
+    @Override
+    void skip(ByteBuffer data) throws InvalidDataException {
+      int index = readInt(data);
+      if (index < 0 || index >= symbols) {
+        throw new InvalidDataException("Enum index " + index + " is out of range");
+      }
+    }
+  }
+
+  /**
+   * Array, or map with string keys, encoded as blocks of items ending with an empty block. Items
+   * that take no bytes are not walked, as their count would be unbounded by the data.
+   */
+  private static final class Blocks extends Type {
+    private final Type key;
+    private final Type value;
+
+    Blocks(Type key, Type value) {
+      this.key = key;
+      this.value = value;
+    }
+
+    @Override
+    void skip(ByteBuffer data) throws InvalidDataException {
+      long count;
+      while (0 != (count = readLong(data))) {
+        if (count < 0) {
+          // Negative counts are followed by the size of the block in bytes
+          count = -count;
+          readLong(data);
+        }
+        if (null == key && value.isEmpty()) {
+          continue;
+        }
+        for (long i = 0; i < count; i++) {
+          if (null != key) {
+            key.skip(data);
+          }
+          value.skip(data);
+        }
+      }
+    }
+  }
+
+  private static final class Union extends Type {
+    private final List<Type> branches;
+
+    Union(List<Type> branches) {
+      this.branches = branches;
+    }
+
+    @Override
+    void skip(ByteBuffer data) throws InvalidDataException {
+      int index = readInt(data);
+      if (index < 0 || index >= branches.size()) {
+        throw new InvalidDataException("Union index " + index + " is out of range");
+      }
+      branches.get(index).skip(data);
+    }
+  }
+
+  private static final class Fixed extends Type {
+    private final int size;
+
+    Fixed(int size) {
+      this.size = size;
+    }
+
+    @Override
+    void skip(ByteBuffer data) throws InvalidDataException {
+      take(data, size);
+    }
+
+    @Override
+    boolean isEmpty() {
+      return 0 == size;
+    }
+  }
+
+  private final Type root;
+
+  private AvroSchema(Type root) {
+    this.root = root;
+  }
+
+  /** Compiles an Avro schema document */
+  static AvroSchema compile(String schema) throws IOException {
+    Map<String, Type> names = new HashMap<>();
+    Type root = compileType(JsonValues.parse(schema), "", names);
+    return new AvroSchema(root);
+  }
+
+  @SuppressWarnings("unchecked")
+  private static Type compileType(Object schema, String namespace, Map<String, Type> names) {
+    if (schema instanceof List) {
+      List<Type> branches = new ArrayList<>();
+      for (Object branch : (List<Object>) schema) {
+        branches.add(compileType(branch, namespace, names));
+      }
+      return new Union(branches);
+    }
+    if (schema instanceof String) {
+      String name = (String) schema;
+      switch (name) {
+        case "null":
+        case "boolean":
+        case "int":
+        case "long":
+        case "float":
+        case "double":
+        case "bytes":
+        case "string":
+          return new Primitive(name);
+        default:
+          // Named types are defined before use, records before their fields for recursion
+          Type named = names.get(fullName(name, namespace));
+          if (null == named) {
+            named = names.get(name);
+          }
+          if (null == named) {
+            throw new IllegalArgumentException("Unknown Avro type " + name);
+          }
+          return named;
+      }
+    }
+    if (!(schema instanceof Map)) {
+      throw new IllegalArgumentException("Invalid Avro schema " + schema);
+    }
+    Map<String, Object> definition = (Map<String, Object>) schema;
+    Object type = definition.get("type");
+    if (!(type instanceof String)) {
+      // A type given as a nested schema, e.g. {"type": {"type": "array", ...}}
+      return compileType(type, namespace, names);
+    }
+    switch ((String) type) {
+      case "record":
+      case "error":
+        Record record = new Record();
+        String recordName = define(definition, namespace, names, record);
+        String recordNamespace = recordName.substring(0, Math.max(0, recordName.lastIndexOf('.')));
+        for (Object field : (List<Object>) definition.get("fields")) {
+          Object fieldType = ((Map<String, Object>) field).get("type");
+          record.fields.add(compileType(fieldType, recordNamespace, names));
+        }
+        return record;
+      case "enum":
+        List<Object> symbols = (List<Object>) definition.get("symbols");
+        EnumType enumType = new EnumType(symbols.size());
+        define(definition, namespace, names, enumType);
+        return enumType;
+      case "array":
+        return new Blocks(null, compileType(definition.get("items"), namespace, names));
+      case "map":
+        return new Blocks(
+            new Primitive("string"), compileType(definition.get("values"), namespace, names));
+      case "fixed":
+        Fixed fixed = new Fixed(((Number) definition.get("size")).intValue());
+        define(definition, namespace, names, fixed);
+        return fixed;
+      default:
+        // Primitive types, possibly with a logical type that doesn't change the encoding
+        return compileType(type, namespace, names);
+    }
+  }
+
+  /** Registers a named type, returning its full name */
+  private static String define(
+      Map<String, Object> definition, String namespace, Map<String, Type> names, Type type) {
+    Object name = definition.get("name");
+    if (!(name instanceof String)) {
+      throw new IllegalArgumentException("Avro named type without a name: " + definition);
+    }
+    Object ownNamespace = definition.get("namespace");
+    String fullName =
+        fullName((String) name, ownNamespace instanceof String ? (String) ownNamespace : namespace);
+    if (null != names.put(fullName, type)) {
+      throw new IllegalArgumentException("Avro type " + fullName + " is defined twice");
+    }
+    return fullName;
+  }
+
+  private static String fullName(String name, String namespace) {
+    return name.indexOf('.') >= 0 || namespace.isEmpty() ? name : namespace + "." + name;
+  }
+
+  @Override
+  public String validate(ByteString data) {
+    // A heap copy, so that strings can be checked in place
+    ByteBuffer buffer = ByteBuffer.wrap(data.toByteArray());
+    try {
+      root.skip(buffer);
+    } catch (InvalidDataException e) {
+      return "Data does not match the Avro schema: " + e.getMessage();
+    }
+    if (buffer.hasRemaining()) {
+      return "Data has " + buffer.remaining() + " bytes after the Avro value";
+    }
+    return null;
+  }
+
+  private static ByteBuffer take(ByteBuffer data, long length) throws InvalidDataException {
+    if (length < 0 || length > data.remaining()) {
+      throw new InvalidDataException("Data ends within a value");
+    }
+    ByteBuffer slice = data.slice();
+    slice.limit((int) length);
+    data.position(data.position() + (int) length);
+    return slice;
+  }
+
+  private static int readInt(ByteBuffer data) throws InvalidDataException {
+    long value = readLong(data);
+    if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE) {
+      throw new InvalidDataException("Int " + value + " is out of range");
+    }
+    return (int) value;
+  }
+
+  /** Reads a zigzag encoded variable length long */
+  private static long readLong(ByteBuffer data) throws InvalidDataException {
+    long raw = 0;
+    for (int shift = 0; shift < 64; shift += 7) {
+      if (!data.hasRemaining()) {
+        throw new InvalidDataException("Data ends within a number");
+      }
+      int b = data.get() & 0xff;
+      raw |= (long) (b & 0x7f) << shift;
+      if (0 == (b & 0x80)) {
+        return (raw >>> 1) ^ -(raw & 1);
+      }
+    }
+    throw new InvalidDataException("Number is longer than 10 bytes");
+  }
+
+  private static long readLength(ByteBuffer data) throws InvalidDataException {
+    long length = readLong(data);
+    if (length < 0) {
+      throw new InvalidDataException("Negative length " + length);
+    }
+    return length;
+  }
+
+  private static boolean isUtf8(ByteBuffer string) {
+    int offset = string.arrayOffset() + string.position();
+    return Utf8.isWellFormed(string.array(), offset, string.remaining());
+  }
+}
@@ -0,0 +1,323 @@
+/* Copyright 2019 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+
+package com.google.pubsub.proxy.schema;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.google.protobuf.ByteString;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * Validates JSON data against a JSON Schema, compiled into a tree of nodes that check the data
+ * as it is parsed, without building it in memory. Supports type, properties, required,
+ * additionalProperties, items, enum, const, minimum, maximum, exclusiveMinimum,
+ * exclusiveMaximum, minLength, maxLength, pattern, minItems and maxItems. Other validation
+ * keywords are refused when the schema is compiled, rather than silently not enforced.
+ */
+final class JsonSchema implements SchemaValidator {
+
+  // Duplicate names are refused, as they would make the data ambiguous and count twice as required
+  private static final JsonFactory JSON_FACTORY =
+      new JsonFactory().enable(JsonParser.Feature.STRICT_DUPLICATE_DETECTION);
+
+  // Keywords that don't constrain the data
+  private static final Set<String> ANNOTATIONS =
+      new HashSet<>(
+          Arrays.asList(
+              "$schema", "$id", "id", "$comment", "title", "description", "default", "examples",
+              "format", "definitions", "$defs"));
+
+  /** Compiled schema of one value */
+  private static final class Node {
+    private Set<String> types;
+    private Map<String, Node> properties = Collections.emptyMap();
+    private Set<String> required = Collections.emptySet();
+    private boolean additionalProperties = true;
+    private Node items;
+    private List<Object> values;
+    private BigDecimal minimum;
+    private BigDecimal maximum;
+    private boolean exclusiveMinimum;
+    private boolean exclusiveMaximum;
+    private int minLength;
+    private int maxLength = Integer.MAX_VALUE;
+    private Pattern pattern;
+    private int minItems;
+    private int maxItems = Integer.MAX_VALUE;
+  }
+
+  private final Node root;
+
+  private JsonSchema(Node root) {
+    this.root = root;
+  }
+
+  /** Compiles a JSON Schema document */
+  static JsonSchema compile(String schema) throws IOException {
+    return new JsonSchema(compileNode(JsonValues.parse(schema), "$"));
+  }
+
+  @SuppressWarnings("unchecked")
+  private static Node compileNode(Object schema, String path) {
+    Node node = new Node();
+    if (Boolean.TRUE.equals(schema)) {
+      return node;
+    }
+    if (!(schema instanceof Map)) {
+      throw new IllegalArgumentException(path + ": schema must be an object");
+    }
+    for (Map.Entry<String, Object> keyword : ((Map<String, Object>) schema).entrySet()) {
+      Object value = keyword.getValue();
+      switch (keyword.getKey()) {
+        case "type":
+          node.types =
+              value instanceof List
+                  ? new LinkedHashSet<>((List<String>) value)
+                  : Collections.singleton((String) value);
+          break;
+        case "properties":
+          node.properties = new HashMap<>();
+          for (Map.Entry<String, Object> property : ((Map<String, Object>) value).entrySet()) {
+            node.properties.put(
+                property.getKey(),
+                compileNode(property.getValue(), path + "." + property.getKey()));
+          }
+          break;
+        case "required":
+          node.required = new LinkedHashSet<>((List<String>) value);
+          break;
+        case "additionalProperties":
+          if (!(value instanceof Boolean)) {
+            throw new IllegalArgumentException(path + ": additionalProperties must be a boolean");
+          }
+          node.additionalProperties = (Boolean) value;
+          break;
+        case "items":
+          node.items = compileNode(value, path + "[]");
+          break;
+        case "enum":
+          node.values = (List<Object>) value;
+          break;
+        case "const":
+          node.values = Collections.singletonList(value);
+          break;
+        case "minimum":
+          node.minimum = (BigDecimal) value;
+          break;
+        case "maximum":
+          node.maximum = (BigDecimal) value;
+          break;
+        case "exclusiveMinimum":
+          node.minimum = (BigDecimal) value;
+          node.exclusiveMinimum = true;
+          break;
+        case "exclusiveMaximum":
+          node.maximum = (BigDecimal) value;
+          node.exclusiveMaximum = true;
+          break;
+        case "minLength":
+          node.minLength = ((BigDecimal) value).intValueExact();
+          break;
+        case "maxLength":
+          node.maxLength = ((BigDecimal) value).intValueExact();
+          break;
+        case "pattern":
+          node.pattern = Pattern.compile((String) value);
+          break;
+        case "minItems":
+          node.minItems = ((BigDecimal) value).intValueExact();
+          break;
+        case "maxItems":
+          node.maxItems = ((BigDecimal) value).intValueExact();
+          break;
+        default:
+          if (!ANNOTATIONS.contains(keyword.getKey())) {
+            throw new IllegalArgumentException(
+                path + ": unsupported JSON Schema keyword " + keyword.getKey());
+          }
+      }
+    }
+    return node;
+  }
+
+  @Override
+  public String validate(ByteString data) {
+    try (JsonParser parser = JSON_FACTORY.createParser(data.newInput())) {
+      if (null == parser.nextToken()) {
+        return "Data is not JSON";
+      }
+      String error = validate(root, parser, "$");
+      if (null == error && null != parser.nextToken()) {
+        return "Data has content after the JSON value";
+      }
+      return error;
+    } catch (JsonParseException e) {
+      return "Data is not valid JSON: " + e.getOriginalMessage();
+    } catch (IOException e) {
+      return "Data cannot be read: " + e.getMessage();
+    }
+  }
+
+  /** Checks the value at the current token, consuming it, and returns the first violation */
+  private static String validate(Node node, JsonParser parser, String path) throws IOException {
+    JsonToken token = parser.getCurrentToken();
+    if (null != node.types && !hasType(node.types, token, parser)) {
+      return path + ": expected " + String.join(" or ", node.types) + ", got " + typeOf(token);
+    }
+    switch (token) {
+      case START_OBJECT:
+        return validateObject(node, parser, path);
+      case START_ARRAY:
+        return validateArray(node, parser, path);
+      case VALUE_STRING:
+        String text = parser.getText();
+        int length = text.codePointCount(0, text.length());
+        if (length < node.minLength || length > node.maxLength) {
+          return path + ": length " + length + " is out of bounds";
+        }
+        if (null != node.pattern && !node.pattern.matcher(text).find()) {
+          return path + ": does not match " + node.pattern.pattern();
+        }
+        return checkValues(node, text, path);
+      case VALUE_NUMBER_INT:
+      case VALUE_NUMBER_FLOAT:
+        BigDecimal number = parser.getDecimalValue();
+        if (null != node.minimum) {
+          int compared = number.compareTo(node.minimum);
+          if (compared < 0 || (node.exclusiveMinimum && 0 == compared)) {
+            return path + ": " + number + " is below the minimum " + node.minimum;
+          }
+        }
+        if (null != node.maximum) {
+          int compared = number.compareTo(node.maximum);
+          if (compared > 0 || (node.exclusiveMaximum && 0 == compared)) {
+            return path + ": " + number + " is above the maximum " + node.maximum;
+          }
+        }
+        return checkValues(node, number.stripTrailingZeros(), path);
+      case VALUE_TRUE:
+        return checkValues(node, Boolean.TRUE, path);
+      case VALUE_FALSE:
+        return checkValues(node, Boolean.FALSE, path);
+      default:
+        return checkValues(node, null, path);
+    }
+  }
+
+  private static String validateObject(Node node, JsonParser parser, String path)
+      throws IOException {
+    int found = 0;
+    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+      String name = parser.getCurrentName();
+      parser.nextToken();
+      Node property = node.properties.get(name);
+      if (null != property) {
+        String error = validate(property, parser, path + "." + name);
+        if (null != error) {
+          return error;
+        }
+      } else if (!node.additionalProperties) {
+        return path + ": unexpected property " + name;
+      } else {
+        parser.skipChildren();
+      }
+      if (node.required.contains(name)) {
+        found++;
+      }
+    }
+    if (found < node.required.size()) {
+      return path + ": missing one of the required properties " + node.required;
+    }
+    return null == node.values ? null : path + ": objects cannot match enum or const";
+  }
+
+  private static String validateArray(Node node, JsonParser parser, String path)
+      throws IOException {
+    int count = 0;
+    while (parser.nextToken() != JsonToken.END_ARRAY) {
+      if (null != node.items) {
+        String error = validate(node.items, parser, path + "[" + count + "]");
+        if (null != error) {
+          return error;
+        }
+      } else {
+        parser.skipChildren();
+      }
+      count++;
+    }
+    if (count < node.minItems || count > node.maxItems) {
+      return path + ": " + count + " items is out of bounds";
+    }
+    return null == node.values ? null : path + ": arrays cannot match enum or const";
+  }
+
+  private static String checkValues(Node node, Object value, String path) {
+    if (null == node.values || node.values.contains(value)) {
+      return null;
+    }
+    return path + ": " + value + " is not one of " + node.values;
+  }
+
+  private static boolean hasType(Set<String> types, JsonToken token, JsonParser parser)
+      throws IOException {
+    String type = typeOf(token);
+    if (types.contains(type)) {
+      return true;
+    }
+    switch (token) {
+      case VALUE_NUMBER_INT:
+        return types.contains("number");
+      case VALUE_NUMBER_FLOAT:
+        // Numbers with a zero fraction, such as 1.0, are integers
+        return types.contains("integer")
+            && parser.getDecimalValue().stripTrailingZeros().scale() <= 0;
+      default:
+        return false;
+    }
+  }
+
+  private static String typeOf(JsonToken token) {
+    switch (token) {
+      case START_OBJECT:
+        return "object";
+      case START_ARRAY:
+        return "array";
+      case VALUE_STRING:
+        return "string";
+      case VALUE_NUMBER_INT:
+        return "integer";
+      case VALUE_NUMBER_FLOAT:
+        return "number";
+      case VALUE_TRUE:
+      case VALUE_FALSE:
+        return "boolean";
+      default:
+        return "null";
+    }
+  }
+}
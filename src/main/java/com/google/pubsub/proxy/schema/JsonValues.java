@@ -0,0 +1,80 @@
+/* Copyright 2019 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+
+package com.google.pubsub.proxy.schema;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reads schema documents into maps, lists, strings, numbers, booleans and nulls, with the
+ * streaming parser used for requests. Schemas are only read when they are compiled.
+ */
+final class JsonValues {
+
+  private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+  private JsonValues() {}
+
+  /** Parses a whole JSON document */
+  static Object parse(String json) throws IOException {
+    try (JsonParser parser = JSON_FACTORY.createParser(json)) {
+      if (null == parser.nextToken()) {
+        throw new IOException("Empty schema");
+      }
+      return read(parser);
+    }
+  }
+
+  /** Reads the value at the current token of a parser, numbers as BigDecimal */
+  static Object read(JsonParser parser) throws IOException {
+    JsonToken token = parser.getCurrentToken();
+    switch (token) {
+      case START_OBJECT:
+        Map<String, Object> object = new LinkedHashMap<>();
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+          String name = parser.getCurrentName();
+          parser.nextToken();
+          object.put(name, read(parser));
+        }
+        return object;
+      case START_ARRAY:
+        List<Object> array = new ArrayList<>();
+        while (parser.nextToken() != JsonToken.END_ARRAY) {
+          array.add(read(parser));
+        }
+        return array;
+      case VALUE_STRING:
+        return parser.getText();
+      case VALUE_NUMBER_INT:
+      case VALUE_NUMBER_FLOAT:
+        return parser.getDecimalValue().stripTrailingZeros();
+      case VALUE_TRUE:
+        return Boolean.TRUE;
+      case VALUE_FALSE:
+        return Boolean.FALSE;
+      case VALUE_NULL:
+        return null;
+      default:
+        throw new IOException("Unexpected " + token);
+    }
+  }
+}
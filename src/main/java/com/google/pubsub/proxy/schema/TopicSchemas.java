@@ -0,0 +1,186 @@
+/* Copyright 2019 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+
+package com.google.pubsub.proxy.schema;
+
+import com.google.protobuf.ByteString;
+import com.google.pubsub.proxy.config.ProxyConfig;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Predicate;
+import java.util.logging.Logger;
+
+/**
+ * Schemas that the data of the messages of each topic must conform to, set with "schema.type"
+ * (json or avro) and "schema.file" for a topic or a prefix of topics. Schemas are compiled once
+ * per file and revision, and shared by the topics that use them, so that messages are checked
+ * inline without parsing any schema.
+ *
+ * <p>The files are checked for changes at most every "schema.checkIntervalMillis", on the
+ * request path, and recompiled when they change. A schema that fails to compile is logged and
+ * the last good revision is kept; a topic without any good revision refuses every message, as
+ * it cannot be checked.
+ */
+public class TopicSchemas {
+
+  private static final Logger LOGGER = Logger.getLogger(TopicSchemas.class.getName());
+
+  public static final String TYPE = "schema.type";
+  public static final String FILE = "schema.file";
+  public static final String CHECK_INTERVAL_MILLIS = "schema.checkIntervalMillis";
+
+  /** Compiled revision of a schema file */
+  private static final class Revision {
+    private final SchemaValidator validator;
+    private final String error;
+    private final FileTime modified;
+
+    Revision(SchemaValidator validator, String error, FileTime modified) {
+      this.validator = validator;
+      this.error = error;
+      this.modified = modified;
+    }
+  }
+
+  /** Schema file of a topic, holding its current revision */
+  private static final class Schema {
+    private final String type;
+    private final Path file;
+    private volatile Revision revision;
+    private volatile long checkedAt;
+
+    Schema(String type, Path file) {
+      this.type = type;
+      this.file = file;
+    }
+  }
+
+  // Topics without a schema
+  private static final Schema NONE = new Schema(null, null);
+
+  private final ProxyConfig config;
+  private final long checkIntervalNanos;
+  private final ConcurrentHashMap<String, Schema> topics = new ConcurrentHashMap<>();
+  // Schemas by type and file, shared by the topics that use them
+  private final ConcurrentHashMap<String, Schema> files = new ConcurrentHashMap<>();
+  private final LongAdder rejected = new LongAdder();
+
+  public TopicSchemas(ProxyConfig config) {
+    this.config = config;
+    this.checkIntervalNanos = config.getLong(CHECK_INTERVAL_MILLIS, 5000L) * 1000_000L;
+  }
+
+  /** Returns why the data of a message to a topic does not conform to its schema, or null */
+  public String validate(String topic, ByteString data) {
+    Schema schema = topics.computeIfAbsent(topic, this::lookup);
+    if (NONE == schema) {
+      return null;
+    }
+    Revision revision = current(schema);
+    String error =
+        null != revision.validator ? revision.validator.validate(data) : revision.error;
+    if (null != error) {
+      rejected.increment();
+    }
+    return error;
+  }
+
+  /** Forgets the schemas of topics no longer in use, files stay shared and loaded */
+  public void forgetIdle(Predicate<String> inUse) {
+    topics.keySet().removeIf(inUse.negate());
+  }
+
+  private Schema lookup(String topic) {
+    String type = config.get(topic, TYPE);
+    if (null == type || "none".equalsIgnoreCase(type.trim())) {
+      return NONE;
+    }
+    String normalized = type.trim().toLowerCase(Locale.ROOT);
+    String file = config.get(topic, FILE);
+    if (null == file) {
+      // Refuses messages rather than letting them through unchecked
+      Schema schema = new Schema(normalized, null);
+      schema.revision = new Revision(null, "No schema file set for topic " + topic, null);
+      schema.checkedAt = Long.MAX_VALUE;
+      LOGGER.warning("Schema type set without " + FILE + " for topic " + topic);
+      return schema;
+    }
+    return files.computeIfAbsent(
+        normalized + ":" + file.trim(), key -> new Schema(normalized, Paths.get(file.trim())));
+  }
+
+  /** Returns the revision of a schema, recompiling it if it changed since it was last checked */
+  private Revision current(Schema schema) {
+    Revision revision = schema.revision;
+    long now = System.nanoTime();
+    if (null != revision && now - schema.checkedAt < checkIntervalNanos) {
+      return revision;
+    }
+    synchronized (schema) {
+      revision = schema.revision;
+      if (null != revision && now - schema.checkedAt < checkIntervalNanos) {
+        return revision;
+      }
+      revision = load(schema, revision);
+      schema.revision = revision;
+      schema.checkedAt = now;
+      return revision;
+    }
+  }
+
+  private static Revision load(Schema schema, Revision previous) {
+    FileTime modified;
+    try {
+      modified = Files.getLastModifiedTime(schema.file);
+      if (null != previous && modified.equals(previous.modified)) {
+        return previous;
+      }
+      String text = new String(Files.readAllBytes(schema.file), StandardCharsets.UTF_8);
+      Revision revision = new Revision(compile(schema.type, text), null, modified);
+      LOGGER.info("Loaded " + schema.type + " schema " + schema.file);
+      return revision;
+    } catch (IOException | RuntimeException e) {
+      LOGGER.warning("Failed to load schema " + schema.file + ": " + e.getMessage());
+      if (null != previous && null != previous.validator) {
+        return previous;
+      }
+      return new Revision(null, "Schema " + schema.file + " cannot be loaded", null);
+    }
+  }
+
+  /** Compiles a schema of a type */
+  static SchemaValidator compile(String type, String schema) throws IOException {
+    switch (type) {
+      case "json":
+        return JsonSchema.compile(schema);
+      case "avro":
+        return AvroSchema.compile(schema);
+      default:
+        throw new IllegalArgumentException("Unknown schema type " + type);
+    }
+  }
+
+  /** Returns the number of messages refused for not conforming to their topic's schema */
+  public long getRejectedCount() {
+    return rejected.sum();
+  }
+}
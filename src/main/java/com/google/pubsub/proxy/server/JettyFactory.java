@@ -0,0 +1,146 @@
+/* Copyright 2019 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+package com.google.pubsub.proxy.server;
+
+import com.google.pubsub.proxy.config.ProxyConfig;
+import com.google.pubsub.proxy.publish.VirtualThreads;
+import com.google.pubsub.proxy.subscribe.PullMessages;
+import java.util.concurrent.ExecutorService;
+import java.util.logging.Logger;
+import org.eclipse.jetty.http2.server.HTTP2CServerConnectionFactory;
+import org.eclipse.jetty.server.Handler;
+import org.eclipse.jetty.server.HttpConfiguration;
+import org.eclipse.jetty.server.HttpConnectionFactory;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.server.handler.gzip.GzipHandler;
+import org.eclipse.jetty.util.BlockingArrayQueue;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+
+/**
+ * Builds the Jetty thread pool, connector and handler chain from the proxy settings. Anything
+ * not configured keeps the Jetty default, except for the bounded queues.
+ */
+final class JettyFactory {
+
+  private static final Logger LOGGER = Logger.getLogger(JettyFactory.class.getName());
+
+  static final String MIN_THREADS = "server.minThreads";
+  static final String MAX_THREADS = "server.maxThreads";
+  static final String THREAD_IDLE_TIMEOUT_MILLIS = "server.threadIdleTimeoutMillis";
+  static final String MAX_QUEUED_JOBS = "server.maxQueuedJobs";
+  static final String MAX_CONCURRENT_REQUESTS = "server.maxConcurrentRequests";
+  static final String ACCEPTORS = "server.acceptors";
+  static final String SELECTORS = "server.selectors";
+  static final String IDLE_TIMEOUT_MILLIS = "server.idleTimeoutMillis";
+  static final String ACCEPT_QUEUE_SIZE = "server.acceptQueueSize";
+  static final String REQUEST_HEADER_SIZE = "server.requestHeaderSize";
+  static final String H2C = "server.h2c";
+  static final String GZIP = "server.gzip";
+  static final String GZIP_RESPONSES = "server.gzipResponses";
+  static final String GZIP_INFLATE_BUFFER_SIZE = "server.gzipInflateBufferSize";
+
+  private static final int DEFAULT_MIN_THREADS = 8;
+  private static final int DEFAULT_MAX_THREADS = 200;
+  private static final int DEFAULT_THREAD_IDLE_TIMEOUT_MILLIS = 60000;
+  private static final int DEFAULT_MAX_QUEUED_JOBS = 10000;
+  private static final int DEFAULT_MAX_CONCURRENT_REQUESTS = 1000;
+  private static final int DEFAULT_GZIP_INFLATE_BUFFER_SIZE = 8192;
+
+  private JettyFactory() {}
+
+  /**
+   * Returns the request thread pool. Its queue is bounded, so that an overloaded server rejects
+   * work instead of growing the queue without limit.
+   */
+  static QueuedThreadPool threadPool(ProxyConfig config) {
+    int minThreads = config.getInt(MIN_THREADS, DEFAULT_MIN_THREADS);
+    int maxThreads = config.getInt(MAX_THREADS, DEFAULT_MAX_THREADS);
+    int maxQueuedJobs = config.getInt(MAX_QUEUED_JOBS, DEFAULT_MAX_QUEUED_JOBS);
+    QueuedThreadPool threadPool =
+        new QueuedThreadPool(
+            maxThreads,
+            minThreads,
+            config.getInt(THREAD_IDLE_TIMEOUT_MILLIS, DEFAULT_THREAD_IDLE_TIMEOUT_MILLIS),
+            new BlockingArrayQueue<>(minThreads, minThreads, maxQueuedJobs));
+    threadPool.setName("jetty");
+    return threadPool;
+  }
+
+  /**
+   * Returns a thread pool running requests, and Jetty's own tasks, on virtual threads, or null
+   * if virtual threads are not enabled or the JDK has none
+   */
+  static VirtualThreadPool virtualThreadPool(ProxyConfig config) {
+    if (!VirtualThreads.isEnabled(config)) {
+      if (config.getBoolean(VirtualThreads.ENABLED, false)) {
+        LOGGER.warning("Virtual threads require JDK 21 or later, using platform threads");
+      }
+      return null;
+    }
+    ExecutorService executor = VirtualThreads.newExecutor("jetty");
+    return null != executor ? new VirtualThreadPool(executor) : null;
+  }
+
+  /** Returns the HTTP/1.1 connector, also accepting HTTP/2 cleartext (h2c) if enabled */
+  static ServerConnector connector(Server server, ProxyConfig config, int port) {
+    HttpConfiguration httpConfig = new HttpConfiguration();
+    httpConfig.setRequestHeaderSize(
+        config.getInt(REQUEST_HEADER_SIZE, httpConfig.getRequestHeaderSize()));
+    httpConfig.setSendServerVersion(false);
+
+    HttpConnectionFactory http1 = new HttpConnectionFactory(httpConfig);
+    ServerConnector connector =
+        config.getBoolean(H2C, false)
+            ? new ServerConnector(
+                server,
+                config.getInt(ACCEPTORS, -1),
+                config.getInt(SELECTORS, -1),
+                http1,
+                new HTTP2CServerConnectionFactory(httpConfig))
+            : new ServerConnector(
+                server, config.getInt(ACCEPTORS, -1), config.getInt(SELECTORS, -1), http1);
+    connector.setPort(port);
+    connector.setIdleTimeout(config.getLong(IDLE_TIMEOUT_MILLIS, connector.getIdleTimeout()));
+    connector.setAcceptQueueSize(config.getInt(ACCEPT_QUEUE_SIZE, connector.getAcceptQueueSize()));
+    return connector;
+  }
+
+  /**
+   * Wraps the application handler with the concurrent request limit and, unless disabled,
+   * decompression of gzip encoded request bodies. Compressing responses is opt-in, as it costs
+   * CPU for the small JSON bodies the proxy returns.
+   */
+  static RequestLimitHandler handler(Handler application, ProxyConfig config) {
+    Handler handler = application;
+    if (config.getBoolean(GZIP, true)) {
+      GzipHandler gzip = new GzipHandler();
+      gzip.setInflateBufferSize(
+          config.getInt(GZIP_INFLATE_BUFFER_SIZE, DEFAULT_GZIP_INFLATE_BUFFER_SIZE));
+      if (!config.getBoolean(GZIP_RESPONSES, false)) {
+        gzip.setExcludedPaths("/*");
+      }
+      // Streams are written as messages arrive, which buffering them to compress would hold back
+      gzip.addExcludedMimeTypes(PullMessages.APPLICATION_NDJSON, PullMessages.SERVER_SENT_EVENTS);
+      gzip.setHandler(handler);
+      handler = gzip;
+    }
+    RequestLimitHandler limit =
+        new RequestLimitHandler(
+            config.getInt(MAX_CONCURRENT_REQUESTS, DEFAULT_MAX_CONCURRENT_REQUESTS));
+    limit.setHandler(handler);
+    return limit;
+  }
+}
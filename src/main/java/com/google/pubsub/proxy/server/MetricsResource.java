@@ -0,0 +1,38 @@
+/* Copyright 2019 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+package com.google.pubsub.proxy.server;
+
+import io.micrometer.prometheus.PrometheusMeterRegistry;
+import io.prometheus.client.exporter.common.TextFormat;
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+
+@Path("/metrics")
+public class MetricsResource {
+
+  private final PrometheusMeterRegistry registry;
+
+  public MetricsResource(PrometheusMeterRegistry registry) {
+    this.registry = registry;
+  }
+
+  /** Metrics end-point. Returns every meter in the Prometheus text format. */
+  @GET
+  @Produces(TextFormat.CONTENT_TYPE_004)
+  public String doGet() {
+    return registry.scrape();
+  }
+}
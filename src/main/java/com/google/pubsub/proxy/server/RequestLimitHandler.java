@@ -0,0 +1,105 @@
+/* Copyright 2019 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+package com.google.pubsub.proxy.server;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.DispatcherType;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.handler.HandlerWrapper;
+
+/**
+ * Rejects requests with 503 and a Retry-After header beyond a number of concurrent requests.
+ * Suspended requests, such as publishes waiting for acks, count until their response completes.
+ */
+class RequestLimitHandler extends HandlerWrapper {
+
+  static final String RETRY_AFTER_SECONDS = "1";
+
+  private final int maxRequests;
+  private final AtomicInteger inFlight = new AtomicInteger();
+  private final LongAdder rejected = new LongAdder();
+  private final AsyncListener release =
+      new AsyncListener() {
+        @Override
+        public void onComplete(AsyncEvent event) {
+          inFlight.decrementAndGet();
+        }
+
+        @Override
+        public void onTimeout(AsyncEvent event) {}
+
+        @Override
+        public void onError(AsyncEvent event) {}
+
+        @Override
+        public void onStartAsync(AsyncEvent event) {
+          // Suspended again, keep listening for the completion
+          event.getAsyncContext().addListener(this);
+        }
+      };
+
+  RequestLimitHandler(int maxRequests) {
+    this.maxRequests = maxRequests;
+  }
+
+  @Override
+  public void handle(
+      String target,
+      Request baseRequest,
+      HttpServletRequest request,
+      HttpServletResponse response)
+      throws IOException, ServletException {
+
+    // Async dispatches belong to a request that is already counted
+    if (DispatcherType.REQUEST != request.getDispatcherType()) {
+      super.handle(target, baseRequest, request, response);
+      return;
+    }
+
+    if (inFlight.incrementAndGet() > maxRequests) {
+      inFlight.decrementAndGet();
+      rejected.increment();
+      baseRequest.setHandled(true);
+      response.setHeader("Retry-After", RETRY_AFTER_SECONDS);
+      response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+      return;
+    }
+
+    try {
+      super.handle(target, baseRequest, request, response);
+    } finally {
+      if (request.isAsyncStarted()) {
+        request.getAsyncContext().addListener(release);
+      } else {
+        inFlight.decrementAndGet();
+      }
+    }
+  }
+
+  int getInFlight() {
+    return inFlight.get();
+  }
+
+  long getRejectedCount() {
+    return rejected.sum();
+  }
+}
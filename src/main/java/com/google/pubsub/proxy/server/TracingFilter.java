@@ -0,0 +1,59 @@
+/* Copyright 2019 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+
+package com.google.pubsub.proxy.server;
+
+import com.google.pubsub.proxy.tracing.RequestTrace;
+import com.google.pubsub.proxy.tracing.Tracer;
+import javax.ws.rs.container.ContainerRequestContext;
+import javax.ws.rs.container.ContainerRequestFilter;
+import javax.ws.rs.container.ContainerResponseContext;
+import javax.ws.rs.container.ContainerResponseFilter;
+import javax.ws.rs.ext.Provider;
+
+/**
+ * Starts the trace of each request once it is matched, before its body is read, so that the
+ * resource can time its stages, and ends it when the response is sent, on the thread resuming it
+ * for asynchronous responses. Timed responses carry a Server-Timing header of their stages.
+ */
+@Provider
+public class TracingFilter implements ContainerRequestFilter, ContainerResponseFilter {
+
+  private final Tracer tracer;
+
+  public TracingFilter(Tracer tracer) {
+    this.tracer = tracer;
+  }
+
+  @Override
+  public void filter(ContainerRequestContext request) {
+    RequestTrace trace = tracer.start(request.getHeaderString(Tracer.TRACEPARENT_HEADER));
+    if (trace.isRecording()) {
+      trace.setName(request.getMethod() + " /" + request.getUriInfo().getPath());
+      request.setProperty(RequestTrace.PROPERTY, trace);
+    }
+  }
+
+  @Override
+  public void filter(ContainerRequestContext request, ContainerResponseContext response) {
+    Object trace = request.getProperty(RequestTrace.PROPERTY);
+    if (!(trace instanceof RequestTrace)) {
+      return;
+    }
+    tracer.end((RequestTrace) trace, response.getStatus());
+    response.getHeaders().putSingle(
+        Tracer.SERVER_TIMING_HEADER, ((RequestTrace) trace).toServerTiming());
+  }
+}
@@ -15,41 +15,136 @@
 /*
  * Embedded jetty with config:
  * Port:8080
- * Resources: Endpoints (/health, /publish)
+ * Resources: Endpoints (/health, /publish, /subscriptions, /metrics), gRPC Publish on grpc.port
  * Providers: Validation filters and exceptions (refer InjectResourcesUtils for details)
  */
 package com.google.pubsub.proxy.server;
 
+import com.google.pubsub.proxy.config.ProxyConfig;
+import com.google.pubsub.proxy.publish.MessageDispatcher;
+import com.google.pubsub.proxy.publish.PublishGrpcService;
 import com.google.pubsub.proxy.publish.PublishMessage;
+import com.google.pubsub.proxy.publish.StreamingRequestReader;
+import com.google.pubsub.proxy.subscribe.PullMessages;
+import com.google.pubsub.proxy.subscribe.SubscriptionClient;
+import com.google.pubsub.proxy.tracing.Tracer;
+import io.grpc.netty.shaded.io.grpc.netty.NettyServerBuilder;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.binder.jetty.JettyServerThreadPoolMetrics;
+import io.micrometer.prometheus.PrometheusConfig;
+import io.micrometer.prometheus.PrometheusMeterRegistry;
+import java.net.InetSocketAddress;
 import java.util.Optional;
+import java.util.concurrent.TimeUnit;
 import org.eclipse.jetty.server.Server;
 import org.eclipse.jetty.servlet.ServletContextHandler;
 import org.eclipse.jetty.servlet.ServletHolder;
+import org.eclipse.jetty.util.component.AbstractLifeCycle;
+import org.eclipse.jetty.util.component.LifeCycle;
+import org.eclipse.jetty.util.thread.ThreadPool;
 import org.glassfish.jersey.jackson.JacksonFeature;
 import org.glassfish.jersey.server.ResourceConfig;
 import org.glassfish.jersey.servlet.ServletContainer;
 
 public class WebServer {
+
+  static final String GRPC_PORT = "grpc.port";
+  static final String GRPC_ADDRESS = "grpc.address";
+
   public static void main(String[] args) throws Exception {
+    // Read the port from "PORT" environment variable
+    // Defaults to 8080 if nothing is set
+    int port = Integer.parseInt(Optional.ofNullable(System.getenv("PORT")).orElse("8080"));
+    start(ProxyConfig.fromEnvironment(), port).join();
+  }
+
+  /**
+   * Starts the proxy, for embedding it such as in load tests
+   *
+   * @param config - proxy settings
+   * @param port - HTTP port, 0 for any free port
+   * @return the started Jetty server, stopping it also drains the publishers
+   */
+  public static Server start(ProxyConfig config, int port) throws Exception {
     ServletContextHandler contextHandler = new ServletContextHandler();
     ResourceConfig resourceConfig = new ResourceConfig();
 
-    // End-point resources
-    resourceConfig.register(new PublishMessage());
+    // End-point resources, sharing cached publishers with the gRPC ingest service
+    PrometheusMeterRegistry registry = new PrometheusMeterRegistry(PrometheusConfig.DEFAULT);
+    MessageDispatcher dispatcher = new MessageDispatcher(config, registry);
+    resourceConfig.register(new PublishMessage(dispatcher));
+    SubscriptionClient subscriptions = new SubscriptionClient(config);
+    resourceConfig.register(new PullMessages(subscriptions, config, registry));
     resourceConfig.register(new HealthCheck());
+    resourceConfig.register(new MetricsResource(registry));
 
-    // Jackson - json to POJO
+    // Jackson - json to POJO, publish requests are streamed instead
     resourceConfig.register(JacksonFeature.class);
+    resourceConfig.register(StreamingRequestReader.class);
+    resourceConfig.register(new ZstdReaderInterceptor(config));
 
+    // Stage timers of sampled requests, returned as Server-Timing and exported as spans
+    Tracer tracer = new Tracer(config);
+    resourceConfig.register(new TracingFilter(tracer));
+
+    // Async support lets /publish resume responses from publish callbacks
     ServletHolder servletHolder = new ServletHolder(new ServletContainer(resourceConfig));
+    servletHolder.setAsyncSupported(true);
     contextHandler.addServlet(servletHolder, "/*");
 
-    // Read the port from "PORT" environment variable
-    // Defaults to 8080 if nothing is set
-    Server server =
-        new Server(Integer.parseInt(Optional.ofNullable(System.getenv("PORT")).orElse("8080")));
-    server.setHandler(contextHandler);
+    // Thread pool, connector and handler chain, tuned through "server.*" settings
+    ThreadPool threadPool =
+        Optional.<ThreadPool>ofNullable(JettyFactory.virtualThreadPool(config))
+            .orElseGet(() -> JettyFactory.threadPool(config));
+    Server server = new Server(threadPool);
+    server.addConnector(JettyFactory.connector(server, config, port));
+    RequestLimitHandler requestLimit = JettyFactory.handler(contextHandler, config);
+    server.setHandler(requestLimit);
+    new JettyServerThreadPoolMetrics(server.getThreadPool(), Tags.empty()).bindTo(registry);
+    Gauge.builder("pubsub.proxy.requests.inflight", requestLimit, RequestLimitHandler::getInFlight)
+        .register(registry);
+    FunctionCounter.builder(
+            "pubsub.proxy.requests.rejected", requestLimit, RequestLimitHandler::getRejectedCount)
+        .register(registry);
+
+    // The gRPC Publish service is only started if "grpc.port" is set. It listens on the
+    // loopback interface by default, for ESP in the same pod to authenticate its callers
+    io.grpc.Server grpcServer =
+        Optional.ofNullable(config.get(GRPC_PORT))
+            .map(
+                grpcPort ->
+                    NettyServerBuilder.forAddress(
+                            new InetSocketAddress(
+                                Optional.ofNullable(config.get(GRPC_ADDRESS)).orElse("127.0.0.1"),
+                                Integer.parseInt(grpcPort.trim())))
+                        .addService(new PublishGrpcService(dispatcher).withCallers())
+                        .build())
+            .orElse(null);
+
+    // Drain cached publishers when Jetty stops, including on JVM shutdown
+    server.setStopAtShutdown(true);
+    server.addLifeCycleListener(
+        new AbstractLifeCycle.AbstractLifeCycleListener() {
+          @Override
+          public void lifeCycleStopped(LifeCycle event) {
+            try {
+              if (null != grpcServer) {
+                grpcServer.shutdown().awaitTermination(30, TimeUnit.SECONDS);
+              }
+              dispatcher.shutdown();
+              subscriptions.shutdown();
+              tracer.shutdown();
+            } catch (InterruptedException e) {
+              Thread.currentThread().interrupt();
+            }
+          }
+        });
+    if (null != grpcServer) {
+      grpcServer.start();
+    }
     server.start();
-    server.join();
+    return server;
   }
 }
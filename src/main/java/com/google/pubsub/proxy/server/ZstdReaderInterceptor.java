@@ -0,0 +1,102 @@
+/* Copyright 2019 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+package com.google.pubsub.proxy.server;
+
+import com.github.luben.zstd.ZstdInputStream;
+import com.google.pubsub.proxy.config.ProxyConfig;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.Response.Status;
+import javax.ws.rs.ext.Provider;
+import javax.ws.rs.ext.ReaderInterceptor;
+import javax.ws.rs.ext.ReaderInterceptorContext;
+
+/**
+ * Decodes "Content-Encoding: zstd" request bodies as they are read, before they reach Jackson or
+ * the streaming reader. Gzip bodies are already inflated by Jetty's GzipHandler. Every body is
+ * bounded once decoded, so that a small compressed body cannot expand without limit and a large
+ * one is refused with 413 as it is read.
+ */
+@Provider
+public class ZstdReaderInterceptor implements ReaderInterceptor {
+
+  static final String ZSTD = "zstd";
+  static final String MAX_DECODED_BYTES = "server.maxDecodedRequestBytes";
+
+  private static final long DEFAULT_MAX_DECODED_BYTES = 64L * 1024 * 1024;
+
+  private final long maxDecodedBytes;
+
+  public ZstdReaderInterceptor(ProxyConfig config) {
+    this.maxDecodedBytes = config.getLong(MAX_DECODED_BYTES, DEFAULT_MAX_DECODED_BYTES);
+  }
+
+  @Override
+  public Object aroundReadFrom(ReaderInterceptorContext context) throws IOException {
+    String encoding = context.getHeaders().getFirst(HttpHeaders.CONTENT_ENCODING);
+    InputStream body = context.getInputStream();
+    if (ZSTD.equalsIgnoreCase(encoding)) {
+      context.getHeaders().remove(HttpHeaders.CONTENT_ENCODING);
+      body = new ZstdInputStream(body);
+    }
+    context.setInputStream(new BoundedInputStream(body, maxDecodedBytes));
+    return context.proceed();
+  }
+
+  /** Fails reads once more than a number of bytes were read */
+  private static class BoundedInputStream extends FilterInputStream {
+    private final long maxBytes;
+    private long bytes;
+
+    private BoundedInputStream(InputStream in, long maxBytes) {
+      super(in);
+      this.maxBytes = maxBytes;
+    }
+
+    @Override
+    public int read() throws IOException {
+      int b = super.read();
+      if (b >= 0) {
+        count(1);
+      }
+      return b;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+      int read = super.read(buffer, offset, length);
+      if (read > 0) {
+        count(read);
+      }
+      return read;
+    }
+
+    private void count(int read) {
+      bytes += read;
+      if (bytes > maxBytes) {
+        throw new WebApplicationException(
+            Response.status(Status.REQUEST_ENTITY_TOO_LARGE)
+                .entity("Request body is larger than " + maxBytes + " bytes")
+                .type(MediaType.APPLICATION_JSON)
+                .build());
+      }
+    }
+  }
+}
@@ -0,0 +1,309 @@
+/* Copyright 2019 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+package com.google.pubsub.proxy.subscribe;
+
+import com.google.api.core.ApiFutureCallback;
+import com.google.api.core.ApiFutures;
+import com.google.api.gax.rpc.ApiException;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.protobuf.Empty;
+import com.google.protobuf.util.Timestamps;
+import com.google.pubsub.proxy.config.ProxyConfig;
+import com.google.pubsub.proxy.entities.AckRequest;
+import com.google.pubsub.proxy.entities.Message;
+import com.google.pubsub.proxy.entities.PullResult;
+import com.google.pubsub.proxy.entities.ReceivedMessage;
+import com.google.pubsub.proxy.publish.PublishMessage;
+import com.google.pubsub.v1.PubsubMessage;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+import javax.ws.rs.Consumes;
+import javax.ws.rs.DefaultValue;
+import javax.ws.rs.GET;
+import javax.ws.rs.POST;
+import javax.ws.rs.Path;
+import javax.ws.rs.PathParam;
+import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.Suspended;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.Response.Status;
+import org.glassfish.jersey.server.CloseableService;
+
+/**
+ * Pulls messages from Cloud Pub/Sub subscriptions, for consumers that only speak HTTP. Messages
+ * are pulled with long polling, or streamed from a StreamingPull as newline-delimited JSON or
+ * server-sent events, and acknowledged by posting their ack ids in batches.
+ */
+@Path("/subscriptions")
+public class PullMessages {
+
+  static final String MAX_WAIT_SECONDS = "pull.maxWaitSeconds";
+  static final String BATCH_MILLIS = "pull.batchMillis";
+  static final String MAX_STREAM_SECONDS = "pull.maxStreamSeconds";
+  static final String MAX_STREAMS = "pull.maxStreams";
+  static final String STREAM_ACK_DEADLINE_SECONDS = "pull.streamAckDeadlineSeconds";
+  static final String HEARTBEAT_SECONDS = "pull.heartbeatSeconds";
+
+  public static final String APPLICATION_NDJSON = "application/x-ndjson";
+  public static final String SERVER_SENT_EVENTS = "text/event-stream";
+
+  // Limit of the Pull method
+  static final int MAX_MESSAGES = 1000;
+
+  // Subscription names follow the same rules as topic names
+  private static final Pattern SUBSCRIPTION_NAME =
+      Pattern.compile("(?!goog)[a-zA-Z][-a-zA-Z0-9._~%+]{2,254}");
+
+  private final SubscriptionClient client;
+  private final ProxyConfig config;
+  private final AtomicInteger activeStreams = new AtomicInteger();
+
+  @Context private HttpHeaders headers;
+
+  public PullMessages(SubscriptionClient client, ProxyConfig config, MeterRegistry registry) {
+    this.client = client;
+    this.config = config;
+    Gauge.builder("pubsub.proxy.pull.streams", activeStreams, AtomicInteger::get)
+        .description("Responses streaming messages from a StreamingPull")
+        .register(registry);
+  }
+
+  /**
+   * Entry point for POST /subscriptions/{subscription}:pull
+   *
+   * <p>Waits up to waitSeconds, by default and at most "pull.maxWaitSeconds", for messages to
+   * arrive, and responds with an empty list if none did. A wait of 0 returns right away. The
+   * response is resumed asynchronously so that no Jetty thread is held while waiting.
+   */
+  @POST
+  @Path("{subscription}:pull")
+  @Produces(MediaType.APPLICATION_JSON)
+  public void pull(
+      @PathParam("subscription") String subscription,
+      @QueryParam("maxMessages") @DefaultValue("100") int maxMessages,
+      @QueryParam("waitSeconds") Long waitSeconds,
+      @Suspended AsyncResponse asyncResponse)
+      throws IOException {
+    if (!SUBSCRIPTION_NAME.matcher(subscription).matches()) {
+      asyncResponse.resume(invalidRequest("Invalid subscription name: " + subscription));
+      return;
+    }
+    if (maxMessages < 1 || maxMessages > MAX_MESSAGES) {
+      asyncResponse.resume(invalidRequest("maxMessages must be between 1 and " + MAX_MESSAGES));
+      return;
+    }
+    long maxWaitSeconds = config.getLong(MAX_WAIT_SECONDS, 20L);
+    long wait =
+        null != waitSeconds ? Math.max(0L, Math.min(waitSeconds, maxWaitSeconds)) : maxWaitSeconds;
+    boolean base64 = PublishMessage.isBase64(getDataEncoding());
+    ApiFutures.addCallback(
+        client.pull(
+            subscription,
+            maxMessages,
+            TimeUnit.SECONDS.toMillis(wait),
+            config.getLong(BATCH_MILLIS, 0L)),
+        new ApiFutureCallback<List<com.google.pubsub.v1.ReceivedMessage>>() {
+          public void onFailure(Throwable throwable) {
+            asyncResponse.resume(failed(throwable));
+          }
+
+          public void onSuccess(List<com.google.pubsub.v1.ReceivedMessage> messages) {
+            List<ReceivedMessage> received = new ArrayList<>(messages.size());
+            for (com.google.pubsub.v1.ReceivedMessage message : messages) {
+              received.add(
+                  new ReceivedMessage(message.getAckId(), toMessage(message.getMessage(), base64)));
+            }
+            PullResult result = new PullResult();
+            result.setReceivedMessages(received);
+            asyncResponse.resume(Response.ok(result, MediaType.APPLICATION_JSON).build());
+          }
+        },
+        MoreExecutors.directExecutor());
+  }
+
+  /** Entry point for POST /subscriptions/{subscription}:acknowledge */
+  @POST
+  @Path("{subscription}:acknowledge")
+  @Consumes(MediaType.APPLICATION_JSON)
+  @Produces(MediaType.APPLICATION_JSON)
+  public void acknowledge(
+      @PathParam("subscription") String subscription,
+      AckRequest request,
+      @Suspended AsyncResponse asyncResponse)
+      throws IOException {
+    if (!SUBSCRIPTION_NAME.matcher(subscription).matches()) {
+      asyncResponse.resume(invalidRequest("Invalid subscription name: " + subscription));
+      return;
+    }
+    if (null == request || null == request.getAckIds() || request.getAckIds().isEmpty()) {
+      asyncResponse.resume(invalidRequest("ackIds required"));
+      return;
+    }
+    ApiFutures.addCallback(
+        client.acknowledge(subscription, request.getAckIds()),
+        new ApiFutureCallback<List<Empty>>() {
+          public void onFailure(Throwable throwable) {
+            asyncResponse.resume(failed(throwable));
+          }
+
+          public void onSuccess(List<Empty> acks) {
+            asyncResponse.resume(Response.ok().build());
+          }
+        },
+        MoreExecutors.directExecutor());
+  }
+
+  /**
+   * Entry point for GET /subscriptions/{subscription}:stream
+   *
+   * <p>Streams messages for up to seconds, capped by "pull.maxStreamSeconds", as server-sent
+   * events if the client accepts them, or as newline-delimited JSON. Errors of the stream, once
+   * it started, end it with an error object. As a stream holds a request thread while it is
+   * open, at most "pull.maxStreams" are open at once and further ones are refused with 503. The
+   * slot of a stream is released once it is written, or when the request ends without writing it.
+   */
+  @GET
+  @Path("{subscription}:stream")
+  @Produces({APPLICATION_NDJSON, SERVER_SENT_EVENTS})
+  public Response stream(
+      @PathParam("subscription") String subscription,
+      @QueryParam("seconds") Long seconds,
+      @Context CloseableService closeables) {
+    if (!SUBSCRIPTION_NAME.matcher(subscription).matches()) {
+      return invalidRequest("Invalid subscription name: " + subscription);
+    }
+    long maxSeconds = config.getLong(MAX_STREAM_SECONDS, 300L);
+    boolean serverSentEvents = acceptsServerSentEvents();
+    boolean base64 = PublishMessage.isBase64(getDataEncoding());
+    int ackDeadlineSeconds = config.getInt(STREAM_ACK_DEADLINE_SECONDS, 60);
+    long heartbeatSeconds = config.getLong(HEARTBEAT_SECONDS, 15L);
+    if (!reserveStream(config.getInt(MAX_STREAMS, 50))) {
+      return Response.status(Status.SERVICE_UNAVAILABLE)
+          .entity("Too many open streams")
+          .type(MediaType.APPLICATION_JSON)
+          .build();
+    }
+    PullStream stream =
+        new PullStream(
+            client,
+            subscription,
+            serverSentEvents,
+            base64,
+            ackDeadlineSeconds,
+            null != seconds ? Math.max(1L, Math.min(seconds, maxSeconds)) : maxSeconds,
+            heartbeatSeconds,
+            activeStreams);
+    // Jersey closes it once the response is done, also when the stream was never written
+    closeables.add(stream::release);
+    return Response.ok(stream, serverSentEvents ? SERVER_SENT_EVENTS : APPLICATION_NDJSON)
+        .header("Cache-Control", "no-cache")
+        .build();
+  }
+
+  /** Counts a new stream, released by the stream once done, unless maxStreams are open */
+  private boolean reserveStream(int maxStreams) {
+    int streams;
+    do {
+      streams = activeStreams.get();
+      if (streams >= maxStreams) {
+        return false;
+      }
+    } while (!activeStreams.compareAndSet(streams, streams + 1));
+    return true;
+  }
+
+  /** Converts a pulled message to its JSON entity, encoding data as requested */
+  static Message toMessage(PubsubMessage pubsubMessage, boolean base64) {
+    Message message = new Message();
+    if (pubsubMessage.getAttributesCount() > 0) {
+      message.setAttributes(new HashMap<>(pubsubMessage.getAttributesMap()));
+    }
+    if (!pubsubMessage.getData().isEmpty()) {
+      message.setData(
+          base64
+              ? Base64.getEncoder().encodeToString(pubsubMessage.getData().toByteArray())
+              : pubsubMessage.getData().toStringUtf8());
+    }
+    message.setMessageId(pubsubMessage.getMessageId());
+    if (pubsubMessage.hasPublishTime()) {
+      message.setPublishTime(Timestamps.toString(pubsubMessage.getPublishTime()));
+    }
+    return message;
+  }
+
+  /** Maps a Pub/Sub failure to the status returned to the caller */
+  static Status toStatus(Throwable throwable) {
+    if (!(throwable instanceof ApiException)) {
+      return Status.INTERNAL_SERVER_ERROR;
+    }
+    switch (((ApiException) throwable).getStatusCode().getCode()) {
+      case NOT_FOUND:
+        return Status.NOT_FOUND;
+      case PERMISSION_DENIED:
+        return Status.FORBIDDEN;
+      case INVALID_ARGUMENT:
+      case FAILED_PRECONDITION:
+        return Status.BAD_REQUEST;
+      case RESOURCE_EXHAUSTED:
+      case UNAVAILABLE:
+      case DEADLINE_EXCEEDED:
+        return Status.SERVICE_UNAVAILABLE;
+      default:
+        return Status.INTERNAL_SERVER_ERROR;
+    }
+  }
+
+  private static Response failed(Throwable throwable) {
+    return Response.status(toStatus(throwable))
+        .entity(throwable.getMessage())
+        .type(MediaType.APPLICATION_JSON)
+        .build();
+  }
+
+  private static Response invalidRequest(String msg) {
+    return Response.status(Status.BAD_REQUEST).entity(msg).type(MediaType.APPLICATION_JSON).build();
+  }
+
+  private boolean acceptsServerSentEvents() {
+    if (null == headers) {
+      return false;
+    }
+    for (MediaType mediaType : headers.getAcceptableMediaTypes()) {
+      if (MediaType.valueOf(SERVER_SENT_EVENTS).isCompatible(mediaType)
+          && !mediaType.isWildcardType()) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /** Returns the data encoding requested through the X-Data-Encoding header */
+  private String getDataEncoding() {
+    return null != headers ? headers.getHeaderString(PublishMessage.DATA_ENCODING_HEADER) : null;
+  }
+}
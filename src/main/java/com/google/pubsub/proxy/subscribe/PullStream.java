@@ -0,0 +1,197 @@
+/* Copyright 2019 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+
+package com.google.pubsub.proxy.subscribe;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.google.api.gax.rpc.ResponseObserver;
+import com.google.api.gax.rpc.StreamController;
+import com.google.protobuf.util.Timestamps;
+import com.google.pubsub.v1.PubsubMessage;
+import com.google.pubsub.v1.ReceivedMessage;
+import com.google.pubsub.v1.StreamingPullResponse;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Base64;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.ws.rs.core.StreamingOutput;
+
+/**
+ * Streams the messages of a StreamingPull to a response, as newline-delimited JSON or as
+ * server-sent events. Responses are requested from the stream one at a time, once the previous
+ * one is written, so that a slow reader pushes back on Pub/Sub instead of messages piling up in
+ * the proxy. Idle streams get a heartbeat, a blank line or an SSE comment, so that disconnected
+ * readers are noticed. Messages that are not acknowledged within the stream ack deadline,
+ * including those a reader never received, are redelivered.
+ */
+class PullStream implements StreamingOutput, ResponseObserver<StreamingPullResponse> {
+
+  private static final JsonFactory JSON_FACTORY = new JsonFactory();
+  // Marks the end of the stream in the queue of responses
+  private static final Object END = new Object();
+
+  private final SubscriptionClient client;
+  private final String subscription;
+  private final boolean serverSentEvents;
+  private final boolean base64;
+  private final int ackDeadlineSeconds;
+  private final long durationNanos;
+  private final long heartbeatNanos;
+  // Open streams, counting this one until it is released
+  private final AtomicInteger activeStreams;
+  private final AtomicBoolean released = new AtomicBoolean();
+  private final BlockingQueue<Object> responses = new LinkedBlockingQueue<>();
+  private volatile StreamController controller;
+
+  PullStream(
+      SubscriptionClient client,
+      String subscription,
+      boolean serverSentEvents,
+      boolean base64,
+      int ackDeadlineSeconds,
+      long durationSeconds,
+      long heartbeatSeconds,
+      AtomicInteger activeStreams) {
+    this.client = client;
+    this.subscription = subscription;
+    this.serverSentEvents = serverSentEvents;
+    this.base64 = base64;
+    this.ackDeadlineSeconds = ackDeadlineSeconds;
+    this.durationNanos = TimeUnit.SECONDS.toNanos(durationSeconds);
+    this.heartbeatNanos = TimeUnit.SECONDS.toNanos(heartbeatSeconds);
+    this.activeStreams = activeStreams;
+  }
+
+  @Override
+  public void onStart(StreamController controller) {
+    this.controller = controller;
+    controller.disableAutoInboundFlowControl();
+    controller.request(1);
+  }
+
+  @Override
+  public void onResponse(StreamingPullResponse response) {
+    responses.add(response);
+  }
+
+  @Override
+  public void onError(Throwable t) {
+    responses.add(t);
+  }
+
+  @Override
+  public void onComplete() {
+    responses.add(END);
+  }
+
+  /** Writes the streamed messages until the duration is over, the stream ends or the reader left */
+  @Override
+  public void write(OutputStream output) throws IOException {
+    JsonGenerator generator = JSON_FACTORY.createGenerator(output);
+    generator.configure(JsonGenerator.Feature.AUTO_CLOSE_TARGET, false);
+    generator.setRootValueSeparator(null);
+    long deadline = System.nanoTime() + durationNanos;
+    try {
+      client.streamingPull(subscription, ackDeadlineSeconds, this);
+      long remaining;
+      while ((remaining = deadline - System.nanoTime()) > 0) {
+        Object next = responses.poll(Math.min(remaining, heartbeatNanos), TimeUnit.NANOSECONDS);
+        if (null == next) {
+          generator.writeRaw(serverSentEvents ? ":\n\n" : "\n");
+        } else if (next instanceof StreamingPullResponse) {
+          for (ReceivedMessage message : ((StreamingPullResponse) next).getReceivedMessagesList()) {
+            writeEvent(generator, message);
+          }
+          controller.request(1);
+        } else {
+          if (next instanceof Throwable) {
+            writeError(generator, (Throwable) next);
+          }
+          break;
+        }
+        generator.flush();
+      }
+      generator.flush();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } finally {
+      release();
+      if (null != controller) {
+        controller.cancel();
+      }
+    }
+  }
+
+  /** Stops counting this stream as open, once, whether or not it was written */
+  void release() {
+    if (released.compareAndSet(false, true)) {
+      activeStreams.decrementAndGet();
+    }
+  }
+
+  private void writeEvent(JsonGenerator generator, ReceivedMessage message) throws IOException {
+    if (serverSentEvents) {
+      generator.writeRaw("data: ");
+    }
+    writeReceivedMessage(generator, message, base64);
+    generator.writeRaw(serverSentEvents ? "\n\n" : "\n");
+  }
+
+  private void writeError(JsonGenerator generator, Throwable error) throws IOException {
+    if (serverSentEvents) {
+      generator.writeRaw("event: error\ndata: ");
+    }
+    generator.writeStartObject();
+    generator.writeStringField("error", PullMessages.toStatus(error).getReasonPhrase());
+    generator.writeStringField("message", error.getMessage());
+    generator.writeEndObject();
+    generator.writeRaw(serverSentEvents ? "\n\n" : "\n");
+  }
+
+  /** Writes a received message as the JSON of the ReceivedMessage entity */
+  static void writeReceivedMessage(
+      JsonGenerator generator, ReceivedMessage received, boolean base64) throws IOException {
+    PubsubMessage message = received.getMessage();
+    generator.writeStartObject();
+    generator.writeStringField("ackId", received.getAckId());
+    generator.writeObjectFieldStart("message");
+    if (message.getAttributesCount() > 0) {
+      generator.writeObjectFieldStart("attributes");
+      for (Map.Entry<String, String> attribute : message.getAttributesMap().entrySet()) {
+        generator.writeStringField(attribute.getKey(), attribute.getValue());
+      }
+      generator.writeEndObject();
+    }
+    if (!message.getData().isEmpty()) {
+      generator.writeStringField(
+          "data",
+          base64
+              ? Base64.getEncoder().encodeToString(message.getData().toByteArray())
+              : message.getData().toStringUtf8());
+    }
+    generator.writeStringField("messageId", message.getMessageId());
+    if (message.hasPublishTime()) {
+      generator.writeStringField("publishTime", Timestamps.toString(message.getPublishTime()));
+    }
+    generator.writeEndObject();
+    generator.writeEndObject();
+  }
+}
@@ -0,0 +1,233 @@
+/* Copyright 2019 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+
+package com.google.pubsub.proxy.subscribe;
+
+import com.google.api.core.ApiFuture;
+import com.google.api.core.ApiFutures;
+import com.google.api.gax.core.NoCredentialsProvider;
+import com.google.api.gax.grpc.GrpcCallContext;
+import com.google.api.gax.grpc.GrpcTransportChannel;
+import com.google.api.gax.rpc.ApiException;
+import com.google.api.gax.rpc.ClientStream;
+import com.google.api.gax.rpc.FixedTransportChannelProvider;
+import com.google.api.gax.rpc.ResponseObserver;
+import com.google.api.gax.rpc.StatusCode;
+import com.google.cloud.ServiceOptions;
+import com.google.cloud.pubsub.v1.stub.GrpcSubscriberStub;
+import com.google.cloud.pubsub.v1.stub.SubscriberStub;
+import com.google.cloud.pubsub.v1.stub.SubscriberStubSettings;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.protobuf.Empty;
+import com.google.pubsub.proxy.config.ProxyConfig;
+import com.google.pubsub.v1.AcknowledgeRequest;
+import com.google.pubsub.v1.ProjectSubscriptionName;
+import com.google.pubsub.v1.PullRequest;
+import com.google.pubsub.v1.PullResponse;
+import com.google.pubsub.v1.ReceivedMessage;
+import com.google.pubsub.v1.StreamingPullRequest;
+import com.google.pubsub.v1.StreamingPullResponse;
+import io.grpc.ManagedChannelBuilder;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+import org.threeten.bp.Duration;
+
+/**
+ * Pulls and acknowledges the messages of subscriptions through one subscriber stub, whose gRPC
+ * channel pool is shared by all subscriptions. The stub is created on first use, and targets the
+ * Pub/Sub emulator, or any local fake, when its host is configured, like the publishers.
+ */
+public class SubscriptionClient {
+
+  private static final Logger LOGGER = Logger.getLogger(SubscriptionClient.class.getName());
+
+  static final String CHANNEL_POOL_SIZE = "subscriber.channelPoolSize";
+  // Shared with the publishers
+  static final String PROJECT_ID = "pubsub.projectId";
+  static final String EMULATOR_HOST = "pubsub.emulatorHost";
+
+  // Ack ids per Acknowledge call, as batched by the client library
+  static final int MAX_ACK_IDS = 2500;
+
+  private final String projectId;
+  private final ProxyConfig config;
+  private SubscriberStub stub;
+
+  public SubscriptionClient(ProxyConfig config) {
+    this.projectId =
+        Optional.ofNullable(config.get(PROJECT_ID)).orElseGet(ServiceOptions::getDefaultProjectId);
+    this.config = config;
+  }
+
+  SubscriptionClient(SubscriberStub stub, String projectId, ProxyConfig config) {
+    this.projectId = projectId;
+    this.config = config;
+    this.stub = stub;
+  }
+
+  /** Returns the subscriber stub shared by all subscriptions, created on first use */
+  private synchronized SubscriberStub getStub() throws IOException {
+    if (null != stub) {
+      return stub;
+    }
+    SubscriberStubSettings.Builder settings = SubscriberStubSettings.newBuilder();
+    String emulatorHost = config.get(EMULATOR_HOST);
+    if (null != emulatorHost) {
+      LOGGER.info("Pulling from the emulator at " + emulatorHost);
+      settings
+          .setTransportChannelProvider(
+              FixedTransportChannelProvider.create(
+                  GrpcTransportChannel.create(
+                      ManagedChannelBuilder.forTarget(emulatorHost).usePlaintext().build())))
+          .setCredentialsProvider(NoCredentialsProvider.create());
+    } else {
+      int poolSize = config.getInt(CHANNEL_POOL_SIZE, Runtime.getRuntime().availableProcessors());
+      LOGGER.info("Creating shared subscriber channel pool of size " + poolSize);
+      settings.setTransportChannelProvider(
+          SubscriberStubSettings.defaultGrpcTransportProviderBuilder()
+              .setPoolSize(poolSize)
+              .build());
+    }
+    stub = GrpcSubscriberStub.create(settings.build());
+    return stub;
+  }
+
+  /** Returns the full name of a subscription of the proxy's project */
+  String getName(String subscription) {
+    return ProjectSubscriptionName.format(projectId, subscription);
+  }
+
+  /**
+   * Pulls up to maxMessages messages, long polling until some are available or the wait is over.
+   * Once some arrived, keeps pulling for up to batchMillis to fill the batch, so that a trickle
+   * of messages is returned in fewer, larger responses. Without a wait, returns what is available
+   * right away.
+   *
+   * @return the pulled messages, empty if none arrived in time
+   */
+  ApiFuture<List<ReceivedMessage>> pull(
+      String subscription, int maxMessages, long waitMillis, long batchMillis) throws IOException {
+    if (waitMillis <= 0) {
+      PullRequest request =
+          PullRequest.newBuilder()
+              .setSubscription(getName(subscription))
+              .setMaxMessages(maxMessages)
+              .setReturnImmediately(true)
+              .build();
+      return ApiFutures.transform(
+          getStub().pullCallable().futureCall(request),
+          PullResponse::getReceivedMessagesList,
+          MoreExecutors.directExecutor());
+    }
+    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(waitMillis);
+    return pull(
+        getName(subscription), maxMessages, deadline, batchMillis, new ArrayList<>(maxMessages));
+  }
+
+  private ApiFuture<List<ReceivedMessage>> pull(
+      String name,
+      int maxMessages,
+      long deadline,
+      long batchMillis,
+      List<ReceivedMessage> received)
+      throws IOException {
+    PullRequest request =
+        PullRequest.newBuilder()
+            .setSubscription(name)
+            .setMaxMessages(maxMessages - received.size())
+            .build();
+    long timeout = Math.max(deadline - System.nanoTime(), TimeUnit.MILLISECONDS.toNanos(1));
+    GrpcCallContext context =
+        GrpcCallContext.createDefault().withTimeout(Duration.ofNanos(timeout));
+    ApiFuture<PullResponse> response =
+        ApiFutures.catching(
+            getStub().pullCallable().futureCall(request, context),
+            ApiException.class,
+            e -> {
+              // The wait is over, null ends the pull with what arrived so far
+              if (StatusCode.Code.DEADLINE_EXCEEDED == e.getStatusCode().getCode()) {
+                return null;
+              }
+              throw e;
+            },
+            MoreExecutors.directExecutor());
+    return ApiFutures.transformAsync(
+        response,
+        pulled -> {
+          if (null == pulled) {
+            return ApiFutures.immediateFuture(received);
+          }
+          boolean first = received.isEmpty() && pulled.getReceivedMessagesCount() > 0;
+          received.addAll(pulled.getReceivedMessagesList());
+          long now = System.nanoTime();
+          long next = first ? now + TimeUnit.MILLISECONDS.toNanos(batchMillis) : deadline;
+          if (received.size() >= maxMessages || now >= next) {
+            return ApiFutures.immediateFuture(received);
+          }
+          return pull(name, maxMessages, next, batchMillis, received);
+        },
+        MoreExecutors.directExecutor());
+  }
+
+  /** Acknowledges messages, in batches of up to MAX_ACK_IDS ack ids */
+  ApiFuture<List<Empty>> acknowledge(String subscription, List<String> ackIds)
+      throws IOException {
+    String name = getName(subscription);
+    List<ApiFuture<Empty>> futures = new ArrayList<>();
+    for (int from = 0; from < ackIds.size(); from += MAX_ACK_IDS) {
+      List<String> batch = ackIds.subList(from, Math.min(ackIds.size(), from + MAX_ACK_IDS));
+      futures.add(
+          getStub()
+              .acknowledgeCallable()
+              .futureCall(
+                  AcknowledgeRequest.newBuilder()
+                      .setSubscription(name)
+                      .addAllAckIds(batch)
+                      .build()));
+    }
+    return ApiFutures.allAsList(futures);
+  }
+
+  /**
+   * Opens a StreamingPull of a subscription, delivering its responses to an observer
+   *
+   * @param ackDeadlineSeconds - time to ack streamed messages before they are redelivered
+   * @return the request side of the stream, the observer's controller cancels it
+   */
+  ClientStream<StreamingPullRequest> streamingPull(
+      String subscription, int ackDeadlineSeconds, ResponseObserver<StreamingPullResponse> observer)
+      throws IOException {
+    ClientStream<StreamingPullRequest> stream =
+        getStub().streamingPullCallable().splitCall(observer);
+    stream.send(
+        StreamingPullRequest.newBuilder()
+            .setSubscription(getName(subscription))
+            .setStreamAckDeadlineSeconds(ackDeadlineSeconds)
+            .build());
+    return stream;
+  }
+
+  /** Closes the stub and its channels */
+  public synchronized void shutdown() {
+    if (null != stub) {
+      stub.close();
+      stub = null;
+    }
+  }
+}
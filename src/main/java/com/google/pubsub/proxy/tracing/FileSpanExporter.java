@@ -0,0 +1,60 @@
+/* Copyright 2019 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+
+package com.google.pubsub.proxy.tracing;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.logging.Logger;
+
+/** Appends spans to a file as JSON lines, for tools that tail or load it */
+class FileSpanExporter implements SpanExporter {
+
+  private static final Logger LOGGER = Logger.getLogger(FileSpanExporter.class.getName());
+
+  private final Path file;
+  private final Writer writer;
+
+  FileSpanExporter(Path file) throws IOException {
+    this.file = file;
+    this.writer =
+        Files.newBufferedWriter(
+            file, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+  }
+
+  @Override
+  public synchronized void export(RequestTrace trace) {
+    try {
+      writer.write(trace.toJson());
+      writer.write('\n');
+      writer.flush();
+    } catch (IOException e) {
+      LOGGER.warning("Failed to write a span to " + file + ": " + e.getMessage());
+    }
+  }
+
+  @Override
+  public synchronized void shutdown() {
+    try {
+      writer.close();
+    } catch (IOException e) {
+      LOGGER.warning("Failed to close " + file + ": " + e.getMessage());
+    }
+  }
+}
@@ -0,0 +1,191 @@
+/* Copyright 2019 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+
+package com.google.pubsub.proxy.tracing;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Stage timers of a request, measured with nanoTime. Each mark adds the time since the previous
+ * one to a stage, so that stages that alternate, such as looking up publishers and publishing,
+ * add up. Requests that are not timed share {@link #NONE}, whose marks do nothing, so that they
+ * allocate nothing.
+ *
+ * <p>Stages are marked by one thread at a time, on the request thread and then on the thread
+ * completing the publish futures, which happens after the request thread's marks.
+ */
+public final class RequestTrace {
+
+  /** Request property holding the trace of a timed request */
+  public static final String PROPERTY = RequestTrace.class.getName();
+
+  /** Stages of a publish request, in order */
+  public enum Stage {
+    // Reading and binding the request body, up to the resource method
+    BIND("bind"),
+    // Converting and validating the messages, and routing them
+    READ("read"),
+    QUOTA("quota"),
+    // Looking up publishers, creating them on a cache miss
+    PUBLISHER("publisher"),
+    // Handing the messages to the publishers
+    PUBLISH("publish"),
+    // Waiting for Cloud Pub/Sub to acknowledge the messages
+    ACK("ack");
+
+    private final String metricName;
+
+    Stage(String metricName) {
+      this.metricName = metricName;
+    }
+
+    public String getMetricName() {
+      return metricName;
+    }
+  }
+
+  /** Trace of the requests that are not timed */
+  public static final RequestTrace NONE = new RequestTrace(null, null, null, false);
+
+  private static final JsonFactory JSON_FACTORY = new JsonFactory();
+  private static final Stage[] STAGES = Stage.values();
+
+  private final String traceId;
+  private final String parentId;
+  private final String spanId;
+  private final boolean sampled;
+  private final long startMillis;
+  private final long startNanos;
+  private final long[] stageNanos;
+  private String name;
+  private long lastNanos;
+  private long durationNanos;
+  private int status;
+
+  RequestTrace(String traceId, String parentId, String spanId, boolean sampled) {
+    this.traceId = traceId;
+    this.parentId = parentId;
+    this.spanId = spanId;
+    this.sampled = sampled;
+    this.startMillis = System.currentTimeMillis();
+    this.startNanos = System.nanoTime();
+    this.stageNanos = null != traceId ? new long[STAGES.length] : null;
+    this.lastNanos = startNanos;
+  }
+
+  /** Returns whether the request is timed */
+  public boolean isRecording() {
+    return this != NONE;
+  }
+
+  /** Returns whether the request is exported as a span */
+  public boolean isSampled() {
+    return sampled;
+  }
+
+  /** Names the span of the request, such as "POST /publish" */
+  public void setName(String name) {
+    this.name = name;
+  }
+
+  /** Adds the time since the previous mark, or the start of the request, to a stage */
+  public void mark(Stage stage) {
+    if (this == NONE) {
+      return;
+    }
+    long now = System.nanoTime();
+    stageNanos[stage.ordinal()] += now - lastNanos;
+    lastNanos = now;
+  }
+
+  /** Ends the request with its response status */
+  void end(int status) {
+    this.durationNanos = System.nanoTime() - startNanos;
+    this.status = status;
+  }
+
+  public long getStageNanos(Stage stage) {
+    return stageNanos[stage.ordinal()];
+  }
+
+  public long getDurationNanos() {
+    return durationNanos;
+  }
+
+  public String getTraceId() {
+    return traceId;
+  }
+
+  public String getSpanId() {
+    return spanId;
+  }
+
+  /** Returns the value of the Server-Timing header, in milliseconds, listing the stages seen */
+  public String toServerTiming() {
+    StringBuilder timing = new StringBuilder(128);
+    for (Stage stage : STAGES) {
+      long nanos = stageNanos[stage.ordinal()];
+      if (0 != nanos) {
+        appendTiming(timing, stage.getMetricName(), nanos);
+      }
+    }
+    appendTiming(timing, "total", durationNanos);
+    return timing.toString();
+  }
+
+  private static void appendTiming(StringBuilder timing, String metric, long nanos) {
+    if (timing.length() > 0) {
+      timing.append(", ");
+    }
+    timing.append(metric).append(";dur=");
+    timing.append(String.format(Locale.ROOT, "%.3f", nanos / 1e6));
+  }
+
+  /** Returns the span of the request as a single line of JSON */
+  public String toJson() {
+    StringWriter json = new StringWriter(256);
+    try (JsonGenerator generator = JSON_FACTORY.createGenerator(json)) {
+      generator.writeStartObject();
+      generator.writeStringField("traceId", traceId);
+      generator.writeStringField("spanId", spanId);
+      if (null != parentId) {
+        generator.writeStringField("parentSpanId", parentId);
+      }
+      generator.writeStringField("name", name);
+      generator.writeNumberField(
+          "startTimeUnixNano", TimeUnit.MILLISECONDS.toNanos(startMillis));
+      generator.writeNumberField("durationNanos", durationNanos);
+      generator.writeNumberField("status", status);
+      generator.writeObjectFieldStart("stages");
+      for (Stage stage : STAGES) {
+        long nanos = stageNanos[stage.ordinal()];
+        if (0 != nanos) {
+          generator.writeNumberField(stage.getMetricName(), nanos);
+        }
+      }
+      generator.writeEndObject();
+      generator.writeEndObject();
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    return json.toString();
+  }
+}
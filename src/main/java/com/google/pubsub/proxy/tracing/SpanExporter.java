@@ -0,0 +1,29 @@
+/* Copyright 2019 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+
+package com.google.pubsub.proxy.tracing;
+
+/**
+ * Receives the spans of sampled requests, once their response is sent. Exporters named by
+ * "tracing.exporter" are created with a public constructor taking the proxy settings.
+ */
+public interface SpanExporter {
+
+  /** Exports the span of an ended request, on the thread that sent its response */
+  void export(RequestTrace trace);
+
+  /** Flushes and releases the exporter when the proxy stops */
+  default void shutdown() {}
+}
@@ -0,0 +1,179 @@
+/* Copyright 2019 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+
+package com.google.pubsub.proxy.tracing;
+
+import com.google.pubsub.proxy.config.ProxyConfig;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Paths;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Decides which requests are timed and exported as spans. A share of requests set by
+ * "tracing.sampleRate" is sampled, along with every request whose W3C traceparent header asks for
+ * it while tracing is on, and their spans join the caller's trace. "tracing.serverTiming" times
+ * every request for its Server-Timing header, without exporting it.
+ *
+ * <p>Spans go to the exporter named by "tracing.exporter": "log" (default), "file" to append them
+ * to "tracing.file", or the class name of a {@link SpanExporter}.
+ */
+public class Tracer {
+
+  public static final String SAMPLE_RATE = "tracing.sampleRate";
+  public static final String SERVER_TIMING = "tracing.serverTiming";
+  public static final String EXPORTER = "tracing.exporter";
+  public static final String FILE = "tracing.file";
+
+  public static final String TRACEPARENT_HEADER = "traceparent";
+  public static final String SERVER_TIMING_HEADER = "Server-Timing";
+
+  // "00-" trace id "-" parent id "-" flags
+  private static final int TRACEPARENT_LENGTH = 55;
+
+  private final double sampleRate;
+  private final boolean timeAll;
+  private final SpanExporter exporter;
+
+  public Tracer(ProxyConfig config) {
+    this.sampleRate = config.getDouble(SAMPLE_RATE, 0.0);
+    this.timeAll = config.getBoolean(SERVER_TIMING, false);
+    this.exporter = sampleRate > 0 ? createExporter(config) : null;
+  }
+
+  Tracer(double sampleRate, boolean timeAll, SpanExporter exporter) {
+    this.sampleRate = sampleRate;
+    this.timeAll = timeAll;
+    this.exporter = exporter;
+  }
+
+  private static SpanExporter createExporter(ProxyConfig config) {
+    String name = config.get(EXPORTER);
+    if (null == name || "log".equals(name.trim())) {
+      return new LogSpanExporter();
+    }
+    try {
+      if ("file".equals(name.trim())) {
+        String file = config.get(FILE);
+        if (null == file) {
+          throw new IllegalArgumentException(FILE + " is required by the file exporter");
+        }
+        return new FileSpanExporter(Paths.get(file.trim()));
+      }
+      return Class.forName(name.trim())
+          .asSubclass(SpanExporter.class)
+          .getConstructor(ProxyConfig.class)
+          .newInstance(config);
+    } catch (IOException e) {
+      throw new UncheckedIOException("Unable to open the span file", e);
+    } catch (ReflectiveOperationException e) {
+      throw new IllegalArgumentException("Unable to create the span exporter " + name, e);
+    }
+  }
+
+  /**
+   * Starts the trace of a request, or returns {@link RequestTrace#NONE} if it is not timed
+   *
+   * @param traceparent - traceparent header of the request, or null
+   */
+  public RequestTrace start(String traceparent) {
+    boolean hasParent = isValid(traceparent);
+    boolean sampled =
+        sampleRate > 0
+            && ((hasParent && isSampled(traceparent))
+                || ThreadLocalRandom.current().nextDouble() < sampleRate);
+    if (!sampled && !timeAll) {
+      return RequestTrace.NONE;
+    }
+    String traceId = hasParent ? traceparent.substring(3, 35) : randomId(2);
+    String parentId = hasParent ? traceparent.substring(36, 52) : null;
+    return new RequestTrace(traceId, parentId, randomId(1), sampled);
+  }
+
+  /** Ends the trace of a request once its response is sent, exporting it if it is sampled */
+  public void end(RequestTrace trace, int status) {
+    if (!trace.isRecording()) {
+      return;
+    }
+    trace.end(status);
+    if (trace.isSampled()) {
+      exporter.export(trace);
+    }
+  }
+
+  public void shutdown() {
+    if (null != exporter) {
+      exporter.shutdown();
+    }
+  }
+
+  /** Returns whether a traceparent header is well formed, without a version it can't read */
+  static boolean isValid(String traceparent) {
+    if (null == traceparent
+        || traceparent.length() < TRACEPARENT_LENGTH
+        || traceparent.startsWith("ff")) {
+      return false;
+    }
+    // Later versions may add fields after the flags
+    if (traceparent.length() > TRACEPARENT_LENGTH
+        && (traceparent.startsWith("00") || '-' != traceparent.charAt(TRACEPARENT_LENGTH))) {
+      return false;
+    }
+    for (int i = 0; i < TRACEPARENT_LENGTH; i++) {
+      char c = traceparent.charAt(i);
+      boolean dash = 2 == i || 35 == i || 52 == i;
+      if (dash ? '-' != c : !isLowerHex(c)) {
+        return false;
+      }
+    }
+    return !isZero(traceparent, 3, 35) && !isZero(traceparent, 36, 52);
+  }
+
+  private static boolean isSampled(String traceparent) {
+    return 0 != (Character.digit(traceparent.charAt(54), 16) & 1);
+  }
+
+  private static boolean isLowerHex(char c) {
+    return (c >= '0' && c <= '9') || (c >= 'a' && c <= 'f');
+  }
+
+  private static boolean isZero(String value, int from, int to) {
+    for (int i = from; i < to; i++) {
+      if ('0' != value.charAt(i)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /** Returns a random non-zero id of a number of longs, as lower case hex */
+  private static String randomId(int longs) {
+    ThreadLocalRandom random = ThreadLocalRandom.current();
+    StringBuilder id = new StringBuilder(longs * 16);
+    for (int i = 0; i < longs; i++) {
+      long value = random.nextLong();
+      // A zero id is invalid, and this makes it impossible
+      if (i == longs - 1 && 0 == value) {
+        value = 1;
+      }
+      String hex = Long.toHexString(value);
+      for (int pad = hex.length(); pad < 16; pad++) {
+        id.append('0');
+      }
+      id.append(hex);
+    }
+    return id.toString();
+  }
+}
@@ -0,0 +1,88 @@
+/* Copyright 2019 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+package com.google.pubsub.proxy.config;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ProxyConfigTest {
+
+  private static final String KEY = "batching.delayThresholdMillis";
+  private Properties properties;
+  private Map<String, String> env;
+
+  @Before
+  public void setUp() {
+    properties = new Properties();
+    properties.setProperty(KEY, "10");
+    properties.setProperty("prefix.telemetry-." + KEY, "100");
+    properties.setProperty("prefix.telemetry-eu." + KEY, "200");
+    properties.setProperty("topic.orders." + KEY, "1");
+    env = new HashMap<>();
+  }
+
+  @Test
+  public void WhenTopicIsConfiguredThenTopicSettingWins() {
+    ProxyConfig config = new ProxyConfig(properties, env);
+    assertEquals("1", config.get("orders", KEY));
+  }
+
+  @Test
+  public void WhenSeveralPrefixesMatchThenLongestPrefixWins() {
+    ProxyConfig config = new ProxyConfig(properties, env);
+    assertEquals("100", config.get("telemetry-us", KEY));
+    assertEquals("200", config.get("telemetry-eu-west", KEY));
+  }
+
+  @Test
+  public void WhenNothingMatchesThenGlobalSettingIsReturned() {
+    ProxyConfig config = new ProxyConfig(properties, env);
+    assertEquals("10", config.get("billing", KEY));
+    assertNull(config.get("billing", "batching.elementCountThreshold"));
+  }
+
+  @Test
+  public void WhenEnvironmentIsSetThenItOverridesGlobalFileSetting() {
+    env.put("BATCHING_DELAY_THRESHOLD_MILLIS", "5");
+    ProxyConfig config = new ProxyConfig(properties, env);
+    assertEquals(5L, config.getLong("billing", KEY, 0));
+    assertEquals(1L, config.getLong("orders", KEY, 0));
+  }
+
+  @Test
+  public void WhenSettingIsScopedThenEveryValueIsListed() {
+    env.put("BATCHING_DELAY_THRESHOLD_MILLIS", "5");
+    properties.setProperty("topic.orders.other." + KEY + "s", "7");
+    ProxyConfig config = new ProxyConfig(properties, env);
+    List<String> values = config.getAll(KEY);
+    Collections.sort(values);
+    assertEquals(Arrays.asList("1", "10", "100", "200", "5"), values);
+  }
+
+  @Test
+  public void EnvironmentNamesAreUpperSnakeCase() {
+    assertEquals("BATCHING_DELAY_THRESHOLD_MILLIS", ProxyConfig.envName(KEY));
+    assertEquals("PUBLISHER_EXECUTOR_THREADS", ProxyConfig.envName("publisher.executorThreads"));
+  }
+}
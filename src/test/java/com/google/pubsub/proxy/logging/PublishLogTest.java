@@ -0,0 +1,141 @@
+/* Copyright 2019 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+
+package com.google.pubsub.proxy.logging;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+public class PublishLogTest {
+
+  private final List<PublishLogEntry> written = new CopyOnWriteArrayList<>();
+
+  @Test
+  public void WhenRingIsFullThenEntriesAreDroppedAndCounted() {
+    PublishLog log = new PublishLog(written::addAll, true, 4, 10, 1L);
+    for (int i = 0; i < 6; i++) {
+      log.offer("topic", "id" + i, 1L, PublishLogEntry.OK, null);
+    }
+    assertEquals(2L, log.getDroppedCount());
+
+    List<PublishLogEntry> batch = new ArrayList<>();
+    assertEquals(4, log.drain(batch, 10));
+    assertEquals("id0", batch.get(0).getMessageId());
+    assertEquals("id3", batch.get(3).getMessageId());
+
+    // Drained slots are reused by the next lap
+    assertTrue(log.offer("topic", "id6", 1L, PublishLogEntry.OK, null));
+    batch.clear();
+    assertEquals(1, log.drain(batch, 10));
+    assertEquals("id6", batch.get(0).getMessageId());
+    assertEquals(0, log.drain(batch, 10));
+  }
+
+  @Test
+  public void WhenSuccessesAreNotLoggedThenOnlyFailuresAreQueued() {
+    PublishLog log = new PublishLog(written::addAll, false, 8, 10, 1L);
+    log.logSuccess("topic", "id", 1L);
+    log.logFailure("topic", 2L, "UNAVAILABLE", "Connection refused");
+    List<PublishLogEntry> batch = new ArrayList<>();
+    assertEquals(1, log.drain(batch, 10));
+    assertTrue(batch.get(0).isFailure());
+    assertNull(batch.get(0).getMessageId());
+  }
+
+  @Test
+  public void WhenProducersRaceThenEveryEntryIsWrittenOrDropped() throws Exception {
+    PublishLog log =
+        new PublishLog(written::addAll, true, 256, 64, TimeUnit.MILLISECONDS.toNanos(1));
+    log.start();
+    int perThread = 20000;
+    List<Thread> threads = new ArrayList<>();
+    for (int t = 0; t < 4; t++) {
+      String topic = "topic" + t;
+      Thread thread =
+          new Thread(
+              () -> {
+                for (int i = 0; i < perThread; i++) {
+                  log.offer(topic, String.valueOf(i), i, PublishLogEntry.OK, null);
+                }
+              });
+      threads.add(thread);
+      thread.start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    log.shutdown();
+
+    assertEquals(4L * perThread, log.getWrittenCount() + log.getDroppedCount());
+    assertEquals(log.getWrittenCount(), written.size());
+    // Entries of each producer keep their order
+    long[] last = {-1, -1, -1, -1};
+    for (PublishLogEntry entry : written) {
+      int producer = entry.getTopic().charAt(5) - '0';
+      assertTrue(entry.getLatencyNanos() > last[producer]);
+      last[producer] = entry.getLatencyNanos();
+    }
+  }
+
+  @Test
+  public void WhenSinkFailsThenBatchIsCountedAsDropped() throws Exception {
+    PublishLog log =
+        new PublishLog(
+            entries -> {
+              throw new IllegalStateException("Sink is down");
+            },
+            true,
+            8,
+            10,
+            TimeUnit.MILLISECONDS.toNanos(1));
+    log.start();
+    log.logSuccess("topic", "id", 1L);
+    log.shutdown();
+    assertEquals(1L, log.getDroppedCount());
+    assertEquals(0L, log.getWrittenCount());
+  }
+
+  @Test
+  public void WhenEntriesAreWrittenToStdoutThenEachIsAJsonLine() throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    StdoutJsonSink sink = new StdoutJsonSink(out);
+    sink.write(
+        Arrays.asList(
+            new PublishLogEntry(0L, "orders", "42", 1500000L, PublishLogEntry.OK, null),
+            new PublishLogEntry(0L, "orders", null, 0L, "UNAVAILABLE", "Connection refused")));
+    sink.write(Collections.emptyList());
+    String[] lines = new String(out.toByteArray(), StandardCharsets.UTF_8).split("\n");
+    assertEquals(2, lines.length);
+    assertEquals(
+        "{\"time\":\"1970-01-01T00:00:00Z\",\"severity\":\"INFO\","
+            + "\"message\":\"Successfully published: 42\",\"topic\":\"orders\","
+            + "\"messageId\":\"42\",\"latencyMs\":1.5,\"status\":\"OK\"}",
+        lines[0]);
+    assertTrue(lines[1].contains("\"severity\":\"ERROR\""));
+    assertFalse(lines[1].contains("messageId"));
+  }
+}
@@ -0,0 +1,157 @@
+/* Copyright 2019 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+
+package com.google.pubsub.proxy.publish;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.google.api.core.ApiFuture;
+import com.google.api.core.ApiFutures;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedInputStream;
+import com.google.pubsub.proxy.config.ProxyConfig;
+import com.google.pubsub.v1.PubsubMessage;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+public class EnvelopeBatcherTest {
+
+  private final List<PubsubMessage> published = new ArrayList<>();
+
+  /** Decodes the messages of an envelope, as consumers do */
+  private static List<PubsubMessage> unpack(PubsubMessage envelope) throws IOException {
+    List<PubsubMessage> messages = new ArrayList<>();
+    CodedInputStream in = envelope.getData().newCodedInput();
+    int tag;
+    while (0 != (tag = in.readTag())) {
+      if (EnvelopeBatcher.MESSAGES_FIELD != tag >>> 3) {
+        in.skipField(tag);
+        continue;
+      }
+      messages.add(PubsubMessage.parseFrom(in.readBytes()));
+    }
+    return messages;
+  }
+
+  private static ProxyConfig config(String... keyValues) {
+    Properties properties = new Properties();
+    properties.setProperty("topic.telemetry." + EnvelopeBatcher.ENABLED, "true");
+    for (int i = 0; i < keyValues.length; i += 2) {
+      properties.setProperty(keyValues[i], keyValues[i + 1]);
+    }
+    return new ProxyConfig(properties, Collections.emptyMap());
+  }
+
+  private EnvelopeBatcher batcher(ProxyConfig config, ApiFuture<String> result) {
+    return new EnvelopeBatcher(
+        config,
+        (topic, publisher, envelope) -> {
+          synchronized (published) {
+            published.add(envelope);
+          }
+          return result;
+        });
+  }
+
+  private static PubsubMessage message(String data) {
+    return PubsubMessage.newBuilder()
+        .setData(ByteString.copyFromUtf8(data))
+        .putAttributes("source", data)
+        .build();
+  }
+
+  @Test
+  public void WhenEnvelopeIsFullThenMessagesArePackedAndGetLogicalIds() throws Exception {
+    EnvelopeBatcher batcher =
+        batcher(
+            config(EnvelopeBatcher.MAX_MESSAGES, "3", EnvelopeBatcher.MAX_DELAY_MILLIS, "60000"),
+            ApiFutures.immediateFuture("42"));
+    assertTrue(batcher.isEnabled("telemetry"));
+    List<ApiFuture<String>> ids = new ArrayList<>();
+    for (int i = 0; i < 3; i++) {
+      ids.add(batcher.add("telemetry", null, message("event" + i)));
+    }
+
+    assertEquals(1, published.size());
+    PubsubMessage envelope = published.get(0);
+    assertEquals(EnvelopeBatcher.VERSION, envelope.getAttributesOrThrow("envelope"));
+    List<PubsubMessage> messages = unpack(envelope);
+    assertEquals(3, messages.size());
+    assertEquals(message("event2"), messages.get(2));
+    assertEquals("42:0", ids.get(0).get());
+    assertEquals("42:2", ids.get(2).get());
+    assertEquals(1L, batcher.getEnvelopeCount());
+    assertEquals(3L, batcher.getPackedCount());
+  }
+
+  @Test
+  public void WhenDelayElapsesThenPartialEnvelopeIsPublished() throws Exception {
+    EnvelopeBatcher batcher =
+        batcher(
+            config(EnvelopeBatcher.MAX_DELAY_MILLIS, "10"), ApiFutures.immediateFuture("7"));
+    ApiFuture<String> id = batcher.add("telemetry", null, message("event"));
+    assertEquals("7:0", id.get(10, TimeUnit.SECONDS));
+    batcher.flushAll();
+  }
+
+  @Test
+  public void WhenEnvelopeWouldBeTooLargeThenItIsPublishedFirst() throws Exception {
+    EnvelopeBatcher batcher =
+        batcher(
+            config(
+                EnvelopeBatcher.MAX_BYTES, "100", EnvelopeBatcher.MAX_DELAY_MILLIS, "60000"),
+            ApiFutures.immediateFuture("1"));
+    batcher.add("telemetry", null, message("0123456789012345678901234567890123456789"));
+    batcher.add("telemetry", null, message("0123456789012345678901234567890123456789"));
+    assertEquals(1, published.size());
+
+    // A message larger than an envelope is published on its own
+    PubsubMessage large = message(String.format("%200s", "x"));
+    assertEquals("1", batcher.add("telemetry", null, large).get());
+    assertSame(large, published.get(1));
+    batcher.flushAll();
+    assertEquals(3, published.size());
+  }
+
+  @Test
+  public void WhenEnvelopeFailsThenEachMessageFails() throws Exception {
+    EnvelopeBatcher batcher =
+        batcher(
+            config(EnvelopeBatcher.MAX_MESSAGES, "2"),
+            ApiFutures.immediateFailedFuture(new IllegalStateException("Unavailable")));
+    ApiFuture<String> first = batcher.add("telemetry", null, message("a"));
+    ApiFuture<String> second = batcher.add("telemetry", null, message("b"));
+    for (ApiFuture<String> id : Arrays.asList(first, second)) {
+      try {
+        id.get();
+        fail("Expected the publish to fail");
+      } catch (ExecutionException e) {
+        assertEquals("Unavailable", e.getCause().getMessage());
+      }
+    }
+    assertFalse(batcher.isEnabled("other"));
+  }
+}
@@ -0,0 +1,96 @@
+/* Copyright 2019 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+package com.google.pubsub.proxy.publish;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import com.google.api.core.ApiFuture;
+import com.google.api.core.ApiFutures;
+import com.google.api.core.SettableApiFuture;
+import com.google.pubsub.proxy.config.ProxyConfig;
+import java.util.Collections;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+
+public class IdempotencyCacheTest {
+
+  private final AtomicInteger publishes = new AtomicInteger();
+
+  private static IdempotencyCache cache(String... settings) {
+    Properties properties = new Properties();
+    for (int i = 0; i < settings.length; i += 2) {
+      properties.setProperty(settings[i], settings[i + 1]);
+    }
+    return IdempotencyCache.create(new ProxyConfig(properties, Collections.emptyMap()));
+  }
+
+  private ApiFuture<String> publish(IdempotencyCache cache, String key, ApiFuture<String> result) {
+    return cache.publishOnce(
+        key,
+        () -> {
+          publishes.incrementAndGet();
+          return result;
+        });
+  }
+
+  @Test
+  public void WhenKeyIsRepeatedThenFirstMessageIdIsReturned() throws Exception {
+    IdempotencyCache cache = cache();
+    SettableApiFuture<String> first = SettableApiFuture.create();
+    ApiFuture<String> original = publish(cache, "topic/key", first);
+    ApiFuture<String> retried = publish(cache, "topic/key", ApiFutures.immediateFuture("2"));
+    first.set("1");
+    assertEquals("1", original.get());
+    assertEquals("1", retried.get());
+    assertEquals(1, publishes.get());
+    assertEquals(1L, cache.getHitCount());
+
+    publish(cache, "topic/other", ApiFutures.immediateFuture("3"));
+    assertEquals(2, publishes.get());
+  }
+
+  @Test
+  public void WhenPublishFailsThenKeyIsForgotten() throws Exception {
+    IdempotencyCache cache = cache();
+    publish(cache, "topic/key", ApiFutures.immediateFailedFuture(new Exception("unavailable")));
+    assertEquals("4", publish(cache, "topic/key", ApiFutures.immediateFuture("4")).get());
+    assertEquals(2, publishes.get());
+  }
+
+  @Test
+  public void WhenKeyIsOlderThanTheWindowThenItIsPublishedAgain() throws Exception {
+    IdempotencyCache cache = cache(IdempotencyCache.TTL_SECONDS, "0");
+    publish(cache, "topic/key", ApiFutures.immediateFuture("1"));
+    Thread.sleep(1);
+    assertEquals("2", publish(cache, "topic/key", ApiFutures.immediateFuture("2")).get());
+  }
+
+  @Test
+  public void WhenTooManyKeysAreKeptThenOldestAreEvicted() throws Exception {
+    IdempotencyCache cache = cache(IdempotencyCache.MAX_KEYS, "16");
+    for (int i = 0; i < 1000; i++) {
+      publish(cache, "topic/" + i, ApiFutures.immediateFuture(Integer.toString(i)));
+    }
+    assertEquals("again", publish(cache, "topic/0", ApiFutures.immediateFuture("again")).get());
+    assertEquals(1001, publishes.get());
+  }
+
+  @Test
+  public void WhenMaxKeysIsZeroThenCacheIsDisabled() {
+    assertNull(cache(IdempotencyCache.MAX_KEYS, "0"));
+  }
+}
@@ -0,0 +1,154 @@
+/* Copyright 2019 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+
+package com.google.pubsub.proxy.publish;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import com.google.api.core.ApiFuture;
+import com.google.api.core.ApiFutures;
+import com.google.api.core.SettableApiFuture;
+import com.google.api.gax.grpc.GrpcStatusCode;
+import com.google.api.gax.rpc.NotFoundException;
+import com.google.api.gax.rpc.UnavailableException;
+import com.google.cloud.pubsub.v1.Publisher;
+import com.google.protobuf.ByteString;
+import com.google.pubsub.proxy.config.ProxyConfig;
+import com.google.pubsub.v1.PubsubMessage;
+import io.grpc.Status.Code;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Properties;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class MessageDispatcherTest {
+
+  private static final PubsubMessage MESSAGE =
+      PubsubMessage.newBuilder().setData(ByteString.copyFromUtf8("data")).build();
+
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+  private Deque<Publisher> created;
+  private PublisherCache cache;
+  private MessageDispatcher dispatcher;
+
+  @Before
+  public void setUp() {
+    created = new ArrayDeque<>();
+    cache = new PublisherCache(topic -> created.remove(), 10, 0, TimeUnit.MILLISECONDS);
+    dispatcher = new MessageDispatcher(cache, "project");
+  }
+
+  @After
+  public void tearDown() throws InterruptedException {
+    dispatcher.shutdown();
+  }
+
+  private static Publisher shutDown() {
+    Publisher publisher = mock(Publisher.class);
+    when(publisher.publish(any()))
+        .thenThrow(new IllegalStateException("Cannot publish on a shut-down publisher."));
+    return publisher;
+  }
+
+  @Test
+  public void WhenPublisherWasEvictedThenMessageGoesToTheCurrentOne() throws Exception {
+    Publisher current = mock(Publisher.class);
+    when(current.publish(any())).thenReturn(ApiFutures.immediateFuture("id"));
+    created.addAll(Arrays.asList(shutDown(), current));
+    Publisher evicted = dispatcher.getPublisher("topic");
+    Thread.sleep(2);
+    cache.sweep();
+
+    assertEquals("id", dispatcher.publish("topic", evicted, MESSAGE).get());
+  }
+
+  @Test
+  public void WhenEvictedTopicHasNothingOutstandingThenItsUsageIsForgotten() throws Exception {
+    SettableApiFuture<String> ack = SettableApiFuture.create();
+    Publisher publisher = mock(Publisher.class);
+    when(publisher.publish(any())).thenReturn(ack);
+    created.add(publisher);
+    dispatcher.publish("topic", dispatcher.getPublisher("topic"), MESSAGE);
+    OutstandingLimiter.Usage usage = dispatcher.getLimiter().getUsage("topic");
+    Thread.sleep(2);
+    cache.sweep();
+    assertSame(usage, dispatcher.getLimiter().getUsage("topic"));
+
+    ack.set("id");
+    cache.sweep();
+    assertNull(dispatcher.getLimiter().getUsage("topic"));
+  }
+
+  @Test
+  public void WhenFailedMessageIsSpilledThenItIsNotReportedAsFailed() throws Exception {
+    Properties properties = new Properties();
+    properties.setProperty(SpillLog.DIRECTORY, folder.getRoot().getPath());
+    MessageDispatcher spilling =
+        new MessageDispatcher(
+            cache, "project", new ProxyConfig(properties, Collections.emptyMap()));
+    try {
+      Publisher publisher = mock(Publisher.class);
+      when(publisher.publish(any()))
+          .thenReturn(
+              ApiFutures.immediateFailedFuture(
+                  new UnavailableException(null, GrpcStatusCode.of(Code.UNAVAILABLE), true)),
+              ApiFutures.immediateFailedFuture(
+                  new NotFoundException(null, GrpcStatusCode.of(Code.NOT_FOUND), false)));
+      created.add(publisher);
+      Publisher current = spilling.getPublisher("topic");
+
+      assertEquals(MessageDispatcher.SPILLED, spilling.publish("topic", current, MESSAGE).get());
+      assertEquals(1L, spilling.getSpill().getSpilledCount());
+      try {
+        spilling.publish("topic", current, MESSAGE).get();
+        fail("Expected the publish to fail");
+      } catch (ExecutionException e) {
+        assertTrue(e.getCause() instanceof NotFoundException);
+      }
+      assertEquals(1L, spilling.getSpill().getSpilledCount());
+    } finally {
+      spilling.shutdown();
+    }
+  }
+
+  @Test
+  public void WhenCurrentPublisherIsShutDownThenPublishFails() throws Exception {
+    created.add(shutDown());
+    ApiFuture<String> future =
+        dispatcher.publish("topic", dispatcher.getPublisher("topic"), MESSAGE);
+    try {
+      future.get();
+      fail("Expected the publish to fail");
+    } catch (ExecutionException e) {
+      assertTrue(e.getCause() instanceof IllegalStateException);
+    }
+  }
+}
@@ -0,0 +1,98 @@
+/* Copyright 2019 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+
+package com.google.pubsub.proxy.publish;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.google.pubsub.proxy.config.ProxyConfig;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import org.junit.Test;
+
+public class MessageRouterTest {
+
+  private static Map<String, String> attributes(String... keyValues) {
+    Map<String, String> attributes = new HashMap<>();
+    for (int i = 0; i < keyValues.length; i += 2) {
+      attributes.put(keyValues[i], keyValues[i + 1]);
+    }
+    return attributes;
+  }
+
+  private static MessageRouter router(String... rules) {
+    MessageRouter router = new MessageRouter();
+    for (int i = 0; i < rules.length; i += 2) {
+      router.add(rules[i], rules[i + 1]);
+    }
+    return router;
+  }
+
+  @Test
+  public void WhenAttributesMatchConditionsThenMessageIsRoutedToRuleTopics() {
+    MessageRouter router =
+        router(
+            "severity=ERROR", "alerts,archive",
+            "region=eu-*", "eu-events",
+            "tenant", "tenants");
+    assertEquals(
+        Arrays.asList("alerts", "archive"), router.route(attributes("severity", "ERROR")));
+    assertEquals(
+        Collections.singletonList("eu-events"), router.route(attributes("region", "eu-west1")));
+    assertEquals(
+        Collections.singletonList("tenants"), router.route(attributes("tenant", "acme")));
+    assertTrue(router.route(attributes("severity", "INFO", "region", "us-east1")).isEmpty());
+    assertEquals(1L, router.getUnmatchedCount());
+  }
+
+  @Test
+  public void WhenSeveralRulesMatchThenTopicsAreMergedInRuleOrder() {
+    MessageRouter router =
+        router(
+            "type=order&region=eu-*", "eu-orders,archive",
+            "type", "archive",
+            "region=eu", "unused",
+            "region=*", "all-regions");
+    assertEquals(
+        Arrays.asList("eu-orders", "archive", "all-regions"),
+        router.route(attributes("type", "order", "region", "eu-west1")));
+    assertEquals(
+        Arrays.asList("archive", "all-regions"),
+        router.route(attributes("type", "order", "region", "us-east1")));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void WhenRuleHasAnInvalidTopicThenItIsRefused() {
+    router("type", "goog-topic");
+  }
+
+  @Test
+  public void WhenNoRuleIsConfiguredThenThereIsNoRouter() {
+    Properties properties = new Properties();
+    assertNull(MessageRouter.create(new ProxyConfig(properties, Collections.emptyMap())));
+    properties.setProperty(MessageRouter.RULES, "alerts");
+    properties.setProperty("routing.rule.alerts.when", "severity=ERROR");
+    properties.setProperty("routing.rule.alerts.topics", "alerts");
+    MessageRouter router =
+        MessageRouter.create(new ProxyConfig(properties, Collections.emptyMap()));
+    assertEquals(
+        Collections.singletonList("alerts"), router.route(attributes("severity", "ERROR")));
+  }
+}
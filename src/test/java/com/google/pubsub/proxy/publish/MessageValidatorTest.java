@@ -0,0 +1,96 @@
+/* Copyright 2019 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+package com.google.pubsub.proxy.publish;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.google.protobuf.ByteString;
+import com.google.pubsub.v1.PubsubMessage;
+import java.util.Arrays;
+import org.junit.Test;
+
+public class MessageValidatorTest {
+
+  private static PubsubMessage.Builder message() {
+    return PubsubMessage.newBuilder().setData(ByteString.copyFromUtf8("data"));
+  }
+
+  private static String repeat(String s, int times) {
+    char[] chars = new char[times * s.length()];
+    for (int i = 0; i < times; i++) {
+      s.getChars(0, s.length(), chars, i * s.length());
+    }
+    return new String(chars);
+  }
+
+  @Test
+  public void WhenTopicNameIsCheckedThenPubsubRulesApply() {
+    assertTrue(MessageValidator.isValidTopic("my-topic_1.v2~%+"));
+    assertFalse(MessageValidator.isValidTopic("1topic"));
+    assertFalse(MessageValidator.isValidTopic("ab"));
+    assertFalse(MessageValidator.isValidTopic("google-topic"));
+    assertFalse(MessageValidator.isValidTopic("topic/other"));
+    assertFalse(MessageValidator.isValidTopic("t" + repeat("a", 255)));
+  }
+
+  @Test
+  public void WhenMessageIsWithinLimitsThenItIsValid() {
+    PubsubMessage.Builder builder = message();
+    for (int i = 0; i < MessageValidator.MAX_ATTRIBUTES; i++) {
+      builder.putAttributes("key" + i, "value");
+    }
+    builder.putAttributes(repeat("k", 256), repeat("é", 512));
+    builder.removeAttributes("key0");
+    assertNull(MessageValidator.validate(builder.build()));
+  }
+
+  @Test
+  public void WhenMessageExceedsLimitsThenErrorIsReturned() {
+    assertNotNull(MessageValidator.validate(PubsubMessage.getDefaultInstance()));
+    assertNotNull(MessageValidator.validate(message().putAttributes(repeat("k", 257), "").build()));
+    assertNotNull(
+        MessageValidator.validate(message().putAttributes("k", repeat("é", 513)).build()));
+    PubsubMessage.Builder builder = message();
+    for (int i = 0; i <= MessageValidator.MAX_ATTRIBUTES; i++) {
+      builder.putAttributes("key" + i, "value");
+    }
+    assertNotNull(MessageValidator.validate(builder.build()));
+  }
+
+  @Test
+  public void WhenRequestIsCheckedThenEveryInvalidMessageIsListed() {
+    MessageValidator validator = new MessageValidator();
+    PubsubMessage valid = message().build();
+    validator.check(0, "topic", valid);
+    validator.check(1, null, valid);
+    validator.check(2, "goog", valid);
+    validator.check(3, "topic", PubsubMessage.getDefaultInstance());
+    assertEquals(3, validator.getErrors().size());
+    assertEquals(1, validator.getErrors().get(0).getIndex());
+    assertEquals(3, validator.getErrors().get(2).getIndex());
+    assertFalse(validator.isTooLarge());
+
+    byte[] data = new byte[MessageValidator.MAX_REQUEST_BYTES / 2];
+    Arrays.fill(data, (byte) 1);
+    PubsubMessage half = PubsubMessage.newBuilder().setData(ByteString.copyFrom(data)).build();
+    validator.check(4, "topic", half);
+    validator.check(5, "topic", half);
+    assertTrue(validator.isTooLarge());
+  }
+}
@@ -0,0 +1,146 @@
+/* Copyright 2019 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+package com.google.pubsub.proxy.publish;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.google.api.core.ApiFuture;
+import com.google.api.core.SettableApiFuture;
+import com.google.api.gax.grpc.GrpcStatusCode;
+import com.google.api.gax.rpc.ApiExceptionFactory;
+import com.google.pubsub.proxy.config.ProxyConfig;
+import io.grpc.Status;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ExecutionException;
+import org.junit.Test;
+
+public class OrderingKeySequencerTest {
+
+  private final List<String> names = new ArrayList<>();
+  private final List<SettableApiFuture<String>> sent = new ArrayList<>();
+
+  private static OrderingKeySequencer sequencer(int maxInFlight, int maxAttempts) {
+    Properties properties = new Properties();
+    properties.setProperty(OrderingKeySequencer.MAX_IN_FLIGHT_PER_KEY, "" + maxInFlight);
+    properties.setProperty(OrderingKeySequencer.MAX_ATTEMPTS, "" + maxAttempts);
+    return new OrderingKeySequencer(new ProxyConfig(properties, Collections.emptyMap()));
+  }
+
+  private ApiFuture<String> publish(OrderingKeySequencer sequencer, String key, String name) {
+    return sequencer.publish(
+        key,
+        () -> {
+          SettableApiFuture<String> future = SettableApiFuture.create();
+          names.add(name);
+          sent.add(future);
+          return future;
+        });
+  }
+
+  @Test
+  public void WhenKeyHasFullWindowInFlightThenNextMessageWaitsForAck() throws Exception {
+    OrderingKeySequencer sequencer = sequencer(2, 1);
+    ApiFuture<String> first = publish(sequencer, "t/k", "a");
+    publish(sequencer, "t/k", "b");
+    ApiFuture<String> third = publish(sequencer, "t/k", "c");
+    assertEquals(Arrays.asList("a", "b"), names);
+
+    sent.get(0).set("1");
+    assertEquals("1", first.get());
+    assertEquals(Arrays.asList("a", "b", "c"), names);
+    assertFalse(third.isDone());
+
+    sent.get(1).set("2");
+    sent.get(2).set("3");
+    assertEquals("3", third.get());
+    assertEquals(0, sequencer.getActiveKeyCount());
+  }
+
+  @Test
+  public void WhenKeysDifferThenMessagesPublishInParallel() {
+    OrderingKeySequencer sequencer = sequencer(1, 1);
+    publish(sequencer, "t/a", "a");
+    publish(sequencer, "t/b", "b");
+    publish(sequencer, "u/a", "c");
+    assertEquals(3, sent.size());
+    assertEquals(3, sequencer.getActiveKeyCount());
+  }
+
+  @Test
+  public void WhenMessageFailsThenItIsResentBeforeLaterMessages() throws Exception {
+    OrderingKeySequencer sequencer = sequencer(2, 3);
+    ApiFuture<String> first = publish(sequencer, "t/k", "a");
+    publish(sequencer, "t/k", "b");
+    publish(sequencer, "t/k", "c");
+    sent.get(0).setException(new Exception("unavailable"));
+    assertEquals(Arrays.asList("a", "b"), names);
+
+    sent.get(1).set("2");
+    assertEquals(Arrays.asList("a", "b", "a", "c"), names);
+    sent.get(2).set("1");
+    assertEquals("1", first.get());
+    assertEquals(0L, sequencer.getResumedCount());
+  }
+
+  @Test
+  public void WhenMessageFailsAfterItsAttemptsThenQueuedMessagesFailAndKeyIsResumed()
+      throws Exception {
+    OrderingKeySequencer sequencer = sequencer(1, 2);
+    ApiFuture<String> first = publish(sequencer, "t/k", "a");
+    ApiFuture<String> queued = publish(sequencer, "t/k", "b");
+    sent.get(0).setException(new Exception("unavailable"));
+    sent.get(1).setException(new Exception("unavailable"));
+    assertEquals(Arrays.asList("a", "a"), names);
+    assertTrue(first.isDone());
+    try {
+      queued.get();
+      fail("Queued message must fail");
+    } catch (ExecutionException e) {
+      assertTrue(e.getCause().getMessage().contains("unavailable"));
+    }
+    assertEquals(1L, sequencer.getResumedCount());
+
+    ApiFuture<String> retried = publish(sequencer, "t/k", "c");
+    assertEquals(3, sent.size());
+    sent.get(2).set("3");
+    assertEquals("3", retried.get());
+  }
+
+  @Test
+  public void WhenFailureIsNotRetryableThenMessageIsNotResent() throws Exception {
+    OrderingKeySequencer sequencer = sequencer(1, 3);
+    ApiFuture<String> first = publish(sequencer, "t/k", "a");
+    Exception invalid =
+        ApiExceptionFactory.createException(
+            new RuntimeException(), GrpcStatusCode.of(Status.Code.INVALID_ARGUMENT), false);
+    sent.get(0).setException(invalid);
+    assertEquals(1, sent.size());
+    try {
+      first.get();
+      fail("Message must fail");
+    } catch (ExecutionException e) {
+      assertSame(invalid, e.getCause());
+    }
+    assertEquals(0, sequencer.getActiveKeyCount());
+  }
+}
@@ -0,0 +1,130 @@
+/* Copyright 2019 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+package com.google.pubsub.proxy.publish;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import com.google.pubsub.proxy.config.ProxyConfig;
+import java.util.Collections;
+import java.util.Properties;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+public class OutstandingLimiterTest {
+
+  private static OutstandingLimiter limiter(String... settings) {
+    Properties properties = new Properties();
+    for (int i = 0; i < settings.length; i += 2) {
+      properties.setProperty(settings[i], settings[i + 1]);
+    }
+    return new OutstandingLimiter(new ProxyConfig(properties, Collections.emptyMap()));
+  }
+
+  @Test
+  public void WhenTopicLimitIsReachedThenOnlyThatTopicIsRejected() throws Exception {
+    OutstandingLimiter limiter =
+        limiter(OutstandingLimiter.TOPIC_MAX_OUTSTANDING_BYTES, "100");
+    assertTrue(limiter.admit("orders"));
+    OutstandingLimiter.Usage usage = limiter.acquire("orders", 100);
+    assertFalse(limiter.admit("orders"));
+    assertTrue(limiter.admit("events"));
+
+    limiter.release(usage, 100);
+    assertTrue(limiter.admit("orders"));
+    assertEquals(0L, limiter.getTotal().getBytes());
+  }
+
+  @Test
+  public void WhenTotalLimitIsReachedThenEveryTopicIsRejected() throws Exception {
+    OutstandingLimiter limiter = limiter(OutstandingLimiter.MAX_OUTSTANDING_MESSAGES, "2");
+    limiter.acquire("orders", 10);
+    limiter.acquire("events", 10);
+    assertEquals(2L, limiter.getTotal().getMessages());
+    assertFalse(limiter.admit("orders"));
+    assertFalse(limiter.admit("other"));
+  }
+
+  @Test
+  public void WhenTopicIsConfiguredThenItsOwnLimitApplies() throws Exception {
+    OutstandingLimiter limiter =
+        limiter(
+            OutstandingLimiter.TOPIC_MAX_OUTSTANDING_MESSAGES, "1",
+            "topic.bulk." + OutstandingLimiter.TOPIC_MAX_OUTSTANDING_MESSAGES, "3");
+    limiter.acquire("bulk", 1);
+    limiter.acquire("bulk", 1);
+    assertTrue(limiter.admit("bulk"));
+    limiter.acquire("orders", 1);
+    assertFalse(limiter.admit("orders"));
+  }
+
+  @Test(timeout = 10000)
+  public void WhenWaitingThenRoomIsFoundOnceMessagesAreAcked() throws Exception {
+    OutstandingLimiter limiter = limiter(OutstandingLimiter.TOPIC_MAX_OUTSTANDING_MESSAGES, "1");
+    OutstandingLimiter.Usage usage = limiter.acquire("orders", 1);
+    ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+    try {
+      executor.schedule(() -> limiter.release(usage, 1), 100, TimeUnit.MILLISECONDS);
+      assertTrue(limiter.awaitRoom("orders", TimeUnit.SECONDS.toNanos(5)));
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test(timeout = 10000)
+  public void WhenWaitTimesOutThenNoRoomIsFound() throws Exception {
+    OutstandingLimiter limiter = limiter(OutstandingLimiter.TOPIC_MAX_OUTSTANDING_MESSAGES, "1");
+    limiter.acquire("orders", 1);
+    long start = System.nanoTime();
+    assertFalse(limiter.awaitRoom("orders", TimeUnit.MILLISECONDS.toNanos(50)));
+    assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(50));
+  }
+
+  @Test(timeout = 10000)
+  public void WhenRequestThreadIsNotVirtualThenItIsRejectedWithoutWaiting() throws Exception {
+    OutstandingLimiter limiter =
+        limiter(
+            OutstandingLimiter.TOPIC_MAX_OUTSTANDING_MESSAGES, "1",
+            OutstandingLimiter.WAIT_TIMEOUT_MILLIS, "60000");
+    limiter.acquire("orders", 1);
+    assertFalse(limiter.admit("orders"));
+  }
+
+  @Test
+  public void WhenTopicIsNotInUseThenOnlyItsIdleUsageIsForgotten() throws Exception {
+    OutstandingLimiter limiter = limiter(OutstandingLimiter.TOPIC_MAX_OUTSTANDING_MESSAGES, "1");
+    OutstandingLimiter.Usage busy = limiter.acquire("busy", 1);
+    OutstandingLimiter.Usage idle = limiter.acquire("idle", 1);
+    limiter.release(idle, 1);
+    limiter.forgetIdle(topic -> false);
+    assertSame(busy, limiter.acquire("busy", 1));
+    assertNotSame(idle, limiter.acquire("idle", 1));
+    assertFalse(limiter.admit("busy"));
+  }
+
+  @Test
+  public void WhenTopicWasNeverPublishedThenAdmittingItKeepsNoUsage() throws Exception {
+    OutstandingLimiter limiter = limiter(OutstandingLimiter.MAX_OUTSTANDING_MESSAGES, "1");
+    assertTrue(limiter.admit("unknown"));
+    OutstandingLimiter.Usage usage = limiter.acquire("unknown", 1);
+    assertFalse(limiter.admit("other"));
+    assertSame(usage, limiter.acquire("unknown", 0));
+  }
+}
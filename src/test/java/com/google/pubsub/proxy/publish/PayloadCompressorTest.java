@@ -0,0 +1,85 @@
+/* Copyright 2019 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+package com.google.pubsub.proxy.publish;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import com.github.luben.zstd.Zstd;
+import com.google.protobuf.ByteString;
+import com.google.pubsub.proxy.config.ProxyConfig;
+import com.google.pubsub.v1.PubsubMessage;
+import java.util.Collections;
+import java.util.Properties;
+import java.util.zip.GZIPInputStream;
+import org.junit.Test;
+
+public class PayloadCompressorTest {
+
+  private static final ByteString DATA = ByteString.copyFromUtf8(new String(new char[4096]));
+
+  private static PayloadCompressor compressor(String... settings) {
+    Properties properties = new Properties();
+    for (int i = 0; i < settings.length; i += 2) {
+      properties.setProperty(settings[i], settings[i + 1]);
+    }
+    return new PayloadCompressor(new ProxyConfig(properties, Collections.emptyMap()));
+  }
+
+  private static PubsubMessage message() {
+    return PubsubMessage.newBuilder().setData(DATA).build();
+  }
+
+  @Test
+  public void WhenTopicUsesGzipThenDataIsCompressedAndMarked() throws Exception {
+    PayloadCompressor compressor = compressor("topic.t." + PayloadCompressor.CODEC, "gzip");
+    PubsubMessage compressed = compressor.compress("t", message());
+    assertEquals("gzip", compressed.getAttributesOrThrow("contentEncoding"));
+    assertEquals(
+        DATA, ByteString.readFrom(new GZIPInputStream(compressed.getData().newInput())));
+    assertEquals(DATA.size(), compressor.getBytesIn());
+    assertEquals(compressed.getData().size(), compressor.getBytesOut());
+
+    PubsubMessage other = message();
+    assertSame(other, compressor.compress("other", other));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void WhenAnyTopicHasAnUnknownCodecThenCompressorIsNotCreated() {
+    compressor("prefix.telemetry-." + PayloadCompressor.CODEC, "gzipp");
+  }
+
+  @Test
+  public void WhenTopicUsesZstdThenDataIsCompressedAndMarked() {
+    PayloadCompressor compressor =
+        compressor(PayloadCompressor.CODEC, "zstd", PayloadCompressor.ATTRIBUTE, "codec");
+    PubsubMessage compressed = compressor.compress("t", message());
+    assertEquals("zstd", compressed.getAttributesOrThrow("codec"));
+    byte[] data = Zstd.decompress(compressed.getData().toByteArray(), DATA.size());
+    assertEquals(DATA, ByteString.copyFrom(data));
+  }
+
+  @Test
+  public void WhenDataIsSmallOrAlreadyMarkedThenItIsNotCompressed() {
+    PayloadCompressor compressor =
+        compressor(PayloadCompressor.CODEC, "gzip", PayloadCompressor.MIN_BYTES, "8192");
+    PubsubMessage small = message();
+    assertSame(small, compressor.compress("t", small));
+
+    compressor = compressor(PayloadCompressor.CODEC, "gzip");
+    PubsubMessage marked = message().toBuilder().putAttributes("contentEncoding", "gzip").build();
+    assertSame(marked, compressor.compress("t", marked));
+  }
+}
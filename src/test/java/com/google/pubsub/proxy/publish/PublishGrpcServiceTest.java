@@ -0,0 +1,182 @@
+/* Copyright 2019 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+package com.google.pubsub.proxy.publish;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.google.api.core.ApiFutures;
+import com.google.cloud.pubsub.v1.Publisher;
+import com.google.protobuf.ByteString;
+import com.google.pubsub.proxy.config.ProxyConfig;
+import com.google.pubsub.v1.PublishRequest;
+import com.google.pubsub.v1.PublishResponse;
+import com.google.pubsub.v1.PublisherGrpc;
+import com.google.pubsub.v1.PubsubMessage;
+import io.grpc.ManagedChannel;
+import io.grpc.Metadata;
+import io.grpc.Server;
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import io.grpc.stub.MetadataUtils;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class PublishGrpcServiceTest {
+
+  private Publisher publisher;
+  private Server server;
+  private ManagedChannel channel;
+  private PublisherGrpc.PublisherBlockingStub stub;
+
+  @Before
+  public void setUp() throws Exception {
+    publisher = mock(Publisher.class);
+    MessageDispatcher dispatcher =
+        new MessageDispatcher(
+            new PublisherCache(topic -> publisher, 10, 1, TimeUnit.MINUTES), "proxy-project");
+    String name = InProcessServerBuilder.generateName();
+    server =
+        InProcessServerBuilder.forName(name)
+            .directExecutor()
+            .addService(new PublishGrpcService(dispatcher))
+            .build()
+            .start();
+    channel = InProcessChannelBuilder.forName(name).directExecutor().build();
+    stub = PublisherGrpc.newBlockingStub(channel);
+  }
+
+  @After
+  public void tearDown() {
+    channel.shutdownNow();
+    server.shutdownNow();
+  }
+
+  private static PublishRequest request(String topic) {
+    PubsubMessage message =
+        PubsubMessage.newBuilder().setData(ByteString.copyFromUtf8("d")).build();
+    return PublishRequest.newBuilder().setTopic(topic).addMessages(message).build();
+  }
+
+  @Test
+  public void WhenMessagesArePublishedThenMessageIdsAreReturned() {
+    when(publisher.publish(any())).thenReturn(ApiFutures.immediateFuture("1"));
+    PublishResponse response = stub.publish(request("topic"));
+    assertEquals("1", response.getMessageIds(0));
+  }
+
+  @Test
+  public void WhenPublishFailsThenErrorStatusIsReturned() {
+    when(publisher.publish(any()))
+        .thenReturn(ApiFutures.immediateFailedFuture(new IllegalStateException("down")));
+    try {
+      stub.publish(request("topic"));
+    } catch (StatusRuntimeException e) {
+      assertEquals(Status.Code.UNKNOWN, e.getStatus().getCode());
+      return;
+    }
+    throw new AssertionError("Expected publish to fail");
+  }
+
+  @Test
+  public void WhenTopicIsAFullNameThenItIsPublishedToTheShortName() {
+    when(publisher.publish(any())).thenReturn(ApiFutures.immediateFuture("1"));
+    PublishResponse response = stub.publish(request("projects/proxy-project/topics/topic"));
+    assertEquals("1", response.getMessageIds(0));
+  }
+
+  @Test
+  public void WhenTopicBelongsToAnotherProjectThenRequestIsRejected() {
+    try {
+      stub.publish(request("projects/other-project/topics/topic"));
+    } catch (StatusRuntimeException e) {
+      assertEquals(Status.Code.INVALID_ARGUMENT, e.getStatus().getCode());
+      return;
+    }
+    throw new AssertionError("Expected publish to be rejected");
+  }
+
+  @Test
+  public void WhenMessageIsInvalidThenRequestIsRejectedBeforePublishing() {
+    PublishRequest request =
+        request("topic").toBuilder().addMessages(PubsubMessage.getDefaultInstance()).build();
+    try {
+      stub.publish(request);
+    } catch (StatusRuntimeException e) {
+      assertEquals(Status.Code.INVALID_ARGUMENT, e.getStatus().getCode());
+      assertTrue(e.getStatus().getDescription().contains("1: "));
+      verify(publisher, never()).publish(any());
+      return;
+    }
+    throw new AssertionError("Expected publish to be rejected");
+  }
+
+  @Test
+  public void WhenCallerIsOverItsRateLimitThenRequestIsRejected() throws Exception {
+    Properties properties = new Properties();
+    properties.setProperty("caller.alice." + QuotaLimiter.MESSAGES_PER_SECOND, "1");
+    MessageDispatcher dispatcher =
+        new MessageDispatcher(
+            new PublisherCache(topic -> publisher, 10, 1, TimeUnit.MINUTES),
+            "proxy-project",
+            new ProxyConfig(properties, Collections.emptyMap()));
+    String name = InProcessServerBuilder.generateName();
+    Server limited =
+        InProcessServerBuilder.forName(name)
+            .directExecutor()
+            .addService(new PublishGrpcService(dispatcher).withCallers())
+            .build()
+            .start();
+    ManagedChannel limitedChannel = InProcessChannelBuilder.forName(name).directExecutor().build();
+    try {
+      Metadata headers = new Metadata();
+      headers.put(
+          Metadata.Key.of("x-endpoint-api-userinfo", Metadata.ASCII_STRING_MARSHALLER),
+          Base64.getEncoder().encodeToString("{\"id\": \"alice\"}".getBytes(UTF_8)));
+      PublisherGrpc.PublisherBlockingStub alice =
+          MetadataUtils.attachHeaders(PublisherGrpc.newBlockingStub(limitedChannel), headers);
+      when(publisher.publish(any())).thenReturn(ApiFutures.immediateFuture("1"));
+      alice.publish(request("topic"));
+      try {
+        alice.publish(request("topic"));
+        fail("Expected publish to be rate limited");
+      } catch (StatusRuntimeException e) {
+        assertEquals(Status.Code.RESOURCE_EXHAUSTED, e.getStatus().getCode());
+      }
+      // Other callers have their own limits
+      PublisherGrpc.newBlockingStub(limitedChannel).publish(request("topic"));
+      verify(publisher, times(2)).publish(any());
+    } finally {
+      limitedChannel.shutdownNow();
+      limited.shutdownNow();
+      dispatcher.shutdown();
+    }
+  }
+}
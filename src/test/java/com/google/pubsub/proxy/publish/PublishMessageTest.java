@@ -15,29 +15,50 @@
 package com.google.pubsub.proxy.publish;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.spy;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 import static org.mockito.internal.verification.VerificationModeFactory.times;
 
 import com.google.api.core.ApiFuture;
+import com.google.api.core.SettableApiFuture;
 import com.google.cloud.pubsub.v1.Publisher;
+import com.google.protobuf.ByteString;
+import com.google.pubsub.proxy.config.ProxyConfig;
 import com.google.pubsub.proxy.entities.Message;
+import com.google.pubsub.proxy.entities.PublishResult;
 import com.google.pubsub.proxy.entities.Request;
+import com.google.pubsub.proxy.schema.TopicSchemas;
 import com.google.pubsub.v1.PubsubMessage;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.time.ZonedDateTime;
 import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
-import java.util.Map;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Properties;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executor;
 import java.util.concurrent.TimeUnit;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.TimeoutHandler;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.Response;
 import org.junit.After;
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import org.junit.runner.RunWith;
 import org.mockito.ArgumentCaptor;
 import org.mockito.Captor;
@@ -54,23 +75,37 @@ public class PublishMessageTest {
   private static final HashMap<String, String> ATTRIBUTES = new HashMap<>();
   private static final String PUBLISH_TIME =
       ZonedDateTime.now().format(DateTimeFormatter.ISO_OFFSET_DATE_TIME);
-  @Mock Map<String, Publisher> publisherList;
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
   @Mock Publisher publisher;
+  @Mock AsyncResponse asyncResponse;
   @Captor ArgumentCaptor<PubsubMessage> captor;
+  @Captor ArgumentCaptor<Response> responseCaptor;
+  @Captor ArgumentCaptor<TimeoutHandler> timeoutCaptor;
   private PublishMessage publishMessage;
   private Request request;
   private Message message;
   private ApiFuture<String> goodFuture;
   private ApiFuture<String> badFuture;
+  private final List<MessageDispatcher> dispatchers = new ArrayList<>();
 
   @Before
   public void setUp() {
-    publishMessage = new PublishMessage();
+    publishMessage = new PublishMessage(dispatcher(new Properties()));
     setupRequest();
-    setupMockPublisher();
     setupFutures();
   }
 
+  /** Returns a dispatcher publishing through the mock publisher, shut down after the test */
+  private MessageDispatcher dispatcher(Properties properties) {
+    MessageDispatcher dispatcher =
+        new MessageDispatcher(
+            new PublisherCache(topic -> publisher, 10, 1, TimeUnit.MINUTES),
+            null,
+            new ProxyConfig(properties, Collections.emptyMap()));
+    dispatchers.add(dispatcher);
+    return dispatcher;
+  }
+
   private void setupRequest() {
     request = new Request();
     request.setTopic(TOPIC);
@@ -84,7 +119,6 @@ public class PublishMessageTest {
     message.setData(DATA);
     message.setPublishTime(PUBLISH_TIME);
     message.setAttributes(ATTRIBUTES);
-    publishMessage.setPublishers(publisherList);
   }
 
   private void setupFutures() {
@@ -93,19 +127,23 @@ public class PublishMessageTest {
   }
 
   @After
-  public void tearDown() {}
+  public void tearDown() throws InterruptedException {
+    for (MessageDispatcher dispatcher : dispatchers) {
+      dispatcher.shutdown();
+    }
+  }
 
   @Test
   public void WhenRequestIsValidAndTopicExistsThenRespectivePublisherIsReturned() throws Exception {
     when(publisher.publish(any())).thenReturn(goodFuture);
-    publishMessage.doPost(request);
+    publishMessage.doPost(request, asyncResponse);
     verify(publisher).publish(Mockito.any());
   }
 
   @Test
   public void WhenRequestIsValidAndSingleMessageExistsThenPublishIsInvokedOnce() throws Exception {
     when(publisher.publish(any())).thenReturn(goodFuture);
-    publishMessage.doPost(request);
+    publishMessage.doPost(request, asyncResponse);
     verify(publisher, times(1)).publish(Mockito.any());
   }
 
@@ -116,15 +154,79 @@ public class PublishMessageTest {
     messages.add(message);
     request.setMessages(messages);
     when(publisher.publish(any())).thenReturn(goodFuture);
-    publishMessage.doPost(request);
+    publishMessage.doPost(request, asyncResponse);
     verify(publisher, times(2)).publish(Mockito.any());
   }
 
+  @Test
+  public void WhenMessagesAreStreamedThenEachIsPublished() throws Exception {
+    PubsubMessage streamed =
+        PubsubMessage.newBuilder()
+            .setMessageId(MESSAGE_ID)
+            .setData(ByteString.copyFromUtf8(DATA))
+            .build();
+    request = new Request();
+    request.setTopic(TOPIC);
+    request.setMessageStream(Arrays.asList(streamed, streamed, streamed).iterator());
+    when(publisher.publish(any())).thenReturn(goodFuture);
+    publishMessage.doPost(request, asyncResponse);
+    verify(publisher, times(3)).publish(streamed);
+  }
+
+  @Test
+  public void WhenStreamedRequestIsTooLargeThenReadingStopsEarly() throws Exception {
+    PubsubMessage large =
+        PubsubMessage.newBuilder()
+            .setData(ByteString.copyFrom(new byte[MessageValidator.MAX_REQUEST_BYTES / 2]))
+            .build();
+    Iterator<PubsubMessage> messages =
+        Arrays.asList(large, large, large, large, large).iterator();
+    request = new Request();
+    request.setTopic(TOPIC);
+    request.setMessageStream(messages);
+    publishMessage.doPost(request, asyncResponse);
+    verify(asyncResponse).resume(responseCaptor.capture());
+    assertEquals(413, responseCaptor.getValue().getStatus());
+    assertTrue(messages.hasNext());
+    verify(publisher, never()).publish(any());
+  }
+
+  @Test
+  public void WhenBinaryBodyIsTooLargeThenRequestIsRejected() throws Exception {
+    byte[] body = new byte[MessageValidator.MAX_REQUEST_BYTES + 1];
+    publishMessage.doPostRaw(TOPIC, new ByteArrayInputStream(body), asyncResponse);
+    verify(asyncResponse).resume(responseCaptor.capture());
+    assertEquals(413, responseCaptor.getValue().getStatus());
+  }
+
+  @Test
+  public void WhenBodyIsBinaryThenItIsPublishedAsMessageData() throws Exception {
+    byte[] body = new byte[] {0, (byte) 0xff, 1};
+    when(publisher.publish(any())).thenReturn(goodFuture);
+    publishMessage.doPostRaw(TOPIC, new ByteArrayInputStream(body), asyncResponse);
+    verify(publisher).publish(captor.capture());
+    assertEquals(ByteString.copyFrom(body), captor.getValue().getData());
+  }
+
+  @Test
+  public void WhenBinaryBodyHasNoTopicThenRequestIsRejected() throws Exception {
+    publishMessage.doPostRaw(null, new ByteArrayInputStream(new byte[] {1}), asyncResponse);
+    verify(asyncResponse).resume(responseCaptor.capture());
+    assertEquals(400, responseCaptor.getValue().getStatus());
+  }
+
+  @Test
+  public void WhenDataIsBase64ThenItIsDecoded() {
+    assertEquals(
+        ByteString.copyFrom(new byte[] {0, (byte) 0xff, 1}), PublishMessage.toData("AP8B", true));
+    assertEquals(DATA, PublishMessage.toData(DATA, false).toStringUtf8());
+  }
+
   @Test
   public void WhenRequestIsValidAndPublisherInitializedThenPubSubMessagesArePublished()
       throws Exception {
     when(publisher.publish(any())).thenReturn(goodFuture);
-    publishMessage.doPost(request);
+    publishMessage.doPost(request, asyncResponse);
     verify(publisher).publish(captor.capture());
     assertEquals(DATA, captor.getAllValues().get(0).getData().toStringUtf8());
   }
@@ -132,44 +234,334 @@ public class PublishMessageTest {
   @Test
   public void WhenPublishIsSuccessfulThenOnSuccessCallbackIsInvokedOntheFuture() throws Exception {
     when(publisher.publish(any())).thenReturn(goodFuture);
-    publishMessage.doPost(request);
+    publishMessage.doPost(request, asyncResponse);
     verify(goodFuture, times(1)).addListener(any(Runnable.class), any(Executor.class));
   }
 
   @Test
   public void WhenPublishFailsThenOnFailureCallbackIsInvokedOntheFuture() throws Exception {
     when(publisher.publish(any())).thenReturn(badFuture);
-    publishMessage.doPost(request);
+    publishMessage.doPost(request, asyncResponse);
     verify(badFuture, times(1)).addListener(any(Runnable.class), any(Executor.class));
   }
 
-  @Test(expected = Exception.class)
-  public void WhenMessageDataIsNullThenExceptionIsThrown() throws Exception {
+  @Test
+  public void WhenNotWaitingForAckThenResponseIsResumedWithStatusOK() throws Exception {
+    when(publisher.publish(any())).thenReturn(goodFuture);
+    publishMessage.doPost(request, asyncResponse);
+    verify(asyncResponse).resume(responseCaptor.capture());
+    assertEquals(200, responseCaptor.getValue().getStatus());
+    assertNull(responseCaptor.getValue().getEntity());
+  }
+
+  @Test
+  public void WhenWaitingForAckThenResponseCarriesMessageIds() throws Exception {
+    publishMessage.setWaitForAck(true);
+    when(publisher.publish(any())).thenReturn(goodFuture);
+    publishMessage.doPost(request, asyncResponse);
+    verify(asyncResponse).resume(responseCaptor.capture());
+    assertEquals(200, responseCaptor.getValue().getStatus());
+    PublishResult result = (PublishResult) responseCaptor.getValue().getEntity();
+    assertEquals(Collections.singletonList("success"), result.getMessageIds());
+    assertEquals(0, result.getErrors().size());
+  }
+
+  @Test
+  public void WhenWaitingForAckAndPublishFailsThenResponseCarriesMessageError() throws Exception {
+    ArrayList<Message> messages = new ArrayList<>();
+    messages.add(message);
+    messages.add(message);
+    request.setMessages(messages);
+    publishMessage.setWaitForAck(true);
+    when(publisher.publish(any())).thenReturn(goodFuture, badFuture);
+    publishMessage.doPost(request, asyncResponse);
+    verify(asyncResponse).resume(responseCaptor.capture());
+    assertEquals(500, responseCaptor.getValue().getStatus());
+    PublishResult result = (PublishResult) responseCaptor.getValue().getEntity();
+    assertEquals("success", result.getMessageIds().get(0));
+    assertNull(result.getMessageIds().get(1));
+    assertEquals(1, result.getErrors().get(0).getIndex());
+  }
+
+  @Test
+  public void WhenAcksDoNotComeInTimeThenResponseTimesOut() throws Exception {
+    publishMessage.setWaitForAck(true);
+    publishMessage.setAckTimeoutSeconds(5);
+    when(publisher.publish(any())).thenReturn(SettableApiFuture.create());
+    publishMessage.doPost(request, asyncResponse);
+    verify(asyncResponse).setTimeout(5, TimeUnit.SECONDS);
+    verify(asyncResponse).setTimeoutHandler(timeoutCaptor.capture());
+    verify(asyncResponse, never()).resume(any(Response.class));
+
+    timeoutCaptor.getValue().handleTimeout(asyncResponse);
+    verify(asyncResponse).resume(responseCaptor.capture());
+    assertEquals(504, responseCaptor.getValue().getStatus());
+  }
+
+  @Test
+  public void WhenTooManyMessagesAreOutstandingThenRequestIsRejected() throws Exception {
+    Properties properties = new Properties();
+    properties.setProperty(OutstandingLimiter.TOPIC_MAX_OUTSTANDING_MESSAGES, "1");
+    properties.setProperty(OutstandingLimiter.RETRY_AFTER_SECONDS, "5");
+    publishMessage = new PublishMessage(dispatcher(properties));
+    SettableApiFuture<String> pending = SettableApiFuture.create();
+    when(publisher.publish(any())).thenReturn(pending);
+
+    publishMessage.doPost(request, asyncResponse);
+    publishMessage.doPost(request, asyncResponse);
+    verify(asyncResponse, times(2)).resume(responseCaptor.capture());
+    assertEquals(200, responseCaptor.getAllValues().get(0).getStatus());
+    Response rejected = responseCaptor.getAllValues().get(1);
+    assertEquals(503, rejected.getStatus());
+    assertEquals("5", rejected.getHeaderString(HttpHeaders.RETRY_AFTER));
+    verify(publisher, times(1)).publish(any());
+
+    // Acknowledging the outstanding message admits requests again
+    pending.set("success");
+    publishMessage.doPost(request, asyncResponse);
+    verify(publisher, times(2)).publish(any());
+  }
+
+  @Test
+  public void WhenOverTheLimitsAndSpillingThenMessagesAreSpilledAndAccepted() throws Exception {
+    Properties properties = new Properties();
+    properties.setProperty(OutstandingLimiter.TOPIC_MAX_OUTSTANDING_MESSAGES, "1");
+    properties.setProperty(SpillLog.DIRECTORY, folder.getRoot().getPath());
+    MessageDispatcher dispatcher = dispatcher(properties);
+    publishMessage = new PublishMessage(dispatcher);
+    when(publisher.publish(any())).thenReturn(SettableApiFuture.create());
+
+    publishMessage.doPost(request, asyncResponse);
+    publishMessage.doPost(request, asyncResponse);
+    verify(asyncResponse, times(2)).resume(responseCaptor.capture());
+    assertEquals(202, responseCaptor.getAllValues().get(1).getStatus());
+    verify(publisher, times(1)).publish(any());
+    assertEquals(1L, dispatcher.getSpill().getSpilledCount());
+  }
+
+  @Test
+  public void WhenOrderedMessagesAreOverTheLimitsThenTheyAreRejectedNotSpilled()
+      throws Exception {
+    Properties properties = new Properties();
+    properties.setProperty(OutstandingLimiter.TOPIC_MAX_OUTSTANDING_MESSAGES, "1");
+    properties.setProperty(SpillLog.DIRECTORY, folder.getRoot().getPath());
+    MessageDispatcher dispatcher = dispatcher(properties);
+    publishMessage = new PublishMessage(dispatcher);
+    message.setOrderingKey("key");
+    when(publisher.publish(any())).thenReturn(SettableApiFuture.create());
+
+    // The first request waits for its ack, the second is over the limits
+    publishMessage.doPost(request, asyncResponse);
+    publishMessage.doPost(request, asyncResponse);
+    verify(asyncResponse).resume(responseCaptor.capture());
+    assertEquals(503, responseCaptor.getValue().getStatus());
+    assertEquals(0L, dispatcher.getSpill().getSpilledCount());
+  }
+
+  @Test
+  public void WhenMessagesAreOrderedThenFailuresAreReportedWithoutWaitForAck() throws Exception {
+    message.setOrderingKey("key");
+    when(publisher.publish(any())).thenReturn(badFuture);
+    publishMessage.doPost(request, asyncResponse);
+    verify(asyncResponse).resume(responseCaptor.capture());
+    assertEquals(500, responseCaptor.getValue().getStatus());
+    PublishResult result = (PublishResult) responseCaptor.getValue().getEntity();
+    assertEquals(0, result.getErrors().get(0).getIndex());
+  }
+
+  @Test
+  public void WhenMessagesNameTopicsThenEachTopicGetsItsResult() throws Exception {
+    Message other = new Message();
+    other.setTopic("OTHER_TOPIC");
+    other.setData(DATA);
+    request = new Request();
+    request.setMessages(Arrays.asList(other, message, other));
+    request.setTopic(TOPIC);
+    publishMessage.setWaitForAck(true);
+    when(publisher.publish(any())).thenReturn(goodFuture);
+
+    publishMessage.doPost(request, asyncResponse);
+    verify(publisher, times(3)).publish(any());
+    verify(asyncResponse).resume(responseCaptor.capture());
+    PublishResult result = (PublishResult) responseCaptor.getValue().getEntity();
+    assertEquals(3, result.getMessageIds().size());
+    assertEquals(2, result.getTopics().get("OTHER_TOPIC").getMessageIds().size());
+    assertEquals(1, result.getTopics().get(TOPIC).getMessageIds().size());
+  }
+
+  @Test
+  public void WhenMessageHasNoTopicThenRequestIsRejected() throws Exception {
+    Message other = new Message();
+    other.setTopic("OTHER_TOPIC");
+    request = new Request();
+    request.setMessages(Arrays.asList(other, message));
+    publishMessage.doPost(request, asyncResponse);
+    verify(asyncResponse).resume(responseCaptor.capture());
+    assertEquals(400, responseCaptor.getValue().getStatus());
+  }
+
+  @Test
+  public void WhenOneTopicIsOverTheLimitsThenOnlyItsMessagesFail() throws Exception {
+    Properties properties = new Properties();
+    properties.setProperty(
+        "topic.OTHER_TOPIC." + OutstandingLimiter.TOPIC_MAX_OUTSTANDING_MESSAGES, "1");
+    publishMessage = new PublishMessage(dispatcher(properties));
+    Message other = new Message();
+    other.setTopic("OTHER_TOPIC");
+    other.setData(DATA);
+    request.setMessages(Arrays.asList(message, other));
+    when(publisher.publish(any())).thenReturn(goodFuture, SettableApiFuture.create(), goodFuture);
+
+    publishMessage.doPost(request, asyncResponse);
+    publishMessage.doPost(request, asyncResponse);
+    verify(publisher, times(3)).publish(any());
+    verify(asyncResponse, times(2)).resume(responseCaptor.capture());
+    assertEquals(200, responseCaptor.getAllValues().get(0).getStatus());
+    PublishResult result = (PublishResult) responseCaptor.getAllValues().get(1).getEntity();
+    assertEquals(1, result.getErrors().size());
+    assertEquals(1, result.getErrors().get(0).getIndex());
+    assertEquals("success", result.getTopics().get(TOPIC).getMessageIds().get(0));
+  }
+
+  @Test
+  public void WhenIdempotencyKeyIsRepeatedThenMessageIsPublishedOnce() throws Exception {
+    HashMap<String, String> attributes = new HashMap<>();
+    attributes.put("idempotencyKey", "order-42");
+    message.setAttributes(attributes);
+    publishMessage.setWaitForAck(true);
+    when(publisher.publish(any())).thenReturn(goodFuture);
+    publishMessage.doPost(request, asyncResponse);
+    publishMessage.doPost(request, asyncResponse);
+    verify(publisher, times(1)).publish(any());
+    verify(asyncResponse, times(2)).resume(responseCaptor.capture());
+    PublishResult retried = (PublishResult) responseCaptor.getAllValues().get(1).getEntity();
+    assertEquals(Collections.singletonList("success"), retried.getMessageIds());
+  }
+
+  @Test
+  public void WhenMessageHasNeitherDataNorAttributesThenRequestIsRejected() throws Exception {
     message.setData(null);
-    publishMessage.doPost(request);
+    publishMessage.doPost(request, asyncResponse);
+    verify(asyncResponse).resume(responseCaptor.capture());
+    assertEquals(400, responseCaptor.getValue().getStatus());
+  }
+
+  @Test
+  public void WhenMessagesAreInvalidThenNothingIsPublishedAndEachIsReported() throws Exception {
+    Message invalid = new Message();
+    invalid.setData(DATA);
+    invalid.setPublishTime("yesterday");
+    Message bad = new Message();
+    bad.setTopic("goog-topic");
+    bad.setData(DATA);
+    request.setMessages(Arrays.asList(message, invalid, bad));
+    publishMessage.doPost(request, asyncResponse);
+    verify(publisher, times(0)).publish(any());
+    verify(asyncResponse).resume(responseCaptor.capture());
+    assertEquals(400, responseCaptor.getValue().getStatus());
+    PublishResult result = (PublishResult) responseCaptor.getValue().getEntity();
+    assertEquals(2, result.getErrors().size());
+    assertEquals(1, result.getErrors().get(0).getIndex());
+    assertEquals(2, result.getErrors().get(1).getIndex());
+  }
+
+  @Test
+  public void WhenDataDoesNotMatchTopicSchemaThenMessageIsReported() throws Exception {
+    File schema = folder.newFile("schema.json");
+    Files.write(
+        schema.toPath(), "{\"type\": \"object\"}".getBytes(StandardCharsets.UTF_8));
+    Properties properties = new Properties();
+    properties.setProperty("topic." + TOPIC + "." + TopicSchemas.TYPE, "json");
+    properties.setProperty("topic." + TOPIC + "." + TopicSchemas.FILE, schema.getPath());
+    publishMessage = new PublishMessage(dispatcher(properties));
+    Message valid = new Message();
+    valid.setData("{\"id\": 1}");
+    request.setMessages(Arrays.asList(valid, message));
+    publishMessage.doPost(request, asyncResponse);
+    verify(publisher, times(0)).publish(any());
+    verify(asyncResponse).resume(responseCaptor.capture());
+    assertEquals(400, responseCaptor.getValue().getStatus());
+    PublishResult result = (PublishResult) responseCaptor.getValue().getEntity();
+    assertEquals(1, result.getErrors().size());
+    assertEquals(1, result.getErrors().get(0).getIndex());
+  }
+
+  @Test
+  public void WhenAttributesMatchRoutingRulesThenMessageIsPublishedToEachTopic() throws Exception {
+    Properties properties = new Properties();
+    properties.setProperty(MessageRouter.RULES, "errors");
+    properties.setProperty("routing.rule.errors.when", "severity=ERROR");
+    properties.setProperty("routing.rule.errors.topics", "alerts,archive");
+    publishMessage = new PublishMessage(dispatcher(properties));
+    publishMessage.setWaitForAck(true);
+    HashMap<String, String> attributes = new HashMap<>();
+    attributes.put("severity", "ERROR");
+    Message routed = new Message();
+    routed.setData(DATA);
+    routed.setAttributes(attributes);
+    request.setMessages(Arrays.asList(routed, message));
+    when(publisher.publish(any())).thenReturn(goodFuture, badFuture, goodFuture);
+
+    publishMessage.doPost(request, asyncResponse);
+    verify(publisher, times(3)).publish(any());
+    verify(asyncResponse).resume(responseCaptor.capture());
+    PublishResult result = (PublishResult) responseCaptor.getValue().getEntity();
+    assertEquals(1, result.getErrors().size());
+    assertEquals(0, result.getErrors().get(0).getIndex());
+    assertEquals(1, result.getTopics().get("alerts").getMessageIds().size());
+    assertEquals(1, result.getTopics().get("archive").getErrors().size());
+    assertEquals("success", result.getTopics().get(TOPIC).getMessageIds().get(0));
+  }
+
+  @Test
+  public void WhenTopicUsesEnvelopesThenMessagesArePublishedOnceWithLogicalIds()
+      throws Exception {
+    Properties properties = new Properties();
+    properties.setProperty("topic." + TOPIC + "." + EnvelopeBatcher.ENABLED, "true");
+    properties.setProperty(EnvelopeBatcher.MAX_MESSAGES, "2");
+    publishMessage = new PublishMessage(dispatcher(properties));
+    publishMessage.setWaitForAck(true);
+    request.setMessages(Arrays.asList(message, message));
+    when(publisher.publish(any())).thenReturn(goodFuture);
+
+    publishMessage.doPost(request, asyncResponse);
+    verify(publisher, times(1)).publish(any());
+    verify(asyncResponse).resume(responseCaptor.capture());
+    PublishResult result = (PublishResult) responseCaptor.getValue().getEntity();
+    assertEquals(Arrays.asList("success:0", "success:1"), result.getMessageIds());
+  }
+
+  @Test
+  public void WhenCallerIsOverItsRateLimitThenRequestIsRejectedWithRetryAfter() throws Exception {
+    Properties properties = new Properties();
+    properties.setProperty(QuotaLimiter.MESSAGES_PER_SECOND, "1");
+    publishMessage = new PublishMessage(dispatcher(properties));
+    when(publisher.publish(any())).thenReturn(goodFuture);
+    publishMessage.doPost(request, asyncResponse);
+    publishMessage.doPost(request, asyncResponse);
+    verify(publisher, times(1)).publish(any());
+    verify(asyncResponse, times(2)).resume(responseCaptor.capture());
+    Response limited = responseCaptor.getAllValues().get(1);
+    assertEquals(429, limited.getStatus());
+    assertEquals("1", limited.getHeaderString(HttpHeaders.RETRY_AFTER));
   }
 
   @Test(expected = Exception.class)
   public void WhenMessageIdIsNullThenExceptionIsThrown() throws Exception {
     message.setMessageId(null);
-    publishMessage.doPost(request);
+    publishMessage.doPost(request, asyncResponse);
   }
 
   @Test(expected = Exception.class)
   public void WhenMessageAttributesAreNullThenExceptionIsThrown() throws Exception {
     message.setAttributes(null);
-    publishMessage.doPost(request);
+    publishMessage.doPost(request, asyncResponse);
   }
 
   @Test(expected = Exception.class)
   public void WhenMessagePublishTimeIsNullThenExceptionIsThrown() throws Exception {
     message.setPublishTime(null);
-    publishMessage.doPost(request);
-  }
-
-  private void setupMockPublisher() {
-    when(publisherList.containsKey(TOPIC)).thenReturn(Boolean.TRUE);
-    when(publisherList.get(TOPIC)).thenReturn(publisher);
+    publishMessage.doPost(request, asyncResponse);
   }
 
   @SuppressWarnings({"unchecked", "rawtypes"})
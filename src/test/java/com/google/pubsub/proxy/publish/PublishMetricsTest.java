@@ -0,0 +1,79 @@
+/* Copyright 2019 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+package com.google.pubsub.proxy.publish;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import com.google.api.gax.grpc.GrpcStatusCode;
+import com.google.api.gax.rpc.ApiExceptionFactory;
+import io.grpc.Status;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.Before;
+import org.junit.Test;
+
+public class PublishMetricsTest {
+
+  private SimpleMeterRegistry registry;
+  private PublishMetrics metrics;
+
+  @Before
+  public void setUp() {
+    registry = new SimpleMeterRegistry();
+    metrics = new PublishMetrics(registry);
+  }
+
+  @Test
+  public void WhenTopicIsRecordedTwiceThenMetersAreReused() {
+    assertSame(metrics.forTopic("t"), metrics.forTopic("t"));
+  }
+
+  @Test
+  public void WhenMessagesArePublishedThenCountsAndSizesAreRecorded() {
+    PublishMetrics.TopicMeters meters = metrics.forTopic("t");
+    meters.recordRequest();
+    meters.recordMessage(10);
+    meters.recordMessage(30);
+    meters.recordAck(System.nanoTime());
+    assertEquals(1.0, registry.get("pubsub.proxy.requests").tag("topic", "t").counter().count(), 0);
+    assertEquals(2.0, registry.get("pubsub.proxy.messages").counter().count(), 0);
+    assertEquals(40.0, registry.get("pubsub.proxy.message.size").summary().totalAmount(), 0);
+    assertEquals(1L, registry.get("pubsub.proxy.publish.latency").timer().count());
+  }
+
+  @Test
+  public void WhenTopicIsNotInUseThenItsMetersAreRemoved() {
+    PublishMetrics.TopicMeters gone = metrics.forTopic("gone");
+    gone.recordRequest();
+    metrics.forTopic("kept").recordRequest();
+    metrics.forgetIdle("kept"::equals);
+    assertNull(registry.find("pubsub.proxy.requests").tag("topic", "gone").counter());
+    assertEquals(1, registry.find("pubsub.proxy.requests").counters().size());
+    assertNotSame(gone, metrics.forTopic("gone"));
+  }
+
+  @Test
+  public void WhenPublishFailsThenFailureIsCountedByStatus() {
+    metrics
+        .forTopic("t")
+        .recordFailure(
+            ApiExceptionFactory.createException(
+                new RuntimeException(), GrpcStatusCode.of(Status.Code.UNAVAILABLE), true));
+    String name = "pubsub.proxy.publish.failures";
+    assertEquals(1.0, registry.get(name).tag("status", "UNAVAILABLE").counter().count(), 0);
+  }
+}
@@ -0,0 +1,157 @@
+/* Copyright 2019 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+package com.google.pubsub.proxy.publish;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+
+import com.google.cloud.pubsub.v1.Publisher;
+import com.google.common.util.concurrent.Uninterruptibles;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.Before;
+import org.junit.Test;
+
+public class PublisherCacheTest {
+
+  private Map<String, Publisher> created;
+
+  @Before
+  public void setUp() {
+    created = new HashMap<>();
+  }
+
+  private PublisherCache newCache(int maxSize, long idleTimeoutMillis) {
+    return new PublisherCache(
+        topic -> {
+          Publisher publisher = mock(Publisher.class);
+          created.put(topic, publisher);
+          return publisher;
+        },
+        maxSize,
+        idleTimeoutMillis,
+        TimeUnit.MILLISECONDS);
+  }
+
+  @Test
+  public void WhenTopicIsRequestedTwiceThenPublisherIsCreatedOnce() throws Exception {
+    PublisherCache cache = newCache(10, 60000);
+    Publisher first = cache.get("topic");
+    Publisher second = cache.get("topic");
+    assertSame(first, second);
+    assertEquals(1, cache.getMissCount());
+    assertEquals(1, cache.getHitCount());
+  }
+
+  @Test
+  public void WhenCacheIsFullThenLeastRecentlyUsedPublisherIsShutDown() throws Exception {
+    PublisherCache cache = newCache(2, 60000);
+    cache.get("a");
+    Thread.sleep(2);
+    cache.get("b");
+    Thread.sleep(2);
+    cache.get("a");
+    cache.get("c");
+    cache.sweep();
+    assertEquals(2, cache.size());
+    assertEquals(1, cache.getEvictionCount());
+    verify(created.get("b"), timeout(5000)).shutdown();
+  }
+
+  @Test
+  public void WhenPublisherIsBeingCreatedThenCachedTopicsAreNotBlocked() throws Exception {
+    CountDownLatch creating = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+    Publisher cached = mock(Publisher.class);
+    PublisherCache cache =
+        new PublisherCache(
+            topic -> {
+              if (topic.equals("slow")) {
+                creating.countDown();
+                Uninterruptibles.awaitUninterruptibly(release);
+              }
+              return topic.equals("a") ? cached : mock(Publisher.class);
+            },
+            10,
+            1,
+            TimeUnit.MINUTES);
+    cache.get("a");
+    Thread slow =
+        new Thread(
+            () -> {
+              try {
+                cache.get("slow");
+              } catch (IOException e) {
+                throw new UncheckedIOException(e);
+              }
+            });
+    slow.start();
+    assertTrue(creating.await(5, TimeUnit.SECONDS));
+    assertSame(cached, cache.get("a"));
+    release.countDown();
+    slow.join(5000);
+    assertEquals(2, cache.size());
+  }
+
+  @Test
+  public void WhenPublisherIsIdleThenItIsEvicted() throws Exception {
+    PublisherCache cache = newCache(10, 0);
+    cache.get("topic");
+    Thread.sleep(2);
+    cache.sweep();
+    assertEquals(0, cache.size());
+    verify(created.get("topic"), timeout(5000)).shutdown();
+  }
+
+  @Test
+  public void WhenIdlePublishersAreSweptThenListenerSeesRemainingTopics() throws Exception {
+    PublisherCache cache = newCache(10, 60000);
+    cache.get("a");
+    List<Set<String>> seen = new ArrayList<>();
+    cache.setSweepListener(() -> seen.add(cache.getTopics()));
+    cache.sweep();
+    assertEquals(Collections.singletonList(Collections.singleton("a")), seen);
+  }
+
+  @Test
+  public void WhenCacheIsShutDownThenAllPublishersAreDrained() throws Exception {
+    PublisherCache cache = newCache(10, 60000);
+    cache.get("a");
+    cache.get("b");
+    cache.shutdown();
+    assertEquals(0, cache.size());
+    verify(created.get("a")).shutdown();
+    verify(created.get("b")).shutdown();
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void WhenCacheIsShutDownThenNoPublisherIsCreated() throws Exception {
+    PublisherCache cache = newCache(10, 60000);
+    cache.shutdown();
+    cache.get("a");
+  }
+}
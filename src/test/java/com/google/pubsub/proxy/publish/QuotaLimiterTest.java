@@ -0,0 +1,153 @@
+/* Copyright 2019 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+package com.google.pubsub.proxy.publish;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import com.google.pubsub.proxy.config.ProxyConfig;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.attribute.FileTime;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class QuotaLimiterTest {
+
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+  private QuotaLimiter quotas;
+
+  @After
+  public void tearDown() {
+    if (null != quotas) {
+      quotas.shutdown();
+    }
+  }
+
+  private static ProxyConfig config(String... keyValues) {
+    Properties properties = new Properties();
+    for (int i = 0; i < keyValues.length; i += 2) {
+      properties.setProperty(keyValues[i], keyValues[i + 1]);
+    }
+    return new ProxyConfig(properties, Collections.emptyMap());
+  }
+
+  @Test
+  public void WhenBurstIsTakenThenBucketRefillsAtItsRate() {
+    long now = System.nanoTime();
+    QuotaLimiter.Bucket bucket = new QuotaLimiter.Bucket(10, TimeUnit.SECONDS.toNanos(1));
+    assertEquals(0L, bucket.tryAcquire(10, now));
+    long wait = bucket.tryAcquire(1, now);
+    assertEquals(TimeUnit.MILLISECONDS.toNanos(100), wait);
+    assertEquals(0L, bucket.tryAcquire(1, now + wait));
+  }
+
+  @Test
+  public void WhenRequestIsLargerThanTheBurstThenFullBucketAdmitsIt() {
+    long now = System.nanoTime();
+    QuotaLimiter.Bucket bucket = new QuotaLimiter.Bucket(10, TimeUnit.SECONDS.toNanos(1));
+    assertEquals(0L, bucket.tryAcquire(50, now));
+    assertTrue(bucket.tryAcquire(1, now) > 0);
+    bucket.release(50);
+    assertTrue(bucket.isFull(now));
+  }
+
+  @Test
+  public void WhenTopicIsOverItsLimitThenCallerTokensAreGivenBack() {
+    quotas =
+        new QuotaLimiter(
+            config(
+                QuotaLimiter.MESSAGES_PER_SECOND, "2",
+                "topic.busy." + QuotaLimiter.TOPIC_MESSAGES_PER_SECOND, "1"));
+    assertEquals(0L, quotas.tryAcquire("alice", "busy", 1, 10));
+    assertTrue(quotas.tryAcquire("alice", "busy", 1, 10) > 0);
+    assertEquals(0L, quotas.tryAcquire("alice", "quiet", 1, 10));
+    assertTrue(quotas.tryAcquire("alice", "quiet", 1, 10) > 0);
+    assertEquals(0L, quotas.tryAcquire("bob", "quiet", 2, 10));
+    assertEquals(2L, quotas.getRejectedCount());
+  }
+
+  @Test
+  public void WhenCallerHasItsOwnLimitThenItOverridesTheDefault() {
+    quotas =
+        new QuotaLimiter(
+            config(
+                QuotaLimiter.BYTES_PER_SECOND, "100",
+                "caller.batch." + QuotaLimiter.BYTES_PER_SECOND, "1000"));
+    assertEquals(0L, quotas.tryAcquire("alice", "topic", 1, 100));
+    assertTrue(quotas.tryAcquire("alice", "topic", 1, 100) > 0);
+    assertEquals(0L, quotas.tryAcquire("batch", "topic", 1, 1000));
+  }
+
+  @Test
+  public void WhenCallerHasNoLimitThenItSharesTheUnlimitedBuckets() {
+    quotas = new QuotaLimiter(config("caller.batch." + QuotaLimiter.MESSAGES_PER_SECOND, "1"));
+    assertEquals(0L, quotas.tryAcquire("alice", "topic", 1000, 1000));
+    assertSame(QuotaLimiter.UNLIMITED, quotas.getCallerBuckets("alice"));
+    assertEquals(0L, quotas.tryAcquire("batch", "topic", 1, 10));
+    assertNotSame(QuotaLimiter.UNLIMITED, quotas.getCallerBuckets("batch"));
+  }
+
+  @Test
+  public void WhenQuotaFileChangesThenCachedTopicLimitsAreReloaded() throws Exception {
+    File file = folder.newFile("quotas.properties");
+    String limit = "prefix.orders." + QuotaLimiter.TOPIC_MESSAGES_PER_SECOND;
+    Files.write(file.toPath(), (limit + "=1\n").getBytes(StandardCharsets.UTF_8));
+    quotas = new QuotaLimiter(config(QuotaLimiter.FILE, file.getPath()));
+    assertEquals(0L, quotas.tryAcquire("alice", "orders-eu", 1, 10));
+    assertTrue(quotas.tryAcquire("alice", "orders-eu", 1, 10) > 0);
+
+    Files.write(file.toPath(), (limit + "=100\n").getBytes(StandardCharsets.UTF_8));
+    FileTime later = FileTime.fromMillis(System.currentTimeMillis() + 5000);
+    Files.setLastModifiedTime(file.toPath(), later);
+    quotas.refresh();
+    assertEquals(0L, quotas.tryAcquire("alice", "orders-eu", 50, 10));
+  }
+
+  @Test
+  public void WhenQuotaFileChangesThenLimitsAreReloaded() throws Exception {
+    File file = folder.newFile("quotas.properties");
+    Files.write(file.toPath(), "quota.messagesPerSecond=1\n".getBytes(StandardCharsets.UTF_8));
+    quotas = new QuotaLimiter(config(QuotaLimiter.FILE, file.getPath()));
+    assertEquals(0L, quotas.tryAcquire("alice", "topic", 1, 10));
+    assertTrue(quotas.tryAcquire("alice", "topic", 1, 10) > 0);
+
+    Files.write(file.toPath(), "quota.messagesPerSecond=100\n".getBytes(StandardCharsets.UTF_8));
+    FileTime later = FileTime.fromMillis(System.currentTimeMillis() + 5000);
+    Files.setLastModifiedTime(file.toPath(), later);
+    quotas.refresh();
+    assertEquals(0L, quotas.tryAcquire("alice", "topic", 50, 10));
+  }
+
+  @Test
+  public void WhenUserInfoHasAnIdThenCallerIsThatId() {
+    String userInfo =
+        Base64.getUrlEncoder()
+            .encodeToString(
+                "{\"email\":\"a@example.com\",\"id\":\"12345\"}".getBytes(StandardCharsets.UTF_8));
+    assertEquals("12345", CallerIdentity.of(userInfo));
+    assertEquals(CallerIdentity.ANONYMOUS, CallerIdentity.of(null));
+    assertEquals(CallerIdentity.ANONYMOUS, CallerIdentity.of("not base64 json"));
+  }
+}
@@ -0,0 +1,132 @@
+/* Copyright 2019 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+package com.google.pubsub.proxy.publish;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.google.protobuf.ByteString;
+import com.google.pubsub.v1.PublishRequest;
+import com.google.pubsub.v1.PubsubMessage;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class SpillLogTest {
+
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+  private static PubsubMessage message(String data) {
+    return PubsubMessage.newBuilder().setData(ByteString.copyFromUtf8(data)).build();
+  }
+
+  private SpillLog open(long segmentBytes, long maxBytes) throws Exception {
+    return new SpillLog(folder.getRoot().toPath(), segmentBytes, maxBytes, false);
+  }
+
+  @Test
+  public void WhenMessagesAreAppendedThenTheyAreReadBackInOrder() throws Exception {
+    SpillLog log = open(1 << 20, 1 << 20);
+    log.append("orders", message("first"));
+    log.append("events", message("second"));
+    assertEquals(2L, log.getSpilledCount());
+
+    Path segment = log.oldestSegment();
+    try (SpillLog.Reader reader = log.read(segment)) {
+      PublishRequest first = reader.next();
+      assertEquals("orders", first.getTopic());
+      assertEquals("first", first.getMessages(0).getData().toStringUtf8());
+      assertEquals("events", reader.next().getTopic());
+      assertNull(reader.next());
+    }
+
+    log.delete(segment);
+    assertEquals(0L, log.size());
+    assertNull(log.oldestSegment());
+  }
+
+  @Test
+  public void WhenLogIsClosedThenAppendFailsWithoutOpeningASegment() throws Exception {
+    SpillLog log = open(1 << 20, 1 << 20);
+    log.append("orders", message("first"));
+    log.close();
+    try {
+      log.append("orders", message("late"));
+      fail("Expected the append to fail");
+    } catch (IOException expected) {
+      // Spills racing the shutdown are dropped
+    }
+    assertEquals(1, folder.getRoot().list().length);
+    assertEquals(1L, log.getSpilledCount());
+  }
+
+  @Test
+  public void WhenSegmentIsFullThenANewOneIsStarted() throws Exception {
+    SpillLog log = open(64, 1 << 20);
+    log.append("orders", message("a message larger than half of the segment"));
+    log.append("orders", message("another message larger than half a segment"));
+    Path oldest = log.oldestSegment();
+    log.delete(oldest);
+    Path next = log.oldestSegment();
+    assertNotEquals(oldest, next);
+    try (SpillLog.Reader reader = log.read(next)) {
+      assertEquals(
+          "another message larger than half a segment",
+          reader.next().getMessages(0).getData().toStringUtf8());
+    }
+  }
+
+  @Test
+  public void WhenLogIsReopenedThenExistingSegmentsAreKept() throws Exception {
+    SpillLog log = open(1 << 20, 50);
+    log.append("orders", message("kept across restarts, and larger than the maximum size"));
+    log.close();
+
+    SpillLog reopened = open(1 << 20, 50);
+    assertEquals(log.size(), reopened.size());
+    assertTrue(reopened.isFull());
+    reopened.append("orders", message("new"));
+    Path segment = reopened.oldestSegment();
+    try (SpillLog.Reader reader = reopened.read(segment)) {
+      assertEquals("orders", reader.next().getTopic());
+      assertNull(reader.next());
+    }
+  }
+
+  @Test
+  public void WhenRecordIsTornThenReadingStopsBeforeIt() throws Exception {
+    SpillLog log = open(1 << 20, 1 << 20);
+    log.append("orders", message("complete"));
+    log.append("orders", message("torn by a crash"));
+    Path segment = log.oldestSegment();
+    try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+      channel.truncate(Files.size(segment) - 3);
+    }
+    try (SpillLog.Reader reader = log.read(segment)) {
+      assertEquals("complete", reader.next().getMessages(0).getData().toStringUtf8());
+      assertNull(reader.next());
+    }
+    assertFalse(log.isFull());
+  }
+}
@@ -0,0 +1,149 @@
+/* Copyright 2019 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+package com.google.pubsub.proxy.publish;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.google.api.core.ApiFutures;
+import com.google.api.gax.grpc.GrpcStatusCode;
+import com.google.api.gax.rpc.NotFoundException;
+import com.google.api.gax.rpc.UnavailableException;
+import com.google.cloud.pubsub.v1.Publisher;
+import com.google.protobuf.ByteString;
+import com.google.pubsub.proxy.config.ProxyConfig;
+import com.google.pubsub.v1.PubsubMessage;
+import io.grpc.Status;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+
+@RunWith(MockitoJUnitRunner.class)
+public class SpillReplayerTest {
+
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+  @Mock Publisher publisher;
+  private MessageDispatcher dispatcher;
+  private SpillLog log;
+  private SpillReplayer replayer;
+
+  @Before
+  public void setUp() {
+    Properties properties = new Properties();
+    properties.setProperty(SpillLog.DIRECTORY, folder.getRoot().getPath());
+    dispatcher =
+        new MessageDispatcher(
+            new PublisherCache(topic -> publisher, 10, 1, TimeUnit.MINUTES),
+            "project",
+            new ProxyConfig(properties, Collections.emptyMap()));
+    log = dispatcher.getSpill();
+    replayer = new SpillReplayer(log, dispatcher);
+  }
+
+  private static PubsubMessage message(String data) {
+    return PubsubMessage.newBuilder().setData(ByteString.copyFromUtf8(data)).build();
+  }
+
+  private static UnavailableException unavailable() {
+    return new UnavailableException(null, GrpcStatusCode.of(Status.Code.UNAVAILABLE), true);
+  }
+
+  private static NotFoundException notFound() {
+    return new NotFoundException(null, GrpcStatusCode.of(Status.Code.NOT_FOUND), false);
+  }
+
+  @Test
+  public void WhenMessagesArePublishedThenTheirSegmentIsDeleted() throws Exception {
+    log.append("orders", message("1"));
+    log.append("orders", message("2"));
+    when(publisher.publish(any())).thenReturn(ApiFutures.immediateFuture("id"));
+    replayer.run();
+    verify(publisher, times(2)).publish(any());
+    assertEquals(2L, replayer.getReplayedCount());
+    assertEquals(0L, log.size());
+    assertNull(log.oldestSegment());
+  }
+
+  @Test
+  public void WhenTopicIsStillDownThenSegmentIsKept() throws Exception {
+    log.append("orders", message("1"));
+    log.append("orders", message("2"));
+    long size = log.size();
+    when(publisher.publish(any())).thenReturn(ApiFutures.immediateFailedFuture(unavailable()));
+    replayer.run();
+    verify(publisher, times(1)).publish(any());
+    assertEquals(size, log.size());
+    assertEquals(2L, log.getSpilledCount());
+  }
+
+  @Test
+  public void WhenSomeMessagesFailAgainThenOnlyTheyAreSpilledBack() throws Exception {
+    log.append("orders", message("1"));
+    log.append("orders", message("2"));
+    Path segment = log.oldestSegment();
+    when(publisher.publish(any()))
+        .thenReturn(
+            ApiFutures.immediateFuture("id"), ApiFutures.immediateFailedFuture(unavailable()));
+    replayer.run();
+
+    // The failed message is spilled back, and replayed in the next run
+    assertEquals(3L, log.getSpilledCount());
+    Path respilled = log.oldestSegment();
+    try (SpillLog.Reader reader = log.read(respilled)) {
+      assertEquals("2", reader.next().getMessages(0).getData().toStringUtf8());
+      assertNull(reader.next());
+    }
+    assertNotEquals(segment, respilled);
+  }
+
+  @Test
+  public void WhenFirstMessageFailsForGoodThenItIsDroppedAndReplayGoesOn() throws Exception {
+    log.append("deleted", message("1"));
+    log.append("orders", message("2"));
+    when(publisher.publish(any()))
+        .thenReturn(
+            ApiFutures.immediateFailedFuture(notFound()), ApiFutures.immediateFuture("id"));
+    replayer.run();
+    verify(publisher, times(2)).publish(any());
+    assertEquals(1L, replayer.getReplayedCount());
+    assertEquals(1L, log.getDroppedCount());
+    assertEquals(2L, log.getSpilledCount());
+    assertNull(log.oldestSegment());
+  }
+
+  @Test
+  public void WhenFailureIsNotRetryableThenMessageIsNotSpilled() {
+    dispatcher.spill("orders", message("1"), new IllegalArgumentException("bad message"));
+    assertEquals(1L, log.getSpilledCount());
+    dispatcher.spill(
+        "orders",
+        message("2"),
+        notFound());
+    assertEquals(1L, log.getSpilledCount());
+  }
+}
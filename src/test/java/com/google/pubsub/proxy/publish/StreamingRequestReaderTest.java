@@ -0,0 +1,207 @@
+/* Copyright 2019 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+package com.google.pubsub.proxy.publish;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.google.protobuf.ByteString;
+import com.google.pubsub.proxy.entities.Request;
+import com.google.pubsub.v1.PubsubMessage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import javax.ws.rs.BadRequestException;
+import javax.ws.rs.Consumes;
+import javax.ws.rs.POST;
+import javax.ws.rs.Path;
+import javax.ws.rs.client.Entity;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.MultivaluedHashMap;
+import javax.ws.rs.core.MultivaluedMap;
+import org.glassfish.jersey.jackson.JacksonFeature;
+import org.glassfish.jersey.server.ResourceConfig;
+import org.glassfish.jersey.servlet.ServletContainer;
+import org.glassfish.jersey.test.DeploymentContext;
+import org.glassfish.jersey.test.JerseyTest;
+import org.glassfish.jersey.test.ServletDeploymentContext;
+import org.glassfish.jersey.test.grizzly.GrizzlyWebTestContainerFactory;
+import org.glassfish.jersey.test.spi.TestContainerFactory;
+import org.junit.Test;
+
+public class StreamingRequestReaderTest extends JerseyTest {
+
+  @Path("/echo")
+  public static class EchoResource {
+    @POST
+    @Consumes(MediaType.APPLICATION_JSON)
+    public String doPost(Request req) {
+      int count = 0;
+      for (Iterator<PubsubMessage> it = req.getMessageStream(); it.hasNext(); it.next()) {
+        count++;
+      }
+      return req.getTopic() + ":" + count;
+    }
+  }
+
+  @Override
+  protected DeploymentContext configureDeployment() {
+    return ServletDeploymentContext.forServlet(
+            new ServletContainer(
+                new ResourceConfig(
+                    EchoResource.class, JacksonFeature.class, StreamingRequestReader.class)))
+        .build();
+  }
+
+  @Override
+  protected TestContainerFactory getTestContainerFactory() {
+    return new GrizzlyWebTestContainerFactory();
+  }
+
+  private static Request read(String json) throws IOException {
+    return new StreamingRequestReader()
+        .readFrom(
+            Request.class,
+            Request.class,
+            null,
+            MediaType.APPLICATION_JSON_TYPE,
+            null,
+            new ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8)));
+  }
+
+  @Test
+  public void WhenRequestIsPostedThenStreamingReaderIsUsed() {
+    String json = "{\"topic\": \"t\", \"messages\": [{\"data\": \"a\"}, {\"data\": \"b\"}]}";
+    String body = target("/echo").request().post(Entity.json(json), String.class);
+    assertEquals("t:2", body);
+  }
+
+  @Test
+  public void WhenTopicComesFirstThenMessagesAreParsedLazily() throws Exception {
+    Request req =
+        read(
+            "{\"topic\": \"t\", \"messages\": [{\"data\": \"héllo 😀\","
+                + " \"attributes\": {\"k\": \"v\"}, \"publishTime\": \"2019-01-01T00:00:00Z\","
+                + " \"unknown\": [1, 2]}], \"trailing\": {}}");
+    assertEquals("t", req.getTopic());
+    assertTrue(req.getMessageStream() instanceof StreamingRequestReader.MessageIterator);
+    PubsubMessage message = req.getMessageStream().next();
+    assertEquals(ByteString.copyFromUtf8("héllo 😀"), message.getData());
+    assertEquals("v", message.getAttributesMap().get("k"));
+    assertEquals(1546300800L, message.getPublishTime().getSeconds());
+    assertFalse(req.getMessageStream().hasNext());
+  }
+
+  @Test
+  public void WhenTopicComesLastThenMessagesAreBuffered() throws Exception {
+    Request req = read("{\"messages\": [{\"data\": \"a\"}, {\"data\": \"b\"}], \"topic\": \"t\"}");
+    assertEquals("t", req.getTopic());
+    assertEquals("a", req.getMessageStream().next().getData().toStringUtf8());
+    assertEquals("b", req.getMessageStream().next().getData().toStringUtf8());
+    assertFalse(req.getMessageStream().hasNext());
+  }
+
+  @Test
+  public void WhenOrderingKeyIsSetThenItIsCarriedAsAttribute() throws Exception {
+    Request req =
+        read("{\"topic\": \"t\", \"messages\": [{\"data\": \"a\", \"orderingKey\": \"k1\"}]}");
+    PubsubMessage message = req.getMessageStream().next();
+    assertEquals("k1", message.getAttributesMap().get(OrderingKeySequencer.ATTRIBUTE));
+  }
+
+  @Test
+  public void WhenMessagesNameTopicsThenTopicsAreReturnedWithThem() throws Exception {
+    Request req =
+        read(
+            "{\"messages\": [{\"topic\": \"a\", \"data\": \"1\"}, {\"data\": \"2\"}],"
+                + " \"topic\": \"t\"}");
+    StreamingRequestReader.MessageStream messages =
+        (StreamingRequestReader.MessageStream) req.getMessageStream();
+    messages.next();
+    assertEquals("a", messages.getTopic());
+    messages.next();
+    assertNull(messages.getTopic());
+  }
+
+  @Test
+  public void WhenMessageHasNoTopicThenItIsLeftToRouting() throws Exception {
+    Request req = read("{\"messages\": [{\"topic\": \"a\", \"data\": \"1\"}, {\"data\": \"2\"}]}");
+    StreamingRequestReader.MessageStream messages =
+        (StreamingRequestReader.MessageStream) req.getMessageStream();
+    messages.next();
+    messages.next();
+    assertNull(messages.getTopic());
+  }
+
+  @Test
+  public void WhenDataIsBase64EncodedThenItIsDecodedToBinary() throws Exception {
+    MultivaluedMap<String, String> headers = new MultivaluedHashMap<>();
+    headers.putSingle(PublishMessage.DATA_ENCODING_HEADER, "base64");
+    Request req =
+        new StreamingRequestReader()
+            .readFrom(
+                Request.class,
+                Request.class,
+                null,
+                MediaType.APPLICATION_JSON_TYPE,
+                headers,
+                new ByteArrayInputStream(
+                    "{\"topic\": \"t\", \"messages\": [{\"data\": \"AP8B\"}]}"
+                        .getBytes(StandardCharsets.UTF_8)));
+    ByteString data = req.getMessageStream().next().getData();
+    assertEquals(ByteString.copyFrom(new byte[] {0, (byte) 0xff, 1}), data);
+  }
+
+  @Test(expected = BadRequestException.class)
+  public void WhenAttributeIsNotAStringThenRequestIsRejected() throws Exception {
+    read("{\"topic\": \"t\", \"messages\": [{\"attributes\": {\"k\": {}}}]}")
+        .getMessageStream()
+        .hasNext();
+  }
+
+  @Test
+  public void WhenStringFieldHoldsArrayOrObjectThenRequestIsRejected() throws Exception {
+    String[] bodies = {
+      "{\"topic\": \"t\", \"messages\": [{\"data\": [\"x\"]}, {\"data\": \"y\"}]}",
+      "{\"topic\": \"t\", \"messages\": [{\"messageId\": {\"a\": 1}}, {\"data\": \"y\"}]}",
+      "{\"messages\": [{\"topic\": [\"a\"]}, {\"data\": \"y\"}], \"topic\": \"t\"}"
+    };
+    for (String body : bodies) {
+      try {
+        StreamingRequestReader.MessageStream messages =
+            (StreamingRequestReader.MessageStream) read(body).getMessageStream();
+        while (messages.hasNext()) {
+          messages.next();
+        }
+        fail("Expected " + body + " to be rejected");
+      } catch (BadRequestException expected) {
+        // The message is refused instead of desynchronizing the parser
+      }
+    }
+  }
+
+  @Test
+  public void Utf8LengthMatchesStringEncoding() {
+    String text = "aé€😀\ud83d";
+    char[] chars = text.toCharArray();
+    assertEquals(
+        text.getBytes(StandardCharsets.UTF_8).length,
+        StreamingRequestReader.utf8Length(chars, 0, chars.length));
+  }
+}
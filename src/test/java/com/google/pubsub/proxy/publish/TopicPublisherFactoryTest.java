@@ -0,0 +1,106 @@
+/* Copyright 2019 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+package com.google.pubsub.proxy.publish;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import com.google.api.gax.batching.BatchingSettings;
+import com.google.api.gax.batching.FlowController.LimitExceededBehavior;
+import com.google.cloud.pubsub.v1.Publisher;
+import com.google.protobuf.ByteString;
+import com.google.pubsub.proxy.config.ProxyConfig;
+import com.google.pubsub.v1.PublishRequest;
+import com.google.pubsub.v1.PublishResponse;
+import com.google.pubsub.v1.PublisherGrpc;
+import com.google.pubsub.v1.PubsubMessage;
+import io.grpc.Server;
+import io.grpc.ServerBuilder;
+import io.grpc.stub.StreamObserver;
+import java.util.Collections;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+public class TopicPublisherFactoryTest {
+
+  @Test
+  public void WhenNothingIsConfiguredThenLibraryDefaultsAreUsed() {
+    TopicPublisherFactory factory =
+        new TopicPublisherFactory(
+            "project", new ProxyConfig(new Properties(), Collections.emptyMap()));
+    BatchingSettings settings = factory.batchingSettings("topic");
+    assertEquals(100L, settings.getElementCountThreshold().longValue());
+    assertEquals(1000L, settings.getRequestByteThreshold().longValue());
+    assertEquals(1L, settings.getDelayThreshold().toMillis());
+    assertNull(settings.getFlowControlSettings().getMaxOutstandingElementCount());
+  }
+
+  @Test
+  public void WhenTopicIsConfiguredThenItsBatchingSettingsAreUsed() {
+    Properties properties = new Properties();
+    properties.setProperty(TopicPublisherFactory.ELEMENT_COUNT_THRESHOLD, "500");
+    properties.setProperty("topic.orders." + TopicPublisherFactory.DELAY_THRESHOLD_MILLIS, "2");
+    properties.setProperty(
+        "topic.orders." + TopicPublisherFactory.MAX_OUTSTANDING_ELEMENT_COUNT, "1000");
+    TopicPublisherFactory factory =
+        new TopicPublisherFactory("project", new ProxyConfig(properties, Collections.emptyMap()));
+    BatchingSettings settings = factory.batchingSettings("orders");
+    assertEquals(500L, settings.getElementCountThreshold().longValue());
+    assertEquals(2L, settings.getDelayThreshold().toMillis());
+    assertEquals(
+        1000L, settings.getFlowControlSettings().getMaxOutstandingElementCount().longValue());
+    assertEquals(
+        LimitExceededBehavior.ThrowException,
+        settings.getFlowControlSettings().getLimitExceededBehavior());
+  }
+
+  @Test
+  public void WhenEmulatorHostIsConfiguredThenPublishersUseIt() throws Exception {
+    Server emulator =
+        ServerBuilder.forPort(0)
+            .addService(
+                new PublisherGrpc.PublisherImplBase() {
+                  @Override
+                  public void publish(
+                      PublishRequest request, StreamObserver<PublishResponse> observer) {
+                    observer.onNext(
+                        PublishResponse.newBuilder()
+                            .addMessageIds(request.getTopic().replace('/', '.'))
+                            .build());
+                    observer.onCompleted();
+                  }
+                })
+            .build()
+            .start();
+    Properties properties = new Properties();
+    properties.setProperty(
+        TopicPublisherFactory.EMULATOR_HOST, "localhost:" + emulator.getPort());
+    TopicPublisherFactory factory =
+        new TopicPublisherFactory("project", new ProxyConfig(properties, Collections.emptyMap()));
+    try {
+      Publisher publisher = factory.create("topic");
+      PubsubMessage message =
+          PubsubMessage.newBuilder().setData(ByteString.copyFromUtf8("data")).build();
+      assertEquals(
+          "projects.project.topics.topic",
+          publisher.publish(message).get(10, TimeUnit.SECONDS));
+      publisher.shutdown();
+    } finally {
+      factory.shutdown();
+      emulator.shutdownNow();
+    }
+  }
+}
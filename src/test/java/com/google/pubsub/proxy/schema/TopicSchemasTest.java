@@ -0,0 +1,163 @@
+/* Copyright 2019 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+
+package com.google.pubsub.proxy.schema;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.google.protobuf.ByteString;
+import com.google.pubsub.proxy.config.ProxyConfig;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.attribute.FileTime;
+import java.util.Collections;
+import java.util.Properties;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class TopicSchemasTest {
+
+  private static final String JSON_SCHEMA =
+      "{\"type\": \"object\", \"required\": [\"id\"], \"additionalProperties\": false,"
+          + " \"properties\": {\"id\": {\"type\": \"integer\", \"minimum\": 1},"
+          + " \"kind\": {\"enum\": [\"a\", \"b\"]},"
+          + " \"tags\": {\"type\": \"array\", \"items\": {\"type\": \"string\"}}}}";
+
+  private static final String AVRO_SCHEMA =
+      "{\"type\": \"record\", \"name\": \"User\", \"fields\": ["
+          + "{\"name\": \"name\", \"type\": \"string\"},"
+          + "{\"name\": \"age\", \"type\": \"int\"},"
+          + "{\"name\": \"tags\", \"type\": {\"type\": \"array\", \"items\": \"string\"}},"
+          + "{\"name\": \"nick\", \"type\": [\"null\", \"string\"]}]}";
+
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+  private static ProxyConfig config(String... keyValues) {
+    Properties properties = new Properties();
+    for (int i = 0; i < keyValues.length; i += 2) {
+      properties.setProperty(keyValues[i], keyValues[i + 1]);
+    }
+    return new ProxyConfig(properties, Collections.emptyMap());
+  }
+
+  private static ByteString json(String data) {
+    return ByteString.copyFromUtf8(data);
+  }
+
+  private static ByteString bytes(int... values) {
+    byte[] data = new byte[values.length];
+    for (int i = 0; i < values.length; i++) {
+      data[i] = (byte) values[i];
+    }
+    return ByteString.copyFrom(data);
+  }
+
+  @Test
+  public void WhenJsonIsCheckedThenSchemaKeywordsApply() throws Exception {
+    SchemaValidator schema = TopicSchemas.compile("json", JSON_SCHEMA);
+    assertNull(schema.validate(json("{\"id\": 3, \"kind\": \"a\", \"tags\": [\"x\"]}")));
+    assertNull(schema.validate(json("{\"id\": 3.0}")));
+    assertEquals("$.id: 0 is below the minimum 1", schema.validate(json("{\"id\": 0}")));
+    assertEquals(
+        "$.tags[1]: expected string, got integer",
+        schema.validate(json("{\"id\": 1, \"tags\": [\"x\", 2]}")));
+    assertNotNull(schema.validate(json("{\"kind\": \"a\"}")));
+    assertNotNull(schema.validate(json("{\"id\": 1, \"kind\": \"c\"}")));
+    assertEquals("$: unexpected property x", schema.validate(json("{\"id\": 1, \"x\": 1}")));
+    assertNotNull(schema.validate(json("{\"id\": 1} {}")));
+    assertNotNull(schema.validate(json("{\"id\": ")));
+    assertNotNull(schema.validate(json("{\"id\": 1, \"id\": 2}")));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void WhenJsonSchemaHasUnsupportedKeywordThenItIsRefused() throws Exception {
+    TopicSchemas.compile("json", "{\"oneOf\": [{\"type\": \"string\"}]}");
+  }
+
+  @Test
+  public void WhenAvroIsCheckedThenBinaryEncodingMustMatch() throws Exception {
+    SchemaValidator schema = TopicSchemas.compile("avro", AVRO_SCHEMA);
+    // name "ab", age 30, tags ["x"], nick null
+    assertNull(schema.validate(bytes(4, 'a', 'b', 60, 2, 2, 'x', 0, 0)));
+    // nick "c"
+    assertNull(schema.validate(bytes(4, 'a', 'b', 60, 0, 2, 2, 'c')));
+    assertNotNull(schema.validate(bytes(4, 'a', 'b', 60, 0)));
+    assertNotNull(schema.validate(bytes(4, 'a', 'b', 60, 0, 4)));
+    assertNotNull(schema.validate(bytes(4, 'a', 'b', 60, 0, 0, 0)));
+    assertNotNull(schema.validate(bytes(4, 0xff, 0xfe, 60, 0, 0)));
+  }
+
+  @Test
+  public void WhenAvroItemsTakeNoBytesThenTheirCountIsNotWalked() throws Exception {
+    SchemaValidator schema =
+        TopicSchemas.compile("avro", "{\"type\": \"array\", \"items\": \"null\"}");
+    // A block of 2^62 nulls, then the empty block
+    assertNull(schema.validate(bytes(0x80, 0x80, 0x80, 0x80, 0x80, 0x80, 0x80, 0x80, 0x80, 1, 0)));
+  }
+
+  @Test
+  public void WhenAvroRecordIsRecursiveThenItIsResolved() throws Exception {
+    SchemaValidator schema =
+        TopicSchemas.compile(
+            "avro",
+            "{\"type\": \"record\", \"name\": \"Node\", \"namespace\": \"ns\", \"fields\": ["
+                + "{\"name\": \"value\", \"type\": \"long\"},"
+                + "{\"name\": \"next\", \"type\": [\"null\", \"Node\"]}]}");
+    assertNull(schema.validate(bytes(2, 2, 4, 0)));
+    assertNotNull(schema.validate(bytes(2, 2, 4, 2)));
+  }
+
+  @Test
+  public void WhenSchemaFileChangesThenTopicIsCheckedAgainstNewRevision() throws Exception {
+    File file = folder.newFile("schema.json");
+    Files.write(file.toPath(), "{\"type\": \"string\"}".getBytes(StandardCharsets.UTF_8));
+    TopicSchemas schemas =
+        new TopicSchemas(
+            config(
+                "prefix.events.schema.type", "json",
+                "prefix.events.schema.file", file.getPath(),
+                TopicSchemas.CHECK_INTERVAL_MILLIS, "0"));
+    assertNull(schemas.validate("events-a", json("\"x\"")));
+    assertNotNull(schemas.validate("events-b", json("1")));
+    assertNull(schemas.validate("other", json("1")));
+
+    Files.write(file.toPath(), "{\"type\": \"integer\"}".getBytes(StandardCharsets.UTF_8));
+    Files.setLastModifiedTime(
+        file.toPath(), FileTime.fromMillis(System.currentTimeMillis() + 5000));
+    assertNull(schemas.validate("events-a", json("1")));
+
+    // A broken revision keeps the last good one
+    Files.write(file.toPath(), "{\"type\": ".getBytes(StandardCharsets.UTF_8));
+    Files.setLastModifiedTime(
+        file.toPath(), FileTime.fromMillis(System.currentTimeMillis() + 9000));
+    assertNull(schemas.validate("events-a", json("1")));
+    assertEquals(1L, schemas.getRejectedCount());
+  }
+
+  @Test
+  public void WhenSchemaCannotBeLoadedThenMessagesAreRefused() {
+    TopicSchemas schemas =
+        new TopicSchemas(
+            config(
+                "topic.orders.schema.type", "avro",
+                "topic.orders.schema.file", folder.getRoot().getPath() + "/missing.avsc"));
+    assertTrue(schemas.validate("orders", json("x")).contains("cannot be loaded"));
+  }
+}
@@ -0,0 +1,267 @@
+/* Copyright 2019 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+package com.google.pubsub.proxy.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.google.pubsub.proxy.config.ProxyConfig;
+import com.google.pubsub.proxy.publish.VirtualThreads;
+import com.google.pubsub.proxy.subscribe.PullMessages;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import org.apache.http.Header;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.util.EntityUtils;
+import org.eclipse.jetty.http2.server.HTTP2CServerConnectionFactory;
+import org.eclipse.jetty.server.HttpConnectionFactory;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+import org.eclipse.jetty.util.IO;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+import org.junit.Test;
+
+public class JettyFactoryTest {
+
+  private static ProxyConfig config(String... settings) {
+    Properties properties = new Properties();
+    for (int i = 0; i < settings.length; i += 2) {
+      properties.setProperty(settings[i], settings[i + 1]);
+    }
+    return new ProxyConfig(properties, Collections.emptyMap());
+  }
+
+  @Test
+  public void WhenThreadPoolIsConfiguredThenItsQueueIsBounded() throws Exception {
+    QueuedThreadPool threadPool =
+        JettyFactory.threadPool(
+            config(
+                JettyFactory.MIN_THREADS, "1",
+                JettyFactory.MAX_THREADS, "1",
+                JettyFactory.MAX_QUEUED_JOBS, "2"));
+    assertEquals(1, threadPool.getMinThreads());
+    assertEquals(1, threadPool.getMaxThreads());
+
+    CountDownLatch release = new CountDownLatch(1);
+    threadPool.setReservedThreads(0);
+    threadPool.start();
+    try {
+      CountDownLatch running = new CountDownLatch(1);
+      threadPool.execute(
+          () -> {
+            running.countDown();
+            try {
+              release.await();
+            } catch (InterruptedException e) {
+              Thread.currentThread().interrupt();
+            }
+          });
+      running.await(10, TimeUnit.SECONDS);
+      threadPool.execute(() -> {});
+      threadPool.execute(() -> {});
+      try {
+        threadPool.execute(() -> {});
+        fail("Expected the full queue to reject the job");
+      } catch (RejectedExecutionException e) {
+        // Expected
+      }
+    } finally {
+      release.countDown();
+      threadPool.stop();
+    }
+  }
+
+  @Test
+  public void WhenConnectorIsConfiguredThenSettingsAreApplied() {
+    Server server = new Server();
+    ServerConnector connector =
+        JettyFactory.connector(
+            server,
+            config(
+                JettyFactory.ACCEPTORS, "1",
+                JettyFactory.SELECTORS, "2",
+                JettyFactory.IDLE_TIMEOUT_MILLIS, "5000",
+                JettyFactory.ACCEPT_QUEUE_SIZE, "128",
+                JettyFactory.REQUEST_HEADER_SIZE, "16384",
+                JettyFactory.H2C, "true"),
+            8081);
+    assertEquals(1, connector.getAcceptors());
+    assertEquals(2, connector.getSelectorManager().getSelectorCount());
+    assertEquals(5000L, connector.getIdleTimeout());
+    assertEquals(128, connector.getAcceptQueueSize());
+    assertEquals(8081, connector.getPort());
+    assertEquals(
+        16384,
+        connector
+            .getConnectionFactory(HttpConnectionFactory.class)
+            .getHttpConfiguration()
+            .getRequestHeaderSize());
+    assertNotNull(connector.getConnectionFactory(HTTP2CServerConnectionFactory.class));
+  }
+
+  @Test
+  public void WhenH2cIsNotEnabledThenOnlyHttp1IsAccepted() {
+    ServerConnector connector = JettyFactory.connector(new Server(), config(), 0);
+    assertNull(connector.getConnectionFactory(HTTP2CServerConnectionFactory.class));
+  }
+
+  @Test
+  public void WhenRequestBodyIsGzippedThenItIsInflated() throws Exception {
+    Server server = new Server(0);
+    server.setHandler(
+        JettyFactory.handler(
+            new AbstractHandler() {
+              @Override
+              public void handle(
+                  String target,
+                  Request baseRequest,
+                  HttpServletRequest request,
+                  HttpServletResponse response)
+                  throws IOException {
+                baseRequest.setHandled(true);
+                response.getWriter().write(IO.toString(request.getInputStream()));
+              }
+            },
+            config()));
+    server.start();
+    try (CloseableHttpClient client = HttpClientBuilder.create().build()) {
+      ByteArrayOutputStream gzipped = new ByteArrayOutputStream();
+      try (GZIPOutputStream out = new GZIPOutputStream(gzipped)) {
+        out.write("{\"topic\": \"t\"}".getBytes(StandardCharsets.UTF_8));
+      }
+      int port = ((ServerConnector) server.getConnectors()[0]).getLocalPort();
+      HttpPost post = new HttpPost("http://localhost:" + port + "/publish");
+      post.setHeader("Content-Encoding", "gzip");
+      post.setEntity(new ByteArrayEntity(gzipped.toByteArray()));
+      HttpResponse response = client.execute(post);
+      assertEquals(200, response.getStatusLine().getStatusCode());
+      assertEquals("{\"topic\": \"t\"}", EntityUtils.toString(response.getEntity()));
+    } finally {
+      server.stop();
+    }
+  }
+
+  @Test
+  public void WhenResponseGzipIsNotEnabledThenResponsesAreNotCompressed() throws Exception {
+    assertNull(responseEncoding(config(), "application/json"));
+    ProxyConfig gzipResponses = config(JettyFactory.GZIP_RESPONSES, "true");
+    assertEquals("gzip", responseEncoding(gzipResponses, "application/json"));
+  }
+
+  @Test
+  public void WhenResponseIsStreamedThenItIsNotCompressed() throws Exception {
+    ProxyConfig gzipResponses = config(JettyFactory.GZIP_RESPONSES, "true");
+    assertNull(responseEncoding(gzipResponses, PullMessages.APPLICATION_NDJSON));
+    assertNull(responseEncoding(gzipResponses, PullMessages.SERVER_SENT_EVENTS));
+  }
+
+  /** Returns the Content-Encoding of a large response to a client accepting gzip */
+  private static String responseEncoding(ProxyConfig config, String contentType)
+      throws Exception {
+    Server server = new Server(0);
+    server.setHandler(
+        JettyFactory.handler(
+            new AbstractHandler() {
+              @Override
+              public void handle(
+                  String target,
+                  Request baseRequest,
+                  HttpServletRequest request,
+                  HttpServletResponse response)
+                  throws IOException {
+                baseRequest.setHandled(true);
+                response.setContentType(contentType);
+                response.getWriter().write(String.join("", Collections.nCopies(1024, "{}")));
+              }
+            },
+            config));
+    server.start();
+    try (CloseableHttpClient client =
+        HttpClientBuilder.create().disableContentCompression().build()) {
+      int port = ((ServerConnector) server.getConnectors()[0]).getLocalPort();
+      HttpGet get = new HttpGet("http://localhost:" + port + "/subscriptions");
+      get.setHeader("Accept-Encoding", "gzip");
+      HttpResponse response = client.execute(get);
+      EntityUtils.consume(response.getEntity());
+      Header encoding = response.getFirstHeader("Content-Encoding");
+      return null != encoding ? encoding.getValue() : null;
+    } finally {
+      server.stop();
+    }
+  }
+
+  @Test
+  public void WhenVirtualThreadsAreEnabledThenTheyAreUsedIfTheJdkHasThem() {
+    VirtualThreadPool pool =
+        JettyFactory.virtualThreadPool(config(VirtualThreads.ENABLED, "true"));
+    if (null == VirtualThreads.newExecutor("test")) {
+      assertNull(pool);
+    } else {
+      assertNotNull(pool);
+    }
+    assertNull(JettyFactory.virtualThreadPool(config()));
+  }
+
+  @Test
+  public void WhenThreadPoolRunsEachTaskOnItsOwnThreadThenJettyServesRequests() throws Exception {
+    // A thread per task, like virtual threads, on JDKs without them
+    Server server = new Server(new VirtualThreadPool(Executors.newCachedThreadPool()));
+    ServerConnector connector = JettyFactory.connector(server, config(), 0);
+    server.addConnector(connector);
+    server.setHandler(
+        new AbstractHandler() {
+          @Override
+          public void handle(
+              String target,
+              Request baseRequest,
+              HttpServletRequest request,
+              HttpServletResponse response)
+              throws IOException {
+            baseRequest.setHandled(true);
+            response.getWriter().write("ok");
+          }
+        });
+    server.start();
+    try (CloseableHttpClient client = HttpClientBuilder.create().build()) {
+      HttpPost post = new HttpPost("http://localhost:" + connector.getLocalPort() + "/publish");
+      HttpResponse response = client.execute(post);
+      assertEquals(200, response.getStatusLine().getStatusCode());
+      assertEquals("ok", EntityUtils.toString(response.getEntity()));
+      assertTrue(server.getThreadPool().getThreads() > 0);
+    } finally {
+      server.stop();
+    }
+  }
+}
@@ -0,0 +1,112 @@
+/* Copyright 2019 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+package com.google.pubsub.proxy.server;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import javax.servlet.AsyncContext;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class RequestLimitHandlerTest {
+
+  private final CountDownLatch suspended = new CountDownLatch(1);
+  private Server server;
+  private RequestLimitHandler limit;
+  private AsyncContext pending;
+  private String url;
+
+  @Before
+  public void setUp() throws Exception {
+    server = new Server(0);
+    limit = new RequestLimitHandler(1);
+    limit.setHandler(
+        new AbstractHandler() {
+          @Override
+          public void handle(
+              String target,
+              Request baseRequest,
+              HttpServletRequest request,
+              HttpServletResponse response) {
+            baseRequest.setHandled(true);
+            if ("/suspend".equals(target)) {
+              pending = request.startAsync();
+              suspended.countDown();
+            }
+          }
+        });
+    server.setHandler(limit);
+    server.start();
+    url = "http://localhost:" + ((ServerConnector) server.getConnectors()[0]).getLocalPort();
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    server.stop();
+  }
+
+  private int get(CloseableHttpClient client, String path) throws IOException {
+    HttpResponse response = client.execute(new HttpGet(url + path));
+    return response.getStatusLine().getStatusCode();
+  }
+
+  @Test(timeout = 30000)
+  public void WhenTooManyRequestsAreInFlightThenServiceUnavailableIsReturned() throws Exception {
+    try (CloseableHttpClient client = HttpClientBuilder.create().build();
+        CloseableHttpClient other = HttpClientBuilder.create().build()) {
+      new Thread(
+              () -> {
+                try {
+                  get(client, "/suspend");
+                } catch (IOException e) {
+                  // The server is stopped
+                }
+              })
+          .start();
+      suspended.await(10, TimeUnit.SECONDS);
+      assertEquals(1, limit.getInFlight());
+
+      HttpResponse response = other.execute(new HttpGet(url + "/"));
+      assertEquals(503, response.getStatusLine().getStatusCode());
+      assertEquals(
+          RequestLimitHandler.RETRY_AFTER_SECONDS,
+          response.getFirstHeader("Retry-After").getValue());
+      assertEquals(1L, limit.getRejectedCount());
+
+      // Completing the suspended request releases its slot
+      pending.complete();
+      while (limit.getInFlight() > 0) {
+        Thread.sleep(10);
+      }
+    }
+    try (CloseableHttpClient client = HttpClientBuilder.create().build()) {
+      assertEquals(200, get(client, "/"));
+    }
+  }
+}
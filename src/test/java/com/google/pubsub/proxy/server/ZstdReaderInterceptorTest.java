@@ -0,0 +1,109 @@
+/* Copyright 2019 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+package com.google.pubsub.proxy.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import com.github.luben.zstd.Zstd;
+import com.google.pubsub.proxy.config.ProxyConfig;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Properties;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.MultivaluedHashMap;
+import javax.ws.rs.core.MultivaluedMap;
+import javax.ws.rs.ext.ReaderInterceptorContext;
+import org.junit.Test;
+
+public class ZstdReaderInterceptorTest {
+
+  private static final String BODY = "{\"topic\": \"t\", \"messages\": [{\"data\": \"a\"}]}";
+
+  private final MultivaluedMap<String, String> headers = new MultivaluedHashMap<>();
+  private InputStream entity;
+
+  /** Returns a context whose proceed step reads the whole entity */
+  private ReaderInterceptorContext context(byte[] body) throws IOException {
+    ReaderInterceptorContext context = mock(ReaderInterceptorContext.class);
+    entity = new ByteArrayInputStream(body);
+    when(context.getHeaders()).thenReturn(headers);
+    when(context.getInputStream()).thenAnswer(invocation -> entity);
+    doAnswer(invocation -> entity = invocation.getArgument(0))
+        .when(context)
+        .setInputStream(any());
+    when(context.proceed())
+        .thenAnswer(
+            invocation -> {
+              StringBuilder read = new StringBuilder();
+              int b;
+              while ((b = entity.read()) >= 0) {
+                read.append((char) b);
+              }
+              return read.toString();
+            });
+    return context;
+  }
+
+  private static ZstdReaderInterceptor interceptor(String maxDecodedBytes) {
+    Properties properties = new Properties();
+    properties.setProperty(ZstdReaderInterceptor.MAX_DECODED_BYTES, maxDecodedBytes);
+    return new ZstdReaderInterceptor(new ProxyConfig(properties, Collections.emptyMap()));
+  }
+
+  @Test
+  public void WhenBodyIsZstdEncodedThenItIsDecoded() throws Exception {
+    headers.putSingle(HttpHeaders.CONTENT_ENCODING, "zstd");
+    byte[] body = Zstd.compress(BODY.getBytes(StandardCharsets.UTF_8));
+    assertEquals(BODY, interceptor("1024").aroundReadFrom(context(body)));
+    assertNull(headers.getFirst(HttpHeaders.CONTENT_ENCODING));
+  }
+
+  @Test
+  public void WhenBodyIsNotEncodedThenItIsReadAsIs() throws Exception {
+    byte[] body = BODY.getBytes(StandardCharsets.UTF_8);
+    assertEquals(BODY, interceptor("1024").aroundReadFrom(context(body)));
+  }
+
+  @Test
+  public void WhenDecodedBodyIsTooLargeThenRequestIsRejected() throws Exception {
+    headers.putSingle(HttpHeaders.CONTENT_ENCODING, "zstd");
+    byte[] body = Zstd.compress(BODY.getBytes(StandardCharsets.UTF_8));
+    assertTooLarge(body);
+  }
+
+  @Test
+  public void WhenBodyIsNotEncodedThenItIsBoundedToo() throws Exception {
+    assertTooLarge(BODY.getBytes(StandardCharsets.UTF_8));
+  }
+
+  private void assertTooLarge(byte[] body) throws IOException {
+    try {
+      interceptor("10").aroundReadFrom(context(body));
+      fail("Expected the body to be refused");
+    } catch (WebApplicationException e) {
+      assertEquals(413, e.getResponse().getStatus());
+    }
+  }
+}
@@ -0,0 +1,296 @@
+/* Copyright 2019 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+
+package com.google.pubsub.proxy.subscribe;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.google.api.core.ApiFutures;
+import com.google.api.gax.grpc.GrpcStatusCode;
+import com.google.api.gax.rpc.ApiCallContext;
+import com.google.api.gax.rpc.ApiExceptionFactory;
+import com.google.api.gax.rpc.BidiStreamingCallable;
+import com.google.api.gax.rpc.ClientStream;
+import com.google.api.gax.rpc.ResponseObserver;
+import com.google.api.gax.rpc.StreamController;
+import com.google.api.gax.rpc.UnaryCallable;
+import com.google.cloud.pubsub.v1.stub.SubscriberStub;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.Empty;
+import com.google.pubsub.proxy.config.ProxyConfig;
+import com.google.pubsub.proxy.entities.AckRequest;
+import com.google.pubsub.proxy.entities.PullResult;
+import com.google.pubsub.v1.AcknowledgeRequest;
+import com.google.pubsub.v1.PubsubMessage;
+import com.google.pubsub.v1.PullRequest;
+import com.google.pubsub.v1.PullResponse;
+import com.google.pubsub.v1.ReceivedMessage;
+import com.google.pubsub.v1.StreamingPullRequest;
+import com.google.pubsub.v1.StreamingPullResponse;
+import io.grpc.Status;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+import org.glassfish.jersey.server.CloseableService;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Captor;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+
+@RunWith(MockitoJUnitRunner.class)
+public class PullMessagesTest {
+
+  private static final String SUBSCRIPTION = "PUBSUB_SUBSCRIPTION";
+
+  @Mock SubscriberStub stub;
+  @Mock UnaryCallable<PullRequest, PullResponse> pullCallable;
+  @Mock UnaryCallable<AcknowledgeRequest, Empty> ackCallable;
+  @Mock BidiStreamingCallable<StreamingPullRequest, StreamingPullResponse> streamingPullCallable;
+  @Mock ClientStream<StreamingPullRequest> clientStream;
+  @Mock StreamController controller;
+  @Mock AsyncResponse asyncResponse;
+  @Captor ArgumentCaptor<Response> responseCaptor;
+  private Properties properties;
+  private final Closeables closeables = new Closeables();
+
+  /** Closes what a request registered, as Jersey does once its response is done */
+  private static class Closeables implements CloseableService {
+    private final List<Closeable> added = new ArrayList<>();
+
+    @Override
+    public boolean add(Closeable closeable) {
+      return added.add(closeable);
+    }
+
+    @Override
+    public void close() {
+      for (Closeable closeable : added) {
+        try {
+          closeable.close();
+        } catch (IOException e) {
+          throw new AssertionError(e);
+        }
+      }
+      added.clear();
+    }
+  }
+
+  @Before
+  public void setUp() {
+    properties = new Properties();
+  }
+
+  private PullMessages pullMessages() {
+    ProxyConfig config = new ProxyConfig(properties, Collections.emptyMap());
+    return new PullMessages(
+        new SubscriptionClient(stub, "project", config), config, new SimpleMeterRegistry());
+  }
+
+  private static ReceivedMessage received(String ackId, String data) {
+    return ReceivedMessage.newBuilder()
+        .setAckId(ackId)
+        .setMessage(
+            PubsubMessage.newBuilder()
+                .setMessageId("id-" + ackId)
+                .setData(ByteString.copyFromUtf8(data))
+                .putAttributes("key", "value"))
+        .build();
+  }
+
+  private static PullResponse pulled(ReceivedMessage... messages) {
+    PullResponse.Builder response = PullResponse.newBuilder();
+    for (ReceivedMessage message : messages) {
+      response.addReceivedMessages(message);
+    }
+    return response.build();
+  }
+
+  @Test
+  public void WhenMessagesArePulledThenTheyAreReturnedWithTheirAckIds() throws Exception {
+    when(stub.pullCallable()).thenReturn(pullCallable);
+    when(pullCallable.futureCall(any(PullRequest.class), any(ApiCallContext.class)))
+        .thenReturn(ApiFutures.immediateFuture(pulled(received("a1", "hello"))));
+    pullMessages().pull(SUBSCRIPTION, 10, 5L, asyncResponse);
+    verify(asyncResponse).resume(responseCaptor.capture());
+    assertEquals(200, responseCaptor.getValue().getStatus());
+    PullResult result = (PullResult) responseCaptor.getValue().getEntity();
+    assertEquals(1, result.getReceivedMessages().size());
+    assertEquals("a1", result.getReceivedMessages().get(0).getAckId());
+    assertEquals("hello", result.getReceivedMessages().get(0).getMessage().getData());
+    assertEquals("id-a1", result.getReceivedMessages().get(0).getMessage().getMessageId());
+  }
+
+  @Test
+  public void WhenBatchingThenPullsAgainUntilTheBatchIsFull() throws Exception {
+    properties.setProperty(PullMessages.BATCH_MILLIS, "10000");
+    ArgumentCaptor<PullRequest> requests = ArgumentCaptor.forClass(PullRequest.class);
+    when(stub.pullCallable()).thenReturn(pullCallable);
+    when(pullCallable.futureCall(requests.capture(), any(ApiCallContext.class)))
+        .thenReturn(
+            ApiFutures.immediateFuture(pulled(received("a1", "one"))),
+            ApiFutures.immediateFuture(pulled(received("a2", "two"))));
+    pullMessages().pull(SUBSCRIPTION, 2, 5L, asyncResponse);
+    verify(asyncResponse).resume(responseCaptor.capture());
+    PullResult result = (PullResult) responseCaptor.getValue().getEntity();
+    assertEquals(2, result.getReceivedMessages().size());
+    assertEquals(2, requests.getAllValues().get(0).getMaxMessages());
+    assertEquals(1, requests.getAllValues().get(1).getMaxMessages());
+    assertEquals(
+        "projects/project/subscriptions/" + SUBSCRIPTION,
+        requests.getAllValues().get(0).getSubscription());
+  }
+
+  @Test
+  public void WhenNothingArrivesInTimeThenAnEmptyListIsReturned() throws Exception {
+    when(stub.pullCallable()).thenReturn(pullCallable);
+    when(pullCallable.futureCall(any(PullRequest.class), any(ApiCallContext.class)))
+        .thenReturn(
+            ApiFutures.immediateFailedFuture(
+                ApiExceptionFactory.createException(
+                    new Exception(), GrpcStatusCode.of(Status.Code.DEADLINE_EXCEEDED), true)));
+    pullMessages().pull(SUBSCRIPTION, 10, 1L, asyncResponse);
+    verify(asyncResponse).resume(responseCaptor.capture());
+    assertEquals(200, responseCaptor.getValue().getStatus());
+    PullResult result = (PullResult) responseCaptor.getValue().getEntity();
+    assertTrue(result.getReceivedMessages().isEmpty());
+  }
+
+  @Test
+  public void WhenSubscriptionDoesNotExistThenNotFoundIsReturned() throws Exception {
+    when(stub.pullCallable()).thenReturn(pullCallable);
+    when(pullCallable.futureCall(any(PullRequest.class), any(ApiCallContext.class)))
+        .thenReturn(
+            ApiFutures.immediateFailedFuture(
+                ApiExceptionFactory.createException(
+                    new Exception(), GrpcStatusCode.of(Status.Code.NOT_FOUND), false)));
+    pullMessages().pull(SUBSCRIPTION, 10, 1L, asyncResponse);
+    verify(asyncResponse).resume(responseCaptor.capture());
+    assertEquals(404, responseCaptor.getValue().getStatus());
+  }
+
+  @Test
+  public void WhenRequestIsInvalidThenNothingIsPulled() throws Exception {
+    pullMessages().pull(SUBSCRIPTION, 0, 1L, asyncResponse);
+    pullMessages().pull("goog-subscription", 10, 1L, asyncResponse);
+    verify(asyncResponse, times(2)).resume(responseCaptor.capture());
+    assertEquals(400, responseCaptor.getAllValues().get(0).getStatus());
+    assertEquals(400, responseCaptor.getAllValues().get(1).getStatus());
+  }
+
+  @Test
+  public void WhenManyAckIdsAreAcknowledgedThenTheyAreSentInBatches() throws Exception {
+    List<String> ackIds = new ArrayList<>();
+    for (int i = 0; i < SubscriptionClient.MAX_ACK_IDS + 10; i++) {
+      ackIds.add("ack-" + i);
+    }
+    AckRequest request = new AckRequest();
+    request.setAckIds(ackIds);
+    ArgumentCaptor<AcknowledgeRequest> requests =
+        ArgumentCaptor.forClass(AcknowledgeRequest.class);
+    when(stub.acknowledgeCallable()).thenReturn(ackCallable);
+    when(ackCallable.futureCall(requests.capture()))
+        .thenReturn(ApiFutures.immediateFuture(Empty.getDefaultInstance()));
+    pullMessages().acknowledge(SUBSCRIPTION, request, asyncResponse);
+    verify(asyncResponse).resume(responseCaptor.capture());
+    assertEquals(200, responseCaptor.getValue().getStatus());
+    assertEquals(SubscriptionClient.MAX_ACK_IDS, requests.getAllValues().get(0).getAckIdsCount());
+    assertEquals(10, requests.getAllValues().get(1).getAckIdsCount());
+  }
+
+  @Test
+  @SuppressWarnings("unchecked")
+  public void WhenStreamingThenEachMessageIsWrittenOnItsOwnLine() throws Exception {
+    when(stub.streamingPullCallable()).thenReturn(streamingPullCallable);
+    when(streamingPullCallable.splitCall(any(ResponseObserver.class)))
+        .thenAnswer(
+            invocation -> {
+              ResponseObserver<StreamingPullResponse> observer = invocation.getArgument(0);
+              observer.onStart(controller);
+              observer.onResponse(
+                  StreamingPullResponse.newBuilder()
+                      .addReceivedMessages(received("a1", "one"))
+                      .addReceivedMessages(received("a2", "two"))
+                      .build());
+              observer.onComplete();
+              return clientStream;
+            });
+    Response response = pullMessages().stream(SUBSCRIPTION, 5L, closeables);
+    assertEquals(PullMessages.APPLICATION_NDJSON, response.getMediaType().toString());
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    ((StreamingOutput) response.getEntity()).write(output);
+
+    String[] lines = new String(output.toByteArray(), StandardCharsets.UTF_8).split("\n");
+    assertEquals(2, lines.length);
+    assertEquals(
+        "{\"ackId\":\"a1\",\"message\":{\"attributes\":{\"key\":\"value\"},"
+            + "\"data\":\"one\",\"messageId\":\"id-a1\"}}",
+        lines[0]);
+    assertTrue(lines[1].startsWith("{\"ackId\":\"a2\""));
+    verify(controller).disableAutoInboundFlowControl();
+    verify(controller, times(2)).request(1);
+    verify(controller).cancel();
+  }
+
+  @Test
+  @SuppressWarnings("unchecked")
+  public void WhenTooManyStreamsAreOpenThenStreamIsRefused() throws Exception {
+    properties.setProperty(PullMessages.MAX_STREAMS, "1");
+    when(stub.streamingPullCallable()).thenReturn(streamingPullCallable);
+    when(streamingPullCallable.splitCall(any(ResponseObserver.class)))
+        .thenAnswer(
+            invocation -> {
+              ResponseObserver<StreamingPullResponse> observer = invocation.getArgument(0);
+              observer.onStart(controller);
+              observer.onComplete();
+              return clientStream;
+            });
+    PullMessages pullMessages = pullMessages();
+    Response open = pullMessages.stream(SUBSCRIPTION, 5L, closeables);
+    assertEquals(503, pullMessages.stream(SUBSCRIPTION, 5L, closeables).getStatus());
+
+    // Once written, the stream no longer counts
+    ((StreamingOutput) open.getEntity()).write(new ByteArrayOutputStream());
+    assertEquals(200, pullMessages.stream(SUBSCRIPTION, 5L, closeables).getStatus());
+  }
+
+  @Test
+  public void WhenStreamIsNeverWrittenThenEndOfRequestReleasesIt() {
+    properties.setProperty(PullMessages.MAX_STREAMS, "1");
+    PullMessages pullMessages = pullMessages();
+    assertEquals(200, pullMessages.stream(SUBSCRIPTION, 5L, closeables).getStatus());
+    assertEquals(503, pullMessages.stream(SUBSCRIPTION, 5L, new Closeables()).getStatus());
+
+    // The client left before the entity was written
+    closeables.close();
+    assertEquals(200, pullMessages.stream(SUBSCRIPTION, 5L, closeables).getStatus());
+  }
+}
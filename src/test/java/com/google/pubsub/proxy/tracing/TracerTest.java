@@ -0,0 +1,121 @@
+/* Copyright 2019 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+
+package com.google.pubsub.proxy.tracing;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import com.google.pubsub.proxy.config.ProxyConfig;
+import com.google.pubsub.proxy.tracing.RequestTrace.Stage;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Properties;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class TracerTest {
+
+  private static final String TRACEPARENT =
+      "00-0af7651916cd43dd8448eb211c80319c-b7ad6b7169203331-01";
+
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+  private final List<RequestTrace> exported = new ArrayList<>();
+
+  @Test
+  public void WhenTraceparentIsCheckedThenW3cFormatApplies() {
+    assertTrue(Tracer.isValid(TRACEPARENT));
+    assertTrue(Tracer.isValid("01" + TRACEPARENT.substring(2) + "-later"));
+    assertFalse(Tracer.isValid(TRACEPARENT + "-later"));
+    assertFalse(Tracer.isValid(TRACEPARENT.toUpperCase()));
+    assertFalse(Tracer.isValid("ff" + TRACEPARENT.substring(2)));
+    assertFalse(Tracer.isValid("00-00000000000000000000000000000000-b7ad6b7169203331-01"));
+    assertFalse(Tracer.isValid(TRACEPARENT.substring(1)));
+    assertFalse(Tracer.isValid(null));
+  }
+
+  @Test
+  public void WhenRequestIsNotSampledThenItIsNotTimed() {
+    Tracer tracer = new Tracer(0.0, false, exported::add);
+    assertSame(RequestTrace.NONE, tracer.start(TRACEPARENT));
+    assertSame(RequestTrace.NONE, new Tracer(1e-12, false, exported::add).start(null));
+    RequestTrace.NONE.mark(Stage.READ);
+    tracer.end(RequestTrace.NONE, 200);
+    assertTrue(exported.isEmpty());
+  }
+
+  @Test
+  public void WhenParentIsSampledThenSpanJoinsItsTrace() {
+    Tracer tracer = new Tracer(1e-12, false, exported::add);
+    RequestTrace trace = tracer.start(TRACEPARENT);
+    trace.setName("POST /publish");
+    trace.mark(Stage.BIND);
+    trace.mark(Stage.PUBLISH);
+    tracer.end(trace, 200);
+
+    assertEquals(Collections.singletonList(trace), exported);
+    assertEquals("0af7651916cd43dd8448eb211c80319c", trace.getTraceId());
+    assertEquals(16, trace.getSpanId().length());
+    assertTrue(trace.toJson().contains("\"parentSpanId\":\"b7ad6b7169203331\""));
+    assertTrue(
+        trace.getDurationNanos()
+            >= trace.getStageNanos(Stage.BIND) + trace.getStageNanos(Stage.PUBLISH));
+    assertTrue(trace.toServerTiming().endsWith("total;dur=" + millis(trace.getDurationNanos())));
+  }
+
+  @Test
+  public void WhenServerTimingIsOnThenEveryRequestIsTimedButNotExported() {
+    Tracer tracer = new Tracer(0.0, true, exported::add);
+    RequestTrace trace = tracer.start(null);
+    assertTrue(trace.isRecording());
+    assertFalse(trace.isSampled());
+    assertEquals(32, trace.getTraceId().length());
+    tracer.end(trace, 200);
+    assertTrue(exported.isEmpty());
+  }
+
+  @Test
+  public void WhenFileExporterIsSetThenSpansAreAppendedAsJsonLines() throws Exception {
+    File file = new File(folder.getRoot(), "spans.jsonl");
+    Properties properties = new Properties();
+    properties.setProperty(Tracer.SAMPLE_RATE, "1");
+    properties.setProperty(Tracer.EXPORTER, "file");
+    properties.setProperty(Tracer.FILE, file.getPath());
+    Tracer tracer = new Tracer(new ProxyConfig(properties, Collections.emptyMap()));
+    for (int i = 0; i < 2; i++) {
+      RequestTrace trace = tracer.start(null);
+      trace.setName("POST /publish");
+      tracer.end(trace, 500);
+    }
+    tracer.shutdown();
+
+    List<String> lines = Files.readAllLines(file.toPath(), StandardCharsets.UTF_8);
+    assertEquals(2, lines.size());
+    assertTrue(lines.get(0).contains("\"status\":500"));
+  }
+
+  private static String millis(long nanos) {
+    return String.format(Locale.ROOT, "%.3f", nanos / 1e6);
+  }
+}